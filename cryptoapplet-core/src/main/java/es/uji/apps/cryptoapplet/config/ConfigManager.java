@@ -2,7 +2,6 @@ package es.uji.apps.cryptoapplet.config;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
-import java.net.URL;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
@@ -11,7 +10,8 @@ import javax.xml.bind.Unmarshaller;
 import org.apache.log4j.Logger;
 
 import es.uji.apps.cryptoapplet.config.model.Configuration;
-import es.uji.apps.cryptoapplet.utils.StreamUtils;
+import es.uji.apps.cryptoapplet.crypto.revocation.RevocationDiskStore;
+import es.uji.apps.cryptoapplet.utils.HttpTransport;
 
 public class ConfigManager
 {
@@ -50,8 +50,7 @@ public class ConfigManager
     {
         try
         {
-            URL configFileUrl = new URL(url);
-            byte[] configFile = StreamUtils.inputStreamToByteArray(configFileUrl.openStream());
+            byte[] configFile = HttpTransport.getInstance().get(url);
             loadXMLFile(new ByteArrayInputStream(configFile));
         }
         catch (Exception e)
@@ -68,6 +67,7 @@ public class ConfigManager
             Unmarshaller unmarshaller = context.createUnmarshaller();
 
             configuration = (Configuration) unmarshaller.unmarshal(fileReference);
+            RevocationDiskStore.enable(configuration);
         }
         catch (JAXBException e)
         {
@@ -22,4 +22,21 @@ public class CertificationAuthorityRegistry
     {
         this.certificationAuthorities = certificationAuthorities;
     }
+
+    public CertificationAuthority getCertificationAuthority(String id)
+    {
+        if (certificationAuthorities != null)
+        {
+            for (CertificationAuthority certificationAuthority : certificationAuthorities)
+            {
+                if (certificationAuthority != null && id != null
+                        && id.equalsIgnoreCase(certificationAuthority.getId()))
+                {
+                    return certificationAuthority;
+                }
+            }
+        }
+
+        return new CertificationAuthority();
+    }
 }
\ No newline at end of file
@@ -15,6 +15,7 @@ public class RevocationService
     private String certificateAlias;
     private Boolean signRequest;
     private Boolean useNonce;
+    private Integer staleGracePeriod;
 
     public String getId()
     {
@@ -80,4 +81,18 @@ public class RevocationService
     {
         this.useNonce = useNonce;
     }
-}
\ No newline at end of file
+
+    /**
+     * @return seconds past nextUpdate during which the last verified status is still served while
+     *         it is refreshed in the background, or null to always query the responder
+     */
+    public Integer getStaleGracePeriod()
+    {
+        return staleGracePeriod;
+    }
+
+    public void setStaleGracePeriod(Integer staleGracePeriod)
+    {
+        this.staleGracePeriod = staleGracePeriod;
+    }
+}
@@ -1,9 +1,11 @@
 package es.uji.apps.cryptoapplet.config.model;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlElement;
 
 @XmlAccessorType(XmlAccessType.FIELD)
@@ -11,6 +13,8 @@ public class RevocationServiceRegistry
 {
     @XmlElement(name = "revocationService")
     private ArrayList<RevocationService> revocationServices;
+    @XmlAttribute
+    private String cacheDirectory;
 
     public ArrayList<RevocationService> getRevocationServices()
     {
@@ -21,4 +25,53 @@ public class RevocationServiceRegistry
     {
         this.revocationServices = revocationServices;
     }
+
+    public RevocationService getRevocationService(String id)
+    {
+        if (revocationServices != null)
+        {
+            for (RevocationService revocationService : revocationServices)
+            {
+                if (revocationService != null && id != null
+                        && id.equalsIgnoreCase(revocationService.getId()))
+                {
+                    return revocationService;
+                }
+            }
+        }
+
+        return new RevocationService();
+    }
+
+    /**
+     * @return every revocation service configured for the CA, in configuration order
+     */
+    public List<RevocationService> getRevocationServices(String caId)
+    {
+        List<RevocationService> result = new ArrayList<RevocationService>();
+
+        if (revocationServices != null)
+        {
+            for (RevocationService revocationService : revocationServices)
+            {
+                if (revocationService != null && caId != null
+                        && caId.equalsIgnoreCase(revocationService.getCaId()))
+                {
+                    result.add(revocationService);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    public String getCacheDirectory()
+    {
+        return cacheDirectory;
+    }
+
+    public void setCacheDirectory(String cacheDirectory)
+    {
+        this.cacheDirectory = cacheDirectory;
+    }
 }
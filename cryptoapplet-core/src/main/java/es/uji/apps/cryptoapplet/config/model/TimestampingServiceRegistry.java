@@ -24,12 +24,15 @@ public class TimestampingServiceRegistry
 
     public TimestampingService getTimestampingService(String id)
     {
-        for (TimestampingService timestampingService : timestampingServices)
+        if (timestampingServices != null)
         {
-            if (timestampingService != null && id != null
-                    && id.equalsIgnoreCase(timestampingService.getId()))
+            for (TimestampingService timestampingService : timestampingServices)
             {
-                return timestampingService;
+                if (timestampingService != null && id != null
+                        && id.equalsIgnoreCase(timestampingService.getId()))
+                {
+                    return timestampingService;
+                }
             }
         }
 
@@ -1,17 +1,7 @@
 package es.uji.apps.cryptoapplet.crypto.crl;
 
-import java.io.BufferedInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.security.cert.CRLException;
-import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509CRL;
+import java.security.PublicKey;
 import java.security.cert.X509Certificate;
-import java.util.HashMap;
 import java.util.List;
 
 import sun.security.x509.CRLDistributionPointsExtension;
@@ -21,30 +11,39 @@ import sun.security.x509.X509CertImpl;
 
 public class CRLChecker
 {
-    private static HashMap<String, X509CRL> crl = new HashMap<String, X509CRL>();
-    private static HashMap<String, Long> lastModified = new HashMap<String, Long>();
+    private static CRLStore store = new CRLStore();
+
+    public static CRLStore getStore()
+    {
+        return store;
+    }
 
     public CRLResponseDetails getCertificateStatus(String crlURL, X509Certificate certificate)
     {
-        CRLResponseDetails responseDetails = new CRLResponseDetails();
+        return getCertificateStatus(crlURL, certificate, null);
+    }
 
-        X509CRL crl = null;
+    public CRLResponseDetails getCertificateStatus(String crlURL, X509Certificate certificate,
+            X509Certificate caCertificate)
+    {
+        CRLResponseDetails responseDetails = new CRLResponseDetails();
 
         try
         {
-            crl = getCRL(crlURL);
+            PublicKey issuerKey = (caCertificate != null) ? caCertificate.getPublicKey() : null;
+            RevokedSerialIndex revokedSerials = store.getRevokedSerials(crlURL, issuerKey);
+            int index = revokedSerials.indexOf(certificate.getSerialNumber());
 
-            if (crl != null)
+            if (index >= 0)
             {
-                if (crl.isRevoked(certificate))
-                {
-                    responseDetails.setValid(false);
-                    responseDetails.addError("Certificate is revoked");
-                }
-                else
-                {
-                    responseDetails.setValid(true);
-                }
+                responseDetails.setValid(false);
+                responseDetails.setRevocationDate(revokedSerials.getRevocationDate(index));
+                responseDetails.setRevocationReason(revokedSerials.getReason(index));
+                responseDetails.addError("Certificate is revoked");
+            }
+            else
+            {
+                responseDetails.setValid(true);
             }
         }
         catch (Exception e)
@@ -57,8 +56,14 @@ public class CRLChecker
         return responseDetails;
     }
 
-    @SuppressWarnings({ "unchecked", "restriction" })
     public CRLResponseDetails getCertificateStatus(X509Certificate certificate)
+    {
+        return getCertificateStatus(certificate, null);
+    }
+
+    @SuppressWarnings({ "unchecked", "restriction" })
+    public CRLResponseDetails getCertificateStatus(X509Certificate certificate,
+            X509Certificate caCertificate)
     {
         CRLResponseDetails responseDetails = new CRLResponseDetails();
         String crlURL = null;
@@ -99,7 +104,7 @@ public class CRLChecker
 
         if (crlURL != null)
         {
-            responseDetails = getCertificateStatus(crlURL, certificate);
+            responseDetails = getCertificateStatus(crlURL, certificate, caCertificate);
         }
         else
         {
@@ -109,31 +114,4 @@ public class CRLChecker
 
         return responseDetails;
     }
-
-    private X509CRL getCRL(String crlURL) throws MalformedURLException, IOException, CRLException,
-            CertificateException
-    {
-        HttpURLConnection conn = (HttpURLConnection) new URL(crlURL).openConnection();
-        conn.setDoInput(true);
-        conn.setConnectTimeout(5000);
-        long now = conn.getLastModified();
-
-        if (lastModified.get(crlURL) == null || now != lastModified.get(crlURL))
-        {
-            InputStream is = conn.getInputStream();
-            BufferedInputStream bis = new BufferedInputStream(is);
-
-            synchronized (crl)
-            {
-                synchronized (lastModified)
-                {
-                    crl.put(crlURL,
-                            (X509CRL) CertificateFactory.getInstance("X.509").generateCRL(bis));
-                    lastModified.put(crlURL, now);
-                }
-            }
-        }
-
-        return crl.get(crlURL);
-    }
 }
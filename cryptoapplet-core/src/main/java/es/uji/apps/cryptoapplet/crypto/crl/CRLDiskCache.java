@@ -0,0 +1,404 @@
+package es.uji.apps.cryptoapplet.crypto.crl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Persists the revoked serial index of every cached CRL in its own file under a directory, so a
+ * restarted process can restore its CRLStore without downloading anything. Like the entries of
+ * the store, files are kept per URL and issuer key, and they are discarded once their CRL is past
+ * its nextUpdate.
+ */
+public class CRLDiskCache
+{
+    private static Logger log = Logger.getLogger(CRLDiskCache.class);
+
+    private static final int MAGIC = 0x43524c49;
+    // Version 2 indexes hold normalized serials, files written before are discarded on read
+    private static final int VERSION = 2;
+    private static final String FILE_EXTENSION = ".crlindex";
+
+    private final File directory;
+
+    public CRLDiskCache(File directory)
+    {
+        this.directory = directory;
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            log.warn("Can not create CRL cache directory " + directory.getAbsolutePath());
+        }
+    }
+
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * @return the persisted entry for the URL, or null if there is none, it is no longer valid or
+     *         it was not verified with the requested issuer key
+     */
+    CRLStoreEntry load(String crlURL, PublicKey issuerKey)
+    {
+        File file = getFile(crlURL, issuerKey);
+
+        if (!file.isFile())
+        {
+            return null;
+        }
+
+        try
+        {
+            CRLStoreEntry entry = read(file, crlURL, issuerKey);
+
+            Date nextUpdate = entry.getCRL().getNextUpdate();
+
+            if (nextUpdate != null && nextUpdate.getTime() <= System.currentTimeMillis())
+            {
+                file.delete();
+                return null;
+            }
+
+            if (issuerKey != null && entry.getIssuerKey() == null)
+            {
+                return null;
+            }
+
+            return entry;
+        }
+        catch (IOException e)
+        {
+            log.warn("Discarding unreadable CRL cache file " + file.getAbsolutePath(), e);
+            file.delete();
+
+            return null;
+        }
+    }
+
+    void save(String crlURL, CRLStoreEntry entry)
+    {
+        File file = getFile(crlURL, entry.getIssuerKey());
+        File temporaryFile = new File(directory, file.getName() + ".tmp");
+
+        try
+        {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temporaryFile), 65536));
+
+            try
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                writeString(out, crlURL);
+                writeBytes(out, (entry.getIssuerKey() != null) ? digest(entry.getIssuerKey())
+                        : null);
+                writeEntry(out, entry);
+                out.writeBoolean(entry.getDelta() != null);
+
+                if (entry.getDelta() != null)
+                {
+                    writeEntry(out, entry.getDelta());
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+
+            // Replace the previous file in one step so readers never see a partial index
+
+            if (!temporaryFile.renameTo(file))
+            {
+                file.delete();
+
+                if (!temporaryFile.renameTo(file))
+                {
+                    throw new IOException("Can not replace " + file.getAbsolutePath());
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            log.warn("Can not persist CRL from " + crlURL, e);
+            temporaryFile.delete();
+        }
+    }
+
+    /**
+     * Removes the files of the URL for every issuer key
+     */
+    void remove(String crlURL)
+    {
+        String prefix = getURLDigest(crlURL);
+        File[] files = directory.listFiles();
+
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                if (file.getName().startsWith(prefix) && file.getName().endsWith(FILE_EXTENSION))
+                {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    public void clear()
+    {
+        File[] files = directory.listFiles();
+
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                if (file.getName().endsWith(FILE_EXTENSION))
+                {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private CRLStoreEntry read(File file, String crlURL, PublicKey issuerKey) throws IOException
+    {
+        // Read into the heap and closed right away, so the file can be replaced or deleted
+        // while the entry is in use
+
+        byte[] content = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+                file), 65536));
+
+        try
+        {
+            in.readFully(content);
+        }
+        finally
+        {
+            in.close();
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+
+        try
+        {
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+            {
+                throw new IOException("Unknown CRL cache file format");
+            }
+
+            if (!crlURL.equals(readString(buffer)))
+            {
+                throw new IOException("CRL cache file belongs to another URL");
+            }
+
+            byte[] keyDigest = readBytes(buffer);
+            PublicKey entryKey = null;
+
+            if (keyDigest != null && issuerKey != null
+                    && Arrays.equals(keyDigest, digest(issuerKey)))
+            {
+                entryKey = issuerKey;
+            }
+
+            CRLStoreEntry entry = readEntry(buffer, entryKey);
+
+            if (buffer.get() != 0)
+            {
+                entry = entry.withDelta(readEntry(buffer, entryKey));
+            }
+
+            return entry;
+        }
+        catch (BufferUnderflowException e)
+        {
+            throw new IOException("Truncated CRL cache file");
+        }
+    }
+
+    private void writeEntry(DataOutputStream out, CRLStoreEntry entry) throws IOException
+    {
+        ParsedCRL crl = entry.getCRL();
+
+        out.writeLong(entry.getLastModified());
+        writeString(out, entry.getETag());
+        writeBytes(out, crl.getIssuer().getEncoded());
+        out.writeLong(crl.getThisUpdate().getTime());
+        out.writeLong((crl.getNextUpdate() != null) ? crl.getNextUpdate().getTime() : -1);
+        out.writeBoolean(crl.isVerified());
+        writeBytes(out, (crl.getCRLNumber() != null) ? crl.getCRLNumber().toByteArray() : null);
+        writeBytes(out, (crl.getBaseCRLNumber() != null) ? crl.getBaseCRLNumber().toByteArray()
+                : null);
+
+        out.writeInt(crl.getFreshestCRLURLs().size());
+
+        for (String url : crl.getFreshestCRLURLs())
+        {
+            writeString(out, url);
+        }
+
+        crl.getRevokedSerials().writeTo(out);
+    }
+
+    private CRLStoreEntry readEntry(ByteBuffer buffer, PublicKey issuerKey) throws IOException
+    {
+        ParsedCRL crl = new ParsedCRL();
+
+        long lastModified = buffer.getLong();
+        String eTag = readString(buffer);
+        crl.setIssuer(new X500Principal(readBytes(buffer)));
+        crl.setThisUpdate(new Date(buffer.getLong()));
+
+        long nextUpdate = buffer.getLong();
+
+        if (nextUpdate >= 0)
+        {
+            crl.setNextUpdate(new Date(nextUpdate));
+        }
+
+        crl.setVerified(buffer.get() != 0 && issuerKey != null);
+
+        byte[] crlNumber = readBytes(buffer);
+        crl.setCRLNumber((crlNumber != null) ? new BigInteger(crlNumber) : null);
+
+        byte[] baseCRLNumber = readBytes(buffer);
+        crl.setBaseCRLNumber((baseCRLNumber != null) ? new BigInteger(baseCRLNumber) : null);
+
+        int urls = buffer.getInt();
+        List<String> freshestCRLURLs = new ArrayList<String>();
+
+        for (int i = 0; i < urls; i++)
+        {
+            freshestCRLURLs.add(readString(buffer));
+        }
+
+        crl.setFreshestCRLURLs(freshestCRLURLs);
+        crl.setRevokedSerials(RevokedSerialIndex.readFrom(buffer));
+
+        return new CRLStoreEntry(crl, crl.isVerified() ? issuerKey : null, lastModified, eTag);
+    }
+
+    /**
+     * @return the file named after the digest of the URL, followed by the digest of the issuer
+     *         key for verified entries
+     */
+    private File getFile(String crlURL, PublicKey issuerKey)
+    {
+        String name = getURLDigest(crlURL);
+
+        if (issuerKey != null)
+        {
+            name += "-" + toHex(sha1(issuerKey.getEncoded()));
+        }
+
+        return new File(directory, name + FILE_EXTENSION);
+    }
+
+    private static String getURLDigest(String crlURL)
+    {
+        try
+        {
+            return toHex(sha1(crlURL.getBytes("UTF-8")));
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] sha1(byte[] data)
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-1").digest(data);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] hash)
+    {
+        return String.format("%040x", new BigInteger(1, hash));
+    }
+
+    private static byte[] digest(PublicKey key) throws IOException
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256").digest(key.getEncoded());
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException
+    {
+        writeBytes(out, (value != null) ? value.getBytes("UTF-8") : null);
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException
+    {
+        byte[] value = readBytes(buffer);
+        return (value != null) ? new String(value, "UTF-8") : null;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] value) throws IOException
+    {
+        if (value == null)
+        {
+            out.writeInt(-1);
+        }
+        else
+        {
+            out.writeInt(value.length);
+            out.write(value);
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) throws IOException
+    {
+        int length = buffer.getInt();
+
+        if (length < 0)
+        {
+            return null;
+        }
+
+        if (length > buffer.remaining())
+        {
+            throw new IOException("Corrupted CRL cache file");
+        }
+
+        byte[] value = new byte[length];
+        buffer.get(value);
+
+        return value;
+    }
+}
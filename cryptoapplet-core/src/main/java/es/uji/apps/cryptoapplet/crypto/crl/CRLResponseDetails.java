@@ -1,12 +1,15 @@
 package es.uji.apps.cryptoapplet.crypto.crl;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
 public class CRLResponseDetails
 {
     private boolean valid;
     private List<String> errors;
+    private Date revocationDate;
+    private int revocationReason = RevokedSerialIndex.NO_REASON;
 
     public CRLResponseDetails()
     {
@@ -47,4 +50,24 @@ public class CRLResponseDetails
             this.errors.add(error);
         }
     }
+
+    public Date getRevocationDate()
+    {
+        return revocationDate;
+    }
+
+    public void setRevocationDate(Date revocationDate)
+    {
+        this.revocationDate = revocationDate;
+    }
+
+    public int getRevocationReason()
+    {
+        return revocationReason;
+    }
+
+    public void setRevocationReason(int revocationReason)
+    {
+        this.revocationReason = revocationReason;
+    }
 }
@@ -0,0 +1,534 @@
+package es.uji.apps.cryptoapplet.crypto.crl;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import es.uji.apps.cryptoapplet.utils.HttpTransport;
+
+/**
+ * Keeps the CRLs of every distribution point in memory and refreshes them in the background when
+ * they reach their nextUpdate, so lookups only touch the network the first time a URL is seen.
+ * A CRL past its nextUpdate is never served: a lookup downloads it again conditionally, at most
+ * once every {@link #RETRY_INTERVAL}, and fails in between while the background refresh retries.
+ * When a base CRL announces a delta CRL through its Freshest CRL extension, only the delta is
+ * downloaded until the base itself expires, and it is merged into the cached base index.
+ * Entries are kept per URL and issuer key, so a CRL verified with one key is never returned for
+ * another one.
+ */
+public class CRLStore
+{
+    private static Logger log = Logger.getLogger(CRLStore.class);
+
+    public static final long DEFAULT_REFRESH_INTERVAL = 60 * 60 * 1000L;
+    public static final long MIN_REFRESH_INTERVAL = 60 * 1000L;
+    public static final long RETRY_INTERVAL = 5 * 60 * 1000L;
+
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    private final ConcurrentMap<String, CRLStoreEntry> entries = new ConcurrentHashMap<String, CRLStoreEntry>();
+    private final ConcurrentMap<String, FutureTask<CRLStoreEntry>> pendingLoads = new ConcurrentHashMap<String, FutureTask<CRLStoreEntry>>();
+    private final ConcurrentMap<String, ScheduledFuture<?>> refreshTasks = new ConcurrentHashMap<String, ScheduledFuture<?>>();
+    private final ConcurrentMap<String, Long> reloadAttempts = new ConcurrentHashMap<String, Long>();
+    private final ScheduledExecutorService scheduler;
+    private volatile CRLDiskCache diskCache;
+
+    public CRLStore()
+    {
+        scheduler = new ScheduledThreadPoolExecutor(2, new ThreadFactory()
+        {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "crl-store-refresh");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+    }
+
+    public CRLDiskCache getDiskCache()
+    {
+        return diskCache;
+    }
+
+    /**
+     * Enables persistence of the loaded CRLs. Persisted entries are read back lazily, the first
+     * time their URL is requested, and only while they are before their nextUpdate.
+     */
+    public void setDiskCache(CRLDiskCache diskCache)
+    {
+        this.diskCache = diskCache;
+    }
+
+    public RevokedSerialIndex getRevokedSerials(String crlURL) throws CryptoCoreCRLException
+    {
+        return getEntry(crlURL, null).getRevokedSerials();
+    }
+
+    public RevokedSerialIndex getRevokedSerials(String crlURL, PublicKey issuerKey)
+            throws CryptoCoreCRLException
+    {
+        return getEntry(crlURL, issuerKey).getRevokedSerials();
+    }
+
+    CRLStoreEntry getEntry(String crlURL, PublicKey issuerKey) throws CryptoCoreCRLException
+    {
+        String key = getKey(crlURL, issuerKey);
+        CRLStoreEntry entry = entries.get(key);
+
+        if (entry == null)
+        {
+            return load(crlURL, issuerKey, null);
+        }
+
+        // Past its nextUpdate a CRL is only served again once it has been downloaded anew, so a
+        // failing distribution point is reported instead of being hidden behind an old CRL
+
+        if (isPastNextUpdate(entry.getNextUpdate()))
+        {
+            long now = System.currentTimeMillis();
+            Long lastAttempt = reloadAttempts.get(key);
+
+            if (lastAttempt != null && now - lastAttempt < RETRY_INTERVAL)
+            {
+                throw new CryptoCoreCRLException(getExpiredMessage(crlURL, entry));
+            }
+
+            reloadAttempts.put(key, now);
+            entry = load(crlURL, issuerKey, entry);
+
+            if (isPastNextUpdate(entry.getNextUpdate()))
+            {
+                throw new CryptoCoreCRLException(getExpiredMessage(crlURL, entry));
+            }
+
+            reloadAttempts.remove(key);
+        }
+
+        return entry;
+    }
+
+    private String getExpiredMessage(String crlURL, CRLStoreEntry entry)
+    {
+        return "CRL from " + crlURL + " expired on " + entry.getNextUpdate()
+                + " and has not been renewed yet";
+    }
+
+    public boolean contains(String crlURL)
+    {
+        for (String key : entries.keySet())
+        {
+            if (getURL(key).equals(crlURL))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public void remove(String crlURL)
+    {
+        for (String key : refreshTasks.keySet())
+        {
+            if (getURL(key).equals(crlURL))
+            {
+                ScheduledFuture<?> refreshTask = refreshTasks.remove(key);
+
+                if (refreshTask != null)
+                {
+                    refreshTask.cancel(false);
+                }
+            }
+        }
+
+        for (String key : entries.keySet())
+        {
+            if (getURL(key).equals(crlURL))
+            {
+                entries.remove(key);
+                reloadAttempts.remove(key);
+            }
+        }
+
+        if (diskCache != null)
+        {
+            diskCache.remove(crlURL);
+        }
+    }
+
+    public void clear()
+    {
+        for (String key : entries.keySet())
+        {
+            remove(getURL(key));
+        }
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    public void shutdown()
+    {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * @return the URL for unverified entries, or the digest of the issuer key and the URL
+     */
+    static String getKey(String crlURL, PublicKey issuerKey)
+    {
+        if (issuerKey == null)
+        {
+            return crlURL;
+        }
+
+        try
+        {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(issuerKey.getEncoded());
+            return String.format("%040x", new BigInteger(1, hash)) + " " + crlURL;
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String getURL(String key)
+    {
+        // URLs can not contain spaces, so the key digest is whatever precedes the first one
+
+        return key.substring(key.indexOf(' ') + 1);
+    }
+
+    /**
+     * Downloads the CRL, conditionally when there is a current entry to revalidate
+     */
+    private CRLStoreEntry load(final String crlURL, final PublicKey issuerKey,
+            final CRLStoreEntry current) throws CryptoCoreCRLException
+    {
+        final String key = getKey(crlURL, issuerKey);
+
+        // Only one thread downloads a given URL, the rest wait for its result
+
+        FutureTask<CRLStoreEntry> task = new FutureTask<CRLStoreEntry>(
+                new Callable<CRLStoreEntry>()
+                {
+                    public CRLStoreEntry call() throws Exception
+                    {
+                        CRLStoreEntry entry = (diskCache != null && current == null) ? diskCache
+                                .load(crlURL, issuerKey) : null;
+
+                        if (entry == null)
+                        {
+                            entry = applyDelta(crlURL, download(crlURL, current, issuerKey));
+
+                            if (entry != current)
+                            {
+                                persist(crlURL, entry);
+                            }
+                        }
+
+                        entries.put(key, entry);
+                        scheduleRefresh(crlURL, key, entry);
+
+                        return entry;
+                    }
+                });
+
+        FutureTask<CRLStoreEntry> pendingLoad = pendingLoads.putIfAbsent(key, task);
+
+        if (pendingLoad == null)
+        {
+            pendingLoad = task;
+            task.run();
+        }
+
+        try
+        {
+            return pendingLoad.get();
+        }
+        catch (ExecutionException e)
+        {
+            throw new CryptoCoreCRLException(e.getCause().getLocalizedMessage(), e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new CryptoCoreCRLException("Interrupted while downloading CRL from " + crlURL, e);
+        }
+        finally
+        {
+            pendingLoads.remove(key, pendingLoad);
+        }
+    }
+
+    private void refresh(String crlURL, String key)
+    {
+        CRLStoreEntry current = entries.get(key);
+
+        if (current == null)
+        {
+            return;
+        }
+
+        try
+        {
+            CRLStoreEntry entry = current;
+
+            // While the base CRL is still current only its delta needs to be fetched
+
+            if (current.getDeltaURL() == null || isExpired(current.getCRL().getNextUpdate()))
+            {
+                entry = download(crlURL, current, current.getIssuerKey());
+            }
+
+            entry = applyDelta(crlURL, entry);
+            entries.put(key, entry);
+            scheduleRefresh(crlURL, key, entry);
+
+            if (!isPastNextUpdate(entry.getNextUpdate()))
+            {
+                reloadAttempts.remove(key);
+            }
+
+            if (entry != current)
+            {
+                persist(crlURL, entry);
+            }
+        }
+        catch (Exception e)
+        {
+            log.warn("Can not refresh CRL from " + crlURL + ", retrying later", e);
+            schedule(crlURL, key, RETRY_INTERVAL);
+        }
+    }
+
+    private void persist(final String crlURL, final CRLStoreEntry entry)
+    {
+        final CRLDiskCache diskCache = this.diskCache;
+
+        if (diskCache != null)
+        {
+            scheduler.execute(new Runnable()
+            {
+                public void run()
+                {
+                    diskCache.save(crlURL, entry);
+                }
+            });
+        }
+    }
+
+    private CRLStoreEntry applyDelta(String crlURL, CRLStoreEntry base)
+    {
+        String deltaURL = base.getDeltaURL();
+
+        if (deltaURL == null)
+        {
+            return base;
+        }
+
+        try
+        {
+            CRLStoreEntry currentDelta = base.getDelta();
+            CRLStoreEntry delta = download(deltaURL, currentDelta, base.getIssuerKey());
+
+            if (delta == currentDelta)
+            {
+                return base;
+            }
+
+            checkDelta(base, delta);
+
+            BigInteger baseNumber = base.getCRL().getCRLNumber();
+            BigInteger deltaBaseNumber = delta.getCRL().getBaseCRLNumber();
+
+            if (baseNumber == null || deltaBaseNumber.compareTo(baseNumber) > 0)
+            {
+                // The delta is relative to a newer base than the cached one
+
+                base = download(crlURL, null, base.getIssuerKey());
+                baseNumber = base.getCRL().getCRLNumber();
+
+                if (baseNumber == null || deltaBaseNumber.compareTo(baseNumber) > 0)
+                {
+                    log.warn("Delta CRL " + deltaURL + " does not apply to base CRL " + crlURL);
+                    return base;
+                }
+            }
+
+            if (delta.getCRL().getCRLNumber() != null
+                    && delta.getCRL().getCRLNumber().compareTo(baseNumber) <= 0)
+            {
+                // The base already includes everything in this delta
+                return base;
+            }
+
+            return base.withDelta(delta);
+        }
+        catch (Exception e)
+        {
+            log.warn("Can not apply delta CRL from " + deltaURL + ", using base CRL", e);
+            return base;
+        }
+    }
+
+    private void checkDelta(CRLStoreEntry base, CRLStoreEntry delta) throws CryptoCoreCRLException
+    {
+        if (!delta.getCRL().isDelta())
+        {
+            throw new CryptoCoreCRLException("Freshest CRL is not a delta CRL");
+        }
+
+        if (!delta.getIssuer().equals(base.getIssuer()))
+        {
+            throw new CryptoCoreCRLException("Delta CRL issuer does not match base CRL issuer");
+        }
+    }
+
+    private boolean isExpired(Date nextUpdate)
+    {
+        return nextUpdate == null || nextUpdate.getTime() <= System.currentTimeMillis();
+    }
+
+    private boolean isPastNextUpdate(Date nextUpdate)
+    {
+        return nextUpdate != null && nextUpdate.getTime() <= System.currentTimeMillis();
+    }
+
+    private void scheduleRefresh(String crlURL, String key, CRLStoreEntry entry)
+    {
+        long delay = DEFAULT_REFRESH_INTERVAL;
+
+        if (entry.getNextUpdate() != null)
+        {
+            delay = entry.getNextUpdate().getTime() - System.currentTimeMillis();
+        }
+
+        schedule(crlURL, key, Math.max(delay, MIN_REFRESH_INTERVAL));
+    }
+
+    private void schedule(final String crlURL, final String key, long delay)
+    {
+        ScheduledFuture<?> refreshTask = scheduler.schedule(new Runnable()
+        {
+            public void run()
+            {
+                refresh(crlURL, key);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+
+        ScheduledFuture<?> previousTask = refreshTasks.put(key, refreshTask);
+
+        if (previousTask != null && previousTask != refreshTask)
+        {
+            previousTask.cancel(false);
+        }
+    }
+
+    private CRLStoreEntry download(String crlURL, CRLStoreEntry current, PublicKey issuerKey)
+            throws Exception
+    {
+        Map<String, String> headers = new HashMap<String, String>();
+
+        if (current != null)
+        {
+            if (current.getLastModified() > 0)
+            {
+                SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+                format.setTimeZone(TimeZone.getTimeZone("GMT"));
+                headers.put("If-Modified-Since", format.format(new Date(current
+                        .getLastModified())));
+            }
+
+            if (current.getETag() != null)
+            {
+                headers.put("If-None-Match", current.getETag());
+            }
+        }
+
+        try
+        {
+            return HttpTransport.getInstance().execute(crlURL, "GET", headers, null,
+                    new CRLResponseHandler(current, issuerKey));
+        }
+        catch (IOException e)
+        {
+            if (e.getCause() instanceof CryptoCoreCRLException)
+            {
+                throw (CryptoCoreCRLException) e.getCause();
+            }
+
+            throw e;
+        }
+    }
+
+    private static class CRLResponseHandler implements
+            HttpTransport.ResponseHandler<CRLStoreEntry>
+    {
+        private final CRLStoreEntry current;
+        private final PublicKey issuerKey;
+
+        public CRLResponseHandler(CRLStoreEntry current, PublicKey issuerKey)
+        {
+            this.current = current;
+            this.issuerKey = issuerKey;
+        }
+
+        public CRLStoreEntry handle(HttpURLConnection connection, InputStream body)
+                throws IOException
+        {
+            if (connection != null
+                    && connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED)
+            {
+                return current;
+            }
+
+            ParsedCRL crl = null;
+
+            try
+            {
+                crl = new CRLStreamParser(issuerKey).parse(new BufferedInputStream(body));
+            }
+            catch (CryptoCoreCRLException e)
+            {
+                throw new IOException(e.getMessage(), e);
+            }
+
+            if (connection == null)
+            {
+                return new CRLStoreEntry(crl, issuerKey, 0, null);
+            }
+
+            return new CRLStoreEntry(crl, issuerKey, connection.getLastModified(), connection
+                    .getHeaderField("ETag"));
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package es.uji.apps.cryptoapplet.crypto.crl;
+
+import java.security.PublicKey;
+import java.util.Date;
+
+import javax.security.auth.x500.X500Principal;
+
+class CRLStoreEntry
+{
+    private final ParsedCRL crl;
+    private final PublicKey issuerKey;
+    private final long lastModified;
+    private final String eTag;
+    private final CRLStoreEntry delta;
+    private final RevokedSerialIndex revokedSerials;
+
+    public CRLStoreEntry(ParsedCRL crl, PublicKey issuerKey, long lastModified, String eTag)
+    {
+        this(crl, issuerKey, lastModified, eTag, null, crl.getRevokedSerials());
+    }
+
+    private CRLStoreEntry(ParsedCRL crl, PublicKey issuerKey, long lastModified, String eTag,
+            CRLStoreEntry delta, RevokedSerialIndex revokedSerials)
+    {
+        this.crl = crl;
+        this.issuerKey = issuerKey;
+        this.lastModified = lastModified;
+        this.eTag = eTag;
+        this.delta = delta;
+        this.revokedSerials = revokedSerials;
+    }
+
+    /**
+     * Returns a new entry with the delta CRL applied to the revoked serials of this base CRL. Any
+     * previously applied delta is replaced, since every delta is relative to the base.
+     */
+    public CRLStoreEntry withDelta(CRLStoreEntry delta)
+    {
+        return new CRLStoreEntry(crl, issuerKey, lastModified, eTag, delta, crl
+                .getRevokedSerials().merge(delta.getCRL().getRevokedSerials()));
+    }
+
+    public ParsedCRL getCRL()
+    {
+        return crl;
+    }
+
+    public CRLStoreEntry getDelta()
+    {
+        return delta;
+    }
+
+    /**
+     * @return the first HTTP location of the delta CRL announced by the base CRL, or null
+     */
+    public String getDeltaURL()
+    {
+        for (String url : crl.getFreshestCRLURLs())
+        {
+            if (url.startsWith("http://") || url.startsWith("https://"))
+            {
+                return url;
+            }
+        }
+
+        return null;
+    }
+
+    public X500Principal getIssuer()
+    {
+        return crl.getIssuer();
+    }
+
+    public Date getThisUpdate()
+    {
+        return crl.getThisUpdate();
+    }
+
+    /**
+     * @return the earliest nextUpdate of the base CRL and its delta
+     */
+    public Date getNextUpdate()
+    {
+        Date nextUpdate = crl.getNextUpdate();
+
+        if (delta != null && delta.getNextUpdate() != null
+                && (nextUpdate == null || delta.getNextUpdate().before(nextUpdate)))
+        {
+            nextUpdate = delta.getNextUpdate();
+        }
+
+        return nextUpdate;
+    }
+
+    public RevokedSerialIndex getRevokedSerials()
+    {
+        return revokedSerials;
+    }
+
+    public PublicKey getIssuerKey()
+    {
+        return issuerKey;
+    }
+
+    public long getLastModified()
+    {
+        return lastModified;
+    }
+
+    public String getETag()
+    {
+        return eTag;
+    }
+}
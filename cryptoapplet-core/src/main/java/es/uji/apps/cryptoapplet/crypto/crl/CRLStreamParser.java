@@ -0,0 +1,684 @@
+package es.uji.apps.cryptoapplet.crypto.crl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Single pass DER parser for X.509 CRLs. Revoked entries go straight into a RevokedSerialIndex and
+ * the TBS bytes are fed to the signature engine while they are read, so a CRL of any size is
+ * ingested without materializing an X509CRL or buffering the whole download.
+ */
+public class CRLStreamParser
+{
+    private static final int TAG_INTEGER = 0x02;
+    private static final int TAG_BIT_STRING = 0x03;
+    private static final int TAG_OCTET_STRING = 0x04;
+    private static final int TAG_OID = 0x06;
+    private static final int TAG_ENUMERATED = 0x0a;
+    private static final int TAG_UTC_TIME = 0x17;
+    private static final int TAG_GENERALIZED_TIME = 0x18;
+    private static final int TAG_SEQUENCE = 0x30;
+    private static final int TAG_CRL_EXTENSIONS = 0xa0;
+    private static final int TAG_DISTRIBUTION_POINT = 0xa0;
+    private static final int TAG_FULL_NAME = 0xa0;
+    private static final int TAG_URI = 0x86;
+
+    private static final String REASON_CODE_OID = "2.5.29.21";
+    private static final String CRL_NUMBER_OID = "2.5.29.20";
+    private static final String DELTA_CRL_INDICATOR_OID = "2.5.29.27";
+    private static final String FRESHEST_CRL_OID = "2.5.29.46";
+
+    private static final Map<String, String> signatureAlgorithms = new HashMap<String, String>();
+
+    static
+    {
+        signatureAlgorithms.put("1.2.840.113549.1.1.4", "MD5withRSA");
+        signatureAlgorithms.put("1.2.840.113549.1.1.5", "SHA1withRSA");
+        signatureAlgorithms.put("1.2.840.113549.1.1.11", "SHA256withRSA");
+        signatureAlgorithms.put("1.2.840.113549.1.1.12", "SHA384withRSA");
+        signatureAlgorithms.put("1.2.840.113549.1.1.13", "SHA512withRSA");
+        signatureAlgorithms.put("1.2.840.10040.4.3", "SHA1withDSA");
+        signatureAlgorithms.put("1.2.840.10045.4.1", "SHA1withECDSA");
+        signatureAlgorithms.put("1.2.840.10045.4.3.2", "SHA256withECDSA");
+        signatureAlgorithms.put("1.2.840.10045.4.3.3", "SHA384withECDSA");
+        signatureAlgorithms.put("1.2.840.10045.4.3.4", "SHA512withECDSA");
+    }
+
+    private final PublicKey issuerKey;
+
+    public CRLStreamParser()
+    {
+        this(null);
+    }
+
+    /**
+     * @param issuerKey key used to verify the CRL signature, or null to skip the verification
+     */
+    public CRLStreamParser(PublicKey issuerKey)
+    {
+        this.issuerKey = issuerKey;
+    }
+
+    public ParsedCRL parse(InputStream inputStream) throws CryptoCoreCRLException
+    {
+        try
+        {
+            return parse(new DERInputStream(inputStream));
+        }
+        catch (IOException e)
+        {
+            throw new CryptoCoreCRLException("Malformed CRL: " + e.getMessage(), e);
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new CryptoCoreCRLException("Can not verify CRL signature", e);
+        }
+    }
+
+    private ParsedCRL parse(DERInputStream in) throws IOException, GeneralSecurityException,
+            CryptoCoreCRLException
+    {
+        ParsedCRL parsedCRL = new ParsedCRL();
+
+        // CertificateList ::= SEQUENCE { tbsCertList, signatureAlgorithm, signatureValue }
+        in.expectTag(TAG_SEQUENCE);
+        in.readLength();
+
+        // The TBS header and the fields before the algorithm identifier are recorded until the
+        // signature engine can be created, then every following byte is fed to it as it is read
+
+        in.startRecording();
+        in.expectTag(TAG_SEQUENCE);
+        long tbsEnd = in.readLength() + in.getPosition();
+
+        int tag = in.readTag();
+
+        if (tag == TAG_INTEGER)
+        {
+            in.readContent();
+            tag = in.readTag();
+        }
+
+        checkTag(tag, TAG_SEQUENCE);
+        String signatureAlgorithm = readAlgorithmIdentifier(new DERInputStream(in.readContent()));
+
+        Signature signature = null;
+
+        if (issuerKey != null)
+        {
+            signature = Signature.getInstance(getSignatureAlgorithmName(signatureAlgorithm));
+            signature.initVerify(issuerKey);
+        }
+
+        in.stopRecording(signature);
+
+        in.expectTag(TAG_SEQUENCE);
+        parsedCRL.setIssuer(new X500Principal(in.readContentWithHeader(TAG_SEQUENCE)));
+        parsedCRL.setThisUpdate(readTime(in.readTag(), in.readContent()));
+
+        RevokedSerialIndex.Builder builder = new RevokedSerialIndex.Builder();
+
+        while (in.getPosition() < tbsEnd)
+        {
+            tag = in.readTag();
+
+            if (tag == TAG_UTC_TIME || tag == TAG_GENERALIZED_TIME)
+            {
+                parsedCRL.setNextUpdate(readTime(tag, in.readContent()));
+            }
+            else if (tag == TAG_SEQUENCE)
+            {
+                readRevokedCertificates(in, in.readLength() + in.getPosition(), builder);
+            }
+            else if (tag == TAG_CRL_EXTENSIONS)
+            {
+                readExtensions(new DERInputStream(in.readContent()), parsedCRL);
+            }
+            else
+            {
+                in.readContent();
+            }
+        }
+
+        in.stopRecording(null);
+        parsedCRL.setRevokedSerials(builder.build());
+
+        // Outer signatureAlgorithm must match the one inside the TBS
+
+        in.expectTag(TAG_SEQUENCE);
+        String outerSignatureAlgorithm = readAlgorithmIdentifier(new DERInputStream(in
+                .readContent()));
+
+        if (!outerSignatureAlgorithm.equals(signatureAlgorithm))
+        {
+            throw new CryptoCoreCRLException("CRL signature algorithm mismatch");
+        }
+
+        in.expectTag(TAG_BIT_STRING);
+        byte[] signatureValue = in.readContent();
+
+        if (signature != null)
+        {
+            if (signatureValue.length < 1
+                    || !signature.verify(signatureValue, 1, signatureValue.length - 1))
+            {
+                throw new CryptoCoreCRLException("CRL signature verification error");
+            }
+
+            parsedCRL.setVerified(true);
+        }
+
+        return parsedCRL;
+    }
+
+    private void readRevokedCertificates(DERInputStream in, long end,
+            RevokedSerialIndex.Builder builder) throws IOException
+    {
+        while (in.getPosition() < end)
+        {
+            in.expectTag(TAG_SEQUENCE);
+            DERInputStream entry = new DERInputStream(in.readContent());
+
+            entry.expectTag(TAG_INTEGER);
+            byte[] serialNumber = entry.readContent();
+            long revocationDate = readTimeMillis(entry.readTag(), entry.readContent());
+            int reason = RevokedSerialIndex.NO_REASON;
+
+            if (entry.hasMore())
+            {
+                entry.expectTag(TAG_SEQUENCE);
+                reason = readReasonCode(new DERInputStream(entry.readContent()));
+            }
+
+            builder.add(serialNumber, revocationDate, reason);
+        }
+    }
+
+    private int readReasonCode(DERInputStream extensions) throws IOException
+    {
+        while (extensions.hasMore())
+        {
+            extensions.expectTag(TAG_SEQUENCE);
+            Extension extension = readExtension(new DERInputStream(extensions.readContent()));
+
+            if (REASON_CODE_OID.equals(extension.oid))
+            {
+                DERInputStream value = new DERInputStream(extension.value);
+                value.expectTag(TAG_ENUMERATED);
+
+                return new BigInteger(value.readContent()).intValue();
+            }
+        }
+
+        return RevokedSerialIndex.NO_REASON;
+    }
+
+    private void readExtensions(DERInputStream in, ParsedCRL parsedCRL) throws IOException
+    {
+        in.expectTag(TAG_SEQUENCE);
+        DERInputStream extensions = new DERInputStream(in.readContent());
+
+        while (extensions.hasMore())
+        {
+            extensions.expectTag(TAG_SEQUENCE);
+            Extension extension = readExtension(new DERInputStream(extensions.readContent()));
+            parsedCRL.addExtension(extension.oid, extension.value);
+
+            if (CRL_NUMBER_OID.equals(extension.oid))
+            {
+                parsedCRL.setCRLNumber(readInteger(new DERInputStream(extension.value)));
+            }
+            else if (DELTA_CRL_INDICATOR_OID.equals(extension.oid))
+            {
+                parsedCRL.setBaseCRLNumber(readInteger(new DERInputStream(extension.value)));
+            }
+            else if (FRESHEST_CRL_OID.equals(extension.oid))
+            {
+                parsedCRL.setFreshestCRLURLs(readURIs(new DERInputStream(extension.value)));
+            }
+        }
+    }
+
+    private BigInteger readInteger(DERInputStream in) throws IOException
+    {
+        in.expectTag(TAG_INTEGER);
+        return new BigInteger(in.readContent());
+    }
+
+    /**
+     * Collects the uniformResourceIdentifier full names of the distribution points of a
+     * CRLDistributionPoints structure, as used by the Freshest CRL extension. The cRLIssuer of a
+     * distribution point names the CRL issuer, not a location, so it is skipped.
+     */
+    private List<String> readURIs(DERInputStream in) throws IOException
+    {
+        List<String> uris = new ArrayList<String>();
+
+        in.expectTag(TAG_SEQUENCE);
+        DERInputStream distributionPoints = new DERInputStream(in.readContent());
+
+        while (distributionPoints.hasMore())
+        {
+            distributionPoints.expectTag(TAG_SEQUENCE);
+            DERInputStream distributionPoint = new DERInputStream(distributionPoints.readContent());
+
+            while (distributionPoint.hasMore())
+            {
+                int tag = distributionPoint.readTag();
+                byte[] content = distributionPoint.readContent();
+
+                if (tag != TAG_DISTRIBUTION_POINT)
+                {
+                    continue;
+                }
+
+                DERInputStream distributionPointName = new DERInputStream(content);
+
+                if (distributionPointName.readTag() == TAG_FULL_NAME)
+                {
+                    DERInputStream generalNames = new DERInputStream(distributionPointName
+                            .readContent());
+
+                    while (generalNames.hasMore())
+                    {
+                        tag = generalNames.readTag();
+                        content = generalNames.readContent();
+
+                        if (tag == TAG_URI)
+                        {
+                            uris.add(new String(content, "US-ASCII"));
+                        }
+                    }
+                }
+            }
+        }
+
+        return uris;
+    }
+
+    private Extension readExtension(DERInputStream in) throws IOException
+    {
+        // Extension ::= SEQUENCE { extnID, critical BOOLEAN DEFAULT FALSE, extnValue }
+        in.expectTag(TAG_OID);
+        String oid = decodeOID(in.readContent());
+
+        int tag = in.readTag();
+
+        if (tag != TAG_OCTET_STRING)
+        {
+            in.readContent();
+            tag = in.readTag();
+        }
+
+        checkTag(tag, TAG_OCTET_STRING);
+
+        return new Extension(oid, in.readContent());
+    }
+
+    private String readAlgorithmIdentifier(DERInputStream in) throws IOException
+    {
+        in.expectTag(TAG_OID);
+        return decodeOID(in.readContent());
+    }
+
+    private String getSignatureAlgorithmName(String oid) throws CryptoCoreCRLException
+    {
+        String name = signatureAlgorithms.get(oid);
+
+        if (name == null)
+        {
+            throw new CryptoCoreCRLException("Unsupported CRL signature algorithm " + oid);
+        }
+
+        return name;
+    }
+
+    static String decodeOID(byte[] encoded)
+    {
+        StringBuilder oid = new StringBuilder();
+        long value = 0;
+        boolean first = true;
+
+        for (byte b : encoded)
+        {
+            value = (value << 7) | (b & 0x7f);
+
+            if ((b & 0x80) == 0)
+            {
+                if (first)
+                {
+                    int arc = (int) Math.min(value / 40, 2);
+                    oid.append(arc).append('.').append(value - arc * 40);
+                    first = false;
+                }
+                else
+                {
+                    oid.append('.').append(value);
+                }
+
+                value = 0;
+            }
+        }
+
+        return oid.toString();
+    }
+
+    private static Date readTime(int tag, byte[] content) throws IOException
+    {
+        return new Date(readTimeMillis(tag, content));
+    }
+
+    /**
+     * Decodes UTCTime and GeneralizedTime values without going through Calendar, which is too
+     * expensive to build once per revoked entry.
+     */
+    private static long readTimeMillis(int tag, byte[] content) throws IOException
+    {
+        int position;
+        int year;
+
+        if (tag == TAG_UTC_TIME)
+        {
+            year = digits(content, 0, 2);
+            year += (year < 50) ? 2000 : 1900;
+            position = 2;
+        }
+        else if (tag == TAG_GENERALIZED_TIME)
+        {
+            year = digits(content, 0, 4);
+            position = 4;
+        }
+        else
+        {
+            throw new IOException("Unexpected tag " + tag + " for a time value");
+        }
+
+        int month = digits(content, position, 2);
+        int day = digits(content, position + 2, 2);
+        int hour = digits(content, position + 4, 2);
+        int minute = digits(content, position + 6, 2);
+        int second = 0;
+
+        if (content.length > position + 9 && Character.isDigit(content[position + 8]))
+        {
+            second = digits(content, position + 8, 2);
+        }
+
+        // Days since the epoch for the proleptic Gregorian calendar
+        int y = (month <= 2) ? year - 1 : year;
+        int era = y / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long days = era * 146097L + dayOfEra - 719468;
+
+        return ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L;
+    }
+
+    private static int digits(byte[] content, int offset, int count) throws IOException
+    {
+        if (offset + count > content.length)
+        {
+            throw new IOException("Truncated time value");
+        }
+
+        int value = 0;
+
+        for (int i = offset; i < offset + count; i++)
+        {
+            int digit = content[i] - '0';
+
+            if (digit < 0 || digit > 9)
+            {
+                throw new IOException("Invalid time value");
+            }
+
+            value = value * 10 + digit;
+        }
+
+        return value;
+    }
+
+    private static void checkTag(int tag, int expected) throws IOException
+    {
+        if (tag != expected)
+        {
+            throw new IOException("Expected tag " + expected + " but found " + tag);
+        }
+    }
+
+    private static class Extension
+    {
+        private final String oid;
+        private final byte[] value;
+
+        public Extension(String oid, byte[] value)
+        {
+            this.oid = oid;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Minimal definite-length DER reader that keeps track of its position and can copy the bytes
+     * it consumes to a signature engine.
+     */
+    private static class DERInputStream
+    {
+        private final InputStream in;
+        private final byte[] buffer;
+        private int bufferPosition = 0;
+        private int bufferLimit = 0;
+        private final long limit;
+        private long position = 0;
+
+        private ByteArrayOutputStream recording;
+        private Signature signature;
+
+        public DERInputStream(InputStream in)
+        {
+            this.in = in;
+            this.buffer = new byte[8192];
+            this.limit = Long.MAX_VALUE;
+        }
+
+        public DERInputStream(byte[] content)
+        {
+            this.in = null;
+            this.buffer = content;
+            this.bufferLimit = content.length;
+            this.limit = content.length;
+        }
+
+        public long getPosition()
+        {
+            return position;
+        }
+
+        public boolean hasMore()
+        {
+            return position < limit;
+        }
+
+        public void startRecording()
+        {
+            recording = new ByteArrayOutputStream();
+        }
+
+        public void stopRecording(Signature signature) throws GeneralSecurityException
+        {
+            if (signature != null && recording != null)
+            {
+                byte[] recorded = recording.toByteArray();
+                signature.update(recorded, 0, recorded.length);
+            }
+
+            this.recording = null;
+            this.signature = signature;
+        }
+
+        public int readTag() throws IOException
+        {
+            int tag = read();
+
+            if ((tag & 0x1f) == 0x1f)
+            {
+                throw new IOException("High tag numbers are not supported");
+            }
+
+            return tag;
+        }
+
+        public void expectTag(int expected) throws IOException
+        {
+            checkTag(readTag(), expected);
+        }
+
+        public long readLength() throws IOException
+        {
+            int length = read();
+
+            if (length < 0x80)
+            {
+                return length;
+            }
+
+            int octets = length & 0x7f;
+
+            if (octets == 0 || octets > 4)
+            {
+                throw new IOException("Indefinite or oversized length, the CRL is not DER");
+            }
+
+            long result = 0;
+
+            for (int i = 0; i < octets; i++)
+            {
+                result = (result << 8) | read();
+            }
+
+            return result;
+        }
+
+        public byte[] readContent() throws IOException
+        {
+            long length = readLength();
+
+            if (length > Integer.MAX_VALUE)
+            {
+                throw new IOException("Element too large");
+            }
+
+            byte[] content = new byte[(int) length];
+            readFully(content);
+
+            return content;
+        }
+
+        public byte[] readContentWithHeader(int tag) throws IOException
+        {
+            byte[] content = readContent();
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream(content.length + 6);
+            encoded.write(tag);
+
+            if (content.length < 0x80)
+            {
+                encoded.write(content.length);
+            }
+            else
+            {
+                int octets = (32 - Integer.numberOfLeadingZeros(content.length) + 7) / 8;
+                encoded.write(0x80 | octets);
+
+                for (int i = octets - 1; i >= 0; i--)
+                {
+                    encoded.write(content.length >>> (i * 8));
+                }
+            }
+
+            encoded.write(content, 0, content.length);
+
+            return encoded.toByteArray();
+        }
+
+        private void readFully(byte[] content) throws IOException
+        {
+            int offset = 0;
+
+            while (offset < content.length)
+            {
+                if (bufferPosition == bufferLimit)
+                {
+                    fill();
+                }
+
+                int count = Math.min(content.length - offset, bufferLimit - bufferPosition);
+                System.arraycopy(buffer, bufferPosition, content, offset, count);
+                consumed(buffer, bufferPosition, count);
+                bufferPosition += count;
+                offset += count;
+            }
+        }
+
+        private int read() throws IOException
+        {
+            if (bufferPosition == bufferLimit)
+            {
+                fill();
+            }
+
+            int value = buffer[bufferPosition] & 0xff;
+            consumed(buffer, bufferPosition, 1);
+            bufferPosition++;
+
+            return value;
+        }
+
+        private void fill() throws IOException
+        {
+            int count = (in == null) ? -1 : in.read(buffer, 0, buffer.length);
+
+            if (count <= 0)
+            {
+                throw new EOFException("Unexpected end of CRL data");
+            }
+
+            bufferPosition = 0;
+            bufferLimit = count;
+        }
+
+        private void consumed(byte[] data, int offset, int length) throws IOException
+        {
+            position += length;
+
+            if (recording != null)
+            {
+                recording.write(data, offset, length);
+            }
+            else if (signature != null)
+            {
+                try
+                {
+                    signature.update(data, offset, length);
+                }
+                catch (GeneralSecurityException e)
+                {
+                    throw new IOException(e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package es.uji.apps.cryptoapplet.crypto.crl;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.security.auth.x500.X500Principal;
+
+public class ParsedCRL
+{
+    private X500Principal issuer;
+    private Date thisUpdate;
+    private Date nextUpdate;
+    private RevokedSerialIndex revokedSerials;
+    private boolean verified;
+    private BigInteger crlNumber;
+    private BigInteger baseCRLNumber;
+    private List<String> freshestCRLURLs = new ArrayList<String>();
+    private Map<String, byte[]> extensions = new HashMap<String, byte[]>();
+
+    public X500Principal getIssuer()
+    {
+        return issuer;
+    }
+
+    public void setIssuer(X500Principal issuer)
+    {
+        this.issuer = issuer;
+    }
+
+    public Date getThisUpdate()
+    {
+        return thisUpdate;
+    }
+
+    public void setThisUpdate(Date thisUpdate)
+    {
+        this.thisUpdate = thisUpdate;
+    }
+
+    public Date getNextUpdate()
+    {
+        return nextUpdate;
+    }
+
+    public void setNextUpdate(Date nextUpdate)
+    {
+        this.nextUpdate = nextUpdate;
+    }
+
+    public RevokedSerialIndex getRevokedSerials()
+    {
+        return revokedSerials;
+    }
+
+    public void setRevokedSerials(RevokedSerialIndex revokedSerials)
+    {
+        this.revokedSerials = revokedSerials;
+    }
+
+    public boolean isVerified()
+    {
+        return verified;
+    }
+
+    public void setVerified(boolean verified)
+    {
+        this.verified = verified;
+    }
+
+    public BigInteger getCRLNumber()
+    {
+        return crlNumber;
+    }
+
+    public void setCRLNumber(BigInteger crlNumber)
+    {
+        this.crlNumber = crlNumber;
+    }
+
+    /**
+     * @return the CRL number of the base CRL this delta applies to, or null for a full CRL
+     */
+    public BigInteger getBaseCRLNumber()
+    {
+        return baseCRLNumber;
+    }
+
+    public void setBaseCRLNumber(BigInteger baseCRLNumber)
+    {
+        this.baseCRLNumber = baseCRLNumber;
+    }
+
+    public boolean isDelta()
+    {
+        return baseCRLNumber != null;
+    }
+
+    public List<String> getFreshestCRLURLs()
+    {
+        return freshestCRLURLs;
+    }
+
+    public void setFreshestCRLURLs(List<String> freshestCRLURLs)
+    {
+        this.freshestCRLURLs = freshestCRLURLs;
+    }
+
+    public byte[] getExtension(String oid)
+    {
+        return extensions.get(oid);
+    }
+
+    public void addExtension(String oid, byte[] value)
+    {
+        extensions.put(oid, value);
+    }
+}
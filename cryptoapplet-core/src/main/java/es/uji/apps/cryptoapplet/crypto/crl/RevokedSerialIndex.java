@@ -0,0 +1,418 @@
+package es.uji.apps.cryptoapplet.crypto.crl;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Compact, immutable index of the serial numbers revoked by a CRL. Serials are stored in a single
+ * sorted byte array with their revocation date and reason in parallel primitive arrays, so a lookup
+ * is a binary search and an entry costs a few tens of bytes instead of a full X509CRLEntry.
+ */
+public class RevokedSerialIndex
+{
+    public static final int NO_REASON = -1;
+    public static final int REASON_REMOVE_FROM_CRL = 8;
+
+    private static final RevokedSerialIndex EMPTY = new Builder().build();
+
+    private final byte[] serials;
+    private final int[] offsets;
+    private final long[] revocationDates;
+    private final byte[] reasons;
+
+    private RevokedSerialIndex(byte[] serials, int[] offsets, long[] revocationDates,
+            byte[] reasons)
+    {
+        this.serials = serials;
+        this.offsets = offsets;
+        this.revocationDates = revocationDates;
+        this.reasons = reasons;
+    }
+
+    public static RevokedSerialIndex empty()
+    {
+        return EMPTY;
+    }
+
+    public int size()
+    {
+        return revocationDates.length;
+    }
+
+    public boolean isRevoked(BigInteger serialNumber)
+    {
+        return indexOf(serialNumber) >= 0;
+    }
+
+    public int indexOf(BigInteger serialNumber)
+    {
+        return indexOf(serialNumber.toByteArray());
+    }
+
+    public int indexOf(byte[] serialNumber)
+    {
+        serialNumber = normalize(serialNumber);
+
+        int low = 0;
+        int high = size() - 1;
+
+        while (low <= high)
+        {
+            int middle = (low + high) >>> 1;
+            int comparison = compare(serials, offsets[middle], offsets[middle + 1], serialNumber,
+                    0, serialNumber.length);
+
+            if (comparison < 0)
+            {
+                low = middle + 1;
+            }
+            else if (comparison > 0)
+            {
+                high = middle - 1;
+            }
+            else
+            {
+                return middle;
+            }
+        }
+
+        return -1;
+    }
+
+    public BigInteger getSerialNumber(int index)
+    {
+        return new BigInteger(Arrays.copyOfRange(serials, offsets[index], offsets[index + 1]));
+    }
+
+    public Date getRevocationDate(int index)
+    {
+        return new Date(revocationDates[index]);
+    }
+
+    public int getReason(int index)
+    {
+        return reasons[index];
+    }
+
+    /**
+     * Applies a delta CRL index on top of this one. Both indexes are already sorted, so the merge is
+     * a single linear pass. Delta entries replace base entries with the same serial and entries
+     * marked as removeFromCRL are dropped from the result.
+     */
+    public RevokedSerialIndex merge(RevokedSerialIndex delta)
+    {
+        int capacity = size() + delta.size();
+        byte[] mergedSerials = new byte[serials.length + delta.serials.length];
+        int[] mergedOffsets = new int[capacity + 1];
+        long[] mergedRevocationDates = new long[capacity];
+        byte[] mergedReasons = new byte[capacity];
+
+        int count = 0;
+        int position = 0;
+        int i = 0;
+        int j = 0;
+
+        while (i < size() || j < delta.size())
+        {
+            RevokedSerialIndex source;
+            int entry;
+
+            int comparison = (i == size()) ? 1 : (j == delta.size()) ? -1 : compare(serials,
+                    offsets[i], offsets[i + 1], delta.serials, delta.offsets[j],
+                    delta.offsets[j + 1]);
+
+            if (comparison < 0)
+            {
+                source = this;
+                entry = i++;
+            }
+            else
+            {
+                if (comparison == 0)
+                {
+                    i++;
+                }
+
+                source = delta;
+                entry = j++;
+
+                if (delta.reasons[entry] == REASON_REMOVE_FROM_CRL)
+                {
+                    continue;
+                }
+            }
+
+            int length = source.offsets[entry + 1] - source.offsets[entry];
+            System.arraycopy(source.serials, source.offsets[entry], mergedSerials, position, length);
+            position += length;
+
+            mergedRevocationDates[count] = source.revocationDates[entry];
+            mergedReasons[count] = source.reasons[entry];
+            count++;
+            mergedOffsets[count] = position;
+        }
+
+        return new RevokedSerialIndex(Arrays.copyOf(mergedSerials, position), Arrays.copyOf(
+                mergedOffsets, count + 1), Arrays.copyOf(mergedRevocationDates, count),
+                Arrays.copyOf(mergedReasons, count));
+    }
+
+    void writeTo(DataOutputStream out) throws IOException
+    {
+        out.writeInt(size());
+        out.writeInt(serials.length);
+        out.write(serials);
+
+        for (int offset : offsets)
+        {
+            out.writeInt(offset);
+        }
+
+        for (long revocationDate : revocationDates)
+        {
+            out.writeLong(revocationDate);
+        }
+
+        out.write(reasons);
+    }
+
+    /**
+     * Reads an index written by writeTo. The arrays are copied in bulk, so loading a cached file
+     * costs little more than reading it.
+     */
+    static RevokedSerialIndex readFrom(ByteBuffer buffer) throws IOException
+    {
+        try
+        {
+            int size = buffer.getInt();
+            int serialsLength = buffer.getInt();
+
+            if (size < 0 || size > buffer.remaining() || serialsLength < 0
+                    || serialsLength > buffer.remaining())
+            {
+                throw new IOException("Corrupted revoked serial index");
+            }
+
+            byte[] serials = new byte[serialsLength];
+            buffer.get(serials);
+
+            int[] offsets = new int[size + 1];
+            buffer.asIntBuffer().get(offsets);
+            buffer.position(buffer.position() + offsets.length * 4);
+
+            long[] revocationDates = new long[size];
+            buffer.asLongBuffer().get(revocationDates);
+            buffer.position(buffer.position() + revocationDates.length * 8);
+
+            byte[] reasons = new byte[size];
+            buffer.get(reasons);
+
+            if (offsets[0] != 0 || offsets[size] != serialsLength)
+            {
+                throw new IOException("Corrupted revoked serial index");
+            }
+
+            return new RevokedSerialIndex(serials, offsets, revocationDates, reasons);
+        }
+        catch (BufferUnderflowException e)
+        {
+            throw new IOException("Truncated revoked serial index");
+        }
+    }
+
+    /**
+     * @return the minimal two's complement encoding of the serial, as BigInteger.toByteArray
+     *         gives it. CRLs may carry serials with redundant leading 0x00 or 0xff bytes
+     */
+    static byte[] normalize(byte[] serialNumber)
+    {
+        if (serialNumber.length > 1
+                && ((serialNumber[0] == 0 && serialNumber[1] >= 0)
+                        || (serialNumber[0] == -1 && serialNumber[1] < 0)))
+        {
+            return new BigInteger(serialNumber).toByteArray();
+        }
+
+        return serialNumber;
+    }
+
+    /**
+     * Orders serials by encoded length first and then by unsigned byte value. Any total order
+     * works for lookups, this one avoids building BigIntegers while searching.
+     */
+    private static int compare(byte[] a, int aStart, int aEnd, byte[] b, int bStart, int bEnd)
+    {
+        int aLength = aEnd - aStart;
+        int bLength = bEnd - bStart;
+
+        if (aLength != bLength)
+        {
+            return aLength < bLength ? -1 : 1;
+        }
+
+        for (int i = 0; i < aLength; i++)
+        {
+            int aByte = a[aStart + i] & 0xff;
+            int bByte = b[bStart + i] & 0xff;
+
+            if (aByte != bByte)
+            {
+                return aByte < bByte ? -1 : 1;
+            }
+        }
+
+        return 0;
+    }
+
+    public static class Builder
+    {
+        private byte[] serials = new byte[1024];
+        private int serialsLength = 0;
+        private int[] offsets = new int[65];
+        private long[] revocationDates = new long[64];
+        private byte[] reasons = new byte[64];
+        private int size = 0;
+
+        public Builder add(BigInteger serialNumber, Date revocationDate, int reason)
+        {
+            return add(serialNumber.toByteArray(), revocationDate.getTime(), reason);
+        }
+
+        public Builder add(byte[] serialNumber, long revocationDate, int reason)
+        {
+            serialNumber = normalize(serialNumber);
+
+            if (size == revocationDates.length)
+            {
+                int capacity = size * 2;
+                offsets = Arrays.copyOf(offsets, capacity + 1);
+                revocationDates = Arrays.copyOf(revocationDates, capacity);
+                reasons = Arrays.copyOf(reasons, capacity);
+            }
+
+            if (serialsLength + serialNumber.length > serials.length)
+            {
+                serials = Arrays.copyOf(serials,
+                        Math.max(serials.length * 2, serialsLength + serialNumber.length));
+            }
+
+            System.arraycopy(serialNumber, 0, serials, serialsLength, serialNumber.length);
+            serialsLength += serialNumber.length;
+
+            revocationDates[size] = revocationDate;
+            reasons[size] = (byte) reason;
+            size++;
+            offsets[size] = serialsLength;
+
+            return this;
+        }
+
+        public Builder addAll(RevokedSerialIndex index)
+        {
+            for (int i = 0; i < index.size(); i++)
+            {
+                add(Arrays.copyOfRange(index.serials, index.offsets[i], index.offsets[i + 1]),
+                        index.revocationDates[i], index.reasons[i]);
+            }
+
+            return this;
+        }
+
+        public int size()
+        {
+            return size;
+        }
+
+        /**
+         * Sorts the collected entries. When a serial is added more than once the last one wins.
+         */
+        public RevokedSerialIndex build()
+        {
+            int[] order = new int[size];
+
+            for (int i = 0; i < size; i++)
+            {
+                order[i] = i;
+            }
+
+            mergeSort(order, new int[size], 0, size);
+
+            byte[] sortedSerials = new byte[serialsLength];
+            int[] sortedOffsets = new int[size + 1];
+            long[] sortedRevocationDates = new long[size];
+            byte[] sortedReasons = new byte[size];
+
+            int count = 0;
+            int position = 0;
+
+            for (int i = 0; i < size; i++)
+            {
+                int entry = order[i];
+
+                if (i + 1 < size && compareEntries(entry, order[i + 1]) == 0)
+                {
+                    continue;
+                }
+
+                int length = offsets[entry + 1] - offsets[entry];
+                System.arraycopy(serials, offsets[entry], sortedSerials, position, length);
+                position += length;
+
+                sortedRevocationDates[count] = revocationDates[entry];
+                sortedReasons[count] = reasons[entry];
+                count++;
+                sortedOffsets[count] = position;
+            }
+
+            return new RevokedSerialIndex(Arrays.copyOf(sortedSerials, position),
+                    Arrays.copyOf(sortedOffsets, count + 1), Arrays.copyOf(
+                            sortedRevocationDates, count), Arrays.copyOf(sortedReasons, count));
+        }
+
+        private int compareEntries(int a, int b)
+        {
+            return compare(serials, offsets[a], offsets[a + 1], serials, offsets[b],
+                    offsets[b + 1]);
+        }
+
+        private void mergeSort(int[] order, int[] buffer, int from, int to)
+        {
+            if (to - from < 2)
+            {
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            mergeSort(order, buffer, from, middle);
+            mergeSort(order, buffer, middle, to);
+
+            if (compareEntries(order[middle - 1], order[middle]) <= 0)
+            {
+                return;
+            }
+
+            System.arraycopy(order, from, buffer, from, to - from);
+
+            int left = from;
+            int right = middle;
+
+            for (int i = from; i < to; i++)
+            {
+                if (right >= to
+                        || (left < middle && compareEntries(buffer[left], buffer[right]) <= 0))
+                {
+                    order[i] = buffer[left++];
+                }
+                else
+                {
+                    order[i] = buffer[right++];
+                }
+            }
+        }
+    }
+}
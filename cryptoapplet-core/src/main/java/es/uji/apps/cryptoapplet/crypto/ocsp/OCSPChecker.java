@@ -1,17 +1,34 @@
 package es.uji.apps.cryptoapplet.crypto.ocsp;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.URL;
-import java.net.URLConnection;
-import java.security.NoSuchProviderException;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
 import java.security.Provider;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
 import org.bouncycastle.asn1.ocsp.OCSPResponse;
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
 import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
+import org.bouncycastle.asn1.x509.X509Extensions;
 import org.bouncycastle.jce.PrincipalUtil;
 import org.bouncycastle.ocsp.BasicOCSPResp;
 import org.bouncycastle.ocsp.CertificateID;
@@ -23,17 +40,107 @@ import org.bouncycastle.ocsp.OCSPRespStatus;
 import org.bouncycastle.ocsp.RevokedStatus;
 import org.bouncycastle.ocsp.SingleResp;
 import org.bouncycastle.ocsp.UnknownStatus;
+import org.bouncycastle.x509.extension.X509ExtensionUtil;
 
 import sun.security.x509.AccessDescription;
 import sun.security.x509.AuthorityInfoAccessExtension;
 import sun.security.x509.GeneralNameInterface;
 import sun.security.x509.URIName;
 import sun.security.x509.X509CertImpl;
+import es.uji.apps.cryptoapplet.config.model.RevocationService;
+import es.uji.apps.cryptoapplet.config.model.RevocationServiceRegistry;
 import es.uji.apps.cryptoapplet.utils.Base64;
-import es.uji.apps.cryptoapplet.utils.StreamUtils;
+import es.uji.apps.cryptoapplet.utils.HttpTransport;
 
 public class OCSPChecker
 {
+    public static final int MAX_REQUESTS_PER_MESSAGE = 50;
+
+    private static final String OCSP_SIGNING = "1.3.6.1.5.5.7.3.9";
+
+    private static Logger log = Logger.getLogger(OCSPChecker.class);
+
+    private static volatile OCSPResponseCache responseCache = new OCSPResponseCache();
+    private static OCSPResponderSelector responderSelector = new OCSPResponderSelector();
+    private static OCSPSignatureVerifier signatureVerifier = new OCSPSignatureVerifier();
+    private static volatile ExecutorService refreshExecutor = createRefreshExecutor();
+    private static ConcurrentMap<String, Boolean> pendingRefreshes = new ConcurrentHashMap<String, Boolean>();
+
+    private final long staleGracePeriod;
+
+    public OCSPChecker()
+    {
+        this.staleGracePeriod = 0;
+    }
+
+    /**
+     * Uses the stale grace period of the revocation service: once a cached status passes its
+     * nextUpdate it is still served during the grace period while it is refreshed in the
+     * background.
+     */
+    public OCSPChecker(RevocationService revocationService)
+    {
+        this.staleGracePeriod = getStaleGracePeriod(revocationService);
+    }
+
+    private static long getStaleGracePeriod(RevocationService revocationService)
+    {
+        Integer staleGracePeriod = revocationService.getStaleGracePeriod();
+        return (staleGracePeriod != null) ? staleGracePeriod * 1000L : 0;
+    }
+
+    private static ExecutorService createRefreshExecutor()
+    {
+        return new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(1000), new ThreadFactory()
+                {
+                    private AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable runnable)
+                    {
+                        Thread thread = new Thread(runnable, "ocsp-refresh-"
+                                + count.incrementAndGet());
+                        thread.setDaemon(true);
+
+                        return thread;
+                    }
+                });
+    }
+
+    public static OCSPResponseCache getResponseCache()
+    {
+        return responseCache;
+    }
+
+    public static void setResponseCache(OCSPResponseCache responseCache)
+    {
+        OCSPChecker.responseCache = responseCache;
+    }
+
+    public static ExecutorService getRefreshExecutor()
+    {
+        return refreshExecutor;
+    }
+
+    /**
+     * Replaces the executor that refreshes stale statuses in the background. The previous one is
+     * not shut down.
+     */
+    public static void setRefreshExecutor(ExecutorService refreshExecutor)
+    {
+        OCSPChecker.refreshExecutor = refreshExecutor;
+    }
+
+    public static OCSPResponderSelector getResponderSelector()
+    {
+        return responderSelector;
+    }
+
+    public static OCSPSignatureVerifier getSignatureVerifier()
+    {
+        return signatureVerifier;
+    }
+
     public static boolean compareDigests(byte[] dig1, byte[] dig2)
     {
         boolean ok = (dig1 != null) && (dig2 != null) && (dig1.length == dig2.length);
@@ -71,18 +178,45 @@ public class OCSPChecker
 
     public OCSPResp sendOCSPRequest(String ocspURL, CertificateID certificateID,
             X509Certificate certificate) throws CryptoCoreOCSPException
+    {
+        return sendOCSPRequest(ocspURL, Collections.singletonList(certificateID), certificate);
+    }
+
+    public OCSPResp sendOCSPRequest(String ocspURL, List<CertificateID> certificateIDs,
+            X509Certificate certificate) throws CryptoCoreOCSPException
+    {
+        return sendOCSPRequest(Collections.singletonList(ocspURL), certificateIDs, certificate);
+    }
+
+    /**
+     * Sends the request through the responder selector, which picks the fastest healthy responder
+     * of the list and fails over or hedges to the others.
+     */
+    public OCSPResp sendOCSPRequest(List<String> ocspURLs, List<CertificateID> certificateIDs,
+            X509Certificate certificate) throws CryptoCoreOCSPException
     {
         try
         {
             OCSPReqGenerator ocspRequest = new OCSPReqGenerator();
-            ocspRequest.addRequest(certificateID);
+
+            for (CertificateID certificateID : certificateIDs)
+            {
+                ocspRequest.addRequest(certificateID);
+            }
 
             GeneralName name = new GeneralName(PrincipalUtil.getSubjectX509Principal(certificate));
             ocspRequest.setRequestorName(name);
 
-            OCSPReq req = ocspRequest.generate();
+            final OCSPReq req = ocspRequest.generate();
 
-            return sendOCSPRequest(req, ocspURL);
+            return responderSelector.send(ocspURLs, new OCSPResponderSelector.ResponderRequest()
+            {
+                public OCSPResp send(String ocspURL, int timeout)
+                        throws CryptoCoreOCSPException
+                {
+                    return sendOCSPRequest(req, ocspURL, timeout);
+                }
+            });
         }
         catch (CertificateEncodingException cee)
         {
@@ -96,29 +230,23 @@ public class OCSPChecker
     }
 
     public OCSPResp sendOCSPRequest(OCSPReq req, String ocspURL) throws CryptoCoreOCSPException
+    {
+        return sendOCSPRequest(req, ocspURL, 0);
+    }
+
+    /**
+     * @param timeout if positive, bounds the connect and read timeouts of the responder host
+     */
+    public OCSPResp sendOCSPRequest(OCSPReq req, String ocspURL, int timeout)
+            throws CryptoCoreOCSPException
     {
         OCSPResp ocspResp = null;
 
         try
         {
-            byte[] breq = req.getEncoded();
-            URL url = new URL(ocspURL);
-            URLConnection con = url.openConnection();
-            con.setReadTimeout(10000);
-            con.setConnectTimeout(10000);
-            con.setAllowUserInteraction(false);
-            con.setUseCaches(false);
-            con.setDoOutput(true);
-            con.setDoInput(true);
-
-            // Send the OCSP request
-            con.setRequestProperty("Content-Type", "application/ocsp-request");
-            OutputStream os = con.getOutputStream();
-            os.write(breq);
-            os.close();
-
-            // Read the response
-            byte[] bresp = StreamUtils.inputStreamToByteArray(con.getInputStream());
+            byte[] bresp = HttpTransport.getInstance().execute(ocspURL, "POST",
+                    Collections.singletonMap("Content-Type", "application/ocsp-request"),
+                    req.getEncoded(), new HttpTransport.BodyHandler(true), timeout);
 
             ocspResp = new OCSPResp(bresp);
         }
@@ -140,21 +268,8 @@ public class OCSPChecker
         {
             String certBase64 = Base64.encodeBytes(certificate.getEncoded());
 
-            URL url = new URL(postURL);
-            URLConnection con = url.openConnection();
-            con.setReadTimeout(10000);
-            con.setConnectTimeout(10000);
-            con.setAllowUserInteraction(false);
-            con.setUseCaches(false);
-            con.setDoOutput(true);
-            con.setDoInput(true);
-
-            con.setRequestProperty("Content-Type", "application/octet-stream");
-            OutputStream os = con.getOutputStream();
-            os.write(certBase64.getBytes());
-            os.close();
-
-            byte[] resp64 = StreamUtils.inputStreamToByteArray(con.getInputStream());
+            byte[] resp64 = HttpTransport.getInstance().post(postURL, "application/octet-stream",
+                    certBase64.getBytes());
             byte[] bresp = Base64.decode(resp64);
 
             if (bresp.length == 0)
@@ -176,12 +291,10 @@ public class OCSPChecker
         return ocspResp;
     }
 
-    @SuppressWarnings({ "deprecation", "unchecked", "restriction" })
-    public OCSPResponseDetails getCertificateStatus(X509Certificate certificate,
-            X509Certificate caCertificate, X509Certificate ocspCertificate, Provider provider)
+    @SuppressWarnings({ "unchecked", "restriction" })
+    private List<String> getOCSPURLs(X509Certificate certificate)
     {
-        OCSPResponseDetails responseDetails = new OCSPResponseDetails();
-        String ocspURL = null;
+        List<String> ocspURLs = new ArrayList<String>();
 
         try
         {
@@ -201,22 +314,65 @@ public class OCSPChecker
                     {
 
                         URIName uri = (URIName) generalName.getName();
-                        ocspURL = uri.getName();
-                        break;
+                        ocspURLs.add(uri.getName());
                     }
                 }
             }
         }
         catch (Exception e)
         {
-            responseDetails.setValid(false);
-            responseDetails.addError("Can not recover OCSP URL from certificate");
+            // No usable AIA extension, reported by the caller as a missing OCSP URL
+        }
+
+        return ocspURLs;
+    }
+
+    public OCSPResponseDetails getCertificateStatus(X509Certificate certificate,
+            X509Certificate caCertificate, X509Certificate ocspCertificate, Provider provider)
+    {
+        return getCertificateStatusWithAIA(new ArrayList<String>(), certificate, caCertificate,
+                ocspCertificate, provider, staleGracePeriod);
+    }
+
+    /**
+     * Queries the responders configured for the CA in the registry together with the ones
+     * published in the AIA extension of the certificate.
+     */
+    public OCSPResponseDetails getCertificateStatus(RevocationServiceRegistry registry,
+            String caId, X509Certificate certificate, X509Certificate caCertificate,
+            X509Certificate ocspCertificate, Provider provider)
+    {
+        List<String> ocspURLs = new ArrayList<String>();
+        long gracePeriod = staleGracePeriod;
+
+        if (registry != null)
+        {
+            for (RevocationService revocationService : registry.getRevocationServices(caId))
+            {
+                if (revocationService.getUrl() != null)
+                {
+                    ocspURLs.add(revocationService.getUrl());
+                }
+
+                gracePeriod = Math.max(gracePeriod, getStaleGracePeriod(revocationService));
+            }
         }
 
-        if (ocspURL != null)
+        return getCertificateStatusWithAIA(ocspURLs, certificate, caCertificate, ocspCertificate,
+                provider, gracePeriod);
+    }
+
+    private OCSPResponseDetails getCertificateStatusWithAIA(List<String> ocspURLs,
+            X509Certificate certificate, X509Certificate caCertificate,
+            X509Certificate ocspCertificate, Provider provider, long gracePeriod)
+    {
+        OCSPResponseDetails responseDetails = new OCSPResponseDetails();
+        ocspURLs.addAll(getOCSPURLs(certificate));
+
+        if (!ocspURLs.isEmpty())
         {
-            responseDetails = getCertificateStatus(ocspURL, certificate, caCertificate,
-                    ocspCertificate, provider);
+            responseDetails = getCertificateStatus(ocspURLs, certificate, caCertificate,
+                    ocspCertificate, provider, gracePeriod);
         }
         else
         {
@@ -227,9 +383,24 @@ public class OCSPChecker
         return responseDetails;
     }
 
-    @SuppressWarnings("deprecation")
     public OCSPResponseDetails getCertificateStatus(String ocspURL, X509Certificate certificate,
             X509Certificate caCertificate, X509Certificate ocspCertificate, Provider provider)
+    {
+        return getCertificateStatus(Collections.singletonList(ocspURL), certificate,
+                caCertificate, ocspCertificate, provider);
+    }
+
+    public OCSPResponseDetails getCertificateStatus(List<String> ocspURLs,
+            X509Certificate certificate, X509Certificate caCertificate,
+            X509Certificate ocspCertificate, Provider provider)
+    {
+        return getCertificateStatus(ocspURLs, certificate, caCertificate, ocspCertificate,
+                provider, staleGracePeriod);
+    }
+
+    private OCSPResponseDetails getCertificateStatus(List<String> ocspURLs,
+            X509Certificate certificate, X509Certificate caCertificate,
+            X509Certificate ocspCertificate, Provider provider, long gracePeriod)
     {
         OCSPResponseDetails responseDetails = new OCSPResponseDetails();
 
@@ -246,11 +417,20 @@ public class OCSPChecker
             return responseDetails;
         }
 
+        OCSPResponseDetails cachedResponseDetails = getCachedStatus(ocspURLs, certificate,
+                certificateID, caCertificate, ocspCertificate, provider, gracePeriod);
+
+        if (cachedResponseDetails != null)
+        {
+            return cachedResponseDetails;
+        }
+
         OCSPResp resp = null;
 
         try
         {
-            resp = sendOCSPRequest(ocspURL, certificateID, certificate);
+            resp = sendOCSPRequest(ocspURLs, Collections.singletonList(certificateID),
+                    certificate);
         }
         catch (CryptoCoreOCSPException ccoe)
         {
@@ -259,11 +439,373 @@ public class OCSPChecker
             return responseDetails;
         }
 
+        return processResponse(resp, Collections.singletonList(certificateID), caCertificate,
+                ocspCertificate, provider, true).get(0);
+    }
+
+    /**
+     * Checks a response obtained beforehand, such as one embedded in a signature, without
+     * contacting any responder. Without an ocspCertificate the response must be signed by the CA
+     * or by an OCSP signing certificate issued by the CA and included in the response.
+     */
+    public OCSPResponseDetails getCertificateStatus(byte[] responseData,
+            X509Certificate certificate, X509Certificate caCertificate,
+            X509Certificate ocspCertificate, Provider provider)
+    {
+        CertificateID certificateID = null;
+        OCSPResp resp = null;
+
+        try
+        {
+            certificateID = generateCertificateID(certificate, caCertificate, provider);
+            resp = new OCSPResp(responseData);
+        }
+        catch (CryptoCoreOCSPException ccoe)
+        {
+            return errorDetails(ccoe.getMessage());
+        }
+        catch (IOException ioe)
+        {
+            return errorDetails("Can not decode OCSP response");
+        }
+
+        // An embedded response may be older than the cached status, so it is not cached
+
+        return processResponse(resp, Collections.singletonList(certificateID), caCertificate,
+                ocspCertificate, provider, false).get(0);
+    }
+
+    public Map<X509Certificate, OCSPResponseDetails> getCertificateStatuses(
+            List<X509Certificate> certificates, X509Certificate caCertificate,
+            X509Certificate ocspCertificate, Provider provider)
+    {
+        return getCertificateStatuses(certificates, Collections.singletonList(caCertificate),
+                ocspCertificate, provider);
+    }
+
+    public Map<X509Certificate, OCSPResponseDetails> getCertificateStatuses(
+            List<X509Certificate> certificates, List<X509Certificate> caCertificates,
+            X509Certificate ocspCertificate, Provider provider)
+    {
+        Map<X509Certificate, OCSPResponseDetails> result = new LinkedHashMap<X509Certificate, OCSPResponseDetails>();
+        Map<String, OCSPRequestGroup> openGroups = new HashMap<String, OCSPRequestGroup>();
+        List<OCSPRequestGroup> groups = new ArrayList<OCSPRequestGroup>();
+
+        // Group the certificates by responder and issuer, answering from the cache when possible
+
+        for (X509Certificate certificate : certificates)
+        {
+            result.put(certificate, null);
+
+            X509Certificate caCertificate = getIssuer(certificate, caCertificates);
+
+            if (caCertificate == null)
+            {
+                result.put(certificate, errorDetails("Can not find CA certificate for "
+                        + certificate.getSubjectX500Principal().getName()));
+                continue;
+            }
+
+            List<String> ocspURLs = getOCSPURLs(certificate);
+
+            if (ocspURLs.isEmpty())
+            {
+                result.put(certificate, errorDetails("Can not recover OCSP URL from certificate"));
+                continue;
+            }
+
+            CertificateID certificateID = null;
+
+            try
+            {
+                certificateID = generateCertificateID(certificate, caCertificate, provider);
+            }
+            catch (CryptoCoreOCSPException ccoe)
+            {
+                result.put(certificate, errorDetails(ccoe.getMessage()));
+                continue;
+            }
+
+            OCSPResponseDetails cachedResponseDetails = getCachedStatus(ocspURLs, certificate,
+                    certificateID, caCertificate, ocspCertificate, provider, staleGracePeriod);
+
+            if (cachedResponseDetails != null)
+            {
+                result.put(certificate, cachedResponseDetails);
+                continue;
+            }
+
+            String groupKey = ocspURLs + "|" + caCertificate.getSubjectX500Principal().getName();
+            OCSPRequestGroup group = openGroups.get(groupKey);
+
+            if (group == null || group.certificates.size() >= MAX_REQUESTS_PER_MESSAGE)
+            {
+                group = new OCSPRequestGroup(ocspURLs, caCertificate);
+                openGroups.put(groupKey, group);
+                groups.add(group);
+            }
+
+            group.certificates.add(certificate);
+            group.certificateIDs.add(certificateID);
+        }
+
+        // One request per group, mapping every single response back to its certificate
+
+        for (OCSPRequestGroup group : groups)
+        {
+            List<OCSPResponseDetails> groupResponseDetails = null;
+
+            try
+            {
+                OCSPResp resp = sendOCSPRequest(group.ocspURLs, group.certificateIDs,
+                        group.certificates.get(0));
+                groupResponseDetails = processResponse(resp, group.certificateIDs,
+                        group.caCertificate, ocspCertificate, provider, true);
+            }
+            catch (CryptoCoreOCSPException ccoe)
+            {
+                groupResponseDetails = new ArrayList<OCSPResponseDetails>();
+
+                for (int i = 0; i < group.certificates.size(); i++)
+                {
+                    groupResponseDetails.add(errorDetails(ccoe.getMessage()));
+                }
+            }
+
+            for (int i = 0; i < group.certificates.size(); i++)
+            {
+                result.put(group.certificates.get(i), groupResponseDetails.get(i));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Looks the status up in the cache. A stale status within the grace period is returned as is
+     * and a single background refresh per certificate is started to replace it.
+     */
+    private OCSPResponseDetails getCachedStatus(final List<String> ocspURLs,
+            final X509Certificate certificate, final CertificateID certificateID,
+            final X509Certificate caCertificate, final X509Certificate ocspCertificate,
+            final Provider provider, long gracePeriod)
+    {
+        OCSPResponseDetails cachedResponseDetails = responseCache.get(certificateID, gracePeriod);
+
+        if (cachedResponseDetails == null || !cachedResponseDetails.isStale())
+        {
+            return cachedResponseDetails;
+        }
+
+        final String key = OCSPResponseCache.getKey(certificateID);
+
+        if (pendingRefreshes.putIfAbsent(key, Boolean.TRUE) == null)
+        {
+            try
+            {
+                refreshExecutor.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            OCSPResp resp = sendOCSPRequest(ocspURLs, Collections
+                                    .singletonList(certificateID), certificate);
+                            processResponse(resp, Collections.singletonList(certificateID),
+                                    caCertificate, ocspCertificate, provider, true);
+                        }
+                        catch (CryptoCoreOCSPException e)
+                        {
+                            log.warn("Can not refresh stale OCSP status", e);
+                        }
+                        catch (RuntimeException e)
+                        {
+                            log.error("Unexpected error refreshing stale OCSP status", e);
+                        }
+                        finally
+                        {
+                            pendingRefreshes.remove(key);
+                        }
+                    }
+                });
+            }
+            catch (RejectedExecutionException e)
+            {
+                pendingRefreshes.remove(key);
+            }
+        }
+
+        return cachedResponseDetails;
+    }
+
+    /**
+     * @return the CA certificate whose subject is the issuer of the certificate and, when both
+     *         carry key identifiers, whose subject key identifier is the authority key identifier
+     *         of the certificate. Null if none of them issued it
+     */
+    private X509Certificate getIssuer(X509Certificate certificate,
+            List<X509Certificate> caCertificates)
+    {
+        byte[] authorityKeyIdentifier = getAuthorityKeyIdentifier(certificate);
+
+        for (X509Certificate caCertificate : caCertificates)
+        {
+            if (!caCertificate.getSubjectX500Principal().equals(
+                    certificate.getIssuerX500Principal()))
+            {
+                continue;
+            }
+
+            byte[] subjectKeyIdentifier = getSubjectKeyIdentifier(caCertificate);
+
+            if (authorityKeyIdentifier == null || subjectKeyIdentifier == null
+                    || Arrays.equals(authorityKeyIdentifier, subjectKeyIdentifier))
+            {
+                return caCertificate;
+            }
+        }
+
+        return null;
+    }
+
+    private byte[] getAuthorityKeyIdentifier(X509Certificate certificate)
+    {
+        byte[] extensionValue = certificate.getExtensionValue(X509Extensions.AuthorityKeyIdentifier
+                .getId());
+
+        if (extensionValue == null)
+        {
+            return null;
+        }
+
+        try
+        {
+            return AuthorityKeyIdentifier.getInstance(
+                    X509ExtensionUtil.fromExtensionValue(extensionValue)).getKeyIdentifier();
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+
+    private byte[] getSubjectKeyIdentifier(X509Certificate certificate)
+    {
+        byte[] extensionValue = certificate.getExtensionValue(X509Extensions.SubjectKeyIdentifier
+                .getId());
+
+        if (extensionValue == null)
+        {
+            return null;
+        }
+
+        try
+        {
+            return SubjectKeyIdentifier.getInstance(
+                    X509ExtensionUtil.fromExtensionValue(extensionValue)).getKeyIdentifier();
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+
+    private X509Certificate getResponderCertificate(OCSPResp resp, X509Certificate caCertificate,
+            Provider provider)
+    {
+        try
+        {
+            if (resp.getStatus() == OCSPRespStatus.SUCCESSFUL)
+            {
+                BasicOCSPResp basicOCSPResp = (BasicOCSPResp) resp.getResponseObject();
+                X509Certificate[] certificates = basicOCSPResp.getCerts(provider.getName());
+
+                for (int i = 0; certificates != null && i < certificates.length; i++)
+                {
+                    List<String> extendedKeyUsage = certificates[i].getExtendedKeyUsage();
+
+                    if (extendedKeyUsage == null || !extendedKeyUsage.contains(OCSP_SIGNING))
+                    {
+                        continue;
+                    }
+
+                    try
+                    {
+                        certificates[i].verify(caCertificate.getPublicKey(), provider.getName());
+                        certificates[i].checkValidity(basicOCSPResp.getProducedAt());
+
+                        return certificates[i];
+                    }
+                    catch (GeneralSecurityException gse)
+                    {
+                        // Not a responder delegated by this CA
+                    }
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            log.debug("Can not read responder certificates from OCSP response", e);
+        }
+
+        return caCertificate;
+    }
+
+    private OCSPResponseDetails errorDetails(String error)
+    {
+        OCSPResponseDetails responseDetails = new OCSPResponseDetails();
+        responseDetails.setValid(false);
+        responseDetails.addError(error);
+
+        return responseDetails;
+    }
+
+    /**
+     * Without an ocspCertificate the responder is the CA or an OCSP signing certificate issued by
+     * the CA and included in the response. Good and revoked statuses are stored in the response
+     * cache only when cache is set.
+     */
+    private List<OCSPResponseDetails> processResponse(OCSPResp resp,
+            List<CertificateID> certificateIDs, X509Certificate caCertificate,
+            X509Certificate ocspCertificate, Provider provider, boolean cache)
+    {
+        List<OCSPResponseDetails> result = new ArrayList<OCSPResponseDetails>();
+        OCSPResponseDetails responseDetails = new OCSPResponseDetails();
+
+        if (ocspCertificate == null && resp != null)
+        {
+            ocspCertificate = getResponderCertificate(resp, caCertificate, provider);
+        }
+
+        BasicOCSPResp basicOCSPResp = verifyResponse(resp, ocspCertificate, provider,
+                responseDetails);
+
+        for (CertificateID certificateID : certificateIDs)
+        {
+            if (basicOCSPResp == null)
+            {
+                result.add(new OCSPResponseDetails(false, new ArrayList<String>(responseDetails
+                        .getErrors()), responseDetails.getResponseData()));
+            }
+            else
+            {
+                result.add(getSingleResponseStatus(basicOCSPResp, certificateID,
+                        responseDetails.getResponseData(), cache));
+            }
+        }
+
+        return result;
+    }
+
+    @SuppressWarnings("deprecation")
+    private BasicOCSPResp verifyResponse(OCSPResp resp, X509Certificate ocspCertificate,
+            Provider provider, OCSPResponseDetails responseDetails)
+    {
         if (resp == null)
         {
             responseDetails.setValid(false);
             responseDetails.addError("An internal error occured in the OCSP Server!");
-            return responseDetails;
+            return null;
         }
 
         try
@@ -274,7 +816,7 @@ public class OCSPChecker
         {
             responseDetails.setValid(false);
             responseDetails.addError("Can not get encoded content from OCSP respose");
-            return responseDetails;
+            return null;
         }
 
         if (resp.getStatus() != OCSPRespStatus.SUCCESSFUL)
@@ -302,7 +844,7 @@ public class OCSPChecker
                 responseDetails.addError("Unknown OCSPResponse status code " + resp.getStatus());
             }
 
-            return responseDetails;
+            return null;
         }
 
         // Read the info from the response
@@ -316,32 +858,47 @@ public class OCSPChecker
         {
             responseDetails.setValid(false);
             responseDetails.addError("Can not retrieve basic reponse object from server response");
-            return responseDetails;
+            return null;
         }
 
         try
         {
-            if (!basicOCSPResp.verify(ocspCertificate.getPublicKey(), provider.getName()))
+            if (!signatureVerifier.verify(basicOCSPResp, ocspCertificate.getPublicKey(), provider))
             {
                 responseDetails.setValid(false);
                 responseDetails.addError("OCSP Signature verification error");
 
-                return responseDetails;
+                return null;
             }
         }
-        catch (NoSuchProviderException nspe)
+        catch (NoSuchAlgorithmException nsae)
         {
             responseDetails.setValid(false);
             responseDetails.addError("OCSP response verification error. Provider not available");
-            return responseDetails;
+            return null;
+        }
+        catch (GeneralSecurityException gse)
+        {
+            responseDetails.setValid(false);
+            responseDetails.addError("Can not verify OCSP response");
+            return null;
         }
         catch (OCSPException oe)
         {
             responseDetails.setValid(false);
             responseDetails.addError("Can not verify OCSP response");
-            return responseDetails;
+            return null;
         }
 
+        return basicOCSPResp;
+    }
+
+    private OCSPResponseDetails getSingleResponseStatus(BasicOCSPResp basicOCSPResp,
+            CertificateID certificateID, byte[] responseData, boolean cache)
+    {
+        OCSPResponseDetails responseDetails = new OCSPResponseDetails();
+        responseDetails.setResponseData(responseData);
+
         SingleResp[] sresp = basicOCSPResp.getResponseData().getResponses();
 
         boolean validationOk = false;
@@ -357,6 +914,15 @@ public class OCSPChecker
                         && compareDigests(certificateID.getIssuerNameHash(), id.getIssuerNameHash()))
                 {
                     validationOk = true;
+                    responseDetails.setThisUpdate(sresp[i].getThisUpdate());
+                    responseDetails.setNextUpdate(sresp[i].getNextUpdate());
+
+                    if (sresp[i].getThisUpdate() != null)
+                    {
+                        responseDetails.setStatusAge(Math.max(System.currentTimeMillis()
+                                - sresp[i].getThisUpdate().getTime(), 0));
+                    }
+
                     Object certStatus = sresp[i].getCertStatus();
 
                     if (certStatus != null)
@@ -364,7 +930,14 @@ public class OCSPChecker
                         if (certStatus instanceof RevokedStatus)
                         {
                             responseDetails.setValid(false);
+                            responseDetails.setRevoked(true);
                             responseDetails.addError("Certificate has been revoked");
+
+                            if (cache)
+                            {
+                                responseCache.put(certificateID, responseDetails);
+                            }
+
                             return responseDetails;
                         }
                         if (certStatus instanceof UnknownStatus)
@@ -388,6 +961,26 @@ public class OCSPChecker
         }
 
         responseDetails.setValid(true);
+
+        if (cache)
+        {
+            responseCache.put(certificateID, responseDetails);
+        }
+
         return responseDetails;
     }
-}
\ No newline at end of file
+
+    private static class OCSPRequestGroup
+    {
+        private final List<String> ocspURLs;
+        private final X509Certificate caCertificate;
+        private final List<X509Certificate> certificates = new ArrayList<X509Certificate>();
+        private final List<CertificateID> certificateIDs = new ArrayList<CertificateID>();
+
+        public OCSPRequestGroup(List<String> ocspURLs, X509Certificate caCertificate)
+        {
+            this.ocspURLs = ocspURLs;
+            this.caCertificate = caCertificate;
+        }
+    }
+}
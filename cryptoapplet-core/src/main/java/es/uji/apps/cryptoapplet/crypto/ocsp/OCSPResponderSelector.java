@@ -0,0 +1,552 @@
+package es.uji.apps.cryptoapplet.crypto.ocsp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.bouncycastle.ocsp.OCSPResp;
+import org.bouncycastle.ocsp.OCSPRespStatus;
+
+/**
+ * Sends an OCSP request to the best of several responders. Responders are tried in order of
+ * observed latency, skipping the ones that keep failing, and when the first one is slow to answer
+ * a hedged request is sent to the next one so the fastest answer wins. The requests that lose the
+ * race are cancelled, and the ones still running at the timeout count as failures of their
+ * responders.
+ */
+public class OCSPResponderSelector
+{
+    private static Logger log = Logger.getLogger(OCSPResponderSelector.class);
+
+    public static final long DEFAULT_HEDGE_DELAY = 500;
+    public static final long DEFAULT_TIMEOUT = 20000;
+    public static final int DEFAULT_MAX_THREADS = 8;
+    public static final int DEFAULT_QUEUE_SIZE = 64;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final ConcurrentMap<String, ResponderStatistics> statistics = new ConcurrentHashMap<String, ResponderStatistics>();
+    private final ExecutorService executor;
+    private volatile long hedgeDelay = DEFAULT_HEDGE_DELAY;
+    private volatile long timeout = DEFAULT_TIMEOUT;
+
+    public OCSPResponderSelector()
+    {
+        this(createExecutor(DEFAULT_MAX_THREADS, DEFAULT_QUEUE_SIZE));
+    }
+
+    public OCSPResponderSelector(ExecutorService executor)
+    {
+        this.executor = executor;
+    }
+
+    /**
+     * Pool of at most maxThreads daemon threads, released when idle. Requests beyond the limit
+     * wait in a bounded queue, still bounded by the timeout of the request that submitted them.
+     * When the queue is full no more hedges are sent and new requests fail right away.
+     */
+    private static ExecutorService createExecutor(int maxThreads, int queueSize)
+    {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60,
+                TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory()
+                {
+                    public Thread newThread(Runnable runnable)
+                    {
+                        Thread thread = new Thread(runnable, "ocsp-responder-"
+                                + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
+    }
+
+    public interface ResponderRequest
+    {
+        /**
+         * @param timeout milliseconds left before the selector gives up on the request, which
+         *        should bound the connect and read timeouts of the responder
+         */
+        OCSPResp send(String ocspURL, int timeout) throws CryptoCoreOCSPException;
+    }
+
+    /**
+     * Minimum time to wait for a responder before hedging. The effective delay grows with the
+     * latency observed for the responder, so a responder that is always slow is not hedged on
+     * every request.
+     */
+    public void setHedgeDelay(long hedgeDelay)
+    {
+        this.hedgeDelay = hedgeDelay;
+    }
+
+    public long getHedgeDelay()
+    {
+        return hedgeDelay;
+    }
+
+    public void setTimeout(long timeout)
+    {
+        this.timeout = timeout;
+    }
+
+    public long getTimeout()
+    {
+        return timeout;
+    }
+
+    public ResponderStatistics getStatistics(String ocspURL)
+    {
+        ResponderStatistics responderStatistics = statistics.get(ocspURL);
+
+        if (responderStatistics == null)
+        {
+            responderStatistics = new ResponderStatistics(ocspURL);
+            ResponderStatistics previous = statistics.putIfAbsent(ocspURL, responderStatistics);
+
+            if (previous != null)
+            {
+                responderStatistics = previous;
+            }
+        }
+
+        return responderStatistics;
+    }
+
+    public List<ResponderStatistics> getStatistics()
+    {
+        return new ArrayList<ResponderStatistics>(statistics.values());
+    }
+
+    /**
+     * @return the responders ordered for the next request: healthy ones by average latency, then
+     *         the ones in backoff after consecutive failures
+     */
+    public List<String> order(List<String> ocspURLs)
+    {
+        long now = System.currentTimeMillis();
+        List<RankedResponder> ranked = new ArrayList<RankedResponder>();
+
+        // Statistics change while requests complete, so they are read once before sorting
+
+        for (String ocspURL : new LinkedHashSet<String>(ocspURLs))
+        {
+            ResponderStatistics responderStatistics = getStatistics(ocspURL);
+            ranked.add(new RankedResponder(ocspURL, responderStatistics.isAvailable(now),
+                    responderStatistics.getAverageLatency()));
+        }
+
+        Collections.sort(ranked);
+
+        List<String> result = new ArrayList<String>();
+
+        for (RankedResponder rankedResponder : ranked)
+        {
+            result.add(rankedResponder.ocspURL);
+        }
+
+        return result;
+    }
+
+    public OCSPResp send(List<String> ocspURLs, final ResponderRequest request)
+            throws CryptoCoreOCSPException
+    {
+        List<String> responders = order(ocspURLs);
+
+        if (responders.isEmpty())
+        {
+            throw new CryptoCoreOCSPException("No OCSP responder available");
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+
+        if (responders.size() == 1)
+        {
+            return sendTimed(responders.get(0), request, deadline, new AtomicBoolean());
+        }
+
+        CompletionService<Attempt> completionService = new ExecutorCompletionService<Attempt>(
+                executor);
+        List<AttemptTask> attempts = new ArrayList<AttemptTask>();
+
+        int next = 0;
+        int pending = 0;
+        Attempt lastFailure = null;
+
+        try
+        {
+            if (!submit(completionService, attempts, responders.get(next++), request, deadline))
+            {
+                throw new CryptoCoreOCSPException("Too many OCSP requests in progress");
+            }
+
+            pending++;
+
+            while (pending > 0)
+            {
+                long wait = deadline - System.currentTimeMillis();
+
+                if (next < responders.size())
+                {
+                    wait = Math.min(wait, getHedgeDelay(responders.get(next - 1)));
+                }
+
+                Future<Attempt> completed = completionService.poll(Math.max(wait, 0),
+                        TimeUnit.MILLISECONDS);
+
+                if (completed == null)
+                {
+                    if (System.currentTimeMillis() >= deadline)
+                    {
+                        // Interrupting a blocked read does not end it, so the requests still
+                        // running are recorded as failed here instead of when they give up
+
+                        for (AttemptTask attempt : attempts)
+                        {
+                            attempt.timeOut();
+                        }
+
+                        break;
+                    }
+
+                    // The responder is slow, hedge with the next one and keep both racing
+
+                    if (next < responders.size())
+                    {
+                        log.debug("Hedging OCSP request to " + responders.get(next));
+
+                        if (submit(completionService, attempts, responders.get(next++), request,
+                                deadline))
+                        {
+                            pending++;
+                        }
+                        else
+                        {
+                            next = responders.size();
+                        }
+                    }
+
+                    continue;
+                }
+
+                pending--;
+                Attempt attempt = completed.get();
+
+                if (attempt.isSuccessful())
+                {
+                    return attempt.response;
+                }
+
+                // An unsuccessful OCSP response says more than a connection error
+
+                if (lastFailure == null || lastFailure.response == null)
+                {
+                    lastFailure = attempt;
+                }
+
+                if (next < responders.size())
+                {
+                    if (submit(completionService, attempts, responders.get(next++), request,
+                            deadline))
+                    {
+                        pending++;
+                    }
+                    else
+                    {
+                        next = responders.size();
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new CryptoCoreOCSPException("Interrupted while waiting for OCSP responders", e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new CryptoCoreOCSPException("Can not recover response from OCSP responders", e
+                    .getCause());
+        }
+        finally
+        {
+            // Free the threads of the requests that lost the race or did not answer in time
+
+            for (AttemptTask attempt : attempts)
+            {
+                attempt.cancel();
+            }
+        }
+
+        if (lastFailure == null)
+        {
+            throw new CryptoCoreOCSPException("No OCSP responder answered in " + timeout + " ms");
+        }
+
+        return lastFailure.getResult();
+    }
+
+    private long getHedgeDelay(String ocspURL)
+    {
+        return Math.max(hedgeDelay, 2 * getStatistics(ocspURL).getAverageLatency());
+    }
+
+    /**
+     * @return false if the pool has no room left for the request
+     */
+    private boolean submit(CompletionService<Attempt> completionService,
+            List<AttemptTask> attempts, final String ocspURL, final ResponderRequest request,
+            final long deadline)
+    {
+        final AtomicBoolean settled = new AtomicBoolean();
+
+        try
+        {
+            Future<Attempt> future = completionService.submit(new Callable<Attempt>()
+            {
+                public Attempt call()
+                {
+                    try
+                    {
+                        return new Attempt(sendTimed(ocspURL, request, deadline, settled), null);
+                    }
+                    catch (CryptoCoreOCSPException e)
+                    {
+                        return new Attempt(null, e);
+                    }
+                }
+            });
+
+            attempts.add(new AttemptTask(ocspURL, future, settled));
+
+            return true;
+        }
+        catch (RejectedExecutionException e)
+        {
+            log.warn("No thread available for OCSP request to " + ocspURL);
+            return false;
+        }
+    }
+
+    /**
+     * Sends the request and records its outcome, unless the selector already settled the
+     * attempt because it timed out or lost the race
+     */
+    private OCSPResp sendTimed(String ocspURL, ResponderRequest request, long deadline,
+            AtomicBoolean settled) throws CryptoCoreOCSPException
+    {
+        ResponderStatistics responderStatistics = getStatistics(ocspURL);
+        long start = System.currentTimeMillis();
+
+        try
+        {
+            OCSPResp response = request.send(ocspURL, (int) Math.max(deadline - start, 1));
+
+            if (settled.compareAndSet(false, true))
+            {
+                if (response != null && response.getStatus() == OCSPRespStatus.SUCCESSFUL)
+                {
+                    responderStatistics.recordSuccess(System.currentTimeMillis() - start);
+                }
+                else
+                {
+                    responderStatistics.recordFailure();
+                }
+            }
+
+            return response;
+        }
+        catch (CryptoCoreOCSPException e)
+        {
+            if (settled.compareAndSet(false, true))
+            {
+                responderStatistics.recordFailure();
+            }
+
+            throw e;
+        }
+    }
+
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    private static class RankedResponder implements Comparable<RankedResponder>
+    {
+        private final String ocspURL;
+        private final boolean available;
+        private final long latency;
+
+        public RankedResponder(String ocspURL, boolean available, long latency)
+        {
+            this.ocspURL = ocspURL;
+            this.available = available;
+            this.latency = latency;
+        }
+
+        public int compareTo(RankedResponder other)
+        {
+            if (available != other.available)
+            {
+                return available ? -1 : 1;
+            }
+
+            return (latency < other.latency) ? -1 : (latency > other.latency) ? 1 : 0;
+        }
+    }
+
+    private class AttemptTask
+    {
+        private final String ocspURL;
+        private final Future<Attempt> future;
+        private final AtomicBoolean settled;
+
+        public AttemptTask(String ocspURL, Future<Attempt> future, AtomicBoolean settled)
+        {
+            this.ocspURL = ocspURL;
+            this.future = future;
+            this.settled = settled;
+        }
+
+        public void timeOut()
+        {
+            if (settled.compareAndSet(false, true))
+            {
+                getStatistics(ocspURL).recordFailure();
+            }
+        }
+
+        public void cancel()
+        {
+            // A request cancelled because another responder answered first did not fail
+
+            settled.set(true);
+            future.cancel(true);
+        }
+    }
+
+    private static class Attempt
+    {
+        private final OCSPResp response;
+        private final CryptoCoreOCSPException exception;
+
+        public Attempt(OCSPResp response, CryptoCoreOCSPException exception)
+        {
+            this.response = response;
+            this.exception = exception;
+        }
+
+        public boolean isSuccessful()
+        {
+            return response != null && response.getStatus() == OCSPRespStatus.SUCCESSFUL;
+        }
+
+        public OCSPResp getResult() throws CryptoCoreOCSPException
+        {
+            if (exception != null)
+            {
+                throw exception;
+            }
+
+            return response;
+        }
+    }
+
+    /**
+     * Health and latency of a responder. Latency is an exponentially weighted moving average and
+     * every consecutive failure doubles the time the responder is moved to the end of the list.
+     */
+    public static class ResponderStatistics
+    {
+        private static final double LATENCY_WEIGHT = 0.2;
+        private static final int FAILURES_BEFORE_BACKOFF = 3;
+        private static final long BASE_BACKOFF = 30 * 1000L;
+        private static final long MAX_BACKOFF = 5 * 60 * 1000L;
+
+        private final String ocspURL;
+        private long requests;
+        private long failures;
+        private int consecutiveFailures;
+        private double averageLatency;
+        private long unavailableUntil;
+
+        public ResponderStatistics(String ocspURL)
+        {
+            this.ocspURL = ocspURL;
+        }
+
+        public String getOcspURL()
+        {
+            return ocspURL;
+        }
+
+        public synchronized void recordSuccess(long latency)
+        {
+            requests++;
+            consecutiveFailures = 0;
+            unavailableUntil = 0;
+            averageLatency = (averageLatency == 0) ? latency : LATENCY_WEIGHT * latency
+                    + (1 - LATENCY_WEIGHT) * averageLatency;
+        }
+
+        public synchronized void recordFailure()
+        {
+            requests++;
+            failures++;
+            consecutiveFailures++;
+
+            if (consecutiveFailures >= FAILURES_BEFORE_BACKOFF)
+            {
+                int exponent = Math.min(consecutiveFailures - FAILURES_BEFORE_BACKOFF, 10);
+                long backoff = Math.min(BASE_BACKOFF << exponent, MAX_BACKOFF);
+                unavailableUntil = System.currentTimeMillis() + backoff;
+            }
+        }
+
+        public synchronized boolean isAvailable(long now)
+        {
+            return now >= unavailableUntil;
+        }
+
+        public synchronized long getAverageLatency()
+        {
+            return (long) averageLatency;
+        }
+
+        public synchronized long getRequests()
+        {
+            return requests;
+        }
+
+        public synchronized long getFailures()
+        {
+            return failures;
+        }
+
+        public synchronized int getConsecutiveFailures()
+        {
+            return consecutiveFailures;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package es.uji.apps.cryptoapplet.crypto.ocsp;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.ocsp.CertificateID;
+
+/**
+ * Bounded LRU cache of verified OCSP responses keyed on the certificate ID. Entries expire at the
+ * response nextUpdate, or after the default max age when the responder does not provide one.
+ * Expired entries are retained for the max stale age so they can still be served, flagged as
+ * stale, by callers that accept a grace period.
+ */
+public class OCSPResponseCache
+{
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+    public static final long DEFAULT_MAX_AGE = 5 * 60 * 1000L;
+    public static final long DEFAULT_MAX_STALE_AGE = 24 * 60 * 60 * 1000L;
+
+    private final int maxEntries;
+    private final long defaultMaxAge;
+    private final Map<String, CachedResponse> entries;
+    private volatile OCSPResponseLog responseLog;
+    private volatile boolean responseLogLoaded;
+    private volatile long maxStaleAge = DEFAULT_MAX_STALE_AGE;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public OCSPResponseCache()
+    {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_AGE);
+    }
+
+    @SuppressWarnings("serial")
+    public OCSPResponseCache(int maxEntries, long defaultMaxAge)
+    {
+        this.maxEntries = maxEntries;
+        this.defaultMaxAge = defaultMaxAge;
+        this.entries = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest)
+            {
+                if (size() > OCSPResponseCache.this.maxEntries)
+                {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    public OCSPResponseLog getResponseLog()
+    {
+        return responseLog;
+    }
+
+    /**
+     * Persists every cached response to the given log. The log is read back lazily on the first
+     * lookup, restoring the responses that are still before their nextUpdate.
+     */
+    public void setResponseLog(OCSPResponseLog responseLog)
+    {
+        this.responseLog = responseLog;
+        this.responseLogLoaded = false;
+    }
+
+    public static String getKey(CertificateID certificateID)
+    {
+        return certificateID.getHashAlgOID() + ":"
+                + new BigInteger(1, certificateID.getIssuerNameHash()).toString(16) + ":"
+                + new BigInteger(1, certificateID.getIssuerKeyHash()).toString(16) + ":"
+                + certificateID.getSerialNumber().toString(16);
+    }
+
+    public long getMaxStaleAge()
+    {
+        return maxStaleAge;
+    }
+
+    /**
+     * Sets how long expired entries are retained for stale lookups. Zero drops them at expiration.
+     */
+    public void setMaxStaleAge(long maxStaleAge)
+    {
+        this.maxStaleAge = maxStaleAge;
+    }
+
+    public OCSPResponseDetails get(CertificateID certificateID)
+    {
+        return get(certificateID, 0);
+    }
+
+    /**
+     * Returns the cached status, accepting an expired one if it expired less than gracePeriod ms
+     * ago. Such a status is returned with its stale flag set.
+     */
+    public OCSPResponseDetails get(CertificateID certificateID, long gracePeriod)
+    {
+        String key = getKey(certificateID);
+        long now = currentTimeMillis();
+
+        loadResponseLog(now);
+
+        synchronized (entries)
+        {
+            CachedResponse cachedResponse = entries.get(key);
+
+            if (cachedResponse != null && cachedResponse.expires + maxStaleAge <= now)
+            {
+                entries.remove(key);
+                evictions.incrementAndGet();
+                cachedResponse = null;
+            }
+
+            if (cachedResponse == null
+                    || cachedResponse.expires + Math.min(gracePeriod, maxStaleAge) <= now)
+            {
+                misses.incrementAndGet();
+                return null;
+            }
+
+            OCSPResponseDetails result = copy(cachedResponse.responseDetails);
+            long statusTime = (result.getThisUpdate() != null) ? result.getThisUpdate().getTime()
+                    : cachedResponse.cached;
+            result.setStatusAge(Math.max(now - statusTime, 0));
+
+            if (cachedResponse.expires <= now)
+            {
+                result.setStale(true);
+                staleHits.incrementAndGet();
+            }
+            else
+            {
+                hits.incrementAndGet();
+            }
+
+            return result;
+        }
+    }
+
+    public void put(CertificateID certificateID, OCSPResponseDetails responseDetails)
+    {
+        long now = currentTimeMillis();
+        long expires = now + defaultMaxAge;
+
+        if (responseDetails.getNextUpdate() != null)
+        {
+            expires = responseDetails.getNextUpdate().getTime();
+        }
+
+        if (expires <= now)
+        {
+            return;
+        }
+
+        String key = getKey(certificateID);
+        CachedResponse cachedResponse = new CachedResponse(copy(responseDetails), expires, now);
+
+        loadResponseLog(now);
+
+        synchronized (entries)
+        {
+            entries.put(key, cachedResponse);
+        }
+
+        OCSPResponseLog responseLog = this.responseLog;
+
+        if (responseLog != null)
+        {
+            responseLog.append(key, cachedResponse.responseDetails, expires);
+        }
+    }
+
+    public void remove(CertificateID certificateID)
+    {
+        String key = getKey(certificateID);
+
+        synchronized (entries)
+        {
+            entries.remove(key);
+        }
+
+        OCSPResponseLog responseLog = this.responseLog;
+
+        if (responseLog != null)
+        {
+            responseLog.appendRemoval(key);
+        }
+    }
+
+    public void clear()
+    {
+        synchronized (entries)
+        {
+            entries.clear();
+        }
+
+        if (responseLog != null)
+        {
+            responseLog.clear();
+        }
+    }
+
+    public int size()
+    {
+        synchronized (entries)
+        {
+            return entries.size();
+        }
+    }
+
+    public int getMaxEntries()
+    {
+        return maxEntries;
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public long getStaleHits()
+    {
+        return staleHits.get();
+    }
+
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    private void loadResponseLog(long now)
+    {
+        OCSPResponseLog responseLog = this.responseLog;
+
+        if (responseLog == null || responseLogLoaded)
+        {
+            return;
+        }
+
+        synchronized (responseLog)
+        {
+            if (responseLogLoaded)
+            {
+                return;
+            }
+
+            Map<String, OCSPResponseLog.Record> records = responseLog.load(now - maxStaleAge);
+
+            synchronized (entries)
+            {
+                for (OCSPResponseLog.Record record : records.values())
+                {
+                    if (!entries.containsKey(record.getKey()))
+                    {
+                        entries.put(record.getKey(), new CachedResponse(record
+                                .getResponseDetails(), record.getExpires(), now));
+                    }
+                }
+            }
+
+            responseLogLoaded = true;
+        }
+    }
+
+    /**
+     * Time source of the expiration checks, overridden by the tests
+     */
+    long currentTimeMillis()
+    {
+        return System.currentTimeMillis();
+    }
+
+    private static OCSPResponseDetails copy(OCSPResponseDetails responseDetails)
+    {
+        OCSPResponseDetails result = new OCSPResponseDetails(responseDetails.isValid(),
+                new ArrayList<String>(responseDetails.getErrors()),
+                responseDetails.getResponseData());
+        result.setThisUpdate(responseDetails.getThisUpdate());
+        result.setNextUpdate(responseDetails.getNextUpdate());
+        result.setRevoked(responseDetails.isRevoked());
+
+        return result;
+    }
+
+    private static class CachedResponse
+    {
+        private final OCSPResponseDetails responseDetails;
+        private final long expires;
+        private final long cached;
+
+        public CachedResponse(OCSPResponseDetails responseDetails, long expires, long cached)
+        {
+            this.responseDetails = responseDetails;
+            this.expires = expires;
+            this.cached = cached;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package es.uji.apps.cryptoapplet.crypto.ocsp;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
 public class OCSPResponseDetails
@@ -8,6 +9,11 @@ public class OCSPResponseDetails
     private boolean valid;
     private List<String> errors;
     private byte[] responseData;
+    private Date thisUpdate;
+    private Date nextUpdate;
+    private long statusAge;
+    private boolean stale;
+    private boolean revoked;
 
     public OCSPResponseDetails()
     {
@@ -59,4 +65,65 @@ public class OCSPResponseDetails
     {
         this.responseData = responseData;
     }
+
+    public Date getThisUpdate()
+    {
+        return thisUpdate;
+    }
+
+    public void setThisUpdate(Date thisUpdate)
+    {
+        this.thisUpdate = thisUpdate;
+    }
+
+    public Date getNextUpdate()
+    {
+        return nextUpdate;
+    }
+
+    public void setNextUpdate(Date nextUpdate)
+    {
+        this.nextUpdate = nextUpdate;
+    }
+
+    /**
+     * @return milliseconds elapsed since the responder produced this status
+     */
+    public long getStatusAge()
+    {
+        return statusAge;
+    }
+
+    public void setStatusAge(long statusAge)
+    {
+        this.statusAge = statusAge;
+    }
+
+    /**
+     * @return true if the status is past its nextUpdate and was served within the grace period
+     *         of the revocation service while a fresh one is fetched in the background
+     */
+    public boolean isStale()
+    {
+        return stale;
+    }
+
+    public void setStale(boolean stale)
+    {
+        this.stale = stale;
+    }
+
+    /**
+     * @return true if the responder reported the certificate as revoked, as opposed to a status
+     *         that could not be obtained or verified
+     */
+    public boolean isRevoked()
+    {
+        return revoked;
+    }
+
+    public void setRevoked(boolean revoked)
+    {
+        this.revoked = revoked;
+    }
 }
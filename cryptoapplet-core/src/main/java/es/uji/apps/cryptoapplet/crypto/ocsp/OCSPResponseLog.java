@@ -0,0 +1,369 @@
+package es.uji.apps.cryptoapplet.crypto.ocsp;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Append-only log of the responses stored in an OCSPResponseCache. Every record carries its
+ * expiration, so when the log is read back after a restart only the responses still before their
+ * nextUpdate are restored. The file is rewritten with the live records when most of it is stale.
+ * Records written with an older format version are discarded on read.
+ */
+public class OCSPResponseLog
+{
+    private static Logger log = Logger.getLogger(OCSPResponseLog.class);
+
+    private static final String FILE_NAME = "ocsp-responses.log";
+    private static final int MAGIC = 0x4f435350;
+    // Version 2 records hold the revoked flag
+    private static final int VERSION = 2;
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    private final File file;
+    private DataOutputStream out;
+
+    public OCSPResponseLog(File directory)
+    {
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            log.warn("Can not create OCSP cache directory " + directory.getAbsolutePath());
+        }
+
+        this.file = new File(directory, FILE_NAME);
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Reads every record of the log. When the same key was appended more than once the last
+     * record wins. Records expired at the given time are skipped, as is a truncated last record
+     * left by a crash.
+     */
+    synchronized Map<String, Record> load(long now)
+    {
+        Map<String, Record> records = new HashMap<String, Record>();
+
+        if (!file.isFile())
+        {
+            return records;
+        }
+
+        int total = 0;
+
+        try
+        {
+            FileInputStream in = new FileInputStream(file);
+
+            try
+            {
+                FileChannel channel = in.getChannel();
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+                while (buffer.remaining() >= 8)
+                {
+                    int length = buffer.getInt();
+
+                    if (buffer.getInt() != MAGIC || length < 0 || length > buffer.remaining())
+                    {
+                        break;
+                    }
+
+                    ByteBuffer recordBuffer = buffer.slice();
+                    recordBuffer.limit(length);
+                    buffer.position(buffer.position() + length);
+                    total++;
+
+                    Record record = readRecord(recordBuffer);
+
+                    if (record == null)
+                    {
+                        continue;
+                    }
+
+                    if (record.expires > now)
+                    {
+                        records.put(record.key, record);
+                    }
+                    else
+                    {
+                        records.remove(record.key);
+                    }
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (Exception e)
+        {
+            log.warn("Can not read OCSP response log " + file.getAbsolutePath(), e);
+        }
+
+        if (total > 2 * records.size())
+        {
+            compact(records);
+        }
+
+        return records;
+    }
+
+    synchronized void append(String key, OCSPResponseDetails responseDetails, long expires)
+    {
+        try
+        {
+            if (out == null)
+            {
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file,
+                        true)));
+            }
+
+            writeFramedRecord(out, key, responseDetails, expires);
+            out.flush();
+        }
+        catch (IOException e)
+        {
+            log.warn("Can not append to OCSP response log " + file.getAbsolutePath(), e);
+            close();
+        }
+    }
+
+    /**
+     * Appends an already expired record for the key, so it is dropped when the log is read back
+     */
+    synchronized void appendRemoval(String key)
+    {
+        append(key, new OCSPResponseDetails(), 0);
+    }
+
+    public synchronized void clear()
+    {
+        close();
+        file.delete();
+    }
+
+    public synchronized void close()
+    {
+        if (out != null)
+        {
+            try
+            {
+                out.close();
+            }
+            catch (IOException e)
+            {
+                // Nothing else can be done with the log
+            }
+
+            out = null;
+        }
+    }
+
+    private void compact(Map<String, Record> records)
+    {
+        close();
+
+        File temporaryFile = new File(file.getParentFile(), FILE_NAME + ".tmp");
+
+        try
+        {
+            DataOutputStream compacted = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temporaryFile)));
+
+            try
+            {
+                for (Record record : records.values())
+                {
+                    writeFramedRecord(compacted, record.key, record.responseDetails,
+                            record.expires);
+                }
+            }
+            finally
+            {
+                compacted.close();
+            }
+
+            if (!temporaryFile.renameTo(file))
+            {
+                file.delete();
+
+                if (!temporaryFile.renameTo(file))
+                {
+                    throw new IOException("Can not replace " + file.getAbsolutePath());
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            log.warn("Can not compact OCSP response log " + file.getAbsolutePath(), e);
+            temporaryFile.delete();
+        }
+    }
+
+    private void writeFramedRecord(DataOutputStream out, String key,
+            OCSPResponseDetails responseDetails, long expires) throws IOException
+    {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(512);
+        writeRecord(new DataOutputStream(record), key, responseDetails, expires);
+
+        if (record.size() <= MAX_RECORD_SIZE)
+        {
+            out.writeInt(record.size());
+            out.writeInt(MAGIC);
+            record.writeTo(out);
+        }
+    }
+
+    private void writeRecord(DataOutputStream out, String key,
+            OCSPResponseDetails responseDetails, long expires) throws IOException
+    {
+        out.writeInt(VERSION);
+        out.writeUTF(key);
+        out.writeLong(expires);
+        out.writeBoolean(responseDetails.isValid());
+        out.writeBoolean(responseDetails.isRevoked());
+        out.writeLong(toMillis(responseDetails.getThisUpdate()));
+        out.writeLong(toMillis(responseDetails.getNextUpdate()));
+        out.writeInt(responseDetails.getErrors().size());
+
+        for (String error : responseDetails.getErrors())
+        {
+            out.writeUTF(error);
+        }
+
+        byte[] responseData = responseDetails.getResponseData();
+
+        if (responseData == null)
+        {
+            out.writeInt(-1);
+        }
+        else
+        {
+            out.writeInt(responseData.length);
+            out.write(responseData);
+        }
+
+        out.flush();
+    }
+
+    /**
+     * @return the record, or null if it was written with another format version
+     */
+    private Record readRecord(ByteBuffer buffer) throws IOException
+    {
+        try
+        {
+            if (buffer.getInt() != VERSION)
+            {
+                return null;
+            }
+
+            String key = readUTF(buffer);
+            long expires = buffer.getLong();
+            boolean valid = buffer.get() != 0;
+            boolean revoked = buffer.get() != 0;
+            long thisUpdate = buffer.getLong();
+            long nextUpdate = buffer.getLong();
+
+            int count = buffer.getInt();
+            ArrayList<String> errors = new ArrayList<String>();
+
+            for (int i = 0; i < count; i++)
+            {
+                errors.add(readUTF(buffer));
+            }
+
+            byte[] responseData = null;
+            int length = buffer.getInt();
+
+            if (length >= 0)
+            {
+                responseData = new byte[length];
+                buffer.get(responseData);
+            }
+
+            OCSPResponseDetails responseDetails = new OCSPResponseDetails(valid, errors,
+                    responseData);
+            responseDetails.setRevoked(revoked);
+            responseDetails.setThisUpdate(toDate(thisUpdate));
+            responseDetails.setNextUpdate(toDate(nextUpdate));
+
+            return new Record(key, responseDetails, expires);
+        }
+        catch (BufferUnderflowException e)
+        {
+            throw new IOException("Truncated OCSP response log record");
+        }
+    }
+
+    private static String readUTF(ByteBuffer buffer) throws IOException
+    {
+        // Same layout as DataOutputStream.writeUTF: unsigned short length plus modified UTF-8
+
+        int length = buffer.getShort() & 0xffff;
+        byte[] encoded = new byte[length + 2];
+        encoded[0] = (byte) (length >>> 8);
+        encoded[1] = (byte) length;
+        buffer.get(encoded, 2, length);
+
+        return new DataInputStream(new ByteArrayInputStream(encoded)).readUTF();
+    }
+
+    private static long toMillis(Date date)
+    {
+        return (date != null) ? date.getTime() : -1;
+    }
+
+    private static Date toDate(long millis)
+    {
+        return (millis >= 0) ? new Date(millis) : null;
+    }
+
+    static class Record
+    {
+        private final String key;
+        private final OCSPResponseDetails responseDetails;
+        private final long expires;
+
+        public Record(String key, OCSPResponseDetails responseDetails, long expires)
+        {
+            this.key = key;
+            this.responseDetails = responseDetails;
+            this.expires = expires;
+        }
+
+        public String getKey()
+        {
+            return key;
+        }
+
+        public OCSPResponseDetails getResponseDetails()
+        {
+            return responseDetails;
+        }
+
+        public long getExpires()
+        {
+            return expires;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package es.uji.apps.cryptoapplet.crypto.ocsp;
+
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Provider;
+import java.security.Signature;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.ocsp.BasicOCSPResp;
+import org.bouncycastle.ocsp.OCSPException;
+
+/**
+ * Verifies OCSP response signatures remembering the outcome for each distinct response and
+ * responder key. Responders usually hand out the same pre-signed response to every client until
+ * its nextUpdate, so most verifications become a digest and a map lookup. Signature engines are
+ * initialized once per responder key and algorithm and then reused.
+ */
+public class OCSPSignatureVerifier
+{
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+    private static final int MAX_POOLED_ENGINES = 16;
+
+    private final Map<String, Boolean> results;
+    private final ConcurrentMap<PublicKey, String> keyIds = new ConcurrentHashMap<PublicKey, String>();
+    private final ConcurrentMap<String, Queue<Signature>> engines = new ConcurrentHashMap<String, Queue<Signature>>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong verifications = new AtomicLong();
+
+    public OCSPSignatureVerifier()
+    {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    @SuppressWarnings("serial")
+    public OCSPSignatureVerifier(final int maxEntries)
+    {
+        this.results = new LinkedHashMap<String, Boolean>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest)
+            {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public boolean verify(BasicOCSPResp basicOCSPResp, PublicKey publicKey, Provider provider)
+            throws GeneralSecurityException, OCSPException
+    {
+        byte[] tbsResponseData = basicOCSPResp.getTBSResponseData();
+        byte[] signatureValue = basicOCSPResp.getSignature();
+        String algorithm = basicOCSPResp.getSignatureAlgName();
+        String keyId = getKeyId(publicKey);
+
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(tbsResponseData);
+        digest.update(signatureValue);
+        digest.update(algorithm.getBytes(Charset.forName("UTF-8")));
+        String resultKey = keyId + ":" + new BigInteger(1, digest.digest()).toString(16);
+
+        synchronized (results)
+        {
+            Boolean result = results.get(resultKey);
+
+            if (result != null)
+            {
+                hits.incrementAndGet();
+                return result;
+            }
+        }
+
+        boolean result = verify(tbsResponseData, signatureValue, algorithm, publicKey, keyId,
+                provider);
+        verifications.incrementAndGet();
+
+        synchronized (results)
+        {
+            results.put(resultKey, result);
+        }
+
+        return result;
+    }
+
+    private boolean verify(byte[] data, byte[] signatureValue, String algorithm,
+            PublicKey publicKey, String keyId, Provider provider) throws GeneralSecurityException
+    {
+        String engineKey = algorithm + ":" + provider.getName() + ":" + keyId;
+        Queue<Signature> pool = engines.get(engineKey);
+
+        if (pool == null)
+        {
+            pool = new ConcurrentLinkedQueue<Signature>();
+            Queue<Signature> previous = engines.putIfAbsent(engineKey, pool);
+
+            if (previous != null)
+            {
+                pool = previous;
+            }
+        }
+
+        Signature signature = pool.poll();
+
+        if (signature == null)
+        {
+            signature = Signature.getInstance(algorithm, provider);
+            signature.initVerify(publicKey);
+        }
+
+        // A failed update or verify may leave the engine in an unknown state, so it is only
+        // returned to the pool after a clean verification
+
+        signature.update(data);
+        boolean result = signature.verify(signatureValue);
+
+        if (pool.size() < MAX_POOLED_ENGINES)
+        {
+            pool.offer(signature);
+        }
+
+        return result;
+    }
+
+    private String getKeyId(PublicKey publicKey) throws GeneralSecurityException
+    {
+        String keyId = keyIds.get(publicKey);
+
+        if (keyId == null)
+        {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(publicKey.getEncoded());
+            keyId = new BigInteger(1, hash).toString(16);
+            keyIds.putIfAbsent(publicKey, keyId);
+        }
+
+        return keyId;
+    }
+
+    public void clear()
+    {
+        synchronized (results)
+        {
+            results.clear();
+        }
+
+        engines.clear();
+        keyIds.clear();
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getVerifications()
+    {
+        return verifications.get();
+    }
+}
@@ -0,0 +1,294 @@
+package es.uji.apps.cryptoapplet.crypto.revocation;
+
+import java.security.Provider;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import es.uji.apps.cryptoapplet.crypto.crl.CRLChecker;
+import es.uji.apps.cryptoapplet.crypto.crl.CRLResponseDetails;
+import es.uji.apps.cryptoapplet.crypto.ocsp.OCSPChecker;
+import es.uji.apps.cryptoapplet.crypto.ocsp.OCSPResponseDetails;
+
+/**
+ * Runs OCSP and CRL lookups on a bounded pool so callers can fan out the checks for many
+ * certificates and wait for them (or be called back) while doing other work. When the pool
+ * and its queue are full the check is not run on the calling thread: the returned future
+ * fails with a {@link RejectedExecutionException} and the callback receives it.
+ */
+public class AsyncRevocationChecker
+{
+    public static final int DEFAULT_THREADS = 16;
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    private final ExecutorService executor;
+    private final OCSPChecker ocspChecker;
+    private final CRLChecker crlChecker;
+
+    public AsyncRevocationChecker()
+    {
+        this(DEFAULT_THREADS, DEFAULT_QUEUE_SIZE);
+    }
+
+    public AsyncRevocationChecker(int threads, int queueSize)
+    {
+        this(createExecutor(threads, queueSize));
+    }
+
+    public AsyncRevocationChecker(ExecutorService executor)
+    {
+        this.executor = executor;
+        this.ocspChecker = new OCSPChecker();
+        this.crlChecker = new CRLChecker();
+    }
+
+    private static ExecutorService createExecutor(int threads, int queueSize)
+    {
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(threads, threads, 60,
+                TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+                new RevocationThreadFactory(), new ThreadPoolExecutor.AbortPolicy());
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+
+        return threadPoolExecutor;
+    }
+
+    public Future<OCSPResponseDetails> getOCSPStatus(X509Certificate certificate,
+            X509Certificate caCertificate, X509Certificate ocspCertificate, Provider provider)
+    {
+        return getOCSPStatus(certificate, caCertificate, ocspCertificate, provider, null);
+    }
+
+    public Future<OCSPResponseDetails> getOCSPStatus(final X509Certificate certificate,
+            final X509Certificate caCertificate, final X509Certificate ocspCertificate,
+            final Provider provider, RevocationCallback<OCSPResponseDetails> callback)
+    {
+        return submit(new Callable<OCSPResponseDetails>()
+        {
+            public OCSPResponseDetails call() throws Exception
+            {
+                return ocspChecker.getCertificateStatus(certificate, caCertificate,
+                        ocspCertificate, provider);
+            }
+        }, callback);
+    }
+
+    public Future<OCSPResponseDetails> getOCSPStatus(final String ocspURL,
+            final X509Certificate certificate, final X509Certificate caCertificate,
+            final X509Certificate ocspCertificate, final Provider provider,
+            RevocationCallback<OCSPResponseDetails> callback)
+    {
+        return submit(new Callable<OCSPResponseDetails>()
+        {
+            public OCSPResponseDetails call() throws Exception
+            {
+                return ocspChecker.getCertificateStatus(ocspURL, certificate, caCertificate,
+                        ocspCertificate, provider);
+            }
+        }, callback);
+    }
+
+    /**
+     * Checks the certificates with batched OCSP requests, one task per
+     * {@link OCSPChecker#MAX_REQUESTS_PER_MESSAGE} certificates. Cancelling one of the returned
+     * futures cancels the whole batch it belongs to.
+     */
+    public List<Future<OCSPResponseDetails>> getOCSPStatuses(List<X509Certificate> certificates,
+            final X509Certificate caCertificate, final X509Certificate ocspCertificate,
+            final Provider provider)
+    {
+        List<Future<OCSPResponseDetails>> result = new ArrayList<Future<OCSPResponseDetails>>();
+
+        for (int i = 0; i < certificates.size(); i += OCSPChecker.MAX_REQUESTS_PER_MESSAGE)
+        {
+            final List<X509Certificate> batchCertificates = new ArrayList<X509Certificate>(
+                    certificates.subList(i, Math.min(i + OCSPChecker.MAX_REQUESTS_PER_MESSAGE,
+                            certificates.size())));
+
+            Future<Map<X509Certificate, OCSPResponseDetails>> batch = submit(
+                    new Callable<Map<X509Certificate, OCSPResponseDetails>>()
+                    {
+                        public Map<X509Certificate, OCSPResponseDetails> call() throws Exception
+                        {
+                            return ocspChecker.getCertificateStatuses(batchCertificates,
+                                    caCertificate, ocspCertificate, provider);
+                        }
+                    }, null);
+
+            for (X509Certificate certificate : batchCertificates)
+            {
+                result.add(new BatchEntryFuture<OCSPResponseDetails>(batch, certificate));
+            }
+        }
+
+        return result;
+    }
+
+    public Future<CRLResponseDetails> getCRLStatus(X509Certificate certificate)
+    {
+        return getCRLStatus(certificate, null);
+    }
+
+    public Future<CRLResponseDetails> getCRLStatus(final X509Certificate certificate,
+            RevocationCallback<CRLResponseDetails> callback)
+    {
+        return submit(new Callable<CRLResponseDetails>()
+        {
+            public CRLResponseDetails call() throws Exception
+            {
+                return crlChecker.getCertificateStatus(certificate);
+            }
+        }, callback);
+    }
+
+    public Future<CRLResponseDetails> getCRLStatus(final String crlURL,
+            final X509Certificate certificate, RevocationCallback<CRLResponseDetails> callback)
+    {
+        return submit(new Callable<CRLResponseDetails>()
+        {
+            public CRLResponseDetails call() throws Exception
+            {
+                return crlChecker.getCertificateStatus(crlURL, certificate);
+            }
+        }, callback);
+    }
+
+    public List<Future<CRLResponseDetails>> getCRLStatuses(List<X509Certificate> certificates)
+    {
+        List<Future<CRLResponseDetails>> result = new ArrayList<Future<CRLResponseDetails>>();
+
+        for (X509Certificate certificate : certificates)
+        {
+            result.add(getCRLStatus(certificate));
+        }
+
+        return result;
+    }
+
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+
+    private <T> Future<T> submit(Callable<T> callable, RevocationCallback<T> callback)
+    {
+        CallbackFutureTask<T> task = new CallbackFutureTask<T>(callable, callback);
+
+        try
+        {
+            executor.execute(task);
+        }
+        catch (RejectedExecutionException e)
+        {
+            task.reject(e);
+        }
+
+        return task;
+    }
+
+    private static class CallbackFutureTask<T> extends FutureTask<T>
+    {
+        private final RevocationCallback<T> callback;
+
+        public CallbackFutureTask(Callable<T> callable, RevocationCallback<T> callback)
+        {
+            super(callable);
+            this.callback = callback;
+        }
+
+        public void reject(RejectedExecutionException exception)
+        {
+            setException(exception);
+        }
+
+        @Override
+        protected void done()
+        {
+            if (callback == null || isCancelled())
+            {
+                return;
+            }
+
+            try
+            {
+                callback.onResult(get());
+            }
+            catch (ExecutionException e)
+            {
+                callback.onError(e.getCause());
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                callback.onError(e);
+            }
+        }
+    }
+
+    /**
+     * The result of one certificate of a batch
+     */
+    private static class BatchEntryFuture<T> implements Future<T>
+    {
+        private final Future<Map<X509Certificate, T>> batch;
+        private final X509Certificate certificate;
+
+        public BatchEntryFuture(Future<Map<X509Certificate, T>> batch, X509Certificate certificate)
+        {
+            this.batch = batch;
+            this.certificate = certificate;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            return batch.cancel(mayInterruptIfRunning);
+        }
+
+        public boolean isCancelled()
+        {
+            return batch.isCancelled();
+        }
+
+        public boolean isDone()
+        {
+            return batch.isDone();
+        }
+
+        public T get() throws InterruptedException, ExecutionException
+        {
+            return batch.get().get(certificate);
+        }
+
+        public T get(long timeout, TimeUnit unit) throws InterruptedException,
+                ExecutionException, TimeoutException
+        {
+            return batch.get(timeout, unit).get(certificate);
+        }
+    }
+
+    private static class RevocationThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "revocation-checker-"
+                    + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+
+            return thread;
+        }
+    }
+}
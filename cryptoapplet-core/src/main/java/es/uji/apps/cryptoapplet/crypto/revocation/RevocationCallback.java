@@ -0,0 +1,8 @@
+package es.uji.apps.cryptoapplet.crypto.revocation;
+
+public interface RevocationCallback<T>
+{
+    public void onResult(T result);
+
+    public void onError(Throwable exception);
+}
@@ -0,0 +1,70 @@
+package es.uji.apps.cryptoapplet.crypto.revocation;
+
+import java.io.File;
+
+import es.uji.apps.cryptoapplet.config.model.Configuration;
+import es.uji.apps.cryptoapplet.config.model.RevocationServiceRegistry;
+import es.uji.apps.cryptoapplet.crypto.crl.CRLChecker;
+import es.uji.apps.cryptoapplet.crypto.crl.CRLDiskCache;
+import es.uji.apps.cryptoapplet.crypto.ocsp.OCSPChecker;
+import es.uji.apps.cryptoapplet.crypto.ocsp.OCSPResponseLog;
+
+/**
+ * Attaches on-disk persistence to the shared CRL store and OCSP response cache, so the revocation
+ * state gathered by a previous run is reused after a restart instead of querying every CA again.
+ */
+public class RevocationDiskStore
+{
+    private static final String CRL_DIRECTORY = "crl";
+    private static final String OCSP_DIRECTORY = "ocsp";
+
+    /**
+     * Enables persistence under the cacheDirectory attribute of the revocationServices element.
+     * Does nothing if the attribute is not configured.
+     */
+    public static void enable(Configuration configuration)
+    {
+        RevocationServiceRegistry registry = configuration.getRevocationServicesRegistry();
+
+        if (registry != null && registry.getCacheDirectory() != null
+                && !registry.getCacheDirectory().isEmpty())
+        {
+            enable(new File(registry.getCacheDirectory()));
+        }
+    }
+
+    /**
+     * Enables persistence under the given directory. Enabling the directory already in use keeps
+     * the current state, so it is safe to call every time a configuration is loaded.
+     */
+    public static synchronized void enable(File directory)
+    {
+        File crlDirectory = new File(directory, CRL_DIRECTORY);
+        CRLDiskCache diskCache = CRLChecker.getStore().getDiskCache();
+
+        if (diskCache != null && diskCache.getDirectory().equals(crlDirectory)
+                && OCSPChecker.getResponseCache().getResponseLog() != null)
+        {
+            return;
+        }
+
+        disable();
+
+        CRLChecker.getStore().setDiskCache(new CRLDiskCache(crlDirectory));
+        OCSPChecker.getResponseCache().setResponseLog(
+                new OCSPResponseLog(new File(directory, OCSP_DIRECTORY)));
+    }
+
+    public static synchronized void disable()
+    {
+        CRLChecker.getStore().setDiskCache(null);
+
+        OCSPResponseLog responseLog = OCSPChecker.getResponseCache().getResponseLog();
+        OCSPChecker.getResponseCache().setResponseLog(null);
+
+        if (responseLog != null)
+        {
+            responseLog.close();
+        }
+    }
+}
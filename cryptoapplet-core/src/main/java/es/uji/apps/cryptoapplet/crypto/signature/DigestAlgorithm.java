@@ -0,0 +1,70 @@
+package es.uji.apps.cryptoapplet.crypto.signature;
+
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Digest algorithms for signature references, with their JCA and XML Signature names
+ */
+public enum DigestAlgorithm
+{
+    SHA1("SHA-1", "http://www.w3.org/2000/09/xmldsig#sha1"),
+    SHA256("SHA-256", "http://www.w3.org/2001/04/xmlenc#sha256"),
+    SHA384("SHA-384", "http://www.w3.org/2001/04/xmldsig-more#sha384"),
+    SHA512("SHA-512", "http://www.w3.org/2001/04/xmlenc#sha512");
+
+    private final String jcaName;
+    private final String xmlSignatureURI;
+
+    private DigestAlgorithm(String jcaName, String xmlSignatureURI)
+    {
+        this.jcaName = jcaName;
+        this.xmlSignatureURI = xmlSignatureURI;
+    }
+
+    public String getJCAName()
+    {
+        return jcaName;
+    }
+
+    public String getXMLSignatureURI()
+    {
+        return xmlSignatureURI;
+    }
+
+    /**
+     * @return the algorithm named SHA1, SHA-256, sha512... the dash and case do not matter
+     */
+    public static DigestAlgorithm fromName(String name) throws NoSuchAlgorithmException
+    {
+        if (name != null)
+        {
+            String normalized = name.trim().replace("-", "").replace("_", "").toUpperCase();
+
+            for (DigestAlgorithm algorithm : values())
+            {
+                if (algorithm.name().equals(normalized))
+                {
+                    return algorithm;
+                }
+            }
+        }
+
+        throw new NoSuchAlgorithmException("Unsupported digest algorithm " + name);
+    }
+
+    /**
+     * @return the algorithm of a ds:DigestMethod
+     */
+    public static DigestAlgorithm fromXMLSignatureURI(String uri) throws NoSuchAlgorithmException
+    {
+        for (DigestAlgorithm algorithm : values())
+        {
+            if (algorithm.xmlSignatureURI.equals(uri))
+            {
+                return algorithm;
+            }
+        }
+
+        throw new NoSuchAlgorithmException("Unsupported digest method " + uri);
+    }
+}
@@ -0,0 +1,133 @@
+package es.uji.apps.cryptoapplet.crypto.signature;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Digests of signature references over one document, keyed by reference URI, transform chain
+ * and digest algorithm, so signatures with identical references share a single canonicalization
+ * and digest pass. Concurrent requests for a missing key wait for the one calculation.
+ *
+ * A cache belongs to one document: it must not be shared with other documents, or with versions
+ * of the document that differ in more than the content excluded by the transforms, such as the
+ * signatures added when co-signing.
+ */
+public class ReferenceDigestCache
+{
+    private final ConcurrentMap<String, FutureTask<byte[]>> digests = new ConcurrentHashMap<String, FutureTask<byte[]>>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @return the cached digest of the key, calculating it if missing
+     */
+    public byte[] getDigest(String key, Callable<byte[]> calculation) throws Exception
+    {
+        FutureTask<byte[]> task = digests.get(key);
+
+        if (task == null)
+        {
+            FutureTask<byte[]> newTask = new FutureTask<byte[]>(calculation);
+            task = digests.putIfAbsent(key, newTask);
+
+            if (task == null)
+            {
+                task = newTask;
+                misses.incrementAndGet();
+                task.run();
+            }
+            else
+            {
+                hits.incrementAndGet();
+            }
+        }
+        else
+        {
+            hits.incrementAndGet();
+        }
+
+        try
+        {
+            return task.get();
+        }
+        catch (ExecutionException e)
+        {
+            // Failed calculations are not cached
+
+            digests.remove(key, task);
+
+            if (e.getCause() instanceof Exception)
+            {
+                throw (Exception) e.getCause();
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * @return the cached digest of the key, or null if it has not been calculated
+     */
+    public byte[] get(String key)
+    {
+        FutureTask<byte[]> task = digests.get(key);
+
+        if (task == null || !task.isDone())
+        {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        try
+        {
+            byte[] digest = task.get();
+            hits.incrementAndGet();
+
+            return digest;
+        }
+        catch (Exception e)
+        {
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    public void put(String key, final byte[] digest)
+    {
+        FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>()
+        {
+            public byte[] call()
+            {
+                return digest;
+            }
+        });
+
+        task.run();
+        digests.put(key, task);
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public int size()
+    {
+        return digests.size();
+    }
+
+    public void clear()
+    {
+        digests.clear();
+    }
+}
@@ -0,0 +1,142 @@
+package es.uji.apps.cryptoapplet.crypto.signature;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Signature;
+import java.security.interfaces.ECKey;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.PSSParameterSpec;
+
+/**
+ * Signature algorithms supported by the formatters, with their JCA and XML Signature names.
+ * RSA-PSS uses the BouncyCastle name, and Ed25519 needs a provider and XML Signature
+ * implementation that support it.
+ */
+public enum SignatureAlgorithm
+{
+    RSA_SHA1("SHA1withRSA", "http://www.w3.org/2000/09/xmldsig#rsa-sha1", DigestAlgorithm.SHA1),
+    RSA_SHA256("SHA256withRSA", "http://www.w3.org/2001/04/xmldsig-more#rsa-sha256",
+            DigestAlgorithm.SHA256),
+    RSA_SHA512("SHA512withRSA", "http://www.w3.org/2001/04/xmldsig-more#rsa-sha512",
+            DigestAlgorithm.SHA512),
+    RSA_PSS_SHA256("SHA256withRSAandMGF1",
+            "http://www.w3.org/2007/05/xmldsig-more#sha256-rsa-MGF1", DigestAlgorithm.SHA256),
+    ECDSA_SHA256("SHA256withECDSA", "http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha256",
+            DigestAlgorithm.SHA256),
+    ECDSA_SHA384("SHA384withECDSA", "http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha384",
+            DigestAlgorithm.SHA384),
+    ED25519("Ed25519", "http://www.w3.org/2021/04/xmldsig-more#eddsa-ed25519",
+            DigestAlgorithm.SHA512);
+
+    private final String jcaName;
+    private final String xmlSignatureURI;
+    private final DigestAlgorithm digestAlgorithm;
+
+    private SignatureAlgorithm(String jcaName, String xmlSignatureURI,
+            DigestAlgorithm digestAlgorithm)
+    {
+        this.jcaName = jcaName;
+        this.xmlSignatureURI = xmlSignatureURI;
+        this.digestAlgorithm = digestAlgorithm;
+    }
+
+    public String getJCAName()
+    {
+        return jcaName;
+    }
+
+    public String getXMLSignatureURI()
+    {
+        return xmlSignatureURI;
+    }
+
+    public DigestAlgorithm getDigestAlgorithm()
+    {
+        return digestAlgorithm;
+    }
+
+    public Signature getSignature(Provider provider) throws NoSuchAlgorithmException
+    {
+        try
+        {
+            return (provider != null) ? Signature.getInstance(jcaName, provider) : Signature
+                    .getInstance(jcaName);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            if (this != RSA_PSS_SHA256)
+            {
+                throw e;
+            }
+
+            // Providers without the BouncyCastle name may have the generic one with parameters
+
+            Signature signature = (provider != null) ? Signature.getInstance("RSASSA-PSS",
+                    provider) : Signature.getInstance("RSASSA-PSS");
+
+            try
+            {
+                signature.setParameter(new PSSParameterSpec("SHA-256", "MGF1",
+                        MGF1ParameterSpec.SHA256, 32, 1));
+            }
+            catch (InvalidAlgorithmParameterException iape)
+            {
+                throw new NoSuchAlgorithmException(iape.getMessage());
+            }
+
+            return signature;
+        }
+    }
+
+    /**
+     * @return the algorithm named as the constant, with dashes or underscores and in any case,
+     *         or by its JCA name, as RSA-SHA256 or SHA256withRSA
+     */
+    public static SignatureAlgorithm fromName(String name) throws NoSuchAlgorithmException
+    {
+        if (name != null)
+        {
+            String normalized = name.trim().replace("-", "_").toUpperCase();
+
+            for (SignatureAlgorithm algorithm : values())
+            {
+                if (algorithm.name().equals(normalized)
+                        || algorithm.jcaName.equalsIgnoreCase(name.trim()))
+                {
+                    return algorithm;
+                }
+            }
+        }
+
+        throw new NoSuchAlgorithmException("Unsupported signature algorithm " + name);
+    }
+
+    /**
+     * @return the algorithm used for the key when none is configured: RSA-SHA1 for RSA keys, as
+     *         signatures always were, and the one matching the key for EC and Ed25519 keys
+     */
+    public static SignatureAlgorithm getDefault(Key key)
+    {
+        String keyAlgorithm = (key != null) ? key.getAlgorithm() : null;
+
+        if ("EC".equalsIgnoreCase(keyAlgorithm) || "ECDSA".equalsIgnoreCase(keyAlgorithm))
+        {
+            if (key instanceof ECKey
+                    && ((ECKey) key).getParams().getCurve().getField().getFieldSize() > 256)
+            {
+                return ECDSA_SHA384;
+            }
+
+            return ECDSA_SHA256;
+        }
+
+        if ("Ed25519".equalsIgnoreCase(keyAlgorithm) || "EdDSA".equalsIgnoreCase(keyAlgorithm))
+        {
+            return ED25519;
+        }
+
+        return RSA_SHA1;
+    }
+}
@@ -1,11 +1,17 @@
 package es.uji.apps.cryptoapplet.crypto.signature.format;
 
+import es.uji.apps.cryptoapplet.config.model.Configuration;
 import es.uji.apps.cryptoapplet.crypto.exceptions.*;
+import es.uji.apps.cryptoapplet.crypto.signature.DigestAlgorithm;
+import es.uji.apps.cryptoapplet.crypto.signature.SignatureAlgorithm;
 
+import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.Provider;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Map;
 
 public abstract class AbstractSignatureFormatter
 {
@@ -58,4 +64,60 @@ public abstract class AbstractSignatureFormatter
             throw new EmptyDocumentPassedToSignException();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * @return the configuration options of the format, empty if there is no configuration
+     */
+    protected Map<String, String> getFormatOptions(SignatureOptions signatureOptions, String format)
+    {
+        Configuration configuration = signatureOptions.getConfiguration();
+
+        if (configuration == null || configuration.getFormatRegistry() == null)
+        {
+            return Collections.emptyMap();
+        }
+
+        return configuration.getFormatRegistry().getFormat(format).getConfigurationOptions();
+    }
+
+    /**
+     * @return the algorithm of the signature options, else the signatureAlgorithm format option,
+     *         else the default for the private key
+     */
+    protected SignatureAlgorithm getSignatureAlgorithm(SignatureOptions signatureOptions,
+            Map<String, String> formatOptions) throws NoSuchAlgorithmException
+    {
+        if (signatureOptions.getSignatureAlgorithm() != null)
+        {
+            return signatureOptions.getSignatureAlgorithm();
+        }
+
+        if (formatOptions != null && formatOptions.get("signatureAlgorithm") != null)
+        {
+            return SignatureAlgorithm.fromName(formatOptions.get("signatureAlgorithm"));
+        }
+
+        return SignatureAlgorithm.getDefault(privateKey);
+    }
+
+    /**
+     * @return the digest of the signature options, else the digestAlgorithm format option, else
+     *         the given default
+     */
+    protected DigestAlgorithm getDigestAlgorithm(SignatureOptions signatureOptions,
+            Map<String, String> formatOptions, DigestAlgorithm defaultAlgorithm)
+            throws NoSuchAlgorithmException
+    {
+        if (signatureOptions.getDigestAlgorithm() != null)
+        {
+            return signatureOptions.getDigestAlgorithm();
+        }
+
+        if (formatOptions != null && formatOptions.get("digestAlgorithm") != null)
+        {
+            return DigestAlgorithm.fromName(formatOptions.get("digestAlgorithm"));
+        }
+
+        return defaultAlgorithm;
+    }
+}
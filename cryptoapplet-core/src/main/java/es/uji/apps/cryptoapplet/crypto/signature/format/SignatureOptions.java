@@ -4,8 +4,13 @@ import java.io.InputStream;
 import java.security.PrivateKey;
 import java.security.Provider;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
 
 import es.uji.apps.cryptoapplet.config.model.Configuration;
+import es.uji.apps.cryptoapplet.crypto.signature.DigestAlgorithm;
+import es.uji.apps.cryptoapplet.crypto.signature.ReferenceDigestCache;
+import es.uji.apps.cryptoapplet.crypto.signature.SignatureAlgorithm;
 
 public class SignatureOptions
 {
@@ -20,6 +25,12 @@ public class SignatureOptions
     private boolean swapToFile = false;
     private boolean coSignEnabled = false;
     private boolean enveloped = true;
+    private String detachedReferenceURI;
+    private SignatureAlgorithm signatureAlgorithm;
+    private DigestAlgorithm digestAlgorithm;
+
+    private List<byte[]> ocspResponses = new ArrayList<byte[]>();
+    private ReferenceDigestCache referenceDigestCache;
 
     private Configuration configuration;
 
@@ -98,6 +109,48 @@ public class SignatureOptions
         this.enveloped = enveloped;
     }
 
+    public String getDetachedReferenceURI()
+    {
+        return detachedReferenceURI;
+    }
+
+    /**
+     * URI by which a detached signature references the data to sign. Formats supporting it then
+     * digest the data as a stream, without parsing it, and return only the signature.
+     */
+    public void setDetachedReferenceURI(String detachedReferenceURI)
+    {
+        this.detachedReferenceURI = detachedReferenceURI;
+    }
+
+    public SignatureAlgorithm getSignatureAlgorithm()
+    {
+        return signatureAlgorithm;
+    }
+
+    /**
+     * Overrides the signatureAlgorithm option of the format configuration. Without either, the
+     * algorithm is chosen from the type of the signing key.
+     */
+    public void setSignatureAlgorithm(SignatureAlgorithm signatureAlgorithm)
+    {
+        this.signatureAlgorithm = signatureAlgorithm;
+    }
+
+    public DigestAlgorithm getDigestAlgorithm()
+    {
+        return digestAlgorithm;
+    }
+
+    /**
+     * Digest of the references of formats that have them, overriding the digestAlgorithm option
+     * of the format configuration
+     */
+    public void setDigestAlgorithm(DigestAlgorithm digestAlgorithm)
+    {
+        this.digestAlgorithm = digestAlgorithm;
+    }
+
     public X509Certificate getCertificate()
     {
         return certificate;
@@ -127,4 +180,38 @@ public class SignatureOptions
     {
         this.privateKey = privateKey;
     }
+
+    public List<byte[]> getOCSPResponses()
+    {
+        return ocspResponses;
+    }
+
+    /**
+     * Encoded OCSP responses, as returned by OCSPResponseDetails.getResponseData(), to be carried
+     * in the signature so it can be validated later without querying the responders.
+     */
+    public void setOCSPResponses(List<byte[]> ocspResponses)
+    {
+        this.ocspResponses = ocspResponses;
+    }
+
+    public void addOCSPResponse(byte[] ocspResponse)
+    {
+        this.ocspResponses.add(ocspResponse);
+    }
+
+    public ReferenceDigestCache getReferenceDigestCache()
+    {
+        return referenceDigestCache;
+    }
+
+    /**
+     * Reference digests shared by the signatures of one document, so co-signing the output of a
+     * previous co-signature does not digest the content again. Entries are only used for the
+     * exact document bytes they were produced with.
+     */
+    public void setReferenceDigestCache(ReferenceDigestCache referenceDigestCache)
+    {
+        this.referenceDigestCache = referenceDigestCache;
+    }
 }
\ No newline at end of file
@@ -2,11 +2,20 @@ package es.uji.apps.cryptoapplet.crypto.signature.validate;
 
 import java.io.InputStream;
 
+import es.uji.apps.cryptoapplet.crypto.signature.SignatureAlgorithm;
+
 public class SignatureValidationOptions
 {
+    public static final long DEFAULT_EMBEDDED_OCSP_MAX_AGE = 24 * 60 * 60 * 1000L;
+
     private InputStream signedData;
     private InputStream originalData;
 
+    private boolean revocationCheckEnabled = false;
+    private boolean onlineRevocationCheckEnabled = true;
+    private long embeddedOCSPMaxAge = DEFAULT_EMBEDDED_OCSP_MAX_AGE;
+    private SignatureAlgorithm signatureAlgorithm;
+
     public void setSignedData(InputStream signedData)
     {
         this.signedData = signedData;
@@ -26,4 +35,56 @@ public class SignatureValidationOptions
     {
         return this.originalData;
     }
-}
\ No newline at end of file
+
+    public boolean isRevocationCheckEnabled()
+    {
+        return revocationCheckEnabled;
+    }
+
+    public void setRevocationCheckEnabled(boolean revocationCheckEnabled)
+    {
+        this.revocationCheckEnabled = revocationCheckEnabled;
+    }
+
+    public boolean isOnlineRevocationCheckEnabled()
+    {
+        return onlineRevocationCheckEnabled;
+    }
+
+    /**
+     * When disabled, only the OCSP responses embedded in the signature are used and a signature
+     * without a usable one fails the revocation check.
+     */
+    public void setOnlineRevocationCheckEnabled(boolean onlineRevocationCheckEnabled)
+    {
+        this.onlineRevocationCheckEnabled = onlineRevocationCheckEnabled;
+    }
+
+    public long getEmbeddedOCSPMaxAge()
+    {
+        return embeddedOCSPMaxAge;
+    }
+
+    /**
+     * Maximum distance in ms between the thisUpdate of an embedded OCSP response and the signing
+     * time of the signature, or the current time when the signature has none.
+     */
+    public void setEmbeddedOCSPMaxAge(long embeddedOCSPMaxAge)
+    {
+        this.embeddedOCSPMaxAge = embeddedOCSPMaxAge;
+    }
+
+    public SignatureAlgorithm getSignatureAlgorithm()
+    {
+        return signatureAlgorithm;
+    }
+
+    /**
+     * Algorithm of formats whose signatures do not name it, as raw ones. By default the one
+     * chosen for the type of the certificate key.
+     */
+    public void setSignatureAlgorithm(SignatureAlgorithm signatureAlgorithm)
+    {
+        this.signatureAlgorithm = signatureAlgorithm;
+    }
+}
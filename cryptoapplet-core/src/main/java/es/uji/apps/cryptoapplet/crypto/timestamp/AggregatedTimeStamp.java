@@ -0,0 +1,206 @@
+package es.uji.apps.cryptoapplet.crypto.timestamp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.tsp.TimeStampToken;
+
+/**
+ * Timestamp of a digest obtained through a MerkleTimeStamper. The token covers the root of the
+ * batch tree and the path, from the leaf up, proves that the digest is one of its leaves.
+ * Leaves and inner nodes are hashed with different prefixes so a node can not pass as a leaf.
+ */
+public class AggregatedTimeStamp
+{
+    public static final String HASH_ALGORITHM = "SHA-256";
+
+    private static final byte LEAF_PREFIX = 0x00;
+    private static final byte NODE_PREFIX = 0x01;
+    private static final int HASH_LENGTH = 32;
+
+    private final byte[] token;
+    private final List<PathStep> path;
+
+    public AggregatedTimeStamp(byte[] token, List<PathStep> path)
+    {
+        this.token = token;
+        this.path = Collections.unmodifiableList(new ArrayList<PathStep>(path));
+    }
+
+    public byte[] getToken()
+    {
+        return token;
+    }
+
+    public List<PathStep> getPath()
+    {
+        return path;
+    }
+
+    public byte[] computeRoot(byte[] digest)
+    {
+        byte[] hash = hashLeaf(digest);
+
+        for (PathStep step : path)
+        {
+            hash = step.isLeft() ? hashNode(step.getSibling(), hash) : hashNode(hash, step
+                    .getSibling());
+        }
+
+        return hash;
+    }
+
+    public boolean verify(byte[] digest, byte[] root)
+    {
+        return MessageDigest.isEqual(computeRoot(digest), root);
+    }
+
+    /**
+     * Checks the digest against the message imprint of the token. The token signature and the
+     * TSA certificate must be validated separately.
+     */
+    public boolean verify(byte[] digest) throws CryptoCoreTimeStampException
+    {
+        try
+        {
+            TimeStampToken timeStampToken = new TimeStampToken(new CMSSignedData(token));
+            return verify(digest, timeStampToken.getTimeStampInfo().getMessageImprintDigest());
+        }
+        catch (Exception e)
+        {
+            throw new CryptoCoreTimeStampException("Can not read aggregated timestamp token", e);
+        }
+    }
+
+    public byte[] getEncoded()
+    {
+        try
+        {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(token.length + path.size()
+                    * (HASH_LENGTH + 1) + 8);
+            DataOutputStream out = new DataOutputStream(bos);
+
+            out.writeInt(token.length);
+            out.write(token);
+            out.writeInt(path.size());
+
+            for (PathStep step : path)
+            {
+                out.writeBoolean(step.isLeft());
+                out.write(step.getSibling());
+            }
+
+            out.flush();
+
+            return bos.toByteArray();
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static AggregatedTimeStamp getInstance(byte[] encoded)
+            throws CryptoCoreTimeStampException
+    {
+        try
+        {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+
+            byte[] token = new byte[checkLength(in.readInt(), encoded.length)];
+            in.readFully(token);
+
+            int steps = checkLength(in.readInt(), encoded.length / HASH_LENGTH);
+            List<PathStep> path = new ArrayList<PathStep>(steps);
+
+            for (int i = 0; i < steps; i++)
+            {
+                boolean left = in.readBoolean();
+                byte[] sibling = new byte[HASH_LENGTH];
+                in.readFully(sibling);
+                path.add(new PathStep(sibling, left));
+            }
+
+            return new AggregatedTimeStamp(token, path);
+        }
+        catch (IOException e)
+        {
+            throw new CryptoCoreTimeStampException("Malformed aggregated timestamp", e);
+        }
+    }
+
+    private static int checkLength(int length, int max) throws IOException
+    {
+        if (length < 0 || length > max)
+        {
+            throw new IOException("Invalid length " + length);
+        }
+
+        return length;
+    }
+
+    static byte[] hashLeaf(byte[] digest)
+    {
+        MessageDigest messageDigest = getMessageDigest();
+        messageDigest.update(LEAF_PREFIX);
+        messageDigest.update(digest);
+
+        return messageDigest.digest();
+    }
+
+    static byte[] hashNode(byte[] left, byte[] right)
+    {
+        MessageDigest messageDigest = getMessageDigest();
+        messageDigest.update(NODE_PREFIX);
+        messageDigest.update(left);
+        messageDigest.update(right);
+
+        return messageDigest.digest();
+    }
+
+    private static MessageDigest getMessageDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(HASH_ALGORITHM + " not available", e);
+        }
+    }
+
+    public static class PathStep
+    {
+        private final byte[] sibling;
+        private final boolean left;
+
+        public PathStep(byte[] sibling, boolean left)
+        {
+            this.sibling = sibling;
+            this.left = left;
+        }
+
+        public byte[] getSibling()
+        {
+            return sibling;
+        }
+
+        /**
+         * @return true if the sibling is the left child, so it goes first when hashing the parent
+         */
+        public boolean isLeft()
+        {
+            return left;
+        }
+    }
+}
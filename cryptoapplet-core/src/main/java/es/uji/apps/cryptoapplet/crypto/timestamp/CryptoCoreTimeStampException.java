@@ -0,0 +1,17 @@
+package es.uji.apps.cryptoapplet.crypto.timestamp;
+
+import es.uji.apps.cryptoapplet.config.CryptoAppletException;
+
+@SuppressWarnings("serial")
+public class CryptoCoreTimeStampException extends CryptoAppletException
+{
+    public CryptoCoreTimeStampException(String message)
+    {
+        super(message);
+    }
+
+    public CryptoCoreTimeStampException(String message, Throwable exception)
+    {
+        super(message, exception);
+    }
+}
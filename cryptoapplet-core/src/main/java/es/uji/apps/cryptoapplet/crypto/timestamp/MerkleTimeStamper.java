@@ -0,0 +1,250 @@
+package es.uji.apps.cryptoapplet.crypto.timestamp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.bouncycastle.tsp.TSPAlgorithms;
+
+/**
+ * Timestamps many digests with a single TSA request. Digests submitted by concurrent signers
+ * during the batch window are the leaves of a Merkle tree, the TSA stamps its root and every
+ * caller gets the shared token plus the inclusion path of its digest. A batch is sent as soon as
+ * it reaches the maximum size, without waiting for the window to end.
+ */
+public class MerkleTimeStamper
+{
+    private static Logger log = Logger.getLogger(MerkleTimeStamper.class);
+
+    public static final long DEFAULT_BATCH_WINDOW = 200;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1024;
+
+    private final TokenSource tokenSource;
+    private final long batchWindow;
+    private final int maxBatchSize;
+    private final ScheduledExecutorService scheduler;
+    private Batch currentBatch;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+
+    public interface TokenSource
+    {
+        byte[] getTimeStamp(String digestAlgorithmOID, byte[] digest) throws Exception;
+    }
+
+    public MerkleTimeStamper(final String tsaURL)
+    {
+        this(new TokenSource()
+        {
+            public byte[] getTimeStamp(String digestAlgorithmOID, byte[] digest)
+                    throws Exception
+            {
+                return TimeStampFactory.getTimeStamp(tsaURL, digestAlgorithmOID, digest);
+            }
+        }, DEFAULT_BATCH_WINDOW, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    public MerkleTimeStamper(TokenSource tokenSource, long batchWindow, int maxBatchSize)
+    {
+        this.tokenSource = tokenSource;
+        this.batchWindow = batchWindow;
+        this.maxBatchSize = maxBatchSize;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "timestamp-aggregator");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Adds the digest to the current batch and blocks until the batch root has been stamped
+     */
+    public AggregatedTimeStamp getTimeStamp(byte[] digest) throws CryptoCoreTimeStampException
+    {
+        Batch batch;
+        int index;
+        boolean full = false;
+
+        synchronized (this)
+        {
+            if (currentBatch == null)
+            {
+                final Batch newBatch = new Batch();
+                currentBatch = newBatch;
+
+                scheduler.schedule(new Runnable()
+                {
+                    public void run()
+                    {
+                        send(newBatch);
+                    }
+                }, batchWindow, TimeUnit.MILLISECONDS);
+            }
+
+            batch = currentBatch;
+            index = batch.add(digest);
+
+            if (batch.size() >= maxBatchSize)
+            {
+                currentBatch = null;
+                full = true;
+            }
+        }
+
+        requests.incrementAndGet();
+
+        if (full)
+        {
+            send(batch);
+        }
+
+        return batch.getTimeStamp(index);
+    }
+
+    private void send(Batch batch)
+    {
+        synchronized (this)
+        {
+            if (currentBatch == batch)
+            {
+                currentBatch = null;
+            }
+        }
+
+        if (batch.send(tokenSource))
+        {
+            batches.incrementAndGet();
+        }
+    }
+
+    public long getBatches()
+    {
+        return batches.get();
+    }
+
+    public long getRequests()
+    {
+        return requests.get();
+    }
+
+    public void shutdown()
+    {
+        scheduler.shutdownNow();
+    }
+
+    private static class Batch
+    {
+        private final List<byte[]> leaves = new ArrayList<byte[]>();
+        private final List<byte[][]> levels = new ArrayList<byte[][]>();
+        private final AtomicBoolean sent = new AtomicBoolean();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private byte[] token;
+        private Exception error;
+
+        public int add(byte[] digest)
+        {
+            leaves.add(AggregatedTimeStamp.hashLeaf(digest));
+            return leaves.size() - 1;
+        }
+
+        public int size()
+        {
+            return leaves.size();
+        }
+
+        /**
+         * Builds the tree and requests the token for its root. Only the first call does it, the
+         * batch may be sent by the window timer and by the caller that filled it.
+         */
+        public boolean send(TokenSource tokenSource)
+        {
+            if (!sent.compareAndSet(false, true))
+            {
+                return false;
+            }
+
+            try
+            {
+                byte[][] level = leaves.toArray(new byte[leaves.size()][]);
+                levels.add(level);
+
+                // An odd node at the end of a level is promoted as is to the next one
+
+                while (level.length > 1)
+                {
+                    byte[][] parent = new byte[(level.length + 1) / 2][];
+
+                    for (int i = 0; i < parent.length; i++)
+                    {
+                        parent[i] = (2 * i + 1 < level.length) ? AggregatedTimeStamp.hashNode(
+                                level[2 * i], level[2 * i + 1]) : level[2 * i];
+                    }
+
+                    levels.add(parent);
+                    level = parent;
+                }
+
+                token = tokenSource.getTimeStamp(TSPAlgorithms.SHA256, level[0]);
+            }
+            catch (Exception e)
+            {
+                log.warn("Can not timestamp batch of " + leaves.size() + " digests", e);
+                error = e;
+            }
+            finally
+            {
+                done.countDown();
+            }
+
+            return true;
+        }
+
+        public AggregatedTimeStamp getTimeStamp(int index) throws CryptoCoreTimeStampException
+        {
+            try
+            {
+                done.await();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new CryptoCoreTimeStampException("Interrupted while waiting for timestamp", e);
+            }
+
+            if (error != null)
+            {
+                throw new CryptoCoreTimeStampException("Can not get timestamp from TSA", error);
+            }
+
+            List<AggregatedTimeStamp.PathStep> path = new ArrayList<AggregatedTimeStamp.PathStep>();
+
+            for (int i = 0; i < levels.size() - 1; i++)
+            {
+                byte[][] level = levels.get(i);
+                int sibling = index ^ 1;
+
+                if (sibling < level.length)
+                {
+                    path.add(new AggregatedTimeStamp.PathStep(level[sibling], (index & 1) == 1));
+                }
+
+                index >>= 1;
+            }
+
+            return new AggregatedTimeStamp(token, path);
+        }
+    }
+}
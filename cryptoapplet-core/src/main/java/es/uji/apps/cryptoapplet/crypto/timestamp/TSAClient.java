@@ -0,0 +1,317 @@
+package es.uji.apps.cryptoapplet.crypto.timestamp;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import es.uji.apps.cryptoapplet.config.model.TimestampingService;
+import es.uji.apps.cryptoapplet.config.model.TimestampingServiceRegistry;
+import es.uji.apps.cryptoapplet.utils.HttpTransport;
+
+/**
+ * Asynchronous client for the TSAs of a registry. Requests run in the background with bounded
+ * timeouts, are retried with exponential backoff and fail over to the next TSA in the registry.
+ * Requests for the same digest made while one is in flight share its result instead of hitting
+ * the TSA again.
+ */
+public class TSAClient
+{
+    private static Logger log = Logger.getLogger(TSAClient.class);
+
+    public static final int DEFAULT_MAX_RETRIES = 2;
+    public static final long DEFAULT_INITIAL_BACKOFF = 500;
+    public static final long MAX_BACKOFF = 10000;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final List<String> tsaURLs;
+    private final TokenSource tokenSource;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, FutureTask<byte[]>> inFlight = new ConcurrentHashMap<String, FutureTask<byte[]>>();
+
+    private volatile int maxRetries = DEFAULT_MAX_RETRIES;
+    private volatile long initialBackoff = DEFAULT_INITIAL_BACKOFF;
+
+    public interface TokenSource
+    {
+        byte[] getTimeStamp(String tsaURL, String digestAlgorithmOID, byte[] digest)
+                throws Exception;
+    }
+
+    public TSAClient(TimestampingServiceRegistry registry)
+    {
+        this(getURLs(registry));
+    }
+
+    /**
+     * Validates every token, and the certificate chain of its TSA, against the service of the
+     * registry it comes from. A token that does not validate counts as a failed attempt.
+     */
+    public TSAClient(TimestampingServiceRegistry registry, TimeStampTokenValidator validator)
+    {
+        this(getURLs(registry), createValidatingTokenSource(getIds(registry), validator));
+    }
+
+    public TSAClient(List<String> tsaURLs)
+    {
+        this(tsaURLs, new TokenSource()
+        {
+            public byte[] getTimeStamp(String tsaURL, String digestAlgorithmOID, byte[] digest)
+                    throws Exception
+            {
+                return TimeStampFactory.getTimeStamp(tsaURL, digestAlgorithmOID, digest);
+            }
+        });
+    }
+
+    public TSAClient(List<String> tsaURLs, TokenSource tokenSource)
+    {
+        this.tsaURLs = new ArrayList<String>(tsaURLs);
+        this.tokenSource = tokenSource;
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "tsa-client-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+    }
+
+    private static TokenSource createValidatingTokenSource(final Map<String, String> tsaIds,
+            final TimeStampTokenValidator validator)
+    {
+        return new TokenSource()
+        {
+            public byte[] getTimeStamp(String tsaURL, String digestAlgorithmOID, byte[] digest)
+                    throws Exception
+            {
+                return TimeStampFactory.getTimeStamp(tsaURL, digestAlgorithmOID, digest,
+                        validator, tsaIds.get(tsaURL));
+            }
+        };
+    }
+
+    private static Map<String, String> getIds(TimestampingServiceRegistry registry)
+    {
+        Map<String, String> tsaIds = new HashMap<String, String>();
+
+        if (registry != null && registry.getTimestampingServices() != null)
+        {
+            for (TimestampingService timestampingService : registry.getTimestampingServices())
+            {
+                if (timestampingService != null && timestampingService.getUrl() != null)
+                {
+                    tsaIds.put(timestampingService.getUrl(), timestampingService.getId());
+                }
+            }
+        }
+
+        return tsaIds;
+    }
+
+    private static List<String> getURLs(TimestampingServiceRegistry registry)
+    {
+        List<String> tsaURLs = new ArrayList<String>();
+
+        if (registry != null && registry.getTimestampingServices() != null)
+        {
+            for (TimestampingService timestampingService : registry.getTimestampingServices())
+            {
+                if (timestampingService != null && timestampingService.getUrl() != null)
+                {
+                    tsaURLs.add(timestampingService.getUrl());
+                }
+            }
+        }
+
+        return tsaURLs;
+    }
+
+    public List<String> getTsaURLs()
+    {
+        return tsaURLs;
+    }
+
+    /**
+     * Sets the timeouts of every TSA host in the shared HTTP transport, keeping the connection
+     * limit already configured for it
+     */
+    public void setTimeouts(int connectTimeout, int readTimeout)
+    {
+        HttpTransport transport = HttpTransport.getInstance();
+
+        for (String tsaURL : tsaURLs)
+        {
+            try
+            {
+                transport.configure(tsaURL, connectTimeout, readTimeout, transport.getEndpoint(
+                        tsaURL).getMaxConnections());
+            }
+            catch (IOException e)
+            {
+                log.warn("Invalid TSA URL " + tsaURL, e);
+            }
+        }
+    }
+
+    public int getMaxRetries()
+    {
+        return maxRetries;
+    }
+
+    /**
+     * Number of extra rounds over all the TSAs after the first one fails
+     */
+    public void setMaxRetries(int maxRetries)
+    {
+        this.maxRetries = maxRetries;
+    }
+
+    public long getInitialBackoff()
+    {
+        return initialBackoff;
+    }
+
+    /**
+     * Wait before the first retry round, doubled for every following round
+     */
+    public void setInitialBackoff(long initialBackoff)
+    {
+        this.initialBackoff = initialBackoff;
+    }
+
+    /**
+     * Starts the request for an encoded timestamp token of the digest, or joins the one in flight
+     * for the same digest
+     */
+    public Future<byte[]> getTimeStampAsync(final String digestAlgorithmOID, final byte[] digest)
+    {
+        final String key = digestAlgorithmOID + ":" + new BigInteger(1, digest).toString(16) + ":"
+                + digest.length;
+
+        FutureTask<byte[]> task = inFlight.get(key);
+
+        if (task != null)
+        {
+            return task;
+        }
+
+        FutureTask<byte[]> newTask = new FutureTask<byte[]>(new Callable<byte[]>()
+        {
+            public byte[] call() throws Exception
+            {
+                return request(digestAlgorithmOID, digest);
+            }
+        })
+        {
+            @Override
+            protected void done()
+            {
+                inFlight.remove(key, this);
+            }
+        };
+
+        task = inFlight.putIfAbsent(key, newTask);
+
+        if (task != null)
+        {
+            return task;
+        }
+
+        executor.execute(newTask);
+
+        return newTask;
+    }
+
+    public byte[] getTimeStamp(String digestAlgorithmOID, byte[] digest, long timeout)
+            throws CryptoCoreTimeStampException
+    {
+        Future<byte[]> future = getTimeStampAsync(digestAlgorithmOID, digest);
+
+        try
+        {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            throw new CryptoCoreTimeStampException("No timestamp received in " + timeout + " ms",
+                    e);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new CryptoCoreTimeStampException("Interrupted while waiting for timestamp", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof CryptoCoreTimeStampException)
+            {
+                throw (CryptoCoreTimeStampException) e.getCause();
+            }
+
+            throw new CryptoCoreTimeStampException("Can not get timestamp", e.getCause());
+        }
+    }
+
+    private byte[] request(String digestAlgorithmOID, byte[] digest)
+            throws CryptoCoreTimeStampException, InterruptedException
+    {
+        if (tsaURLs.isEmpty())
+        {
+            throw new CryptoCoreTimeStampException("No TSA configured");
+        }
+
+        Exception lastError = null;
+        long backoff = initialBackoff;
+
+        for (int attempt = 0; attempt <= maxRetries; attempt++)
+        {
+            if (attempt > 0)
+            {
+                Thread.sleep(backoff);
+                backoff = Math.min(backoff * 2, MAX_BACKOFF);
+            }
+
+            for (String tsaURL : tsaURLs)
+            {
+                try
+                {
+                    return tokenSource.getTimeStamp(tsaURL, digestAlgorithmOID, digest);
+                }
+                catch (Exception e)
+                {
+                    log.warn("TSA " + tsaURL + " failed, attempt " + (attempt + 1), e);
+                    lastError = e;
+                }
+            }
+        }
+
+        throw new CryptoCoreTimeStampException("No TSA returned a timestamp after "
+                + (maxRetries + 1) + " attempts", lastError);
+    }
+
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+}
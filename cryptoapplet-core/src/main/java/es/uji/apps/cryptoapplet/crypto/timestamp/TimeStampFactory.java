@@ -46,23 +46,29 @@
 
 package es.uji.apps.cryptoapplet.crypto.timestamp;
 
-import java.io.ByteArrayOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.math.BigInteger;
-import java.net.URL;
-import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.bouncycastle.asn1.cmp.PKIFailureInfo;
-import org.bouncycastle.asn1.x509.X509ObjectIdentifiers;
+import org.bouncycastle.tsp.TSPAlgorithms;
 import org.bouncycastle.tsp.TimeStampRequest;
 import org.bouncycastle.tsp.TimeStampRequestGenerator;
 import org.bouncycastle.tsp.TimeStampResponse;
 import org.bouncycastle.tsp.TimeStampToken;
 import org.bouncycastle.tsp.TimeStampTokenInfo;
 
+import es.uji.apps.cryptoapplet.utils.HttpTransport;
+
 public class TimeStampFactory
 {
+    private static final BigInteger NONCE_PREFIX = new BigInteger(62, new SecureRandom())
+            .shiftLeft(64);
+    private static final AtomicLong nonceCounter = new AtomicLong();
+
     public static TimeStampResponse getTimeStampResponse(String strUrl, byte[] data,
             boolean calculateDigest) throws Exception
     {
@@ -71,13 +77,18 @@ public class TimeStampFactory
 
     public static TimeStampResponse getTimeStampResponse(String strUrl, byte[] data,
             boolean calculateDigest, String digestAlgorithm) throws Exception
+    {
+        return getTimeStampResponse(strUrl, getDigestAlgorithmOID(digestAlgorithm), getDigest(
+                data, calculateDigest, digestAlgorithm));
+    }
+
+    public static TimeStampResponse getTimeStampResponse(String strUrl,
+            String digestAlgorithmOID, byte[] digest) throws Exception
     {
         TimeStampRequestGenerator tsqGenerator = new TimeStampRequestGenerator();
         tsqGenerator.setCertReq(true);
 
-        BigInteger nonce = BigInteger.valueOf(System.currentTimeMillis());
-        TimeStampRequest request = tsqGenerator.generate(X509ObjectIdentifiers.id_SHA1.getId(),
-                data, nonce);
+        TimeStampRequest request = tsqGenerator.generate(digestAlgorithmOID, digest, nextNonce());
 
         byte[] requestBytes = request.getEncoded();
 
@@ -91,8 +102,84 @@ public class TimeStampFactory
     public static byte[] getTimeStamp(String strUrl, byte[] data, boolean calculateDigest,
             String digestAlgorithm) throws Exception
     {
-        TimeStampResponse response = getTimeStampResponse(strUrl, data, calculateDigest,
-                digestAlgorithm);
+        return getTimeStamp(strUrl, getDigestAlgorithmOID(digestAlgorithm), getDigest(data,
+                calculateDigest, digestAlgorithm));
+    }
+
+    /**
+     * @return the OID of SHA-1, SHA-256, SHA-384 or SHA-512, accepting names with or without
+     *         the dash
+     */
+    public static String getDigestAlgorithmOID(String digestAlgorithm)
+            throws NoSuchAlgorithmException
+    {
+        String name = getDigestAlgorithmName(digestAlgorithm);
+
+        if (name.equals("SHA1"))
+        {
+            return TSPAlgorithms.SHA1;
+        }
+        else if (name.equals("SHA256"))
+        {
+            return TSPAlgorithms.SHA256;
+        }
+        else if (name.equals("SHA384"))
+        {
+            return TSPAlgorithms.SHA384;
+        }
+        else if (name.equals("SHA512"))
+        {
+            return TSPAlgorithms.SHA512;
+        }
+
+        throw new NoSuchAlgorithmException("Unsupported timestamp digest algorithm "
+                + digestAlgorithm);
+    }
+
+    private static String getDigestAlgorithmName(String digestAlgorithm)
+    {
+        return (digestAlgorithm == null) ? "SHA1" : digestAlgorithm.replace("-", "").toUpperCase();
+    }
+
+    private static byte[] getDigest(byte[] data, boolean calculateDigest, String digestAlgorithm)
+            throws NoSuchAlgorithmException
+    {
+        getDigestAlgorithmOID(digestAlgorithm);
+
+        // Canonical JCA name for the accepted spellings, SHA256 is not an alias everywhere
+
+        String name = "SHA-" + getDigestAlgorithmName(digestAlgorithm).substring(3);
+        MessageDigest messageDigest = MessageDigest.getInstance(name);
+
+        if (calculateDigest)
+        {
+            return messageDigest.digest(data);
+        }
+
+        if (data.length != messageDigest.getDigestLength())
+        {
+            throw new IllegalArgumentException("Data is not a " + name + " digest");
+        }
+
+        return data;
+    }
+
+    /**
+     * Random per-process prefix plus a counter, so concurrent requests never share a nonce
+     */
+    private static BigInteger nextNonce()
+    {
+        return NONCE_PREFIX.or(BigInteger.valueOf(nonceCounter.incrementAndGet()
+                & Long.MAX_VALUE));
+    }
+
+    /**
+     * Requests a token for a precomputed digest of the given algorithm
+     */
+    public static byte[] getTimeStamp(String strUrl, String digestAlgorithmOID, byte[] digest)
+            throws Exception
+    {
+        TimeStampResponse response = getTimeStampResponse(strUrl, digestAlgorithmOID, digest);
 
         PKIFailureInfo failure = response.getFailInfo();
 
@@ -105,8 +192,8 @@ public class TimeStampFactory
 
         }
 
-        // @todo: validate the time stap certificate chain (if we want
-        // assure we do not sign using an invalid timestamp).
+        // The time stamp certificate chain is validated by the overload that receives a
+        // TimeStampTokenValidator, as only the configured TSAs have a known chain.
         // extract just the time stamp token (removes communication status info)
 
         TimeStampToken tsToken = response.getTimeStampToken();
@@ -126,45 +213,23 @@ public class TimeStampFactory
         return encoded;
     }
 
-    private static byte[] getTSAResponse(String tsaURL, byte[] requestBytes) throws Exception
+    /**
+     * Requests a token and validates it, together with the certificate chain of the TSA at its
+     * genTime, against the TSA of the configuration with the given id
+     */
+    public static byte[] getTimeStamp(String strUrl, String digestAlgorithmOID, byte[] digest,
+            TimeStampTokenValidator validator, String tsaId) throws Exception
     {
-        URL url = new URL(tsaURL);
-        URLConnection tsaConnection = (URLConnection) url.openConnection();
-        tsaConnection.setDoInput(true);
-        tsaConnection.setDoOutput(true);
-        tsaConnection.setUseCaches(false);
-        tsaConnection.setRequestProperty("Content-Type", "application/timestamp-query");
-        // tsaConnection.setRequestProperty("Content-Transfer-Encoding", "base64");
-        tsaConnection.setRequestProperty("Content-Transfer-Encoding", "binary");
-
-        OutputStream out = tsaConnection.getOutputStream();
-        out.write(requestBytes);
-        out.close();
-
-        // Get TSA response as a byte array
+        byte[] encoded = getTimeStamp(strUrl, digestAlgorithmOID, digest);
+        validator.validate(encoded, digest, tsaId);
 
-        InputStream inp = tsaConnection.getInputStream();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-        byte[] buffer = new byte[1024];
-        int bytesRead = 0;
-
-        while ((bytesRead = inp.read(buffer, 0, buffer.length)) >= 0)
-        {
-            baos.write(buffer, 0, bytesRead);
-        }
-
-        byte[] respBytes = baos.toByteArray();
-
-        String encoding = tsaConnection.getContentEncoding();
-
-        if (encoding != null && encoding.equalsIgnoreCase("base64"))
-        {
-            sun.misc.BASE64Decoder dec = new sun.misc.BASE64Decoder();
-            respBytes = dec.decodeBuffer(new String(respBytes));
-        }
-
-        return respBytes;
+        return encoded;
+    }
 
+    private static byte[] getTSAResponse(String tsaURL, byte[] requestBytes) throws Exception
+    {
+        return HttpTransport.getInstance().execute(tsaURL, "POST",
+                Collections.singletonMap("Content-Type", "application/timestamp-query"),
+                requestBytes, new HttpTransport.BodyHandler(true));
     }
 }
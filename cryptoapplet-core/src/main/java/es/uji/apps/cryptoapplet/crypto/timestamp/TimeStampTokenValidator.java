@@ -0,0 +1,311 @@
+package es.uji.apps.cryptoapplet.crypto.timestamp;
+
+import java.security.MessageDigest;
+import java.security.Provider;
+import java.security.cert.CertPathBuilder;
+import java.security.cert.CertStore;
+import java.security.cert.CollectionCertStoreParameters;
+import java.security.cert.PKIXBuilderParameters;
+import java.security.cert.PKIXCertPathBuilderResult;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509CertSelector;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.tsp.TimeStampToken;
+import org.bouncycastle.tsp.TimeStampTokenInfo;
+
+import es.uji.apps.cryptoapplet.config.model.CertificationAuthority;
+import es.uji.apps.cryptoapplet.config.model.CertificationAuthorityRegistry;
+import es.uji.apps.cryptoapplet.config.model.Configuration;
+import es.uji.apps.cryptoapplet.config.model.Keystore;
+import es.uji.apps.cryptoapplet.config.model.TimestampingService;
+import es.uji.apps.cryptoapplet.config.model.TimestampingServiceRegistry;
+import es.uji.apps.cryptoapplet.utils.CertificateUtils;
+
+/**
+ * Validates timestamp tokens against the TSAs of the configuration. The TSA certificate is read
+ * from the keystore by the certificateAlias of the service, and its chain up to the CA of the
+ * service is built once for every TSA, together with the period in which every certificate of
+ * the chain is valid. Each token is checked for its signature, its message imprint if given, and
+ * for a genTime inside that period.
+ */
+public class TimeStampTokenValidator
+{
+    private static final String KEYSTORE_PREFIX = "keystore://";
+
+    private final Configuration configuration;
+    private final Provider provider;
+    private final ConcurrentMap<String, X509Certificate> certificates = new ConcurrentHashMap<String, X509Certificate>();
+    private final ConcurrentMap<String, VerifiedChain> chains = new ConcurrentHashMap<String, VerifiedChain>();
+
+    public TimeStampTokenValidator(Configuration configuration, Provider provider)
+    {
+        this.configuration = configuration;
+        this.provider = provider;
+    }
+
+    public TimeStampTokenInfo validate(byte[] encodedToken, String tsaId)
+            throws CryptoCoreTimeStampException
+    {
+        return validate(encodedToken, null, tsaId);
+    }
+
+    /**
+     * @param digest
+     *            expected message imprint, or null to skip the check
+     */
+    public TimeStampTokenInfo validate(byte[] encodedToken, byte[] digest, String tsaId)
+            throws CryptoCoreTimeStampException
+    {
+        TimestampingService timestampingService = getTimestampingService(tsaId);
+
+        TimeStampToken timeStampToken;
+
+        try
+        {
+            timeStampToken = new TimeStampToken(new CMSSignedData(encodedToken));
+        }
+        catch (Exception e)
+        {
+            throw new CryptoCoreTimeStampException("Can not decode timestamp token", e);
+        }
+
+        TimeStampTokenInfo timeStampTokenInfo = timeStampToken.getTimeStampInfo();
+        X509Certificate tsaCertificate = getChain(timestampingService,
+                timeStampTokenInfo.getGenTime()).get(0);
+
+        try
+        {
+            timeStampToken.validate(tsaCertificate, provider.getName());
+        }
+        catch (Exception e)
+        {
+            throw new CryptoCoreTimeStampException("Timestamp token is not valid for TSA "
+                    + tsaId + ": " + e.getMessage(), e);
+        }
+
+        if (digest != null
+                && !MessageDigest.isEqual(digest, timeStampTokenInfo.getMessageImprintDigest()))
+        {
+            throw new CryptoCoreTimeStampException("Timestamp token does not match the data");
+        }
+
+        return timeStampTokenInfo;
+    }
+
+    /**
+     * @return the TSA certificate followed by the rest of its chain, if all of them are valid at
+     *         the given date
+     */
+    public List<X509Certificate> getChain(TimestampingService timestampingService, Date date)
+            throws CryptoCoreTimeStampException
+    {
+        VerifiedChain verifiedChain = getVerifiedChain(timestampingService);
+
+        if (date.before(verifiedChain.notBefore) || date.after(verifiedChain.notAfter))
+        {
+            throw new CryptoCoreTimeStampException("Certificate chain for TSA "
+                    + timestampingService.getId() + " is not valid at " + date);
+        }
+
+        return new ArrayList<X509Certificate>(verifiedChain.chain);
+    }
+
+    public void clear()
+    {
+        certificates.clear();
+        chains.clear();
+    }
+
+    private TimestampingService getTimestampingService(String tsaId)
+            throws CryptoCoreTimeStampException
+    {
+        TimestampingServiceRegistry registry = configuration.getTimestampingServicesRegistry();
+        TimestampingService timestampingService = (registry != null) ? registry
+                .getTimestampingService(tsaId) : null;
+
+        if (timestampingService == null || timestampingService.getId() == null)
+        {
+            throw new CryptoCoreTimeStampException("Unknown TSA " + tsaId);
+        }
+
+        return timestampingService;
+    }
+
+    private CertificationAuthority getCertificationAuthority(
+            TimestampingService timestampingService) throws CryptoCoreTimeStampException
+    {
+        CertificationAuthorityRegistry registry = configuration
+                .getCertificationAuthoritiesRegistry();
+        CertificationAuthority certificationAuthority = (registry != null) ? registry
+                .getCertificationAuthority(timestampingService.getCaId()) : null;
+
+        if (certificationAuthority == null || certificationAuthority.getId() == null)
+        {
+            throw new CryptoCoreTimeStampException("Unknown CA " + timestampingService.getCaId()
+                    + " for TSA " + timestampingService.getId());
+        }
+
+        if (certificationAuthority.getCertificateAlias() == null)
+        {
+            throw new CryptoCoreTimeStampException("No CA configured for TSA "
+                    + timestampingService.getId());
+        }
+
+        return certificationAuthority;
+    }
+
+    private VerifiedChain getVerifiedChain(TimestampingService timestampingService)
+            throws CryptoCoreTimeStampException
+    {
+        if (timestampingService.getCertificateAlias() == null)
+        {
+            throw new CryptoCoreTimeStampException("No certificate configured for TSA "
+                    + timestampingService.getId());
+        }
+
+        CertificationAuthority certificationAuthority = getCertificationAuthority(
+                timestampingService);
+        String key = timestampingService.getCertificateAlias() + " "
+                + certificationAuthority.getCertificateAlias();
+
+        VerifiedChain verifiedChain = chains.get(key);
+
+        if (verifiedChain == null)
+        {
+            verifiedChain = buildChain(timestampingService, certificationAuthority);
+            chains.putIfAbsent(key, verifiedChain);
+        }
+
+        return verifiedChain;
+    }
+
+    /**
+     * Builds the chain once, at the start of the period in which all its certificates are valid.
+     * PKIX does not check the validity of the trust anchor, so the CA is part of the period.
+     */
+    private VerifiedChain buildChain(TimestampingService timestampingService,
+            CertificationAuthority certificationAuthority) throws CryptoCoreTimeStampException
+    {
+        X509Certificate tsaCertificate = getCertificate(timestampingService
+                .getCertificateAlias());
+        X509Certificate caCertificate = getCertificate(certificationAuthority
+                .getCertificateAlias());
+
+        Date notBefore = caCertificate.getNotBefore();
+        Date notAfter = caCertificate.getNotAfter();
+
+        if (tsaCertificate.getNotBefore().after(notBefore))
+        {
+            notBefore = tsaCertificate.getNotBefore();
+        }
+
+        if (tsaCertificate.getNotAfter().before(notAfter))
+        {
+            notAfter = tsaCertificate.getNotAfter();
+        }
+
+        if (notBefore.after(notAfter))
+        {
+            throw new CryptoCoreTimeStampException("Certificates of TSA "
+                    + timestampingService.getId() + " are never valid at the same time");
+        }
+
+        try
+        {
+            X509CertSelector target = new X509CertSelector();
+            target.setCertificate(tsaCertificate);
+
+            PKIXBuilderParameters parameters = new PKIXBuilderParameters(Collections
+                    .singleton(new TrustAnchor(caCertificate, null)), target);
+            parameters.addCertStore(CertStore.getInstance("Collection",
+                    new CollectionCertStoreParameters(Collections.singletonList(tsaCertificate))));
+            parameters.setDate(notBefore);
+
+            // Revocation of the TSA certificate is left to the revocation checkers
+
+            parameters.setRevocationEnabled(false);
+
+            PKIXCertPathBuilderResult result = (PKIXCertPathBuilderResult) CertPathBuilder
+                    .getInstance("PKIX").build(parameters);
+
+            List<X509Certificate> chain = new ArrayList<X509Certificate>();
+
+            for (Object certificate : result.getCertPath().getCertificates())
+            {
+                chain.add((X509Certificate) certificate);
+            }
+
+            chain.add(caCertificate);
+
+            return new VerifiedChain(chain, notBefore, notAfter);
+        }
+        catch (Exception e)
+        {
+            throw new CryptoCoreTimeStampException("Can not validate certificate chain for TSA "
+                    + timestampingService.getId(), e);
+        }
+    }
+
+    private X509Certificate getCertificate(String alias) throws CryptoCoreTimeStampException
+    {
+        X509Certificate certificate = certificates.get(alias);
+
+        if (certificate == null)
+        {
+            try
+            {
+                certificate = readCertificate(alias);
+            }
+            catch (CryptoCoreTimeStampException e)
+            {
+                throw e;
+            }
+            catch (Exception e)
+            {
+                throw new CryptoCoreTimeStampException("Can not read certificate " + alias, e);
+            }
+
+            certificates.putIfAbsent(alias, certificate);
+        }
+
+        return certificate;
+    }
+
+    X509Certificate readCertificate(String alias) throws Exception
+    {
+        Keystore keystore = configuration.getKeystore();
+
+        X509Certificate certificate = CertificateUtils.readCertificate(keystore.getFileName(),
+                keystore.getType(), keystore.getPassword().toCharArray(), KEYSTORE_PREFIX + alias);
+
+        if (certificate == null)
+        {
+            throw new CryptoCoreTimeStampException("Certificate " + alias
+                    + " not found in keystore");
+        }
+
+        return certificate;
+    }
+
+    private static class VerifiedChain
+    {
+        private final List<X509Certificate> chain;
+        private final Date notBefore;
+        private final Date notAfter;
+
+        public VerifiedChain(List<X509Certificate> chain, Date notBefore, Date notAfter)
+        {
+            this.chain = chain;
+            this.notBefore = notBefore;
+            this.notAfter = notAfter;
+        }
+    }
+}
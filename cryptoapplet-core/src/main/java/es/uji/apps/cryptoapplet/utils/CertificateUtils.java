@@ -1,9 +1,9 @@
 package es.uji.apps.cryptoapplet.utils;
 
+import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URL;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
@@ -29,8 +29,8 @@ public class CertificateUtils
 
         if (isHttpReference(certLocation))
         {
-            URL url = new URL(certLocation);
-            certificateStream = url.openStream();
+            certificateStream = new ByteArrayInputStream(HttpTransport.getInstance().get(
+                    certLocation));
         }
         else if (isJarReference(certLocation))
         {
@@ -0,0 +1,512 @@
+package es.uji.apps.cryptoapplet.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared transport for every outbound HTTP request. Connections are kept alive and reused through
+ * the JDK connection cache, which only happens when each response body is fully read and closed,
+ * so all requests go through here instead of handling their own URLConnection. Every host has
+ * its own timeouts and a limit on concurrent connections, plus request and latency counters.
+ * How many idle connections the JDK keeps per host is left to the http.maxConnections system
+ * property of the application.
+ */
+public class HttpTransport
+{
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    public static final int DEFAULT_READ_TIMEOUT = 30000;
+    public static final int DEFAULT_MAX_CONNECTIONS = 8;
+
+    private static HttpTransport instance = new HttpTransport();
+
+    private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<String, Endpoint>();
+
+    public static HttpTransport getInstance()
+    {
+        return instance;
+    }
+
+    public interface ResponseHandler<T>
+    {
+        T handle(HttpURLConnection connection, InputStream body) throws IOException;
+    }
+
+    /**
+     * Sets the timeouts and connection limit for the host of the given URL. Requests already in
+     * progress keep the previous timeouts, and the counters of the host are kept.
+     */
+    public void configure(String url, int connectTimeout, int readTimeout, int maxConnections)
+            throws IOException
+    {
+        getOrCreateEndpoint(getKey(new URL(url))).configure(connectTimeout, readTimeout,
+                maxConnections);
+    }
+
+    public Endpoint getEndpoint(String url) throws IOException
+    {
+        return getOrCreateEndpoint(getKey(new URL(url)));
+    }
+
+    public List<Endpoint> getEndpoints()
+    {
+        return new ArrayList<Endpoint>(endpoints.values());
+    }
+
+    public byte[] get(String url) throws IOException
+    {
+        return execute(url, "GET", Collections.<String, String> emptyMap(), null,
+                new BodyHandler());
+    }
+
+    public byte[] post(String url, String contentType, byte[] body) throws IOException
+    {
+        return execute(url, "POST", Collections.singletonMap("Content-Type", contentType), body,
+                new BodyHandler());
+    }
+
+    /**
+     * Sends a request and passes the response to the handler. Error statuses are reported as an
+     * IOException, any other status, such as 304, is left to the handler. Whatever the handler
+     * does not read from the body is discarded so the connection can be reused.
+     */
+    public <T> T execute(String url, String method, Map<String, String> headers, byte[] body,
+            ResponseHandler<T> handler) throws IOException
+    {
+        return execute(url, method, headers, body, handler, 0);
+    }
+
+    /**
+     * Like {@link #execute(String, String, Map, byte[], ResponseHandler)}, with the timeouts of
+     * the host bounded by the given one when it is positive, for callers that give up earlier.
+     */
+    public <T> T execute(String url, String method, Map<String, String> headers, byte[] body,
+            ResponseHandler<T> handler, int timeout) throws IOException
+    {
+        URL target = new URL(url);
+
+        if (!isHttp(target))
+        {
+            InputStream in = target.openStream();
+
+            try
+            {
+                return handler.handle(null, in);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+
+        Endpoint endpoint = getOrCreateEndpoint(getKey(target));
+        int connectTimeout = bound(endpoint.connectTimeout, timeout);
+        int readTimeout = bound(endpoint.readTimeout, timeout);
+
+        endpoint.acquire(connectTimeout);
+
+        long start = System.currentTimeMillis();
+        boolean success = false;
+
+        try
+        {
+            HttpURLConnection connection = (HttpURLConnection) target.openConnection();
+            connection.setConnectTimeout(connectTimeout);
+            connection.setReadTimeout(readTimeout);
+            connection.setAllowUserInteraction(false);
+            connection.setUseCaches(false);
+            connection.setDoInput(true);
+            connection.setRequestMethod(method);
+
+            for (Map.Entry<String, String> header : headers.entrySet())
+            {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+
+            if (body != null)
+            {
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(body.length);
+
+                OutputStream out = connection.getOutputStream();
+
+                try
+                {
+                    out.write(body);
+                }
+                finally
+                {
+                    out.close();
+                }
+            }
+
+            T result = handleResponse(url, connection, handler);
+            success = true;
+
+            return result;
+        }
+        finally
+        {
+            endpoint.release(System.currentTimeMillis() - start, success);
+        }
+    }
+
+    private static int bound(int hostTimeout, int timeout)
+    {
+        return (timeout > 0 && (hostTimeout <= 0 || timeout < hostTimeout)) ? timeout
+                : hostTimeout;
+    }
+
+    private <T> T handleResponse(String url, HttpURLConnection connection,
+            ResponseHandler<T> handler) throws IOException
+    {
+        int responseCode;
+
+        try
+        {
+            responseCode = connection.getResponseCode();
+        }
+        catch (IOException e)
+        {
+            discard(connection.getErrorStream());
+            throw e;
+        }
+
+        if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST)
+        {
+            discard(connection.getErrorStream());
+            throw new IOException("Server returned HTTP " + responseCode + " for " + url);
+        }
+
+        InputStream in = connection.getInputStream();
+
+        try
+        {
+            return handler.handle(connection, in);
+        }
+        finally
+        {
+            discard(in);
+        }
+    }
+
+    private void discard(InputStream in)
+    {
+        if (in == null)
+        {
+            return;
+        }
+
+        try
+        {
+            byte[] buffer = new byte[4096];
+
+            while (in.read(buffer) >= 0)
+            {
+                // Drain the rest of the body so the connection goes back to the cache
+            }
+        }
+        catch (IOException e)
+        {
+            // The connection will not be reused
+        }
+        finally
+        {
+            try
+            {
+                in.close();
+            }
+            catch (IOException e)
+            {
+                // Nothing else to release
+            }
+        }
+    }
+
+    private Endpoint getOrCreateEndpoint(String key)
+    {
+        Endpoint endpoint = endpoints.get(key);
+
+        if (endpoint == null)
+        {
+            endpoint = new Endpoint(key, DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT,
+                    DEFAULT_MAX_CONNECTIONS);
+            Endpoint previous = endpoints.putIfAbsent(key, endpoint);
+
+            if (previous != null)
+            {
+                endpoint = previous;
+            }
+        }
+
+        return endpoint;
+    }
+
+    private static boolean isHttp(URL url)
+    {
+        return "http".equalsIgnoreCase(url.getProtocol())
+                || "https".equalsIgnoreCase(url.getProtocol());
+    }
+
+    private static String getKey(URL url)
+    {
+        int port = (url.getPort() != -1) ? url.getPort() : url.getDefaultPort();
+        return url.getProtocol().toLowerCase() + "://" + url.getHost().toLowerCase() + ":" + port;
+    }
+
+    /**
+     * Reads the whole body. When asked to, applies the Content-Encoding: base64 that some
+     * timestamping and OCSP servers send.
+     */
+    public static class BodyHandler implements ResponseHandler<byte[]>
+    {
+        private final boolean decodeBase64;
+
+        public BodyHandler()
+        {
+            this(false);
+        }
+
+        public BodyHandler(boolean decodeBase64)
+        {
+            this.decodeBase64 = decodeBase64;
+        }
+
+        public byte[] handle(HttpURLConnection connection, InputStream body) throws IOException
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            copy(body, out);
+
+            byte[] result = out.toByteArray();
+
+            if (decodeBase64 && connection != null
+                    && "base64".equalsIgnoreCase(connection.getContentEncoding()))
+            {
+                result = Base64.decode(result);
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Copies the body to a temporary file, so large documents are not kept in memory. The file
+     * is deleted when the returned stream is closed.
+     */
+    public static class TempFileHandler implements ResponseHandler<InputStream>
+    {
+        public InputStream handle(HttpURLConnection connection, InputStream body)
+                throws IOException
+        {
+            final File file = File.createTempFile("cryptoapplet", ".tmp");
+            file.deleteOnExit();
+
+            try
+            {
+                OutputStream out = new FileOutputStream(file);
+
+                try
+                {
+                    copy(body, out);
+                }
+                finally
+                {
+                    out.close();
+                }
+
+                return new FileInputStream(file)
+                {
+                    @Override
+                    public void close() throws IOException
+                    {
+                        try
+                        {
+                            super.close();
+                        }
+                        finally
+                        {
+                            file.delete();
+                        }
+                    }
+                };
+            }
+            catch (IOException e)
+            {
+                file.delete();
+                throw e;
+            }
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException
+    {
+        byte[] buffer = new byte[8192];
+        int length;
+
+        while ((length = in.read(buffer)) >= 0)
+        {
+            out.write(buffer, 0, length);
+        }
+    }
+
+    /**
+     * Settings and counters of a host. The connection limit applies to concurrent requests, a
+     * request waits up to the connect timeout for a free connection.
+     */
+    public static class Endpoint
+    {
+        private final String key;
+        private volatile int connectTimeout;
+        private volatile int readTimeout;
+        private volatile int maxConnections;
+        private final ResizableSemaphore permits;
+
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong totalLatency = new AtomicLong();
+        private final AtomicLong waiting = new AtomicLong();
+
+        public Endpoint(String key, int connectTimeout, int readTimeout, int maxConnections)
+        {
+            this.key = key;
+            this.connectTimeout = connectTimeout;
+            this.readTimeout = readTimeout;
+            this.maxConnections = maxConnections;
+            this.permits = new ResizableSemaphore(maxConnections);
+        }
+
+        /**
+         * Changes the limit in place, so the permits of the requests in progress are returned to
+         * the same semaphore. A lower limit is reached as those requests finish.
+         */
+        private synchronized void configure(int connectTimeout, int readTimeout,
+                int maxConnections)
+        {
+            this.connectTimeout = connectTimeout;
+            this.readTimeout = readTimeout;
+
+            if (maxConnections > this.maxConnections)
+            {
+                permits.release(maxConnections - this.maxConnections);
+            }
+            else if (maxConnections < this.maxConnections)
+            {
+                permits.reducePermits(this.maxConnections - maxConnections);
+            }
+
+            this.maxConnections = maxConnections;
+        }
+
+        private void acquire(int timeout) throws IOException
+        {
+            waiting.incrementAndGet();
+
+            try
+            {
+                if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+                {
+                    requests.incrementAndGet();
+                    failures.incrementAndGet();
+                    throw new IOException("No connection to " + key + " available in "
+                            + timeout + " ms");
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a connection to " + key);
+            }
+            finally
+            {
+                waiting.decrementAndGet();
+            }
+        }
+
+        private void release(long latency, boolean success)
+        {
+            permits.release();
+            requests.incrementAndGet();
+            totalLatency.addAndGet(latency);
+
+            if (!success)
+            {
+                failures.incrementAndGet();
+            }
+        }
+
+        public String getKey()
+        {
+            return key;
+        }
+
+        public int getConnectTimeout()
+        {
+            return connectTimeout;
+        }
+
+        public int getReadTimeout()
+        {
+            return readTimeout;
+        }
+
+        public int getMaxConnections()
+        {
+            return maxConnections;
+        }
+
+        public synchronized int getActiveConnections()
+        {
+            return maxConnections - permits.availablePermits();
+        }
+
+        public long getWaiting()
+        {
+            return waiting.get();
+        }
+
+        public long getRequests()
+        {
+            return requests.get();
+        }
+
+        public long getFailures()
+        {
+            return failures.get();
+        }
+
+        public long getAverageLatency()
+        {
+            long count = requests.get();
+            return (count > 0) ? totalLatency.get() / count : 0;
+        }
+    }
+
+    private static class ResizableSemaphore extends Semaphore
+    {
+        public ResizableSemaphore(int permits)
+        {
+            super(permits, true);
+        }
+
+        @Override
+        protected void reducePermits(int reduction)
+        {
+            super.reducePermits(reduction);
+        }
+    }
+}
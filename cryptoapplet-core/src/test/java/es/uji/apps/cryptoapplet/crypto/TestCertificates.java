@@ -0,0 +1,130 @@
+package es.uji.apps.cryptoapplet.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Security;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.x509.AuthorityInformationAccess;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.asn1.x509.X509Extensions;
+import org.bouncycastle.asn1.x509.X509ObjectIdentifiers;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+import org.bouncycastle.x509.extension.AuthorityKeyIdentifierStructure;
+import org.bouncycastle.x509.extension.SubjectKeyIdentifierStructure;
+
+/**
+ * Throwaway CA, end entity and responder certificates, so the revocation and time stamp tests
+ * do not depend on the certificates of a real PKI.
+ */
+public class TestCertificates
+{
+    public static final long DAY = 24 * 60 * 60 * 1000L;
+
+    private static AtomicLong serialNumber = new AtomicLong(System.currentTimeMillis());
+
+    static
+    {
+        if (Security.getProvider("BC") == null)
+        {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+    }
+
+    public static KeyPair generateKeyPair() throws Exception
+    {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(1024);
+
+        return keyPairGenerator.generateKeyPair();
+    }
+
+    public static X509Certificate generateCACertificate(String subject, KeyPair keyPair)
+            throws Exception
+    {
+        Date now = new Date();
+
+        return generateCertificate(subject, keyPair.getPublic(), null, keyPair.getPrivate(),
+                null, null, new Date(now.getTime() - DAY), new Date(now.getTime() + 365 * DAY));
+    }
+
+    public static X509Certificate generateCertificate(String subject, PublicKey publicKey,
+            X509Certificate issuer, PrivateKey issuerKey, String ocspURL) throws Exception
+    {
+        Date now = new Date();
+
+        return generateCertificate(subject, publicKey, issuer, issuerKey, ocspURL, null, new Date(
+                now.getTime() - DAY), new Date(now.getTime() + 365 * DAY));
+    }
+
+    /**
+     * @param issuer
+     *            null for a self signed CA certificate
+     * @param keyPurpose
+     *            extended key usage, such as OCSP or time stamp signing, or null
+     */
+    public static X509Certificate generateCertificate(String subject, PublicKey publicKey,
+            X509Certificate issuer, PrivateKey issuerKey, String ocspURL, KeyPurposeId keyPurpose,
+            Date notBefore, Date notAfter) throws Exception
+    {
+        X509V3CertificateGenerator generator = new X509V3CertificateGenerator();
+
+        generator.setSerialNumber(BigInteger.valueOf(serialNumber.incrementAndGet()));
+        generator.setSubjectDN(new X500Principal(subject));
+        generator.setNotBefore(notBefore);
+        generator.setNotAfter(notAfter);
+        generator.setPublicKey(publicKey);
+        generator.setSignatureAlgorithm("SHA1withRSA");
+        generator.addExtension(X509Extensions.SubjectKeyIdentifier, false,
+                new SubjectKeyIdentifierStructure(publicKey));
+
+        if (issuer == null)
+        {
+            generator.setIssuerDN(new X500Principal(subject));
+            generator.addExtension(X509Extensions.BasicConstraints, true, new BasicConstraints(
+                    true));
+            generator.addExtension(X509Extensions.KeyUsage, true, new KeyUsage(
+                    KeyUsage.keyCertSign | KeyUsage.cRLSign));
+        }
+        else
+        {
+            generator.setIssuerDN(issuer.getSubjectX500Principal());
+            generator.addExtension(X509Extensions.AuthorityKeyIdentifier, false,
+                    new AuthorityKeyIdentifierStructure(issuer));
+        }
+
+        if (ocspURL != null)
+        {
+            generator.addExtension(X509Extensions.AuthorityInfoAccess, false,
+                    new AuthorityInformationAccess(X509ObjectIdentifiers.ocspAccessMethod,
+                            new GeneralName(GeneralName.uniformResourceIdentifier, ocspURL)));
+        }
+
+        if (keyPurpose != null)
+        {
+            generator.addExtension(X509Extensions.ExtendedKeyUsage, true, new ExtendedKeyUsage(
+                    keyPurpose));
+        }
+
+        X509Certificate certificate = generator.generate(issuerKey, "BC");
+
+        // Through the default factory, as the AIA extension is read from the SUN implementation
+
+        return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(
+                new ByteArrayInputStream(certificate.getEncoded()));
+    }
+}
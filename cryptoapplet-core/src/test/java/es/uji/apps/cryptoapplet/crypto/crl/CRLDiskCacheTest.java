@@ -0,0 +1,221 @@
+package es.uji.apps.cryptoapplet.crypto.crl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.bouncycastle.asn1.x509.CRLDistPoint;
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.DistributionPoint;
+import org.bouncycastle.asn1.x509.DistributionPointName;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.X509Extensions;
+import org.bouncycastle.x509.X509V2CRLGenerator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import es.uji.apps.cryptoapplet.crypto.TestCertificates;
+
+public class CRLDiskCacheTest
+{
+    private static final String CRL_URL = "http://localhost/ca.crl";
+    private static final String DELTA_URL = "http://localhost/delta.crl";
+
+    private KeyPair caKeyPair;
+    private X509Certificate caCertificate;
+    private File directory;
+    private CRLDiskCache diskCache;
+
+    @Before
+    public void init() throws Exception
+    {
+        caKeyPair = TestCertificates.generateKeyPair();
+        caCertificate = TestCertificates.generateCACertificate("CN=CRL Disk Cache Test CA",
+                caKeyPair);
+
+        directory = File.createTempFile("crldiskcache", "");
+        directory.delete();
+        diskCache = new CRLDiskCache(directory);
+    }
+
+    @After
+    public void cleanUp()
+    {
+        diskCache.clear();
+        directory.delete();
+    }
+
+    private X509V2CRLGenerator createGenerator(long nextUpdateOffset, long crlNumber)
+    {
+        Date now = new Date();
+
+        X509V2CRLGenerator generator = new X509V2CRLGenerator();
+        generator.setIssuerDN(caCertificate.getSubjectX500Principal());
+        generator.setThisUpdate(new Date(now.getTime() - TestCertificates.DAY));
+        generator.setNextUpdate(new Date(now.getTime() + nextUpdateOffset));
+        generator.setSignatureAlgorithm("SHA1withRSA");
+        generator.addExtension(X509Extensions.CRLNumber, false, new CRLNumber(BigInteger
+                .valueOf(crlNumber)));
+
+        return generator;
+    }
+
+    private CRLStoreEntry createEntry(X509V2CRLGenerator generator, String eTag) throws Exception
+    {
+        byte[] encoded = generator.generate(caKeyPair.getPrivate(), "BC").getEncoded();
+        ParsedCRL crl = new CRLStreamParser(caCertificate.getPublicKey())
+                .parse(new ByteArrayInputStream(encoded));
+
+        return new CRLStoreEntry(crl, caCertificate.getPublicKey(), 1234L, eTag);
+    }
+
+    private CRLStoreEntry createBaseEntry(long nextUpdateOffset) throws Exception
+    {
+        X509V2CRLGenerator generator = createGenerator(nextUpdateOffset, 10);
+        generator.addCRLEntry(BigInteger.valueOf(1), new Date(), CRLReason.keyCompromise);
+        generator.addCRLEntry(BigInteger.valueOf(2), new Date(), CRLReason.superseded);
+
+        GeneralNames deltaLocation = new GeneralNames(new GeneralName(
+                GeneralName.uniformResourceIdentifier, DELTA_URL));
+        generator.addExtension(X509Extensions.FreshestCRL, false, new CRLDistPoint(
+                new DistributionPoint[] { new DistributionPoint(new DistributionPointName(
+                        DistributionPointName.FULL_NAME, deltaLocation), null, null) }));
+
+        return createEntry(generator, "\"base\"");
+    }
+
+    @Test
+    public void savedEntryIsLoaded() throws Exception
+    {
+        CRLStoreEntry saved = createBaseEntry(TestCertificates.DAY);
+        diskCache.save(CRL_URL, saved);
+
+        CRLStoreEntry loaded = new CRLDiskCache(directory).load(CRL_URL, caCertificate
+                .getPublicKey());
+
+        assertNotNull(loaded);
+        assertEquals(caCertificate.getPublicKey(), loaded.getIssuerKey());
+        assertTrue(loaded.getCRL().isVerified());
+        assertEquals(1234L, loaded.getLastModified());
+        assertEquals("\"base\"", loaded.getETag());
+        assertEquals(saved.getIssuer(), loaded.getIssuer());
+        assertEquals(saved.getThisUpdate(), loaded.getThisUpdate());
+        assertEquals(saved.getNextUpdate(), loaded.getNextUpdate());
+        assertEquals(BigInteger.TEN, loaded.getCRL().getCRLNumber());
+        assertEquals(Arrays.asList(DELTA_URL), loaded.getCRL().getFreshestCRLURLs());
+        assertEquals(2, loaded.getRevokedSerials().size());
+        assertEquals(CRLReason.superseded, loaded.getRevokedSerials().getReason(
+                loaded.getRevokedSerials().indexOf(BigInteger.valueOf(2))));
+        assertFalse(loaded.getRevokedSerials().isRevoked(BigInteger.valueOf(3)));
+    }
+
+    @Test
+    public void deltaIsSavedWithItsBase() throws Exception
+    {
+        X509V2CRLGenerator generator = createGenerator(TestCertificates.DAY, 11);
+        generator.addExtension(X509Extensions.DeltaCRLIndicator, true, new CRLNumber(BigInteger
+                .TEN));
+        generator.addCRLEntry(BigInteger.valueOf(3), new Date(), CRLReason.keyCompromise);
+        generator.addCRLEntry(BigInteger.valueOf(1), new Date(), CRLReason.removeFromCRL);
+
+        diskCache.save(CRL_URL, createBaseEntry(TestCertificates.DAY).withDelta(
+                createEntry(generator, null)));
+
+        CRLStoreEntry loaded = diskCache.load(CRL_URL, caCertificate.getPublicKey());
+
+        assertNotNull(loaded.getDelta());
+        assertEquals(BigInteger.TEN, loaded.getDelta().getCRL().getBaseCRLNumber());
+        assertFalse(loaded.getRevokedSerials().isRevoked(BigInteger.valueOf(1)));
+        assertTrue(loaded.getRevokedSerials().isRevoked(BigInteger.valueOf(2)));
+        assertTrue(loaded.getRevokedSerials().isRevoked(BigInteger.valueOf(3)));
+    }
+
+    @Test
+    public void expiredEntryIsDiscarded() throws Exception
+    {
+        diskCache.save(CRL_URL, createBaseEntry(-1000));
+
+        assertNull(diskCache.load(CRL_URL, caCertificate.getPublicKey()));
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void entryIsOnlyReusedWithItsIssuerKey() throws Exception
+    {
+        diskCache.save(CRL_URL, createBaseEntry(TestCertificates.DAY));
+
+        assertNull(diskCache.load(CRL_URL, TestCertificates.generateKeyPair().getPublic()));
+        assertNull(diskCache.load(CRL_URL, null));
+    }
+
+    @Test
+    public void entriesAreKeptPerIssuerKey() throws Exception
+    {
+        CRLStoreEntry verified = createBaseEntry(TestCertificates.DAY);
+        CRLStoreEntry unverified = new CRLStoreEntry(verified.getCRL(), null, 0, null);
+
+        diskCache.save(CRL_URL, verified);
+        diskCache.save(CRL_URL, unverified);
+
+        assertEquals(2, directory.listFiles().length);
+        assertEquals(caCertificate.getPublicKey(), diskCache.load(CRL_URL,
+                caCertificate.getPublicKey()).getIssuerKey());
+        assertNull(diskCache.load(CRL_URL, null).getIssuerKey());
+
+        diskCache.remove(CRL_URL);
+
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void entryOfAnotherURLIsNotLoaded() throws Exception
+    {
+        diskCache.save(CRL_URL, createBaseEntry(TestCertificates.DAY));
+
+        assertNull(diskCache.load("http://localhost/other.crl", caCertificate.getPublicKey()));
+    }
+
+    @Test
+    public void truncatedFileIsDiscarded() throws Exception
+    {
+        diskCache.save(CRL_URL, createBaseEntry(TestCertificates.DAY));
+
+        File file = directory.listFiles()[0];
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+
+        try
+        {
+            randomAccessFile.setLength(randomAccessFile.length() / 2);
+        }
+        finally
+        {
+            randomAccessFile.close();
+        }
+
+        assertNull(diskCache.load(CRL_URL, caCertificate.getPublicKey()));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void removedEntryIsNotLoaded() throws Exception
+    {
+        diskCache.save(CRL_URL, createBaseEntry(TestCertificates.DAY));
+        diskCache.remove(CRL_URL);
+
+        assertNull(diskCache.load(CRL_URL, caCertificate.getPublicKey()));
+    }
+}
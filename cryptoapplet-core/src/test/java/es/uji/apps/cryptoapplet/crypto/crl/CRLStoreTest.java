@@ -0,0 +1,342 @@
+package es.uji.apps.cryptoapplet.crypto.crl;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.x509.CRLDistPoint;
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.DistributionPoint;
+import org.bouncycastle.asn1.x509.DistributionPointName;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.X509Extensions;
+import org.bouncycastle.x509.X509V2CRLGenerator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import es.uji.apps.cryptoapplet.crypto.TestCertificates;
+
+public class CRLStoreTest
+{
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    private KeyPair caKeyPair;
+    private X509Certificate caCertificate;
+    private File crlFile;
+    private String crlURL;
+    private CRLStore store;
+
+    // Delta CRLs are only followed over HTTP, so base and delta are published by a local server
+
+    private final Map<String, byte[]> published = new ConcurrentHashMap<String, byte[]>();
+    private HttpServer server;
+    private String serverURL;
+
+    @Before
+    public void init() throws Exception
+    {
+        caKeyPair = TestCertificates.generateKeyPair();
+        caCertificate = TestCertificates.generateCACertificate("CN=CRL Store Test CA",
+                caKeyPair);
+
+        crlFile = File.createTempFile("crlstore", ".crl");
+        crlURL = crlFile.toURI().toURL().toString();
+        store = new CRLStore();
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler()
+        {
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                byte[] body = published.get(exchange.getRequestURI().getPath());
+
+                if (body == null)
+                {
+                    exchange.sendResponseHeaders(404, -1);
+                }
+                else
+                {
+                    exchange.sendResponseHeaders(200, body.length);
+                    exchange.getResponseBody().write(body);
+                }
+
+                exchange.close();
+            }
+        });
+        server.start();
+
+        serverURL = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void shutdown()
+    {
+        store.shutdown();
+        server.stop(0);
+        crlFile.delete();
+    }
+
+    private X509V2CRLGenerator createGenerator(long nextUpdateOffset, long... revokedSerials)
+    {
+        Date now = new Date();
+
+        X509V2CRLGenerator generator = new X509V2CRLGenerator();
+        generator.setIssuerDN(caCertificate.getSubjectX500Principal());
+        generator.setThisUpdate(new Date(now.getTime() - TestCertificates.DAY));
+        generator.setNextUpdate(new Date(now.getTime() + nextUpdateOffset));
+        generator.setSignatureAlgorithm("SHA1withRSA");
+
+        for (long serial : revokedSerials)
+        {
+            generator.addCRLEntry(BigInteger.valueOf(serial), now, CRLReason.keyCompromise);
+        }
+
+        return generator;
+    }
+
+    private byte[] generate(X509V2CRLGenerator generator) throws Exception
+    {
+        return generator.generate(caKeyPair.getPrivate(), "BC").getEncoded();
+    }
+
+    private void writeCRL(long nextUpdateOffset, long... revokedSerials) throws Exception
+    {
+        OutputStream out = new FileOutputStream(crlFile);
+
+        try
+        {
+            out.write(generate(createGenerator(nextUpdateOffset, revokedSerials)));
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Publishes a base CRL numbered 10 that points to the delta at /delta.crl
+     */
+    private String publishBaseCRL(long... revokedSerials) throws Exception
+    {
+        X509V2CRLGenerator generator = createGenerator(HOUR, revokedSerials);
+        generator.addExtension(X509Extensions.CRLNumber, false, new CRLNumber(BigInteger
+                .valueOf(10)));
+
+        GeneralNames deltaLocation = new GeneralNames(new GeneralName(
+                GeneralName.uniformResourceIdentifier, serverURL + "/delta.crl"));
+        generator.addExtension(X509Extensions.FreshestCRL, false, new CRLDistPoint(
+                new DistributionPoint[] { new DistributionPoint(new DistributionPointName(
+                        DistributionPointName.FULL_NAME, deltaLocation), null, null) }));
+
+        published.put("/base.crl", generate(generator));
+
+        return serverURL + "/base.crl";
+    }
+
+    private X509V2CRLGenerator createDeltaGenerator(long crlNumber, long baseCRLNumber)
+    {
+        X509V2CRLGenerator generator = createGenerator(HOUR);
+        generator.addExtension(X509Extensions.CRLNumber, false, new CRLNumber(BigInteger
+                .valueOf(crlNumber)));
+        generator.addExtension(X509Extensions.DeltaCRLIndicator, true, new CRLNumber(BigInteger
+                .valueOf(baseCRLNumber)));
+
+        return generator;
+    }
+
+    @Test
+    public void currentCRLIsServedFromMemory() throws Exception
+    {
+        writeCRL(HOUR, 1);
+        assertTrue(store.getRevokedSerials(crlURL, caCertificate.getPublicKey()).isRevoked(
+                BigInteger.ONE));
+
+        crlFile.delete();
+
+        assertTrue(store.getRevokedSerials(crlURL, caCertificate.getPublicKey()).isRevoked(
+                BigInteger.ONE));
+    }
+
+    @Test
+    public void expiredCRLIsReloaded() throws Exception
+    {
+        writeCRL(-HOUR, 1);
+        assertFalse(store.getRevokedSerials(crlURL, caCertificate.getPublicKey()).isRevoked(
+                BigInteger.valueOf(2)));
+
+        writeCRL(HOUR, 1, 2);
+
+        assertTrue(store.getRevokedSerials(crlURL, caCertificate.getPublicKey()).isRevoked(
+                BigInteger.valueOf(2)));
+    }
+
+    @Test(expected = CryptoCoreCRLException.class)
+    public void expiredCRLIsNotServedWhenItCanNotBeReloaded() throws Exception
+    {
+        writeCRL(-HOUR, 1);
+        store.getRevokedSerials(crlURL, caCertificate.getPublicKey());
+
+        crlFile.delete();
+
+        store.getRevokedSerials(crlURL, caCertificate.getPublicKey());
+    }
+
+    @Test
+    public void expiredCRLIsReloadedAtMostOncePerRetryInterval() throws Exception
+    {
+        writeCRL(-HOUR, 1);
+        store.getRevokedSerials(crlURL, caCertificate.getPublicKey());
+
+        try
+        {
+            store.getRevokedSerials(crlURL, caCertificate.getPublicKey());
+            fail();
+        }
+        catch (CryptoCoreCRLException e)
+        {
+        }
+
+        // Renewed after the failed reload, but not downloaded again until the retry interval
+
+        writeCRL(HOUR, 1, 2);
+
+        try
+        {
+            store.getRevokedSerials(crlURL, caCertificate.getPublicKey());
+            fail();
+        }
+        catch (CryptoCoreCRLException e)
+        {
+        }
+    }
+
+    @Test
+    public void entriesAreKeptPerIssuerKey() throws Exception
+    {
+        writeCRL(HOUR, 1);
+        store.getRevokedSerials(crlURL, caCertificate.getPublicKey());
+
+        KeyPair otherKeyPair = TestCertificates.generateKeyPair();
+
+        try
+        {
+            store.getRevokedSerials(crlURL, otherKeyPair.getPublic());
+            fail("CRL verified with another issuer key");
+        }
+        catch (CryptoCoreCRLException e)
+        {
+            // The CRL is downloaded again and its signature does not match the other key
+        }
+
+        assertTrue(store.getRevokedSerials(crlURL, caCertificate.getPublicKey()).isRevoked(
+                BigInteger.ONE));
+    }
+
+    @Test
+    public void deltaIsMergedIntoBase() throws Exception
+    {
+        String baseURL = publishBaseCRL(1, 2);
+
+        X509V2CRLGenerator delta = createDeltaGenerator(11, 10);
+        delta.addCRLEntry(BigInteger.valueOf(1), new Date(), CRLReason.removeFromCRL);
+        delta.addCRLEntry(BigInteger.valueOf(3), new Date(), CRLReason.keyCompromise);
+        published.put("/delta.crl", generate(delta));
+
+        RevokedSerialIndex revokedSerials = store.getRevokedSerials(baseURL, caCertificate
+                .getPublicKey());
+
+        assertFalse(revokedSerials.isRevoked(BigInteger.valueOf(1)));
+        assertTrue(revokedSerials.isRevoked(BigInteger.valueOf(2)));
+        assertTrue(revokedSerials.isRevoked(BigInteger.valueOf(3)));
+    }
+
+    @Test
+    public void baseIsUsedAloneWhenFreshestCRLIsNotADelta() throws Exception
+    {
+        String baseURL = publishBaseCRL(1);
+        published.put("/delta.crl", generate(createGenerator(HOUR, 3)));
+
+        RevokedSerialIndex revokedSerials = store.getRevokedSerials(baseURL, caCertificate
+                .getPublicKey());
+
+        assertTrue(revokedSerials.isRevoked(BigInteger.valueOf(1)));
+        assertFalse(revokedSerials.isRevoked(BigInteger.valueOf(3)));
+    }
+
+    @Test
+    public void baseIsUsedAloneWhenDeltaHasAnotherIssuer() throws Exception
+    {
+        String baseURL = publishBaseCRL(1);
+
+        X509V2CRLGenerator delta = createDeltaGenerator(11, 10);
+        delta.setIssuerDN(new X500Principal("CN=Another CA"));
+        delta.addCRLEntry(BigInteger.valueOf(3), new Date(), CRLReason.keyCompromise);
+        published.put("/delta.crl", generate(delta));
+
+        // Unverified, so only the issuer check stands between the delta and the base
+
+        RevokedSerialIndex revokedSerials = store.getRevokedSerials(baseURL);
+
+        assertTrue(revokedSerials.isRevoked(BigInteger.valueOf(1)));
+        assertFalse(revokedSerials.isRevoked(BigInteger.valueOf(3)));
+    }
+
+    @Test
+    public void deltaForANewerBaseIsNotApplied() throws Exception
+    {
+        String baseURL = publishBaseCRL(1);
+
+        X509V2CRLGenerator delta = createDeltaGenerator(13, 12);
+        delta.addCRLEntry(BigInteger.valueOf(3), new Date(), CRLReason.keyCompromise);
+        published.put("/delta.crl", generate(delta));
+
+        RevokedSerialIndex revokedSerials = store.getRevokedSerials(baseURL, caCertificate
+                .getPublicKey());
+
+        assertTrue(revokedSerials.isRevoked(BigInteger.valueOf(1)));
+        assertFalse(revokedSerials.isRevoked(BigInteger.valueOf(3)));
+    }
+
+    @Test
+    public void deltaAlreadyIncludedInBaseIsNotApplied() throws Exception
+    {
+        String baseURL = publishBaseCRL(1);
+
+        X509V2CRLGenerator delta = createDeltaGenerator(9, 8);
+        delta.addCRLEntry(BigInteger.valueOf(1), new Date(), CRLReason.removeFromCRL);
+        published.put("/delta.crl", generate(delta));
+
+        assertTrue(store.getRevokedSerials(baseURL, caCertificate.getPublicKey()).isRevoked(
+                BigInteger.valueOf(1)));
+    }
+
+    @Test
+    public void baseIsUsedAloneWhenDeltaIsUnavailable() throws Exception
+    {
+        String baseURL = publishBaseCRL(1);
+
+        assertTrue(store.getRevokedSerials(baseURL, caCertificate.getPublicKey()).isRevoked(
+                BigInteger.valueOf(1)));
+    }
+}
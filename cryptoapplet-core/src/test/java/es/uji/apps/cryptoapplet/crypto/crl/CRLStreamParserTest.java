@@ -0,0 +1,292 @@
+package es.uji.apps.cryptoapplet.crypto.crl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.bouncycastle.asn1.x509.CRLDistPoint;
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.DistributionPoint;
+import org.bouncycastle.asn1.x509.DistributionPointName;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.X509Extensions;
+import org.bouncycastle.x509.X509V2CRLGenerator;
+import org.junit.Before;
+import org.junit.Test;
+
+import es.uji.apps.cryptoapplet.crypto.TestCertificates;
+
+public class CRLStreamParserTest
+{
+    private static final int[] REASONS = { 0, CRLReason.keyCompromise, CRLReason.cACompromise,
+            CRLReason.affiliationChanged, CRLReason.superseded, CRLReason.certificateHold };
+
+    private KeyPair caKeyPair;
+    private X509Certificate caCertificate;
+    private Date thisUpdate;
+    private Date nextUpdate;
+
+    @Before
+    public void init() throws Exception
+    {
+        caKeyPair = TestCertificates.generateKeyPair();
+        caCertificate = TestCertificates.generateCACertificate("CN=CRL Parser Test CA, O=UJI",
+                caKeyPair);
+
+        // Whole seconds, as CRL times have no milliseconds
+
+        thisUpdate = new Date(System.currentTimeMillis() / 1000 * 1000);
+        nextUpdate = new Date(thisUpdate.getTime() + TestCertificates.DAY);
+    }
+
+    private X509V2CRLGenerator createGenerator(long crlNumber)
+    {
+        X509V2CRLGenerator generator = new X509V2CRLGenerator();
+        generator.setIssuerDN(caCertificate.getSubjectX500Principal());
+        generator.setThisUpdate(thisUpdate);
+        generator.setNextUpdate(nextUpdate);
+        generator.setSignatureAlgorithm("SHA256withRSA");
+        generator.addExtension(X509Extensions.CRLNumber, false, new CRLNumber(BigInteger
+                .valueOf(crlNumber)));
+
+        return generator;
+    }
+
+    private byte[] generate(X509V2CRLGenerator generator) throws Exception
+    {
+        return generator.generate(caKeyPair.getPrivate(), "BC").getEncoded();
+    }
+
+    private ParsedCRL parse(byte[] encoded) throws Exception
+    {
+        return new CRLStreamParser(caCertificate.getPublicKey()).parse(new ByteArrayInputStream(
+                encoded));
+    }
+
+    /**
+     * Compares the parsed CRL with the one decoded by the JDK
+     */
+    private void assertSameCRL(byte[] encoded, ParsedCRL parsedCRL) throws Exception
+    {
+        X509CRL crl = (X509CRL) CertificateFactory.getInstance("X.509").generateCRL(
+                new ByteArrayInputStream(encoded));
+
+        assertEquals(crl.getIssuerX500Principal(), parsedCRL.getIssuer());
+        assertEquals(crl.getThisUpdate(), parsedCRL.getThisUpdate());
+        assertEquals(crl.getNextUpdate(), parsedCRL.getNextUpdate());
+        assertTrue(parsedCRL.isVerified());
+
+        int revoked = (crl.getRevokedCertificates() != null) ? crl.getRevokedCertificates()
+                .size() : 0;
+        assertEquals(revoked, parsedCRL.getRevokedSerials().size());
+
+        if (revoked > 0)
+        {
+            for (X509CRLEntry entry : crl.getRevokedCertificates())
+            {
+                int index = parsedCRL.getRevokedSerials().indexOf(entry.getSerialNumber());
+
+                assertTrue(index >= 0);
+                assertEquals(entry.getSerialNumber(), parsedCRL.getRevokedSerials()
+                        .getSerialNumber(index));
+                assertEquals(entry.getRevocationDate(), parsedCRL.getRevokedSerials()
+                        .getRevocationDate(index));
+            }
+        }
+
+        for (String oid : crl.getNonCriticalExtensionOIDs())
+        {
+            assertExtension(crl, parsedCRL, oid);
+        }
+
+        if (crl.getCriticalExtensionOIDs() != null)
+        {
+            for (String oid : crl.getCriticalExtensionOIDs())
+            {
+                assertExtension(crl, parsedCRL, oid);
+            }
+        }
+    }
+
+    private void assertExtension(X509CRL crl, ParsedCRL parsedCRL, String oid) throws Exception
+    {
+        // The JDK returns the extnValue OCTET STRING itself, the parser its content
+
+        byte[] extensionValue = crl.getExtensionValue(oid);
+        byte[] content = Arrays.copyOfRange(extensionValue, extensionValue.length
+                - parsedCRL.getExtension(oid).length, extensionValue.length);
+
+        assertTrue(Arrays.equals(content, parsedCRL.getExtension(oid)));
+    }
+
+    @Test
+    public void emptyCRL() throws Exception
+    {
+        byte[] encoded = generate(createGenerator(1));
+        ParsedCRL parsedCRL = parse(encoded);
+
+        assertSameCRL(encoded, parsedCRL);
+        assertEquals(0, parsedCRL.getRevokedSerials().size());
+        assertEquals(BigInteger.ONE, parsedCRL.getCRLNumber());
+        assertFalse(parsedCRL.isDelta());
+        assertTrue(parsedCRL.getFreshestCRLURLs().isEmpty());
+    }
+
+    @Test
+    public void deltaCRL() throws Exception
+    {
+        X509V2CRLGenerator generator = createGenerator(7);
+        generator.addExtension(X509Extensions.DeltaCRLIndicator, true, new CRLNumber(BigInteger
+                .valueOf(5)));
+        generator.addCRLEntry(BigInteger.valueOf(10), thisUpdate, CRLReason.keyCompromise);
+        generator.addCRLEntry(BigInteger.valueOf(11), thisUpdate, CRLReason.removeFromCRL);
+
+        byte[] encoded = generate(generator);
+        ParsedCRL parsedCRL = parse(encoded);
+
+        assertSameCRL(encoded, parsedCRL);
+        assertTrue(parsedCRL.isDelta());
+        assertEquals(BigInteger.valueOf(7), parsedCRL.getCRLNumber());
+        assertEquals(BigInteger.valueOf(5), parsedCRL.getBaseCRLNumber());
+
+        RevokedSerialIndex revokedSerials = parsedCRL.getRevokedSerials();
+        assertEquals(CRLReason.keyCompromise, revokedSerials.getReason(revokedSerials
+                .indexOf(BigInteger.valueOf(10))));
+        assertEquals(RevokedSerialIndex.REASON_REMOVE_FROM_CRL, revokedSerials
+                .getReason(revokedSerials.indexOf(BigInteger.valueOf(11))));
+    }
+
+    @Test
+    public void multipleEntriesWithExtensions() throws Exception
+    {
+        X509V2CRLGenerator generator = createGenerator(42);
+
+        GeneralNames deltaLocation = new GeneralNames(new GeneralName(
+                GeneralName.uniformResourceIdentifier, "http://localhost/delta.crl"));
+        generator.addExtension(X509Extensions.FreshestCRL, false, new CRLDistPoint(
+                new DistributionPoint[] { new DistributionPoint(new DistributionPointName(
+                        DistributionPointName.FULL_NAME, deltaLocation), null, null) }));
+
+        // Distinct serials of every length, including ones whose first byte has the high bit set
+
+        BigInteger[] serials = new BigInteger[1000];
+
+        for (int i = 0; i < serials.length; i++)
+        {
+            serials[i] = BigInteger.ONE.shiftLeft(16 + i % 130).or(BigInteger.valueOf(i));
+            Date revocationDate = new Date(thisUpdate.getTime() - i * 1000L);
+
+            if (i % 4 == 0)
+            {
+                generator.addCRLEntry(serials[i], revocationDate, REASONS[i % REASONS.length],
+                        new Date(revocationDate.getTime() - TestCertificates.DAY));
+            }
+            else
+            {
+                generator.addCRLEntry(serials[i], revocationDate, REASONS[i % REASONS.length]);
+            }
+        }
+
+        byte[] encoded = generate(generator);
+        ParsedCRL parsedCRL = parse(encoded);
+
+        assertSameCRL(encoded, parsedCRL);
+        assertEquals(BigInteger.valueOf(42), parsedCRL.getCRLNumber());
+        assertEquals(Arrays.asList("http://localhost/delta.crl"), parsedCRL
+                .getFreshestCRLURLs());
+
+        RevokedSerialIndex revokedSerials = parsedCRL.getRevokedSerials();
+
+        for (int i = 0; i < serials.length; i++)
+        {
+            int reason = REASONS[i % REASONS.length];
+
+            assertEquals((reason == 0) ? RevokedSerialIndex.NO_REASON : reason, revokedSerials
+                    .getReason(revokedSerials.indexOf(serials[i])));
+        }
+
+        assertFalse(revokedSerials.isRevoked(BigInteger.valueOf(1001)));
+    }
+
+    @Test
+    public void onlyDistributionPointNamesAreDeltaLocations() throws Exception
+    {
+        X509V2CRLGenerator generator = createGenerator(1);
+
+        GeneralNames deltaLocation = new GeneralNames(new GeneralName(
+                GeneralName.uniformResourceIdentifier, "http://localhost/delta.crl"));
+        GeneralNames deltaIssuer = new GeneralNames(new GeneralName(
+                GeneralName.uniformResourceIdentifier, "http://localhost/issuer"));
+        generator.addExtension(X509Extensions.FreshestCRL, false, new CRLDistPoint(
+                new DistributionPoint[] {
+                        new DistributionPoint(new DistributionPointName(
+                                DistributionPointName.FULL_NAME, deltaLocation), null,
+                                deltaIssuer),
+                        new DistributionPoint(null, null, deltaIssuer) }));
+
+        ParsedCRL parsedCRL = parse(generate(generator));
+
+        assertEquals(Arrays.asList("http://localhost/delta.crl"), parsedCRL
+                .getFreshestCRLURLs());
+    }
+
+    @Test
+    public void unverifiedCRL() throws Exception
+    {
+        X509V2CRLGenerator generator = createGenerator(1);
+        generator.addCRLEntry(BigInteger.TEN, thisUpdate, CRLReason.keyCompromise);
+
+        ParsedCRL parsedCRL = new CRLStreamParser().parse(new ByteArrayInputStream(
+                generate(generator)));
+
+        assertFalse(parsedCRL.isVerified());
+        assertTrue(parsedCRL.getRevokedSerials().isRevoked(BigInteger.TEN));
+        assertNull(parsedCRL.getBaseCRLNumber());
+        assertNotNull(parsedCRL.getExtension(X509Extensions.CRLNumber.getId()));
+    }
+
+    @Test(expected = CryptoCoreCRLException.class)
+    public void signatureOfAnotherKeyIsRejected() throws Exception
+    {
+        byte[] encoded = generate(createGenerator(1));
+
+        new CRLStreamParser(TestCertificates.generateKeyPair().getPublic())
+                .parse(new ByteArrayInputStream(encoded));
+    }
+
+    @Test(expected = CryptoCoreCRLException.class)
+    public void tamperedCRLIsRejected() throws Exception
+    {
+        X509V2CRLGenerator generator = createGenerator(1);
+        generator.addCRLEntry(BigInteger.TEN, thisUpdate, CRLReason.keyCompromise);
+
+        byte[] encoded = generate(generator);
+
+        // Revoke serial 11 instead of 10
+
+        for (int i = encoded.length - 1; i >= 0; i--)
+        {
+            if (encoded[i] == 0x0a && encoded[i - 1] == 0x01 && encoded[i - 2] == 0x02)
+            {
+                encoded[i] = 0x0b;
+                break;
+            }
+        }
+
+        parse(encoded);
+    }
+}
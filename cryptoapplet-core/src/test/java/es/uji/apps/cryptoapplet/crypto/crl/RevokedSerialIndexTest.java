@@ -0,0 +1,88 @@
+package es.uji.apps.cryptoapplet.crypto.crl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.Date;
+
+import org.junit.Test;
+
+public class RevokedSerialIndexTest
+{
+    @Test
+    public void revokedSerialsAreFound()
+    {
+        RevokedSerialIndex index = new RevokedSerialIndex.Builder()
+                .add(new BigInteger("123456789012345678901234567890"), new Date(1000), 1)
+                .add(BigInteger.valueOf(42), new Date(2000), RevokedSerialIndex.NO_REASON)
+                .add(BigInteger.valueOf(7), new Date(3000), 4).build();
+
+        assertEquals(3, index.size());
+        assertTrue(index.isRevoked(BigInteger.valueOf(42)));
+        assertTrue(index.isRevoked(new BigInteger("123456789012345678901234567890")));
+        assertFalse(index.isRevoked(BigInteger.valueOf(43)));
+
+        int position = index.indexOf(BigInteger.valueOf(7));
+        assertEquals(new Date(3000), index.getRevocationDate(position));
+        assertEquals(4, index.getReason(position));
+    }
+
+    @Test
+    public void lastEntryWinsForDuplicatedSerials()
+    {
+        RevokedSerialIndex index = new RevokedSerialIndex.Builder()
+                .add(BigInteger.valueOf(5), new Date(1000), 1)
+                .add(BigInteger.valueOf(5), new Date(2000), 3).build();
+
+        assertEquals(1, index.size());
+        assertEquals(3, index.getReason(index.indexOf(BigInteger.valueOf(5))));
+    }
+
+    @Test
+    public void deltaEntriesAreMergedIntoBase()
+    {
+        RevokedSerialIndex base = new RevokedSerialIndex.Builder()
+                .add(BigInteger.valueOf(1), new Date(1000), 1)
+                .add(BigInteger.valueOf(2), new Date(1000), 6)
+                .add(BigInteger.valueOf(3), new Date(1000), 1).build();
+
+        RevokedSerialIndex delta = new RevokedSerialIndex.Builder()
+                .add(BigInteger.valueOf(2), new Date(2000),
+                        RevokedSerialIndex.REASON_REMOVE_FROM_CRL)
+                .add(BigInteger.valueOf(3), new Date(2000), 4)
+                .add(BigInteger.valueOf(300), new Date(2000), 1).build();
+
+        RevokedSerialIndex merged = base.merge(delta);
+
+        assertEquals(3, merged.size());
+        assertTrue(merged.isRevoked(BigInteger.valueOf(1)));
+        assertFalse(merged.isRevoked(BigInteger.valueOf(2)));
+        assertEquals(4, merged.getReason(merged.indexOf(BigInteger.valueOf(3))));
+        assertTrue(merged.isRevoked(BigInteger.valueOf(300)));
+        assertEquals(3, base.size());
+    }
+
+    @Test
+    public void nonMinimalSerialsAreNormalized()
+    {
+        RevokedSerialIndex index = new RevokedSerialIndex.Builder()
+                .add(new byte[] { 0, 0, 0x12, 0x34 }, 1000, 1)
+                .add(new byte[] { (byte) 0xff, (byte) 0xff, (byte) 0x80 }, 1000, 1)
+                .add(new byte[] { 0, (byte) 0x80 }, 1000, 1).build();
+
+        assertTrue(index.isRevoked(BigInteger.valueOf(0x1234)));
+        assertTrue(index.isRevoked(BigInteger.valueOf(-128)));
+        assertTrue(index.isRevoked(BigInteger.valueOf(128)));
+        assertTrue(index.indexOf(new byte[] { 0, 0x12, 0x34 }) >= 0);
+        assertEquals(BigInteger.valueOf(0x1234), index.getSerialNumber(index.indexOf(BigInteger
+                .valueOf(0x1234))));
+    }
+
+    @Test
+    public void emptyIndexHasNoRevokedSerials()
+    {
+        assertFalse(RevokedSerialIndex.empty().isRevoked(BigInteger.ONE));
+    }
+}
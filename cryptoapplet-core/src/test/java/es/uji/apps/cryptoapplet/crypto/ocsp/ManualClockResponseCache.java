@@ -0,0 +1,25 @@
+package es.uji.apps.cryptoapplet.crypto.ocsp;
+
+/**
+ * Response cache whose time only moves when the test advances it
+ */
+class ManualClockResponseCache extends OCSPResponseCache
+{
+    private volatile long now = System.currentTimeMillis();
+
+    @Override
+    long currentTimeMillis()
+    {
+        return now;
+    }
+
+    public long getNow()
+    {
+        return now;
+    }
+
+    public void advance(long millis)
+    {
+        now += millis;
+    }
+}
@@ -0,0 +1,256 @@
+package es.uji.apps.cryptoapplet.crypto.ocsp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bouncycastle.asn1.ocsp.OCSPResponse;
+import org.bouncycastle.asn1.ocsp.OCSPResponseStatus;
+import org.bouncycastle.ocsp.OCSPResp;
+import org.bouncycastle.ocsp.OCSPRespStatus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OCSPResponderSelectorTest
+{
+    private static final String FIRST = "http://first/ocsp";
+    private static final String SECOND = "http://second/ocsp";
+
+    private ExecutorService executor;
+    private OCSPResponderSelector selector;
+
+    @Before
+    public void init()
+    {
+        executor = Executors.newFixedThreadPool(4);
+        selector = new OCSPResponderSelector(executor);
+        selector.setHedgeDelay(50);
+        selector.setTimeout(10000);
+    }
+
+    @After
+    public void shutdown()
+    {
+        selector.shutdown();
+    }
+
+    private static OCSPResp response(int status)
+    {
+        return new OCSPResp(new OCSPResponse(new OCSPResponseStatus(status), null));
+    }
+
+    /**
+     * Answers the given responder immediately and fails every other one
+     */
+    private static OCSPResponderSelector.ResponderRequest answeredBy(final String ocspURL,
+            final OCSPResp response)
+    {
+        return new OCSPResponderSelector.ResponderRequest()
+        {
+            public OCSPResp send(String url, int timeout) throws CryptoCoreOCSPException
+            {
+                if (!url.equals(ocspURL))
+                {
+                    throw new CryptoCoreOCSPException("Connection refused");
+                }
+
+                return response;
+            }
+        };
+    }
+
+    private void awaitRequests() throws Exception
+    {
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void respondersAreOrderedByLatency()
+    {
+        selector.getStatistics(FIRST).recordSuccess(300);
+        selector.getStatistics(SECOND).recordSuccess(100);
+
+        assertEquals(Arrays.asList(SECOND, FIRST), selector.order(Arrays.asList(FIRST, SECOND,
+                FIRST)));
+    }
+
+    @Test
+    public void failingResponderIsBackedOff()
+    {
+        selector.getStatistics(FIRST).recordSuccess(10);
+        selector.getStatistics(SECOND).recordSuccess(500);
+
+        for (int i = 0; i < 3; i++)
+        {
+            selector.getStatistics(FIRST).recordFailure();
+        }
+
+        assertFalse(selector.getStatistics(FIRST).isAvailable(System.currentTimeMillis()));
+        assertEquals(Arrays.asList(SECOND, FIRST), selector.order(Arrays.asList(FIRST, SECOND)));
+
+        selector.getStatistics(FIRST).recordSuccess(10);
+
+        assertTrue(selector.getStatistics(FIRST).isAvailable(System.currentTimeMillis()));
+        assertEquals(0, selector.getStatistics(FIRST).getConsecutiveFailures());
+        assertEquals(Arrays.asList(FIRST, SECOND), selector.order(Arrays.asList(FIRST, SECOND)));
+    }
+
+    @Test
+    public void failedResponderFallsBackToTheNextOne() throws Exception
+    {
+        OCSPResp expected = response(OCSPRespStatus.SUCCESSFUL);
+
+        assertSame(expected, selector.send(Arrays.asList(FIRST, SECOND), answeredBy(SECOND,
+                expected)));
+
+        awaitRequests();
+
+        assertEquals(1, selector.getStatistics(FIRST).getFailures());
+        assertEquals(0, selector.getStatistics(SECOND).getFailures());
+    }
+
+    @Test
+    public void unsuccessfulResponseIsPreferredToConnectionErrors() throws Exception
+    {
+        OCSPResp expected = response(OCSPRespStatus.TRY_LATER);
+
+        assertSame(expected, selector.send(Arrays.asList(FIRST, SECOND), answeredBy(FIRST,
+                expected)));
+    }
+
+    @Test
+    public void lastErrorIsThrownWhenEveryResponderFails() throws Exception
+    {
+        try
+        {
+            selector.send(Arrays.asList(FIRST, SECOND), answeredBy("http://none/ocsp", null));
+            fail("No responder answered");
+        }
+        catch (CryptoCoreOCSPException e)
+        {
+            assertEquals("Connection refused", e.getMessage());
+        }
+    }
+
+    @Test
+    public void slowResponderIsHedgedAndCancelled() throws Exception
+    {
+        final OCSPResp expected = response(OCSPRespStatus.SUCCESSFUL);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+
+        OCSPResp result = selector.send(Arrays.asList(FIRST, SECOND),
+                new OCSPResponderSelector.ResponderRequest()
+                {
+                    public OCSPResp send(String ocspURL, int timeout)
+                            throws CryptoCoreOCSPException
+                    {
+                        if (ocspURL.equals(SECOND))
+                        {
+                            return expected;
+                        }
+
+                        try
+                        {
+                            release.await();
+                            return expected;
+                        }
+                        catch (InterruptedException e)
+                        {
+                            interrupted.countDown();
+                            Thread.currentThread().interrupt();
+
+                            throw new CryptoCoreOCSPException("Interrupted");
+                        }
+                    }
+                });
+
+        assertSame(expected, result);
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+
+        awaitRequests();
+
+        // The cancelled responder is not penalized for losing the race
+
+        assertEquals(0, selector.getStatistics(FIRST).getFailures());
+        assertEquals(1, selector.getStatistics(SECOND).getRequests());
+    }
+
+    @Test
+    public void respondersStillRunningAtTheTimeoutAreRecordedAsFailed() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger maxTimeout = new AtomicInteger();
+
+        selector.setTimeout(300);
+
+        try
+        {
+            selector.send(Arrays.asList(FIRST, SECOND),
+                    new OCSPResponderSelector.ResponderRequest()
+                    {
+                        public OCSPResp send(String ocspURL, int timeout)
+                                throws CryptoCoreOCSPException
+                        {
+                            maxTimeout.set(Math.max(maxTimeout.get(), timeout));
+
+                            // Like a blocked socket read, the request ignores interrupts
+
+                            while (true)
+                            {
+                                try
+                                {
+                                    release.await();
+                                    throw new CryptoCoreOCSPException("Read timed out");
+                                }
+                                catch (InterruptedException e)
+                                {
+                                    // Keep blocking
+                                }
+                            }
+                        }
+                    });
+
+            fail("No responder answered");
+        }
+        catch (CryptoCoreOCSPException e)
+        {
+            assertEquals("No OCSP responder answered in 300 ms", e.getMessage());
+        }
+
+        release.countDown();
+        awaitRequests();
+
+        assertTrue(maxTimeout.get() <= 300);
+        assertEquals(1, selector.getStatistics(FIRST).getFailures());
+        assertEquals(1, selector.getStatistics(SECOND).getFailures());
+    }
+
+    @Test
+    public void requestsAreRejectedWhenThePoolIsFull() throws Exception
+    {
+        executor.shutdown();
+
+        try
+        {
+            selector.send(Arrays.asList(FIRST, SECOND), answeredBy(FIRST, response(
+                    OCSPRespStatus.SUCCESSFUL)));
+            fail("The pool accepts no more requests");
+        }
+        catch (CryptoCoreOCSPException e)
+        {
+            assertEquals(0, selector.getStatistics(FIRST).getRequests());
+        }
+    }
+}
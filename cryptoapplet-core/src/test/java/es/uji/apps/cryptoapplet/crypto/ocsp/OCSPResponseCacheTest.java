@@ -0,0 +1,169 @@
+package es.uji.apps.cryptoapplet.crypto.ocsp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.math.BigInteger;
+import java.security.Security;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.ocsp.CertificateID;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OCSPResponseCacheTest
+{
+    private X509Certificate caCertificate;
+
+    @Before
+    public void init() throws Exception
+    {
+        if (Security.getProvider("BC") == null)
+        {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+
+        CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+        caCertificate = (X509Certificate) certificateFactory
+                .generateCertificate(new FileInputStream("src/main/resources/cagva.pem"));
+    }
+
+    private CertificateID certificateID(long serial) throws Exception
+    {
+        return new CertificateID(CertificateID.HASH_SHA1, caCertificate, BigInteger.valueOf(serial));
+    }
+
+    private OCSPResponseDetails validResponse(long nextUpdateOffset)
+    {
+        OCSPResponseDetails responseDetails = new OCSPResponseDetails();
+        responseDetails.setValid(true);
+        responseDetails.setThisUpdate(new Date());
+        responseDetails.setNextUpdate(new Date(System.currentTimeMillis() + nextUpdateOffset));
+
+        return responseDetails;
+    }
+
+    @Test
+    public void cachedResponseIsReturnedUntilNextUpdate() throws Exception
+    {
+        OCSPResponseCache cache = new OCSPResponseCache();
+
+        assertNull(cache.get(certificateID(1)));
+
+        cache.put(certificateID(1), validResponse(60000));
+
+        OCSPResponseDetails cached = cache.get(certificateID(1));
+        assertNotNull(cached);
+        assertTrue(cached.isValid());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void expiredResponsesAreNotCached() throws Exception
+    {
+        OCSPResponseCache cache = new OCSPResponseCache();
+        cache.put(certificateID(1), validResponse(-1000));
+
+        assertNull(cache.get(certificateID(1)));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void expiredResponsesAreServedAsStaleWithinGracePeriod() throws Exception
+    {
+        ManualClockResponseCache cache = new ManualClockResponseCache();
+
+        OCSPResponseDetails responseDetails = new OCSPResponseDetails();
+        responseDetails.setValid(true);
+        responseDetails.setThisUpdate(new Date(cache.getNow()));
+        responseDetails.setNextUpdate(new Date(cache.getNow() + 100));
+        cache.put(certificateID(1), responseDetails);
+
+        cache.advance(200);
+
+        assertNull(cache.get(certificateID(1)));
+
+        OCSPResponseDetails stale = cache.get(certificateID(1), 60000);
+        assertNotNull(stale);
+        assertTrue(stale.isStale());
+        assertEquals(200, stale.getStatusAge());
+        assertEquals(1, cache.getStaleHits());
+    }
+
+    @Test
+    public void leastRecentlyUsedEntriesAreEvicted() throws Exception
+    {
+        OCSPResponseCache cache = new OCSPResponseCache(2, OCSPResponseCache.DEFAULT_MAX_AGE);
+
+        cache.put(certificateID(1), validResponse(60000));
+        cache.put(certificateID(2), validResponse(60000));
+        cache.get(certificateID(1));
+        cache.put(certificateID(3), validResponse(60000));
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertNotNull(cache.get(certificateID(1)));
+        assertNull(cache.get(certificateID(2)));
+    }
+
+    private File createLogDirectory() throws Exception
+    {
+        File directory = File.createTempFile("ocspresponsecache", "");
+        directory.delete();
+
+        return directory;
+    }
+
+    @Test
+    public void loggedResponsesAreRestoredAfterRestart() throws Exception
+    {
+        File directory = createLogDirectory();
+
+        OCSPResponseCache cache = new OCSPResponseCache();
+        cache.setResponseLog(new OCSPResponseLog(directory));
+        cache.put(certificateID(1), validResponse(60000));
+        cache.getResponseLog().close();
+
+        OCSPResponseCache restarted = new OCSPResponseCache();
+        restarted.setResponseLog(new OCSPResponseLog(directory));
+
+        OCSPResponseDetails restored = restarted.get(certificateID(1));
+        assertNotNull(restored);
+        assertTrue(restored.isValid());
+        assertFalse(restored.isStale());
+
+        restarted.clear();
+        directory.delete();
+    }
+
+    @Test
+    public void removedResponsesAreNotRestoredAfterRestart() throws Exception
+    {
+        File directory = createLogDirectory();
+
+        OCSPResponseCache cache = new OCSPResponseCache();
+        cache.setResponseLog(new OCSPResponseLog(directory));
+        cache.put(certificateID(1), validResponse(60000));
+        cache.put(certificateID(2), validResponse(60000));
+        cache.remove(certificateID(1));
+        cache.getResponseLog().close();
+
+        OCSPResponseCache restarted = new OCSPResponseCache();
+        restarted.setResponseLog(new OCSPResponseLog(directory));
+
+        assertNull(restarted.get(certificateID(1)));
+        assertNotNull(restarted.get(certificateID(2)));
+
+        restarted.clear();
+        directory.delete();
+    }
+}
@@ -0,0 +1,214 @@
+package es.uji.apps.cryptoapplet.crypto.ocsp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OCSPResponseLogTest
+{
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    private File directory;
+    private OCSPResponseLog responseLog;
+    private long now;
+
+    @Before
+    public void init() throws Exception
+    {
+        directory = File.createTempFile("ocspresponselog", "");
+        directory.delete();
+
+        responseLog = new OCSPResponseLog(directory);
+        now = System.currentTimeMillis();
+    }
+
+    @After
+    public void cleanUp()
+    {
+        responseLog.clear();
+        directory.delete();
+    }
+
+    private OCSPResponseDetails response(boolean valid, String error)
+    {
+        ArrayList<String> errors = new ArrayList<String>();
+
+        if (error != null)
+        {
+            errors.add(error);
+        }
+
+        OCSPResponseDetails responseDetails = new OCSPResponseDetails(valid, errors, new byte[] {
+                1, 2, 3 });
+        responseDetails.setThisUpdate(new Date(now - HOUR));
+        responseDetails.setNextUpdate(new Date(now + HOUR));
+
+        return responseDetails;
+    }
+
+    @Test
+    public void appendedRecordsAreLoaded() throws Exception
+    {
+        responseLog.append("a", response(true, null), now + HOUR);
+        responseLog.append("b", response(false, "Certificate revoked"), now + HOUR);
+        responseLog.close();
+
+        Map<String, OCSPResponseLog.Record> records = new OCSPResponseLog(directory).load(now);
+
+        assertEquals(2, records.size());
+        assertTrue(records.get("a").getResponseDetails().isValid());
+        assertEquals(now + HOUR, records.get("a").getExpires());
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, records.get("a").getResponseDetails()
+                .getResponseData()));
+        assertEquals(new Date(now - HOUR), records.get("a").getResponseDetails().getThisUpdate());
+        assertEquals(new Date(now + HOUR), records.get("a").getResponseDetails().getNextUpdate());
+
+        assertFalse(records.get("b").getResponseDetails().isValid());
+        assertEquals(Arrays.asList("Certificate revoked"), records.get("b").getResponseDetails()
+                .getErrors());
+    }
+
+    @Test
+    public void revokedFlagIsLoaded() throws Exception
+    {
+        OCSPResponseDetails revoked = response(false, "Certificate revoked");
+        revoked.setRevoked(true);
+
+        responseLog.append("a", revoked, now + HOUR);
+        responseLog.append("b", response(false, "Unknown certificate"), now + HOUR);
+
+        Map<String, OCSPResponseLog.Record> records = responseLog.load(now);
+
+        assertTrue(records.get("a").getResponseDetails().isRevoked());
+        assertFalse(records.get("b").getResponseDetails().isRevoked());
+    }
+
+    @Test
+    public void recordsOfAnOlderVersionAreDiscarded() throws Exception
+    {
+        // Version 1 record, without version nor revoked flag
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream recordOut = new DataOutputStream(record);
+        recordOut.writeUTF("a");
+        recordOut.writeLong(now + HOUR);
+        recordOut.writeBoolean(false);
+        recordOut.writeLong(now - HOUR);
+        recordOut.writeLong(now + HOUR);
+        recordOut.writeInt(0);
+        recordOut.writeInt(-1);
+
+        directory.mkdirs();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(responseLog.getFile()));
+
+        try
+        {
+            out.writeInt(record.size());
+            out.writeInt(0x4f435350);
+            record.writeTo(out);
+        }
+        finally
+        {
+            out.close();
+        }
+
+        responseLog.append("b", response(true, null), now + HOUR);
+
+        Map<String, OCSPResponseLog.Record> records = responseLog.load(now);
+
+        assertEquals(1, records.size());
+        assertTrue(records.containsKey("b"));
+    }
+
+    @Test
+    public void lastRecordOfAKeyWins() throws Exception
+    {
+        responseLog.append("a", response(true, null), now + HOUR);
+        responseLog.append("a", response(false, "Certificate revoked"), now + 2 * HOUR);
+
+        OCSPResponseLog.Record record = responseLog.load(now).get("a");
+
+        assertFalse(record.getResponseDetails().isValid());
+        assertEquals(now + 2 * HOUR, record.getExpires());
+    }
+
+    @Test
+    public void expiredRecordsAreSkipped() throws Exception
+    {
+        responseLog.append("a", response(true, null), now + HOUR);
+        responseLog.append("b", response(true, null), now - 1);
+        responseLog.append("a", response(true, null), now - 1);
+
+        assertTrue(responseLog.load(now).isEmpty());
+    }
+
+    @Test
+    public void removedRecordsAreNotLoaded() throws Exception
+    {
+        responseLog.append("a", response(true, null), now + HOUR);
+        responseLog.append("b", response(true, null), now + HOUR);
+        responseLog.appendRemoval("a");
+
+        Map<String, OCSPResponseLog.Record> records = responseLog.load(now);
+
+        assertNull(records.get("a"));
+        assertEquals(1, records.size());
+    }
+
+    @Test
+    public void truncatedLastRecordIsIgnored() throws Exception
+    {
+        responseLog.append("a", response(true, null), now + HOUR);
+        responseLog.append("b", response(true, null), now + HOUR);
+        responseLog.close();
+
+        RandomAccessFile file = new RandomAccessFile(responseLog.getFile(), "rw");
+
+        try
+        {
+            file.setLength(file.length() - 5);
+        }
+        finally
+        {
+            file.close();
+        }
+
+        Map<String, OCSPResponseLog.Record> records = responseLog.load(now);
+
+        assertEquals(1, records.size());
+        assertTrue(records.containsKey("a"));
+    }
+
+    @Test
+    public void staleLogIsCompacted() throws Exception
+    {
+        for (int i = 0; i < 10; i++)
+        {
+            responseLog.append("a", response(true, null), now + HOUR);
+        }
+
+        long length = responseLog.getFile().length();
+
+        assertEquals(1, responseLog.load(now).size());
+        assertEquals(length / 10, responseLog.getFile().length());
+
+        responseLog.append("b", response(true, null), now + HOUR);
+
+        assertEquals(2, responseLog.load(now).size());
+    }
+}
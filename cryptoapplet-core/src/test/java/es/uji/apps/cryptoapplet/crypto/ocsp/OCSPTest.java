@@ -1,15 +1,33 @@
 package es.uji.apps.cryptoapplet.crypto.ocsp;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 import java.io.FileInputStream;
+import java.security.KeyPair;
 import java.security.KeyStore;
 import java.security.Provider;
 import java.security.Security;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.ocsp.CertificateID;
 import org.junit.Test;
 
+import es.uji.apps.cryptoapplet.config.model.RevocationService;
+import es.uji.apps.cryptoapplet.crypto.TestCertificates;
+
 public class OCSPTest
 {
     private void showStatus(OCSPResponseDetails responseDetails)
@@ -113,4 +131,148 @@ public class OCSPTest
         showStatus(oscp.getCertificateStatus(ocspURL, accvCifradoRevocado, accvCertificate,
                 ocspCertificate, provider));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void certificateStatusesAreMatchedToTheirIssuer() throws Exception
+    {
+        String ocspURL = "http://localhost:1/ocsp";
+
+        KeyPair caKeyPair = TestCertificates.generateKeyPair();
+        X509Certificate caCertificate = TestCertificates.generateCACertificate("CN=Test CA",
+                caKeyPair);
+
+        // Same name as the CA but a different key, and a CA with a different name
+
+        KeyPair otherKeyPair = TestCertificates.generateKeyPair();
+        X509Certificate sameNameCACertificate = TestCertificates.generateCACertificate(
+                "CN=Test CA", otherKeyPair);
+        X509Certificate otherCACertificate = TestCertificates.generateCACertificate(
+                "CN=Other CA", otherKeyPair);
+
+        KeyPair keyPair = TestCertificates.generateKeyPair();
+        X509Certificate certificate = TestCertificates.generateCertificate("CN=Issued by CA",
+                keyPair.getPublic(), caCertificate, caKeyPair.getPrivate(), ocspURL);
+        X509Certificate sameNameCertificate = TestCertificates.generateCertificate(
+                "CN=Issued by same name CA", keyPair.getPublic(), sameNameCACertificate,
+                otherKeyPair.getPrivate(), ocspURL);
+        X509Certificate otherCertificate = TestCertificates.generateCertificate(
+                "CN=Issued by other CA", keyPair.getPublic(), otherCACertificate,
+                otherKeyPair.getPrivate(), ocspURL);
+
+        // Only the status of the certificate issued by the CA is cached, so nothing is sent
+
+        OCSPResponseDetails cachedDetails = new OCSPResponseDetails();
+        cachedDetails.setValid(true);
+        cachedDetails.setThisUpdate(new Date());
+        cachedDetails.setNextUpdate(new Date(System.currentTimeMillis() + 60000));
+
+        OCSPChecker.getResponseCache().put(
+                new CertificateID(CertificateID.HASH_SHA1, caCertificate, certificate
+                        .getSerialNumber()), cachedDetails);
+
+        Map<X509Certificate, OCSPResponseDetails> statuses = new OCSPChecker()
+                .getCertificateStatuses(Arrays.asList(certificate, sameNameCertificate,
+                        otherCertificate), Collections.singletonList(caCertificate), null,
+                        new BouncyCastleProvider());
+
+        assertEquals(Arrays.asList(certificate, sameNameCertificate, otherCertificate),
+                Arrays.asList(statuses.keySet().toArray()));
+        assertTrue(statuses.get(certificate).isValid());
+        assertFalse(statuses.get(sameNameCertificate).isValid());
+        assertTrue(statuses.get(sameNameCertificate).getErrors().get(0)
+                .startsWith("Can not find CA certificate"));
+        assertFalse(statuses.get(otherCertificate).isValid());
+        assertTrue(statuses.get(otherCertificate).getErrors().get(0)
+                .startsWith("Can not find CA certificate"));
+    }
+
+    @Test
+    public void staleStatusIsServedWhileASingleRefreshRuns() throws Exception
+    {
+        String ocspURL = "http://localhost:1/ocsp";
+
+        KeyPair caKeyPair = TestCertificates.generateKeyPair();
+        X509Certificate caCertificate = TestCertificates.generateCACertificate("CN=Stale CA",
+                caKeyPair);
+        X509Certificate certificate = TestCertificates.generateCertificate("CN=Stale",
+                TestCertificates.generateKeyPair().getPublic(), caCertificate, caKeyPair
+                        .getPrivate(), ocspURL);
+
+        ManualClockResponseCache responseCache = new ManualClockResponseCache();
+
+        OCSPResponseDetails cachedDetails = new OCSPResponseDetails();
+        cachedDetails.setValid(true);
+        cachedDetails.setThisUpdate(new Date(responseCache.getNow()));
+        cachedDetails.setNextUpdate(new Date(responseCache.getNow() + 60000));
+        responseCache.put(new CertificateID(CertificateID.HASH_SHA1, caCertificate, certificate
+                .getSerialNumber()), cachedDetails);
+        responseCache.advance(120000);
+
+        // The refresh thread is kept busy, so the refreshes stay queued until it is released
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch executed = new CountDownLatch(2);
+
+        ThreadPoolExecutor refreshExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>())
+        {
+            @Override
+            protected void afterExecute(Runnable runnable, Throwable throwable)
+            {
+                executed.countDown();
+            }
+        };
+        refreshExecutor.execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        OCSPResponseCache previousCache = OCSPChecker.getResponseCache();
+        ExecutorService previousExecutor = OCSPChecker.getRefreshExecutor();
+        OCSPChecker.setResponseCache(responseCache);
+        OCSPChecker.setRefreshExecutor(refreshExecutor);
+
+        try
+        {
+            RevocationService revocationService = new RevocationService();
+            revocationService.setStaleGracePeriod(300);
+            OCSPChecker checker = new OCSPChecker(revocationService);
+
+            for (int i = 0; i < 2; i++)
+            {
+                OCSPResponseDetails responseDetails = checker.getCertificateStatus(ocspURL,
+                        certificate, caCertificate, null, new BouncyCastleProvider());
+
+                assertTrue(responseDetails.isValid());
+                assertTrue(responseDetails.isStale());
+                assertEquals(120000, responseDetails.getStatusAge());
+            }
+
+            assertEquals(1, refreshExecutor.getQueue().size());
+
+            // The responder is unreachable, so the stale status is kept after the refresh
+
+            release.countDown();
+            assertTrue(executed.await(10, TimeUnit.SECONDS));
+
+            assertTrue(responseCache.get(new CertificateID(CertificateID.HASH_SHA1,
+                    caCertificate, certificate.getSerialNumber()), 300000).isStale());
+        }
+        finally
+        {
+            OCSPChecker.setResponseCache(previousCache);
+            OCSPChecker.setRefreshExecutor(previousExecutor);
+            refreshExecutor.shutdownNow();
+        }
+    }
+}
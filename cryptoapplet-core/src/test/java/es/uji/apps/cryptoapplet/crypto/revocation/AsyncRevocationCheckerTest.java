@@ -0,0 +1,209 @@
+package es.uji.apps.cryptoapplet.crypto.revocation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.security.KeyPair;
+import java.security.Provider;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.ocsp.CertificateID;
+import org.junit.Before;
+import org.junit.Test;
+
+import es.uji.apps.cryptoapplet.crypto.TestCertificates;
+import es.uji.apps.cryptoapplet.crypto.ocsp.OCSPChecker;
+import es.uji.apps.cryptoapplet.crypto.ocsp.OCSPResponseDetails;
+
+public class AsyncRevocationCheckerTest
+{
+    private static final String OCSP_URL = "http://localhost:1/ocsp";
+
+    private final AtomicInteger executedTasks = new AtomicInteger();
+    private final Provider provider = new BouncyCastleProvider();
+
+    private KeyPair caKeyPair;
+    private X509Certificate caCertificate;
+    private ExecutorService executor;
+
+    @Before
+    public void init() throws Exception
+    {
+        caKeyPair = TestCertificates.generateKeyPair();
+        caCertificate = TestCertificates.generateCACertificate("CN=Async Test CA", caKeyPair);
+
+        executor = new ThreadPoolExecutor(2, 2, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>())
+        {
+            @Override
+            protected void beforeExecute(Thread thread, Runnable runnable)
+            {
+                executedTasks.incrementAndGet();
+            }
+        };
+    }
+
+    /**
+     * A certificate whose good status is already cached, so no responder is contacted
+     */
+    private X509Certificate cachedCertificate(KeyPair keyPair) throws Exception
+    {
+        X509Certificate certificate = TestCertificates.generateCertificate("CN=Async Test",
+                keyPair.getPublic(), caCertificate, caKeyPair.getPrivate(), OCSP_URL);
+
+        OCSPResponseDetails responseDetails = new OCSPResponseDetails();
+        responseDetails.setValid(true);
+        responseDetails.setThisUpdate(new Date());
+        responseDetails.setNextUpdate(new Date(System.currentTimeMillis() + 60000));
+
+        OCSPChecker.getResponseCache().put(
+                new CertificateID(CertificateID.HASH_SHA1, caCertificate, certificate
+                        .getSerialNumber()), responseDetails);
+
+        return certificate;
+    }
+
+    @Test
+    public void callbackReceivesTheResult() throws Exception
+    {
+        AsyncRevocationChecker checker = new AsyncRevocationChecker(executor);
+        X509Certificate certificate = cachedCertificate(TestCertificates.generateKeyPair());
+
+        final CountDownLatch called = new CountDownLatch(1);
+        final AtomicReference<OCSPResponseDetails> result = new AtomicReference<OCSPResponseDetails>();
+
+        Future<OCSPResponseDetails> future = checker.getOCSPStatus(OCSP_URL, certificate,
+                caCertificate, null, provider, new RevocationCallback<OCSPResponseDetails>()
+                {
+                    public void onResult(OCSPResponseDetails responseDetails)
+                    {
+                        result.set(responseDetails);
+                        called.countDown();
+                    }
+
+                    public void onError(Throwable exception)
+                    {
+                        called.countDown();
+                    }
+                });
+
+        assertTrue(called.await(10, TimeUnit.SECONDS));
+        assertTrue(result.get().isValid());
+        assertTrue(future.get().isValid());
+        assertEquals(1, executedTasks.get());
+
+        checker.shutdown();
+    }
+
+    @Test
+    public void callbackReceivesTheErrors() throws Exception
+    {
+        AsyncRevocationChecker checker = new AsyncRevocationChecker(executor);
+
+        final CountDownLatch called = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+        // Without a certificate the check fails before any request is sent
+
+        checker.getOCSPStatus(OCSP_URL, null, caCertificate, null, provider,
+                new RevocationCallback<OCSPResponseDetails>()
+                {
+                    public void onResult(OCSPResponseDetails responseDetails)
+                    {
+                        called.countDown();
+                    }
+
+                    public void onError(Throwable exception)
+                    {
+                        error.set(exception);
+                        called.countDown();
+                    }
+                });
+
+        assertTrue(called.await(10, TimeUnit.SECONDS));
+        assertTrue(error.get() instanceof NullPointerException);
+
+        checker.shutdown();
+    }
+
+    @Test
+    public void statusesAreCheckedInBatches() throws Exception
+    {
+        AsyncRevocationChecker checker = new AsyncRevocationChecker(executor);
+        KeyPair keyPair = TestCertificates.generateKeyPair();
+        List<X509Certificate> certificates = new ArrayList<X509Certificate>();
+
+        for (int i = 0; i < OCSPChecker.MAX_REQUESTS_PER_MESSAGE + 1; i++)
+        {
+            certificates.add(cachedCertificate(keyPair));
+        }
+
+        List<Future<OCSPResponseDetails>> statuses = checker.getOCSPStatuses(certificates,
+                caCertificate, null, provider);
+
+        assertEquals(certificates.size(), statuses.size());
+
+        for (Future<OCSPResponseDetails> status : statuses)
+        {
+            assertTrue(status.get(10, TimeUnit.SECONDS).isValid());
+        }
+
+        assertEquals(2, executedTasks.get());
+
+        checker.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void rejectedChecksFailInsteadOfRunningOnTheCaller() throws Exception
+    {
+        AsyncRevocationChecker checker = new AsyncRevocationChecker(executor);
+        X509Certificate certificate = cachedCertificate(TestCertificates.generateKeyPair());
+
+        executor.shutdown();
+
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+        Future<OCSPResponseDetails> future = checker.getOCSPStatus(OCSP_URL, certificate,
+                caCertificate, null, provider, new RevocationCallback<OCSPResponseDetails>()
+                {
+                    public void onResult(OCSPResponseDetails responseDetails)
+                    {
+                    }
+
+                    public void onError(Throwable exception)
+                    {
+                        error.set(exception);
+                    }
+                });
+
+        assertTrue(future.isDone());
+        assertTrue(error.get() instanceof RejectedExecutionException);
+        assertEquals(0, executedTasks.get());
+
+        try
+        {
+            future.get();
+            fail();
+        }
+        catch (ExecutionException e)
+        {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package es.uji.apps.cryptoapplet.crypto.revocation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import es.uji.apps.cryptoapplet.config.model.Configuration;
+import es.uji.apps.cryptoapplet.config.model.RevocationServiceRegistry;
+import es.uji.apps.cryptoapplet.crypto.crl.CRLChecker;
+import es.uji.apps.cryptoapplet.crypto.crl.CRLDiskCache;
+import es.uji.apps.cryptoapplet.crypto.ocsp.OCSPChecker;
+import es.uji.apps.cryptoapplet.crypto.ocsp.OCSPResponseLog;
+
+public class RevocationDiskStoreTest
+{
+    private File directory;
+
+    @Before
+    public void init() throws Exception
+    {
+        directory = File.createTempFile("revocationdiskstore", "");
+        directory.delete();
+    }
+
+    @After
+    public void cleanUp()
+    {
+        RevocationDiskStore.disable();
+
+        new File(directory, "crl").delete();
+        new File(directory, "ocsp").delete();
+        directory.delete();
+    }
+
+    private Configuration createConfiguration(String cacheDirectory)
+    {
+        RevocationServiceRegistry registry = new RevocationServiceRegistry();
+        registry.setCacheDirectory(cacheDirectory);
+
+        Configuration configuration = new Configuration();
+        configuration.setRevocationServicesRegistry(registry);
+
+        return configuration;
+    }
+
+    @Test
+    public void cacheDirectoryOfTheConfigurationIsUsed() throws Exception
+    {
+        RevocationDiskStore.enable(createConfiguration(directory.getPath()));
+
+        assertEquals(new File(directory, "crl"), CRLChecker.getStore().getDiskCache()
+                .getDirectory());
+        assertEquals(new File(new File(directory, "ocsp"), "ocsp-responses.log"), OCSPChecker
+                .getResponseCache().getResponseLog().getFile());
+    }
+
+    @Test
+    public void enablingTheSameDirectoryKeepsTheCurrentState() throws Exception
+    {
+        RevocationDiskStore.enable(createConfiguration(directory.getPath()));
+
+        CRLDiskCache diskCache = CRLChecker.getStore().getDiskCache();
+        OCSPResponseLog responseLog = OCSPChecker.getResponseCache().getResponseLog();
+
+        RevocationDiskStore.enable(createConfiguration(directory.getPath()));
+
+        assertSame(diskCache, CRLChecker.getStore().getDiskCache());
+        assertSame(responseLog, OCSPChecker.getResponseCache().getResponseLog());
+    }
+
+    @Test
+    public void nothingIsPersistedWithoutCacheDirectory() throws Exception
+    {
+        RevocationDiskStore.enable(createConfiguration(null));
+
+        assertNull(CRLChecker.getStore().getDiskCache());
+        assertNull(OCSPChecker.getResponseCache().getResponseLog());
+    }
+
+    @Test
+    public void disablingDetachesTheStores() throws Exception
+    {
+        RevocationDiskStore.enable(directory);
+        assertNotNull(CRLChecker.getStore().getDiskCache());
+
+        RevocationDiskStore.disable();
+
+        assertNull(CRLChecker.getStore().getDiskCache());
+        assertNull(OCSPChecker.getResponseCache().getResponseLog());
+    }
+}
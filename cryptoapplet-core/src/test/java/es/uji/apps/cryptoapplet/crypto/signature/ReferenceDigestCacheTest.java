@@ -0,0 +1,65 @@
+package es.uji.apps.cryptoapplet.crypto.signature;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ReferenceDigestCacheTest
+{
+    @Test
+    public void digestIsCalculatedOncePerKey() throws Exception
+    {
+        ReferenceDigestCache cache = new ReferenceDigestCache();
+        final AtomicInteger calculations = new AtomicInteger();
+
+        Callable<byte[]> calculation = new Callable<byte[]>()
+        {
+            public byte[] call()
+            {
+                calculations.incrementAndGet();
+                return new byte[] { 1, 2, 3 };
+            }
+        };
+
+        for (int i = 0; i < 5; i++)
+        {
+            assertArrayEquals(new byte[] { 1, 2, 3 }, cache.getDigest("|sha1", calculation));
+        }
+
+        assertEquals(1, calculations.get());
+        assertEquals(4, cache.getHits());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, cache.get("|sha1"));
+        assertNull(cache.get("#D0|sha1"));
+    }
+
+    @Test
+    public void failedCalculationsAreNotCached() throws Exception
+    {
+        ReferenceDigestCache cache = new ReferenceDigestCache();
+
+        try
+        {
+            cache.getDigest("|sha1", new Callable<byte[]>()
+            {
+                public byte[] call() throws Exception
+                {
+                    throw new IllegalStateException("Can not dereference");
+                }
+            });
+
+            fail();
+        }
+        catch (IllegalStateException e)
+        {
+        }
+
+        assertEquals(0, cache.size());
+        assertNull(cache.get("|sha1"));
+    }
+}
@@ -0,0 +1,95 @@
+package es.uji.apps.cryptoapplet.crypto.timestamp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class MerkleTimeStamperTest
+{
+    private final AtomicInteger tokenRequests = new AtomicInteger();
+
+    // The "token" is the stamped root itself, so inclusion can be checked without a TSA
+
+    private final MerkleTimeStamper.TokenSource rootEcho = new MerkleTimeStamper.TokenSource()
+    {
+        public byte[] getTimeStamp(String digestAlgorithmOID, byte[] digest)
+        {
+            tokenRequests.incrementAndGet();
+            return digest;
+        }
+    };
+
+    @Test
+    public void concurrentDigestsShareOneTokenWithValidPaths() throws Exception
+    {
+        final MerkleTimeStamper timeStamper = new MerkleTimeStamper(rootEcho, 10000, 37);
+        ExecutorService executor = Executors.newFixedThreadPool(37);
+        List<Future<AggregatedTimeStamp>> results = new ArrayList<Future<AggregatedTimeStamp>>();
+
+        for (int i = 0; i < 37; i++)
+        {
+            final byte[] digest = digest(i);
+
+            results.add(executor.submit(new Callable<AggregatedTimeStamp>()
+            {
+                public AggregatedTimeStamp call() throws Exception
+                {
+                    return timeStamper.getTimeStamp(digest);
+                }
+            }));
+        }
+
+        byte[] root = results.get(0).get().getToken();
+
+        for (int i = 0; i < 37; i++)
+        {
+            AggregatedTimeStamp timeStamp = results.get(i).get();
+
+            assertArrayEquals(root, timeStamp.getToken());
+            assertTrue(timeStamp.verify(digest(i), root));
+            assertFalse(timeStamp.verify(digest(i + 100), root));
+        }
+
+        assertEquals(1, tokenRequests.get());
+        assertEquals(1, timeStamper.getBatches());
+
+        executor.shutdown();
+        timeStamper.shutdown();
+    }
+
+    @Test
+    public void partialBatchIsSentWhenWindowEnds() throws Exception
+    {
+        MerkleTimeStamper timeStamper = new MerkleTimeStamper(rootEcho, 20, 1000);
+
+        AggregatedTimeStamp timeStamp = timeStamper.getTimeStamp(digest(1));
+
+        assertTrue(timeStamp.getPath().isEmpty());
+        assertTrue(timeStamp.verify(digest(1), timeStamp.getToken()));
+
+        AggregatedTimeStamp decoded = AggregatedTimeStamp.getInstance(timeStamp.getEncoded());
+        assertTrue(decoded.verify(digest(1), timeStamp.getToken()));
+
+        timeStamper.shutdown();
+    }
+
+    private byte[] digest(int value)
+    {
+        byte[] digest = new byte[32];
+        digest[0] = (byte) value;
+        digest[31] = (byte) (value >> 8);
+
+        return digest;
+    }
+}
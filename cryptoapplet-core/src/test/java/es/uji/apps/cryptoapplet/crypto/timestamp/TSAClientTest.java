@@ -0,0 +1,166 @@
+package es.uji.apps.cryptoapplet.crypto.timestamp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import es.uji.apps.cryptoapplet.utils.HttpTransport;
+
+public class TSAClientTest
+{
+    private static final String FIRST = "http://first.tsa.test/tsa";
+    private static final String SECOND = "http://second.tsa.test/tsa";
+    private static final String OID = "1.3.14.3.2.26";
+    private static final byte[] DIGEST = new byte[] { 1, 2, 3 };
+
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+    private TSAClient client;
+
+    @After
+    public void shutdown()
+    {
+        if (client != null)
+        {
+            client.shutdown();
+        }
+    }
+
+    /**
+     * Answers with the TSA URL as token once the given number of requests have failed
+     */
+    private TSAClient.TokenSource failing(final int failures, final String answeringURL)
+    {
+        return new TSAClient.TokenSource()
+        {
+            public byte[] getTimeStamp(String tsaURL, String digestAlgorithmOID, byte[] digest)
+                    throws Exception
+            {
+                requests.add(tsaURL);
+
+                if (requests.size() <= failures || !tsaURL.equals(answeringURL))
+                {
+                    throw new IOException("TSA " + tsaURL + " unavailable");
+                }
+
+                return tsaURL.getBytes();
+            }
+        };
+    }
+
+    private TSAClient createClient(TSAClient.TokenSource tokenSource)
+    {
+        client = new TSAClient(Arrays.asList(FIRST, SECOND), tokenSource);
+        client.setInitialBackoff(1);
+
+        return client;
+    }
+
+    @Test
+    public void failedTSAFallsBackToTheNextOne() throws Exception
+    {
+        byte[] token = createClient(failing(0, SECOND)).getTimeStamp(OID, DIGEST, 10000);
+
+        assertArrayEquals(SECOND.getBytes(), token);
+        assertEquals(Arrays.asList(FIRST, SECOND), requests);
+    }
+
+    @Test
+    public void everyTSAIsRetriedAfterARoundFails() throws Exception
+    {
+        byte[] token = createClient(failing(2, FIRST)).getTimeStamp(OID, DIGEST, 10000);
+
+        assertArrayEquals(FIRST.getBytes(), token);
+        assertEquals(Arrays.asList(FIRST, SECOND, FIRST), requests);
+    }
+
+    @Test
+    public void lastErrorIsReportedWhenEveryAttemptFails() throws Exception
+    {
+        TSAClient client = createClient(failing(Integer.MAX_VALUE, FIRST));
+        client.setMaxRetries(1);
+
+        try
+        {
+            client.getTimeStamp(OID, DIGEST, 10000);
+            fail("No TSA answered");
+        }
+        catch (CryptoCoreTimeStampException e)
+        {
+            assertEquals("TSA " + SECOND + " unavailable", e.getCause().getMessage());
+            assertEquals(4, requests.size());
+        }
+    }
+
+    @Test
+    public void requestsForTheSameDigestAreCoalesced() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+
+        TSAClient client = createClient(new TSAClient.TokenSource()
+        {
+            public byte[] getTimeStamp(String tsaURL, String digestAlgorithmOID, byte[] digest)
+                    throws Exception
+            {
+                requests.add(tsaURL);
+                release.await();
+
+                return digest;
+            }
+        });
+
+        Future<byte[]> first = client.getTimeStampAsync(OID, DIGEST);
+        Future<byte[]> second = client.getTimeStampAsync(OID, new byte[] { 1, 2, 3 });
+        Future<byte[]> other = client.getTimeStampAsync(OID, new byte[] { 4, 5, 6 });
+
+        assertSame(first, second);
+
+        release.countDown();
+
+        assertArrayEquals(DIGEST, first.get(10, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[] { 4, 5, 6 }, other.get(10, TimeUnit.SECONDS));
+        assertEquals(2, requests.size());
+    }
+
+    @Test
+    public void noTSAConfiguredIsAnError() throws Exception
+    {
+        client = new TSAClient(Collections.<String> emptyList(), failing(0, FIRST));
+
+        try
+        {
+            client.getTimeStamp(OID, DIGEST, 10000);
+            fail("No TSA configured");
+        }
+        catch (CryptoCoreTimeStampException e)
+        {
+            assertEquals("No TSA configured", e.getMessage());
+        }
+    }
+
+    @Test
+    public void timeoutsKeepTheConnectionLimitOfTheHost() throws Exception
+    {
+        HttpTransport.getInstance().configure(FIRST, 1000, 2000, 3);
+
+        createClient(failing(0, FIRST)).setTimeouts(4000, 5000);
+
+        HttpTransport.Endpoint endpoint = HttpTransport.getInstance().getEndpoint(FIRST);
+
+        assertEquals(4000, endpoint.getConnectTimeout());
+        assertEquals(5000, endpoint.getReadTimeout());
+        assertEquals(3, endpoint.getMaxConnections());
+    }
+}
@@ -0,0 +1,242 @@
+package es.uji.apps.cryptoapplet.crypto.timestamp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.cert.CertStore;
+import java.security.cert.CollectionCertStoreParameters;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.tsp.TSPAlgorithms;
+import org.bouncycastle.tsp.TimeStampRequest;
+import org.bouncycastle.tsp.TimeStampRequestGenerator;
+import org.bouncycastle.tsp.TimeStampTokenGenerator;
+import org.junit.Before;
+import org.junit.Test;
+
+import es.uji.apps.cryptoapplet.config.model.CertificationAuthority;
+import es.uji.apps.cryptoapplet.config.model.CertificationAuthorityRegistry;
+import es.uji.apps.cryptoapplet.config.model.Configuration;
+import es.uji.apps.cryptoapplet.config.model.TimestampingService;
+import es.uji.apps.cryptoapplet.config.model.TimestampingServiceRegistry;
+import es.uji.apps.cryptoapplet.crypto.TestCertificates;
+
+public class TimeStampTokenValidatorTest
+{
+    private static final long DAY = TestCertificates.DAY;
+
+    private final Map<String, X509Certificate> keystore = new HashMap<String, X509Certificate>();
+    private KeyPair caKeyPair;
+    private KeyPair tsaKeyPair;
+    private byte[] digest;
+    private TimestampingService timestampingService;
+    private TimeStampTokenValidator validator;
+
+    @Before
+    public void init() throws Exception
+    {
+        caKeyPair = TestCertificates.generateKeyPair();
+        tsaKeyPair = TestCertificates.generateKeyPair();
+        digest = MessageDigest.getInstance("SHA-1").digest("data".getBytes());
+
+        timestampingService = new TimestampingService();
+        timestampingService.setId("tsa");
+        timestampingService.setCertificateAlias("tsa");
+        timestampingService.setCaId("ca");
+
+        TimestampingServiceRegistry timestampingServiceRegistry = new TimestampingServiceRegistry();
+        timestampingServiceRegistry.setTimestampingServices(new ArrayList<TimestampingService>(
+                Collections.singletonList(timestampingService)));
+
+        CertificationAuthority certificationAuthority = new CertificationAuthority();
+        certificationAuthority.setId("ca");
+        certificationAuthority.setCertificateAlias("ca");
+
+        CertificationAuthorityRegistry authorityRegistry = new CertificationAuthorityRegistry();
+        authorityRegistry.setCertificationAuthorities(new ArrayList<CertificationAuthority>(
+                Collections.singletonList(certificationAuthority)));
+
+        Configuration configuration = new Configuration();
+        configuration.setTimestampingServicesRegistry(timestampingServiceRegistry);
+        configuration.setCertificationAuthoritiesRegistry(authorityRegistry);
+
+        // Certificates come from the map instead of the configured keystore
+
+        validator = new TimeStampTokenValidator(configuration, new BouncyCastleProvider())
+        {
+            @Override
+            X509Certificate readCertificate(String alias) throws Exception
+            {
+                return keystore.get(alias);
+            }
+        };
+    }
+
+    private void createCertificates(long caNotBefore, long tsaNotBefore, long tsaNotAfter)
+            throws Exception
+    {
+        long now = System.currentTimeMillis();
+
+        X509Certificate caCertificate = TestCertificates.generateCertificate(
+                "CN=Timestamp Test CA", caKeyPair.getPublic(), null, caKeyPair.getPrivate(),
+                null, null, new Date(now + caNotBefore), new Date(now + 365 * DAY));
+        X509Certificate tsaCertificate = TestCertificates.generateCertificate(
+                "CN=Timestamp Test TSA", tsaKeyPair.getPublic(), caCertificate, caKeyPair
+                        .getPrivate(), null, KeyPurposeId.id_kp_timeStamping, new Date(now
+                        + tsaNotBefore), new Date(now + tsaNotAfter));
+
+        keystore.put("ca", caCertificate);
+        keystore.put("tsa", tsaCertificate);
+    }
+
+    private byte[] generateToken(byte[] digest, Date genTime) throws Exception
+    {
+        X509Certificate tsaCertificate = keystore.get("tsa");
+
+        TimeStampTokenGenerator generator = new TimeStampTokenGenerator(tsaKeyPair.getPrivate(),
+                tsaCertificate, TSPAlgorithms.SHA1, "1.2.3.4");
+        generator.setCertificatesAndCRLs(CertStore.getInstance("Collection",
+                new CollectionCertStoreParameters(Collections.singletonList(tsaCertificate)),
+                "BC"));
+
+        TimeStampRequest request = new TimeStampRequestGenerator().generate(TSPAlgorithms.SHA1,
+                digest);
+
+        return generator.generate(request, BigInteger.ONE, genTime, "BC").getEncoded();
+    }
+
+    private static Date daysAgo(int days)
+    {
+        return new Date(System.currentTimeMillis() - days * DAY);
+    }
+
+    private void assertInvalid(byte[] token, byte[] digest) throws Exception
+    {
+        try
+        {
+            validator.validate(token, digest, "tsa");
+            fail("Timestamp token should not be valid");
+        }
+        catch (CryptoCoreTimeStampException e)
+        {
+            // Expected
+        }
+    }
+
+    @Test
+    public void validTokenIsAccepted() throws Exception
+    {
+        createCertificates(-30 * DAY, -10 * DAY, 365 * DAY);
+
+        assertArrayEquals(digest, validator.validate(generateToken(digest, new Date()), digest,
+                "tsa").getMessageImprintDigest());
+    }
+
+    @Test
+    public void tokenIssuedBeforeTheTSACertificateExpiredIsAccepted() throws Exception
+    {
+        createCertificates(-30 * DAY, -10 * DAY, -DAY);
+
+        Date genTime = daysAgo(5);
+
+        assertEquals(genTime.getTime() / 1000, validator.validate(generateToken(digest,
+                genTime), digest, "tsa").getGenTime().getTime() / 1000);
+    }
+
+    @Test
+    public void tokenIssuedAfterTheTSACertificateExpiredIsRejected() throws Exception
+    {
+        createCertificates(-30 * DAY, -10 * DAY, -DAY);
+
+        assertInvalid(generateToken(digest, new Date()), digest);
+    }
+
+    @Test
+    public void chainIsValidatedAtEveryDate() throws Exception
+    {
+        createCertificates(-30 * DAY, -10 * DAY, DAY);
+
+        assertEquals(2, validator.getChain(timestampingService, new Date()).size());
+
+        try
+        {
+            validator.getChain(timestampingService, new Date(System.currentTimeMillis() + 2
+                    * DAY));
+            fail("TSA certificate has expired at that date");
+        }
+        catch (CryptoCoreTimeStampException e)
+        {
+            // Expected
+        }
+    }
+
+    @Test
+    public void chainIsNotValidBeforeEveryCertificateIs() throws Exception
+    {
+        createCertificates(-30 * DAY, -10 * DAY, DAY);
+
+        try
+        {
+            validator.getChain(timestampingService, daysAgo(20));
+            fail("TSA certificate is not valid yet at that date");
+        }
+        catch (CryptoCoreTimeStampException e)
+        {
+            // Expected
+        }
+    }
+
+    @Test
+    public void unknownTSAIsRejected() throws Exception
+    {
+        createCertificates(-30 * DAY, -10 * DAY, 365 * DAY);
+
+        try
+        {
+            validator.validate(generateToken(digest, new Date()), digest, "other");
+            fail("TSA is not configured");
+        }
+        catch (CryptoCoreTimeStampException e)
+        {
+            assertEquals("Unknown TSA other", e.getMessage());
+        }
+    }
+
+    @Test
+    public void unknownCAIsRejected() throws Exception
+    {
+        createCertificates(-30 * DAY, -10 * DAY, 365 * DAY);
+        timestampingService.setCaId("other");
+
+        try
+        {
+            validator.validate(generateToken(digest, new Date()), digest, "tsa");
+            fail("CA is not configured");
+        }
+        catch (CryptoCoreTimeStampException e)
+        {
+            assertEquals("Unknown CA other for TSA tsa", e.getMessage());
+        }
+    }
+
+    @Test
+    public void tokenOfOtherDataIsRejected() throws Exception
+    {
+        createCertificates(-30 * DAY, -10 * DAY, 365 * DAY);
+
+        byte[] otherDigest = MessageDigest.getInstance("SHA-1").digest("other".getBytes());
+
+        assertInvalid(generateToken(otherDigest, new Date()), digest);
+    }
+}
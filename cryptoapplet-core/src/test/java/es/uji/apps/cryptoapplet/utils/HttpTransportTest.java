@@ -0,0 +1,160 @@
+package es.uji.apps.cryptoapplet.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpTransportTest
+{
+    private static final byte[] CONTENT = "signed content".getBytes();
+
+    private HttpServer server;
+    private String baseURL;
+
+    @Before
+    public void init() throws Exception
+    {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/plain", new ContentHandler(CONTENT, null));
+        server.createContext("/base64", new ContentHandler(Base64.encodeBytes(CONTENT)
+                .getBytes(), "base64"));
+        server.start();
+
+        baseURL = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void shutdown()
+    {
+        server.stop(0);
+    }
+
+    private static class ContentHandler implements HttpHandler
+    {
+        private final byte[] body;
+        private final String contentEncoding;
+
+        public ContentHandler(byte[] body, String contentEncoding)
+        {
+            this.body = body;
+            this.contentEncoding = contentEncoding;
+        }
+
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            if (contentEncoding != null)
+            {
+                exchange.getResponseHeaders().set("Content-Encoding", contentEncoding);
+            }
+
+            exchange.sendResponseHeaders(200, body.length);
+
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+    }
+
+    private static byte[] read(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int length;
+
+        while ((length = in.read(buffer)) >= 0)
+        {
+            out.write(buffer, 0, length);
+        }
+
+        return out.toByteArray();
+    }
+
+    @Test
+    public void bodyIsReturnedAsSent() throws Exception
+    {
+        byte[] encoded = Base64.encodeBytes(CONTENT).getBytes();
+
+        assertTrue(Arrays.equals(CONTENT, HttpTransport.getInstance().get(baseURL + "/plain")));
+        assertTrue(Arrays.equals(encoded, HttpTransport.getInstance().get(baseURL + "/base64")));
+    }
+
+    @Test
+    public void base64ContentEncodingIsOnlyDecodedOnRequest() throws Exception
+    {
+        byte[] body = HttpTransport.getInstance().execute(baseURL + "/base64", "GET",
+                Collections.<String, String> emptyMap(), null, new HttpTransport.BodyHandler(
+                        true));
+
+        assertTrue(Arrays.equals(CONTENT, body));
+    }
+
+    @Test
+    public void bodyIsStreamedFromATemporaryFile() throws Exception
+    {
+        InputStream in = HttpTransport.getInstance().execute(baseURL + "/plain", "GET",
+                Collections.<String, String> emptyMap(), null,
+                new HttpTransport.TempFileHandler());
+
+        try
+        {
+            assertTrue(Arrays.equals(CONTENT, read(in)));
+        }
+        finally
+        {
+            in.close();
+        }
+
+        assertEquals(0, HttpTransport.getInstance().getEndpoint(baseURL).getActiveConnections());
+    }
+
+    @Test
+    public void reconfiguredHostKeepsItsConnectionsAndCounters() throws Exception
+    {
+        final HttpTransport transport = new HttpTransport();
+        transport.get(baseURL + "/plain");
+
+        HttpTransport.Endpoint endpoint = transport.getEndpoint(baseURL);
+
+        // Reconfigured while a request holds a connection
+
+        int active = transport.execute(baseURL + "/plain", "GET", Collections
+                .<String, String> emptyMap(), null, new HttpTransport.ResponseHandler<Integer>()
+        {
+            public Integer handle(HttpURLConnection connection, InputStream body)
+                    throws IOException
+            {
+                transport.configure(baseURL, 1000, 2000, 1);
+                return transport.getEndpoint(baseURL).getActiveConnections();
+            }
+        });
+
+        assertEquals(1, active);
+        assertSame(endpoint, transport.getEndpoint(baseURL));
+        assertEquals(2, endpoint.getRequests());
+        assertEquals(0, endpoint.getActiveConnections());
+        assertEquals(1, endpoint.getMaxConnections());
+        assertEquals(2000, endpoint.getReadTimeout());
+
+        transport.get(baseURL + "/plain");
+
+        assertEquals(3, endpoint.getRequests());
+        assertEquals(0, endpoint.getActiveConnections());
+    }
+}
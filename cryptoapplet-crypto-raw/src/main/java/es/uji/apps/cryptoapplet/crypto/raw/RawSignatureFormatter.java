@@ -1,6 +1,7 @@
 package es.uji.apps.cryptoapplet.crypto.raw;
 
 import es.uji.apps.cryptoapplet.crypto.exceptions.SignatureException;
+import es.uji.apps.cryptoapplet.crypto.signature.SignatureAlgorithm;
 import es.uji.apps.cryptoapplet.crypto.signature.format.AbstractSignatureFormatter;
 import es.uji.apps.cryptoapplet.crypto.signature.format.SignatureFormatter;
 import es.uji.apps.cryptoapplet.crypto.signature.format.SignatureOptions;
@@ -28,11 +29,14 @@ public class RawSignatureFormatter extends AbstractSignatureFormatter implements
 
         try
         {
-            Signature rsa = Signature.getInstance("SHA1withRSA", provider);
-            rsa.initSign(privateKey);
-            rsa.update(data);
+            SignatureAlgorithm signatureAlgorithm = getSignatureAlgorithm(signatureOptions,
+                    getFormatOptions(signatureOptions, "RAW"));
 
-            return rsa.sign();
+            Signature signature = signatureAlgorithm.getSignature(provider);
+            signature.initSign(privateKey);
+            signature.update(data);
+
+            return signature.sign();
         }
         catch (Exception e)
         {
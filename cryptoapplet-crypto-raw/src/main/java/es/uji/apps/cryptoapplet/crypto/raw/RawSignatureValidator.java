@@ -2,6 +2,7 @@ package es.uji.apps.cryptoapplet.crypto.raw;
 
 import es.uji.apps.cryptoapplet.crypto.exceptions.CertificateNotFoundException;
 import es.uji.apps.cryptoapplet.crypto.exceptions.ValidationException;
+import es.uji.apps.cryptoapplet.crypto.signature.SignatureAlgorithm;
 import es.uji.apps.cryptoapplet.crypto.signature.validate.AbstractSignatureValidator;
 import es.uji.apps.cryptoapplet.crypto.signature.validate.SignatureValidationOptions;
 import es.uji.apps.cryptoapplet.crypto.signature.validate.SignatureValidationResult;
@@ -31,7 +32,15 @@ public class RawSignatureValidator extends AbstractSignatureValidator implements
             byte[] signedData = StreamUtils.inputStreamToByteArray(signatureValidationOptions
                     .getSignedData());
 
-            Signature validator = Signature.getInstance("SHA1withRSA", provider);
+            SignatureAlgorithm signatureAlgorithm = signatureValidationOptions
+                    .getSignatureAlgorithm();
+
+            if (signatureAlgorithm == null)
+            {
+                signatureAlgorithm = SignatureAlgorithm.getDefault(certificate.getPublicKey());
+            }
+
+            Signature validator = signatureAlgorithm.getSignature(provider);
             validator.initVerify(certificate.getPublicKey());
             validator.update(originalData);
 
@@ -3,10 +3,15 @@ package es.uji.apps.cryptoapplet.crypto.raw;
 import es.uji.apps.cryptoapplet.crypto.junit.AbstractCryptoTest;
 import es.uji.apps.cryptoapplet.crypto.junit.KeyStoreAnfActivo;
 import es.uji.apps.cryptoapplet.crypto.junit.SignEnvironment;
+import es.uji.apps.cryptoapplet.crypto.signature.SignatureAlgorithm;
+import es.uji.apps.cryptoapplet.crypto.signature.validate.SignatureValidationOptions;
 import es.uji.apps.cryptoapplet.crypto.signature.validate.SignatureValidationResult;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -30,4 +35,29 @@ public class RawTest extends AbstractCryptoTest
         SignatureValidationResult validationResult = validate(RawSignatureValidator.class, environment, signedData);
         assertTrue(validationResult.isValid());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void rawSHA256() throws Exception
+    {
+        environment.getSignatureOptions().setSignatureAlgorithm(SignatureAlgorithm.RSA_SHA256);
+
+        byte[] signedData = sign(RawSignatureFormatter.class, environment);
+        assertNotNull(signedData);
+
+        RawSignatureValidator validator = new RawSignatureValidator(environment.getCertificate(),
+                environment.getProvider());
+
+        SignatureValidationOptions signatureValidationOptions = new SignatureValidationOptions();
+        signatureValidationOptions.setOriginalData(new ByteArrayInputStream(environment.getData()));
+        signatureValidationOptions.setSignedData(new ByteArrayInputStream(signedData));
+        signatureValidationOptions.setSignatureAlgorithm(SignatureAlgorithm.RSA_SHA256);
+        assertTrue(validator.validate(signatureValidationOptions).isValid());
+
+        // The default for RSA keys is still SHA-1, so the signature does not verify as such
+
+        signatureValidationOptions.setOriginalData(new ByteArrayInputStream(environment.getData()));
+        signatureValidationOptions.setSignedData(new ByteArrayInputStream(signedData));
+        signatureValidationOptions.setSignatureAlgorithm(null);
+        assertFalse(validator.validate(signatureValidationOptions).isValid());
+    }
+}
@@ -0,0 +1,66 @@
+package es.uji.apps.cryptoapplet.crypto.xades;
+
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.spec.ExcC14NParameterSpec;
+import javax.xml.crypto.dsig.spec.XPathFilterParameterSpec;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keys of references for a ReferenceDigestCache. References whose digested content depends on
+ * the signature containing them, as with the enveloped transform or the XPath here() function,
+ * have no key and are always digested.
+ */
+public class ReferenceKeys
+{
+    /**
+     * @return the key of the reference, or null if its digest can not be shared
+     */
+    public static String getKey(Reference reference)
+    {
+        StringBuilder key = new StringBuilder();
+        key.append((reference.getURI() != null) ? reference.getURI() : "");
+
+        for (Object element : reference.getTransforms())
+        {
+            Transform transform = (Transform) element;
+            String algorithm = transform.getAlgorithm();
+
+            if (Transform.ENVELOPED.equals(algorithm))
+            {
+                return null;
+            }
+
+            key.append('|').append(algorithm);
+
+            AlgorithmParameterSpec parameters = transform.getParameterSpec();
+
+            if (parameters instanceof XPathFilterParameterSpec)
+            {
+                XPathFilterParameterSpec xpath = (XPathFilterParameterSpec) parameters;
+
+                if (xpath.getXPath().contains("here("))
+                {
+                    return null;
+                }
+
+                key.append('(').append(xpath.getXPath()).append(new TreeMap<Object, Object>(
+                        (Map<?, ?>) xpath.getNamespaceMap())).append(')');
+            }
+            else if (parameters instanceof ExcC14NParameterSpec)
+            {
+                key.append(((ExcC14NParameterSpec) parameters).getPrefixList());
+            }
+            else if (parameters != null)
+            {
+                return null;
+            }
+        }
+
+        key.append('|').append(reference.getDigestMethod().getAlgorithm());
+
+        return key.toString();
+    }
+}
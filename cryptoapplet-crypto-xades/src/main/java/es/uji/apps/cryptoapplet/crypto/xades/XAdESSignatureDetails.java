@@ -4,85 +4,250 @@ import es.uji.apps.cryptoapplet.config.CryptoAppletException;
 import es.uji.apps.cryptoapplet.crypto.signature.details.SignatureDetails;
 import es.uji.apps.cryptoapplet.crypto.signature.details.SignatureDetailsGenerator;
 import org.bouncycastle.jce.X509Principal;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
 import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Vector;
 
+/**
+ * Signer, signing time and role of every ds:Signature of a document. The document is read with
+ * StAX without building a DOM, keeping only the text of the elements of interest, and reading
+ * stops when the document element ends.
+ */
 public class XAdESSignatureDetails implements SignatureDetailsGenerator
 {
-    private final String defaultNamespace = "http://www.w3.org/2000/09/xmldsig#";
-    private final String xadesNamespace = "http://uri.etsi.org/01903/v1.3.2#";
+    private static final String defaultNamespace = "http://www.w3.org/2000/09/xmldsig#";
+    private static final String xadesNamespace = "http://uri.etsi.org/01903/v1.3.2#";
+
+    private static final XMLInputFactory inputFactory = createInputFactory();
+
+    private enum Field
+    {
+        SIGNER_CN, SIGNING_TIME, SIGNING_ROLE
+    }
 
     public List<SignatureDetails> getDetails(byte[] data) throws CryptoAppletException
+    {
+        if (data == null || data.length == 0)
+        {
+            return new ArrayList<SignatureDetails>();
+        }
+
+        return getDetails(new ByteArrayInputStream(data));
+    }
+
+    public List<SignatureDetails> getDetails(InputStream data) throws CryptoAppletException
     {
         List<SignatureDetails> result = new ArrayList<SignatureDetails>();
 
-        if (data != null && data.length > 0)
+        if (data == null)
+        {
+            return result;
+        }
+
+        try
         {
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(data);
+
             try
             {
-                DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-                dbf.setNamespaceAware(true);
-                DocumentBuilder db = dbf.newDocumentBuilder();
-                org.w3c.dom.Document d = db.parse(new ByteArrayInputStream(data));
+                readDetails(reader, result);
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        catch (Exception e)
+        {
+            throw new CryptoAppletException("Error parsing document");
+        }
+
+        return result;
+    }
 
-                NodeList signatures = d.getElementsByTagNameNS(defaultNamespace, "Signature");
+    private void readDetails(XMLStreamReader reader, List<SignatureDetails> result)
+            throws Exception
+    {
+        // Signatures may be nested, as counter signatures are. Like a search of the subtree of
+        // each signature, a value is given to every open signature that still lacks it
 
-                for (int i = 0; i < signatures.getLength(); i++)
-                {
-                    Element currentSignature = (Element) signatures.item(i);
+        List<SignatureDetails> open = new ArrayList<SignatureDetails>();
+        List<Integer> openDepths = new ArrayList<Integer>();
 
-                    NodeList nlCN = currentSignature.getElementsByTagNameNS(defaultNamespace,
-                            "X509SubjectName");
-                    NodeList nlTime = currentSignature.getElementsByTagNameNS(xadesNamespace,
-                            "SigningTime");
-                    NodeList nlRole = currentSignature.getElementsByTagNameNS(xadesNamespace,
-                            "ClaimedRole");
+        StringBuilder text = null;
+        Field field = null;
+        int fieldDepth = 0;
+        int depth = 0;
 
-                    SignatureDetails signatureDetailInformation = new SignatureDetails();
+        while (reader.hasNext())
+        {
+            switch (reader.next())
+            {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
 
-                    if (nlCN != null && nlCN.getLength() > 0
-                            && nlCN.item(0).getFirstChild() != null)
+                    if (field != null)
+                    {
+                        break;
+                    }
+
+                    String namespace = reader.getNamespaceURI();
+                    String name = reader.getLocalName();
+
+                    if (defaultNamespace.equals(namespace) && "Signature".equals(name))
+                    {
+                        SignatureDetails details = new SignatureDetails();
+                        result.add(details);
+                        open.add(details);
+                        openDepths.add(depth);
+                    }
+                    else if (!open.isEmpty())
                     {
-                        String nodeValue = nlCN.item(0).getFirstChild().getNodeValue();
+                        field = getField(namespace, name);
 
-                        if (nodeValue != null)
+                        if (field != null)
                         {
-                            X509Principal principal = new X509Principal(nodeValue);
-                            Vector<String> values = principal.getValues(X509Principal.CN);
-                            signatureDetailInformation.setSignerCN(values.get(0));
+                            fieldDepth = depth;
+                            text = new StringBuilder();
                         }
                     }
+                    break;
 
-                    if (nlTime != null && nlTime.getLength() > 0
-                            && nlTime.item(0).getFirstChild() != null)
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    if (field != null && depth == fieldDepth)
                     {
-                        String timeString = nlTime.item(0).getFirstChild().getNodeValue();
-                        signatureDetailInformation.setSignatureTimeAsXMLDateTime(timeString);
+                        text.append(reader.getTextCharacters(), reader.getTextStart(),
+                                reader.getTextLength());
                     }
+                    break;
 
-                    if (nlRole != null && nlRole.getLength() > 0
-                            && nlRole.item(0).getFirstChild() != null)
+                case XMLStreamConstants.END_ELEMENT:
+                    if (field != null && depth == fieldDepth)
                     {
-                        signatureDetailInformation.setSigningRole(nlRole.item(0).getFirstChild()
-                                .getNodeValue());
+                        if (text.length() > 0)
+                        {
+                            setField(open, field, text.toString());
+                        }
+
+                        field = null;
+                        text = null;
+                    }
+                    else if (!openDepths.isEmpty() && openDepths.get(openDepths.size() - 1) == depth)
+                    {
+                        open.remove(open.size() - 1);
+                        openDepths.remove(openDepths.size() - 1);
                     }
 
-                    result.add(signatureDetailInformation);
-                }
+                    if (--depth == 0)
+                    {
+                        return;
+                    }
+                    break;
+            }
+        }
+    }
+
+    private Field getField(String namespace, String name)
+    {
+        if (defaultNamespace.equals(namespace) && "X509SubjectName".equals(name))
+        {
+            return Field.SIGNER_CN;
+        }
+
+        if (xadesNamespace.equals(namespace))
+        {
+            if ("SigningTime".equals(name))
+            {
+                return Field.SIGNING_TIME;
             }
-            catch (Exception e)
+
+            if ("ClaimedRole".equals(name))
             {
-                throw new CryptoAppletException("Error parsing document");
+                return Field.SIGNING_ROLE;
             }
         }
 
-        return result;
+        return null;
+    }
+
+    private void setField(List<SignatureDetails> open, Field field, String value)
+            throws Exception
+    {
+        for (SignatureDetails details : open)
+        {
+            switch (field)
+            {
+                case SIGNER_CN:
+                    if (details.getSignerCN() == null)
+                    {
+                        details.setSignerCN(getCN(value));
+                    }
+                    break;
+
+                case SIGNING_TIME:
+                    if (details.getSignatureTime() == null)
+                    {
+                        details.setSignatureTimeAsXMLDateTime(value);
+                    }
+                    break;
+
+                case SIGNING_ROLE:
+                    if (details.getSigningRole() == null)
+                    {
+                        details.setSigningRole(value);
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @return the first CN of the distinguished name. Plain names are split directly, those
+     *         with quoting, escapes, multivalued RDNs or hex values are left to X509Principal
+     */
+    static String getCN(String subjectName)
+    {
+        if (subjectName.indexOf('"') < 0 && subjectName.indexOf('\\') < 0
+                && subjectName.indexOf('+') < 0 && subjectName.indexOf(';') < 0)
+        {
+            for (String rdn : subjectName.split(","))
+            {
+                int equals = rdn.indexOf('=');
+
+                if (equals > 0 && "CN".equalsIgnoreCase(rdn.substring(0, equals).trim()))
+                {
+                    String value = rdn.substring(equals + 1).trim();
+
+                    if (value.length() > 0 && value.charAt(0) != '#')
+                    {
+                        return value;
+                    }
+
+                    break;
+                }
+            }
+        }
+
+        X509Principal principal = new X509Principal(subjectName);
+        Vector<?> values = principal.getValues(X509Principal.CN);
+
+        return (String) values.get(0);
+    }
+
+    private static XMLInputFactory createInputFactory()
+    {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+
+        return factory;
     }
-}
\ No newline at end of file
+}
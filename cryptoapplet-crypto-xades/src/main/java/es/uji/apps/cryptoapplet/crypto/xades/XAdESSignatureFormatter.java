@@ -2,30 +2,60 @@ package es.uji.apps.cryptoapplet.crypto.xades;
 
 import es.uji.apps.cryptoapplet.config.model.Configuration;
 import es.uji.apps.cryptoapplet.crypto.exceptions.SignatureException;
+import es.uji.apps.cryptoapplet.crypto.signature.DigestAlgorithm;
+import es.uji.apps.cryptoapplet.crypto.signature.ReferenceDigestCache;
+import es.uji.apps.cryptoapplet.crypto.signature.SignatureAlgorithm;
 import es.uji.apps.cryptoapplet.crypto.signature.format.AbstractSignatureFormatter;
 import es.uji.apps.cryptoapplet.crypto.signature.format.SignatureFormatter;
 import es.uji.apps.cryptoapplet.crypto.signature.format.SignatureOptions;
+import es.uji.apps.cryptoapplet.utils.Base64;
 import es.uji.apps.cryptoapplet.utils.StreamUtils;
 import net.java.xades.security.xml.XAdES.*;
 import net.java.xades.util.XMLUtils;
+import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 
 import javax.xml.crypto.dsig.*;
+import javax.xml.XMLConstants;
+import javax.xml.crypto.dsig.spec.TransformParameterSpec;
 import javax.xml.crypto.dsig.spec.XPathFilterParameterSpec;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.namespace.QName;
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.Provider;
 import java.security.cert.X509Certificate;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class XAdESSignatureFormatter extends AbstractSignatureFormatter implements SignatureFormatter
 {
+    private static final DigestAlgorithm STREAMING_DIGEST_ALGORITHM = DigestAlgorithm.SHA256;
+    private static final DigestAlgorithm ENVELOPED_DIGEST_ALGORITHM = DigestAlgorithm.SHA1;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static ExecutorService defaultExecutor;
+
     private Map<String, String> options;
+    private ExecutorService executor;
 
     public XAdESSignatureFormatter(X509Certificate certificate, PrivateKey privateKey, Provider provider)
             throws SignatureException
@@ -38,43 +68,28 @@ public class XAdESSignatureFormatter extends AbstractSignatureFormatter implemen
     {
         checkSignatureOptions(signatureOptions);
 
-        byte[] data = StreamUtils.inputStreamToByteArray(signatureOptions.getDataToSign());
-
-        try
+        if (!signatureOptions.isEnveloped() && signatureOptions.getDetachedReferenceURI() != null)
         {
-            // Load XML data
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            dbf.setNamespaceAware(true);
-            DocumentBuilder db = dbf.newDocumentBuilder();
-            Element element = db.parse(new ByteArrayInputStream(data)).getDocumentElement();
-
-            // Create a XAdES-EPES profile
-            XAdES_EPES xades = (XAdES_EPES) XAdES.newInstance(XAdES.EPES, element);
-            xades.setSigningCertificate(certificate);
+            return formatDetached(signatureOptions);
+        }
 
-            SignaturePolicyIdentifier spi;
+        if (signatureOptions.isEnveloped() && signatureOptions.getSwapToFile())
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            format(signatureOptions, out);
 
-            Configuration configuration = signatureOptions.getConfiguration();
-            es.uji.apps.cryptoapplet.config.model.Format formatter = configuration
-                    .getFormatRegistry().getFormat("XADES");
-            options = formatter.getConfigurationOptions();
+            return out.toByteArray();
+        }
 
-            if (options.get("policyIdentifier") != null)
-            {
-                spi = new SignaturePolicyIdentifierImpl(false);
-                spi.setIdentifier(options.get("policyIdentifier"));
-                spi.setDescription(options.get("policyDescription"));
-                xades.setSignaturePolicyIdentifier(spi);
-            }
+        byte[] data = StreamUtils.inputStreamToByteArray(signatureOptions.getDataToSign());
 
-            if (options.get("signerRole") != null)
-            {
-                SignerRole role = new SignerRoleImpl();
-                role.setClaimedRole(new ArrayList<String>(Arrays.asList(new String[]{options
-                        .get("signerRole")})));
+        try
+        {
+            // Load XML data
+            Element element = XMLFactories.getDocumentBuilder().parse(
+                    new ByteArrayInputStream(data)).getDocumentElement();
 
-                xades.setSignerRole(role);
-            }
+            XAdES_EPES xades = createXAdES(element, signatureOptions);
 
             // Sign data
             XMLAdvancedSignature xmlSignature = XMLAdvancedSignature.newInstance(xades);
@@ -83,6 +98,11 @@ public class XAdESSignatureFormatter extends AbstractSignatureFormatter implemen
                     "Signature");
             int numSignature = result.getLength();
 
+            // Without a configured digest the references keep their historical SHA-1
+
+            SignatureAlgorithm signatureAlgorithm = getSignatureAlgorithm(signatureOptions, options);
+            DigestAlgorithm digestAlgorithm = getDigestAlgorithm(signatureOptions, options, null);
+
             List<String> references = new ArrayList<String>();
 
             // If no there are no references, add enveloped reference
@@ -98,12 +118,17 @@ public class XAdESSignatureFormatter extends AbstractSignatureFormatter implemen
                 }
             }
 
+            ReferenceDigestCache cache = null;
+            String referenceKey = null;
+            byte[] calculatedDigest = null;
+
             // If enveloped+cosig construct special transformation
             if (signatureOptions.isEnveloped() && signatureOptions.isCoSignEnabled())
             {
-                XMLSignatureFactory xmlSignatureFactory = XMLSignatureFactory.getInstance("DOM");
-                DigestMethod digestMethod = xmlSignatureFactory.newDigestMethod(DigestMethod.SHA1,
-                        null);
+                XMLSignatureFactory xmlSignatureFactory = XMLFactories.getXMLSignatureFactory();
+                DigestMethod digestMethod = xmlSignatureFactory.newDigestMethod(
+                        (digestAlgorithm != null) ? digestAlgorithm.getXMLSignatureURI()
+                                : DigestMethod.SHA1, null);
 
                 Transform transform = xmlSignatureFactory.newTransform(Transform.XPATH,
                         new XPathFilterParameterSpec("not(ancestor-or-self::dsig:Signature)",
@@ -112,13 +137,46 @@ public class XAdESSignatureFormatter extends AbstractSignatureFormatter implemen
                 Reference reference = xmlSignatureFactory.newReference("", digestMethod,
                         Collections.singletonList(transform), null, null);
 
-                xmlSignature.sign(certificate, privateKey, SignatureMethod.RSA_SHA1,
-                        Arrays.asList(new Object[]{reference}), "S" + numSignature);
+                // The content without signatures does not change between co-signatures, so a
+                // digest calculated for a previous one is signed as is. Entries are bound to the
+                // bytes of the document produced with them, any other input is digested again.
+
+                cache = signatureOptions.getReferenceDigestCache();
+                referenceKey = ReferenceKeys.getKey(reference);
+                byte[] digest = (cache != null) ? cache.get(getContentKey(referenceKey, data))
+                        : null;
+
+                if (digest != null)
+                {
+                    reference = xmlSignatureFactory.newReference("", digestMethod, Collections
+                            .singletonList(transform), null, null, digest);
+                }
+
+                xmlSignature.sign(certificate, privateKey, signatureAlgorithm
+                        .getXMLSignatureURI(), Arrays.asList(new Object[]{reference}), "S"
+                        + numSignature);
+
+                if (cache != null && digest == null)
+                {
+                    NodeList signatures = element.getElementsByTagNameNS(XMLSignature.XMLNS,
+                            "Signature");
+                    calculatedDigest = getDigestValue((Element) signatures.item(signatures
+                            .getLength() - 1), "");
+                }
             }
             else
             {
-                xmlSignature.sign(certificate, privateKey, SignatureMethod.RSA_SHA1, references,
-                        "S" + numSignature);
+                xmlSignature.sign(certificate, privateKey, signatureAlgorithm
+                        .getXMLSignatureURI(), (digestAlgorithm != null) ? createReferences(
+                        references, digestAlgorithm) : references, "S" + numSignature);
+            }
+
+            if (!signatureOptions.getOCSPResponses().isEmpty())
+            {
+                NodeList signatures = element.getElementsByTagNameNS(XMLSignature.XMLNS,
+                        "Signature");
+                addRevocationValues((Element) signatures.item(signatures.getLength() - 1),
+                        signatureOptions.getOCSPResponses());
             }
 
             // Return Results
@@ -128,11 +186,692 @@ public class XAdESSignatureFormatter extends AbstractSignatureFormatter implemen
             XMLUtils.writeXML(bos, xmlSignature.getBaseElement(), false);
             bos.flush();
 
-            return out.toByteArray();
+            byte[] signedData = out.toByteArray();
+
+            if (calculatedDigest != null)
+            {
+                cache.put(getContentKey(referenceKey, signedData), calculatedDigest);
+            }
+
+            return signedData;
         }
         catch (Exception e)
         {
             throw new SignatureException(e);
         }
     }
+
+    /**
+     * @return the reference key bound to the SHA-256 of the whole document
+     */
+    private static String getContentKey(String referenceKey, byte[] data)
+            throws NoSuchAlgorithmException
+    {
+        return referenceKey + "|" + Base64.encodeBytes(MessageDigest.getInstance("SHA-256")
+                .digest(data));
+    }
+
+    /**
+     * Signs many documents with the same key, returning the signed documents in order. The
+     * policy and role of each configuration are built once for the whole batch. Documents are
+     * read, parsed and digested in parallel a few ahead of the signer, while the signatures,
+     * the private key operations, are made one at a time on the calling thread. Enveloped
+     * documents get a SHA-1 reference unless configured otherwise, as in format(SignatureOptions),
+     * and are parsed only by the canonicalizer: the signature is appended to the digested canonical
+     * form as in the streaming format. Documents neither enveloped nor detached by reference are
+     * signed as by format(SignatureOptions).
+     */
+    public List<byte[]> format(List<SignatureOptions> signatureOptionsList)
+            throws SignatureException
+    {
+        for (SignatureOptions signatureOptions : signatureOptionsList)
+        {
+            checkSignatureOptions(signatureOptions);
+        }
+
+        ExecutorService executor = getExecutor();
+        int lookAhead = 2 * Runtime.getRuntime().availableProcessors();
+
+        List<Future<PreparedDocument>> prepared = new ArrayList<Future<PreparedDocument>>();
+        List<Future<byte[]>> signed = new ArrayList<Future<byte[]>>();
+        Map<Configuration, SignerProperties> signerProperties = new IdentityHashMap<Configuration, SignerProperties>();
+
+        try
+        {
+            for (int i = 0; i < signatureOptionsList.size(); i++)
+            {
+                while (prepared.size() < signatureOptionsList.size()
+                        && prepared.size() <= i + lookAhead)
+                {
+                    SignatureOptions next = signatureOptionsList.get(prepared.size());
+                    DigestAlgorithm defaultAlgorithm = (next.isEnveloped() || next
+                            .getDetachedReferenceURI() == null) ? ENVELOPED_DIGEST_ALGORITHM
+                            : STREAMING_DIGEST_ALGORITHM;
+
+                    prepared.add(executor.submit(new PrepareTask(next, getDigestAlgorithm(next,
+                            getSignerProperties(signerProperties, next).options,
+                            defaultAlgorithm))));
+                }
+
+                SignatureOptions signatureOptions = signatureOptionsList.get(i);
+                PreparedDocument document = prepared.get(i).get();
+                prepared.set(i, null);
+
+                if (document == null)
+                {
+                    signed.add(completed(format(signatureOptions)));
+                    continue;
+                }
+
+                SignerProperties properties = getSignerProperties(signerProperties,
+                        signatureOptions);
+
+                if (document.data == null)
+                {
+                    signed.add(completed(signDetached(signatureOptions, document.digest,
+                            document.digestAlgorithm, properties)));
+                    continue;
+                }
+
+                final byte[] data = document.data;
+                final byte[] signature = signEnveloped(signatureOptions, document.canonicalizer,
+                        document.digest, document.digestAlgorithm, properties);
+
+                signed.add(executor.submit(new Callable<byte[]>()
+                {
+                    public byte[] call() throws Exception
+                    {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        new XMLStreamCanonicalizer(false).append(new ByteArrayInputStream(data),
+                                out, signature);
+
+                        return out.toByteArray();
+                    }
+                }));
+            }
+
+            List<byte[]> result = new ArrayList<byte[]>();
+
+            for (Future<byte[]> future : signed)
+            {
+                result.add(future.get());
+            }
+
+            return result;
+        }
+        catch (SignatureException e)
+        {
+            cancel(prepared);
+            cancel(signed);
+            throw e;
+        }
+        catch (ExecutionException e)
+        {
+            cancel(prepared);
+            cancel(signed);
+            throw new SignatureException(e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            cancel(prepared);
+            cancel(signed);
+            Thread.currentThread().interrupt();
+            throw new SignatureException(e);
+        }
+        catch (Exception e)
+        {
+            cancel(prepared);
+            cancel(signed);
+            throw new SignatureException(e);
+        }
+    }
+
+    private static Future<byte[]> completed(final byte[] result)
+    {
+        FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>()
+        {
+            public byte[] call()
+            {
+                return result;
+            }
+        });
+
+        task.run();
+
+        return task;
+    }
+
+    private SignerProperties getSignerProperties(
+            Map<Configuration, SignerProperties> signerProperties, SignatureOptions signatureOptions)
+    {
+        Configuration configuration = signatureOptions.getConfiguration();
+        SignerProperties properties = signerProperties.get(configuration);
+
+        if (properties == null)
+        {
+            properties = new SignerProperties(configuration);
+            signerProperties.put(configuration, properties);
+        }
+
+        return properties;
+    }
+
+    private static void cancel(List<? extends Future<?>> futures)
+    {
+        for (Future<?> future : futures)
+        {
+            if (future != null)
+            {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Executor for the parsing, digesting and serializing of batches, by default a pool shared
+     * by all formatters with a thread per processor
+     */
+    public void setExecutor(ExecutorService executor)
+    {
+        this.executor = executor;
+    }
+
+    private ExecutorService getExecutor()
+    {
+        if (executor != null)
+        {
+            return executor;
+        }
+
+        synchronized (XAdESSignatureFormatter.class)
+        {
+            if (defaultExecutor == null)
+            {
+                defaultExecutor = Executors.newFixedThreadPool(Runtime.getRuntime()
+                        .availableProcessors(), new ThreadFactory()
+                {
+                    public Thread newThread(Runnable runnable)
+                    {
+                        Thread thread = new Thread(runnable, "xades-formatter-"
+                                + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+
+                        return thread;
+                    }
+                });
+            }
+
+            return defaultExecutor;
+        }
+    }
+
+    /**
+     * Enveloped signature written to the output stream without building a DOM of the document.
+     * The input is swapped to a temporary file and read twice: first to digest its canonical
+     * form, then to write it, in canonical form with comments, with the signature added as last
+     * child of the document element. The signature itself is built in a document that only has
+     * a copy of the document element, with the same namespaces, so it canonicalizes as it will
+     * in the real document.
+     */
+    public void format(SignatureOptions signatureOptions, OutputStream out)
+            throws SignatureException
+    {
+        checkSignatureOptions(signatureOptions);
+
+        File file = null;
+
+        try
+        {
+            file = File.createTempFile("cryptoapplet", ".xml");
+            copy(signatureOptions.getDataToSign(), new FileOutputStream(file));
+
+            SignerProperties signerProperties = new SignerProperties(signatureOptions
+                    .getConfiguration());
+            DigestAlgorithm digestAlgorithm = getDigestAlgorithm(signatureOptions,
+                    signerProperties.options, STREAMING_DIGEST_ALGORITHM);
+
+            boolean coSign = signatureOptions.isCoSignEnabled();
+            XMLStreamCanonicalizer canonicalizer = new XMLStreamCanonicalizer(coSign);
+
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            byte[] digest;
+
+            try
+            {
+                digest = canonicalizer.digest(in, digestAlgorithm.getJCAName());
+            }
+            finally
+            {
+                in.close();
+            }
+
+            byte[] signature = signEnveloped(signatureOptions, canonicalizer, digest,
+                    digestAlgorithm, signerProperties);
+
+            in = new BufferedInputStream(new FileInputStream(file));
+
+            try
+            {
+                new XMLStreamCanonicalizer(false).append(in, out, signature);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (Exception e)
+        {
+            throw new SignatureException(e);
+        }
+        finally
+        {
+            if (file != null && !file.delete())
+            {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Enveloped signature of a document already digested by the canonicalizer, built next to a
+     * copy of its document element as described in format(SignatureOptions, OutputStream)
+     *
+     * @return the serialized ds:Signature, to be appended by XMLStreamCanonicalizer.append
+     */
+    private byte[] signEnveloped(SignatureOptions signatureOptions,
+            XMLStreamCanonicalizer canonicalizer, byte[] digest, DigestAlgorithm digestAlgorithm,
+            SignerProperties signerProperties) throws Exception
+    {
+        Document document = XMLFactories.newDocument();
+
+        QName rootName = canonicalizer.getRootName();
+        Element element = document.createElementNS((rootName.getNamespaceURI().length() > 0)
+                ? rootName.getNamespaceURI() : null, XMLStreamCanonicalizer
+                .getQualifiedName(rootName));
+
+        for (Map.Entry<String, String> namespace : canonicalizer.getRootNamespaces()
+                .entrySet())
+        {
+            element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, (namespace.getKey()
+                    .length() == 0) ? "xmlns" : "xmlns:" + namespace.getKey(), namespace
+                    .getValue());
+        }
+
+        for (Map.Entry<String, String> attribute : canonicalizer.getRootXMLAttributes()
+                .entrySet())
+        {
+            element.setAttributeNS(XMLConstants.XML_NS_URI, "xml:" + attribute.getKey(),
+                    attribute.getValue());
+        }
+
+        document.appendChild(element);
+
+        XAdES_EPES xades = createXAdES(element, signerProperties);
+        XMLAdvancedSignature xmlSignature = XMLAdvancedSignature.newInstance(xades);
+
+        xmlSignature.sign(certificate, privateKey, getSignatureAlgorithm(signatureOptions,
+                signerProperties.options).getXMLSignatureURI(), Arrays.asList(new Object[]{
+                createEnvelopedReference(signatureOptions.isCoSignEnabled(), digest,
+                        digestAlgorithm)}), "S" + canonicalizer.getSignatures());
+
+        Element signature = (Element) element.getElementsByTagNameNS(XMLSignature.XMLNS,
+                "Signature").item(0);
+
+        if (!signatureOptions.getOCSPResponses().isEmpty())
+        {
+            addRevocationValues(signature, signatureOptions.getOCSPResponses());
+        }
+
+        ByteArrayOutputStream signatureData = new ByteArrayOutputStream();
+        XMLUtils.writeXML(signatureData, signature, false);
+
+        return signatureData.toByteArray();
+    }
+
+    private void copy(InputStream in, OutputStream out) throws IOException
+    {
+        byte[] buffer = new byte[8192];
+        int length;
+
+        try
+        {
+            while ((length = in.read(buffer)) >= 0)
+            {
+                out.write(buffer, 0, length);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Signs data referenced by URI without parsing it. The data is only read once to compute the
+     * reference digest, so memory does not depend on its size, and the output is the ds:Signature
+     * element alone.
+     */
+    private byte[] formatDetached(SignatureOptions signatureOptions) throws SignatureException
+    {
+        try
+        {
+            SignerProperties signerProperties = new SignerProperties(signatureOptions
+                    .getConfiguration());
+            DigestAlgorithm digestAlgorithm = getDigestAlgorithm(signatureOptions,
+                    signerProperties.options, STREAMING_DIGEST_ALGORITHM);
+
+            byte[] digest = digest(signatureOptions.getDataToSign(), digestAlgorithm);
+
+            return signDetached(signatureOptions, digest, digestAlgorithm, signerProperties);
+        }
+        catch (Exception e)
+        {
+            throw new SignatureException(e);
+        }
+    }
+
+    private byte[] signDetached(SignatureOptions signatureOptions, byte[] digest,
+            DigestAlgorithm digestAlgorithm, SignerProperties signerProperties) throws Exception
+    {
+        Document document = XMLFactories.newDocument();
+
+        // Temporary parent for the signature, it is not part of the output
+
+        Element element = document.createElement("DetachedSignature");
+        document.appendChild(element);
+
+        XAdES_EPES xades = createXAdES(element, signerProperties);
+        XMLAdvancedSignature xmlSignature = XMLAdvancedSignature.newInstance(xades);
+
+        // A reference created with its digest value is not dereferenced when signing
+
+        XMLSignatureFactory xmlSignatureFactory = XMLFactories.getXMLSignatureFactory();
+        Reference reference = xmlSignatureFactory.newReference(signatureOptions
+                .getDetachedReferenceURI(), xmlSignatureFactory.newDigestMethod(
+                digestAlgorithm.getXMLSignatureURI(), null), null, null, null, digest);
+
+        xmlSignature.sign(certificate, privateKey, getSignatureAlgorithm(signatureOptions,
+                signerProperties.options).getXMLSignatureURI(), Arrays.asList(
+                new Object[]{reference}), "S0");
+
+        Element signature = (Element) element.getElementsByTagNameNS(XMLSignature.XMLNS,
+                "Signature").item(0);
+
+        if (!signatureOptions.getOCSPResponses().isEmpty())
+        {
+            addRevocationValues(signature, signatureOptions.getOCSPResponses());
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XMLUtils.writeXML(out, signature, false);
+
+        return out.toByteArray();
+    }
+
+    private static byte[] digest(InputStream in, DigestAlgorithm algorithm) throws IOException,
+            NoSuchAlgorithmException
+    {
+        MessageDigest messageDigest = MessageDigest.getInstance(algorithm.getJCAName());
+        byte[] buffer = new byte[8192];
+        int length;
+
+        try
+        {
+            while ((length = in.read(buffer)) >= 0)
+            {
+                messageDigest.update(buffer, 0, length);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        return messageDigest.digest();
+    }
+
+    private XAdES_EPES createXAdES(Element element, SignatureOptions signatureOptions)
+    {
+        return createXAdES(element, new SignerProperties(signatureOptions.getConfiguration()));
+    }
+
+    private XAdES_EPES createXAdES(Element element, SignerProperties signerProperties)
+    {
+        // Create a XAdES-EPES profile
+        XAdES_EPES xades = (XAdES_EPES) XAdES.newInstance(XAdES.EPES, element);
+        xades.setSigningCertificate(certificate);
+
+        options = signerProperties.options;
+
+        if (signerProperties.policy != null)
+        {
+            xades.setSignaturePolicyIdentifier(signerProperties.policy);
+        }
+
+        if (signerProperties.role != null)
+        {
+            xades.setSignerRole(signerProperties.role);
+        }
+
+        return xades;
+    }
+
+    /**
+     * Same document reference with its digest already calculated, excluding the signature
+     * itself or, when co-signing, every signature in the document
+     */
+    private Reference createEnvelopedReference(boolean coSign, byte[] digest,
+            DigestAlgorithm digestAlgorithm) throws Exception
+    {
+        XMLSignatureFactory xmlSignatureFactory = XMLFactories.getXMLSignatureFactory();
+        Transform transform;
+
+        if (coSign)
+        {
+            transform = xmlSignatureFactory.newTransform(Transform.XPATH,
+                    new XPathFilterParameterSpec("not(ancestor-or-self::dsig:Signature)",
+                            Collections.singletonMap("dsig", XMLSignature.XMLNS)));
+        }
+        else
+        {
+            transform = xmlSignatureFactory.newTransform(Transform.ENVELOPED,
+                    (TransformParameterSpec) null);
+        }
+
+        return xmlSignatureFactory.newReference("", xmlSignatureFactory.newDigestMethod(
+                digestAlgorithm.getXMLSignatureURI(), null), Collections
+                .singletonList(transform), null, null, digest);
+    }
+
+    /**
+     * References to the URIs with the digest algorithm, the same document one ("") with the
+     * enveloped transform
+     */
+    private List<Object> createReferences(List<String> uris, DigestAlgorithm digestAlgorithm)
+            throws Exception
+    {
+        XMLSignatureFactory xmlSignatureFactory = XMLFactories.getXMLSignatureFactory();
+        DigestMethod digestMethod = xmlSignatureFactory.newDigestMethod(digestAlgorithm
+                .getXMLSignatureURI(), null);
+
+        List<Object> references = new ArrayList<Object>();
+
+        for (String uri : uris)
+        {
+            if (uri.length() == 0)
+            {
+                references.add(xmlSignatureFactory.newReference(uri, digestMethod, Collections
+                        .singletonList(xmlSignatureFactory.newTransform(Transform.ENVELOPED,
+                                (TransformParameterSpec) null)), null, null));
+            }
+            else
+            {
+                references.add(xmlSignatureFactory.newReference(uri, digestMethod));
+            }
+        }
+
+        return references;
+    }
+
+    /**
+     * @return the digest value of the reference to the URI in the signature
+     */
+    private byte[] getDigestValue(Element signature, String uri)
+    {
+        NodeList references = signature.getElementsByTagNameNS(XMLSignature.XMLNS, "Reference");
+
+        for (int i = 0; i < references.getLength(); i++)
+        {
+            Element reference = (Element) references.item(i);
+
+            if (uri.equals(reference.getAttribute("URI")))
+            {
+                return Base64.decode(reference.getElementsByTagNameNS(XMLSignature.XMLNS,
+                        "DigestValue").item(0).getTextContent().trim());
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Embeds the OCSP responses as xades:RevocationValues in the unsigned properties of the
+     * signature, so validators can check the signer status without contacting the responder.
+     */
+    private void addRevocationValues(Element signature, List<byte[]> ocspResponses)
+    {
+        NodeList qualifyingProperties = signature.getElementsByTagNameNS("*",
+                "QualifyingProperties");
+
+        if (qualifyingProperties.getLength() == 0)
+        {
+            return;
+        }
+
+        Element parent = (Element) qualifyingProperties.item(0);
+        String namespace = parent.getNamespaceURI();
+        String prefix = (parent.getPrefix() != null) ? parent.getPrefix() + ":" : "";
+
+        Element unsignedProperties = getOrCreateChild(parent, namespace, prefix,
+                "UnsignedProperties");
+        Element unsignedSignatureProperties = getOrCreateChild(unsignedProperties, namespace,
+                prefix, "UnsignedSignatureProperties");
+        Element revocationValues = getOrCreateChild(unsignedSignatureProperties, namespace,
+                prefix, "RevocationValues");
+        Element ocspValues = getOrCreateChild(revocationValues, namespace, prefix, "OCSPValues");
+
+        Document document = signature.getOwnerDocument();
+
+        for (byte[] ocspResponse : ocspResponses)
+        {
+            Element encapsulatedOCSPValue = document.createElementNS(namespace, prefix
+                    + "EncapsulatedOCSPValue");
+            encapsulatedOCSPValue.setTextContent(Base64.encodeBytes(ocspResponse));
+            ocspValues.appendChild(encapsulatedOCSPValue);
+        }
+    }
+
+    private Element getOrCreateChild(Element parent, String namespace, String prefix,
+            String localName)
+    {
+        NodeList children = parent.getElementsByTagNameNS(namespace, localName);
+
+        if (children.getLength() > 0)
+        {
+            return (Element) children.item(0);
+        }
+
+        Element child = parent.getOwnerDocument().createElementNS(namespace, prefix + localName);
+        parent.appendChild(child);
+
+        return child;
+    }
+
+    /**
+     * Policy and role of the signatures, from the XADES format options of the configuration
+     */
+    private static class SignerProperties
+    {
+        private final Map<String, String> options;
+        private SignaturePolicyIdentifier policy;
+        private SignerRole role;
+
+        public SignerProperties(Configuration configuration)
+        {
+            es.uji.apps.cryptoapplet.config.model.Format formatter = configuration
+                    .getFormatRegistry().getFormat("XADES");
+            options = formatter.getConfigurationOptions();
+
+            if (options.get("policyIdentifier") != null)
+            {
+                policy = new SignaturePolicyIdentifierImpl(false);
+                policy.setIdentifier(options.get("policyIdentifier"));
+                policy.setDescription(options.get("policyDescription"));
+            }
+
+            if (options.get("signerRole") != null)
+            {
+                role = new SignerRoleImpl();
+                role.setClaimedRole(new ArrayList<String>(Arrays.asList(new String[]{options
+                        .get("signerRole")})));
+            }
+        }
+    }
+
+    /**
+     * Document of a batch ready to be signed: its reference digest and, when enveloped, its
+     * data and the canonicalizer that digested it
+     */
+    private static class PreparedDocument
+    {
+        private byte[] data;
+        private XMLStreamCanonicalizer canonicalizer;
+        private byte[] digest;
+        private DigestAlgorithm digestAlgorithm;
+    }
+
+    /**
+     * Reads, parses and digests a document of a batch. Documents the batch does not prepare
+     * give null and are signed by format(SignatureOptions).
+     */
+    private static class PrepareTask implements Callable<PreparedDocument>
+    {
+        private final SignatureOptions signatureOptions;
+        private final DigestAlgorithm digestAlgorithm;
+
+        public PrepareTask(SignatureOptions signatureOptions, DigestAlgorithm digestAlgorithm)
+        {
+            this.signatureOptions = signatureOptions;
+            this.digestAlgorithm = digestAlgorithm;
+        }
+
+        public PreparedDocument call() throws Exception
+        {
+            PreparedDocument document = new PreparedDocument();
+            document.digestAlgorithm = digestAlgorithm;
+
+            if (!signatureOptions.isEnveloped()
+                    && signatureOptions.getDetachedReferenceURI() != null)
+            {
+                document.digest = digest(signatureOptions.getDataToSign(), digestAlgorithm);
+
+                return document;
+            }
+
+            if (!signatureOptions.isEnveloped() || signatureOptions.getSwapToFile())
+            {
+                return null;
+            }
+
+            byte[] data = StreamUtils.inputStreamToByteArray(signatureOptions.getDataToSign());
+
+            document.canonicalizer = new XMLStreamCanonicalizer(signatureOptions
+                    .isCoSignEnabled());
+            document.digest = document.canonicalizer.digest(new ByteArrayInputStream(data),
+                    digestAlgorithm.getJCAName());
+            document.data = data;
+
+            return document;
+        }
+    }
 }
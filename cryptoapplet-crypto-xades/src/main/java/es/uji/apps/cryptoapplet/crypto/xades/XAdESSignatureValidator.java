@@ -2,61 +2,787 @@ package es.uji.apps.cryptoapplet.crypto.xades;
 
 import es.uji.apps.cryptoapplet.crypto.exceptions.CertificateNotFoundException;
 import es.uji.apps.cryptoapplet.crypto.exceptions.ValidationException;
+import es.uji.apps.cryptoapplet.crypto.ocsp.OCSPChecker;
+import es.uji.apps.cryptoapplet.crypto.ocsp.OCSPResponseDetails;
+import es.uji.apps.cryptoapplet.crypto.signature.DigestAlgorithm;
+import es.uji.apps.cryptoapplet.crypto.signature.ReferenceDigestCache;
 import es.uji.apps.cryptoapplet.crypto.signature.validate.AbstractSignatureValidator;
 import es.uji.apps.cryptoapplet.crypto.signature.validate.SignatureValidationOptions;
 import es.uji.apps.cryptoapplet.crypto.signature.validate.SignatureValidationResult;
 import es.uji.apps.cryptoapplet.crypto.signature.validate.SignatureValidator;
+import es.uji.apps.cryptoapplet.utils.Base64;
+import es.uji.apps.cryptoapplet.utils.StreamUtils;
 import net.java.xades.security.xml.SignatureStatus;
 import net.java.xades.security.xml.ValidateResult;
 import net.java.xades.security.xml.XAdES.XAdES;
 import net.java.xades.security.xml.XAdES.XAdES_BES;
 import net.java.xades.security.xml.XAdES.XMLAdvancedSignature;
+import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.crypto.AlgorithmMethod;
+import javax.xml.crypto.Data;
+import javax.xml.crypto.KeySelector;
+import javax.xml.crypto.KeySelectorException;
+import javax.xml.crypto.KeySelectorResult;
+import javax.xml.crypto.OctetStreamData;
+import javax.xml.crypto.URIDereferencer;
+import javax.xml.crypto.URIReference;
+import javax.xml.crypto.URIReferenceException;
+import javax.xml.crypto.XMLCryptoContext;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureException;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMValidateContext;
+import javax.xml.crypto.dsig.keyinfo.KeyInfo;
+import javax.xml.crypto.dsig.keyinfo.X509Data;
+import javax.xml.datatype.DatatypeFactory;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
 import java.security.Provider;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class XAdESSignatureValidator extends AbstractSignatureValidator implements SignatureValidator
 {
+    private static final String[] ID_ATTRIBUTES = new String[]{"Id", "ID", "id"};
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static ExecutorService defaultExecutor;
+
+    private ExecutorService executor;
+
     public XAdESSignatureValidator(X509Certificate certificate, Provider provider)
             throws CertificateNotFoundException
     {
         super(certificate, provider);
     }
 
+    public XAdESSignatureValidator(X509Certificate certificate, X509Certificate[] caCertificates,
+            Provider provider) throws CertificateNotFoundException
+    {
+        super(certificate, caCertificates, provider);
+    }
+
     @Override
     public SignatureValidationResult validate(SignatureValidationOptions signatureValidationOptions)
             throws ValidationException
     {
         try
         {
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            dbf.setNamespaceAware(true);
-            DocumentBuilder db = dbf.newDocumentBuilder();
-            Element element = db.parse(signatureValidationOptions.getSignedData()).getDocumentElement();
+            Element element = XMLFactories.getDocumentBuilder().parse(
+                    signatureValidationOptions.getSignedData()).getDocumentElement();
+
+            if (isDetached(element, signatureValidationOptions))
+            {
+                validateDetached(element, signatureValidationOptions.getOriginalData());
+            }
+            else
+            {
+                validateAttached(element);
+            }
+
+            if (signatureValidationOptions.isRevocationCheckEnabled())
+            {
+                return checkRevocation(getSignature(element), certificate,
+                        signatureValidationOptions);
+            }
+
+            return new SignatureValidationResult(true);
+        }
+        catch (Exception e)
+        {
+            throw new ValidationException(e);
+        }
+    }
+
+    private void validateAttached(Element element) throws Exception
+    {
+        XAdES_BES xades = (XAdES_BES) XAdES.newInstance(XAdES.BES, element);
+
+        XMLAdvancedSignature fileXML = XMLAdvancedSignature.newInstance(xades);
+        List<SignatureStatus> st = fileXML.validate();
+
+        for (SignatureStatus status : st)
+        {
+            if (status.getValidateResult() != ValidateResult.VALID)
+            {
+                throw new ValidationException("Sign validation error: "
+                        + status.getReasonsAsText());
+            }
+        }
+    }
 
-            XAdES_BES xades = (XAdES_BES) XAdES.newInstance(XAdES.BES, element);
+    /**
+     * A detached signature is a standalone ds:Signature whose data is given as original data
+     */
+    private boolean isDetached(Element element, SignatureValidationOptions signatureValidationOptions)
+    {
+        return signatureValidationOptions.getOriginalData() != null
+                && XMLSignature.XMLNS.equals(element.getNamespaceURI())
+                && "Signature".equals(element.getLocalName());
+    }
 
-            XMLAdvancedSignature fileXML = XMLAdvancedSignature.newInstance(xades);
-            List<SignatureStatus> st = fileXML.validate();
+    /**
+     * Validates a detached signature against the signer certificate. External references are
+     * resolved to the original data, which is digested as a stream, and same document
+     * references, such as the signed properties, to the signature itself.
+     */
+    private void validateDetached(Element signature, final InputStream originalData)
+            throws Exception
+    {
+        XMLSignatureFactory xmlSignatureFactory = XMLFactories.getXMLSignatureFactory();
+        final URIDereferencer defaultDereferencer = xmlSignatureFactory.getURIDereferencer();
 
-            for (SignatureStatus status : st)
+        DOMValidateContext context = new DOMValidateContext(certificate.getPublicKey(), signature);
+        context.setURIDereferencer(new URIDereferencer()
+        {
+            public Data dereference(URIReference uriReference, XMLCryptoContext context)
+                    throws URIReferenceException
             {
-                if (status.getValidateResult() != ValidateResult.VALID)
+                String uri = uriReference.getURI();
+
+                if (uri != null && uri.length() > 0 && !uri.startsWith("#"))
                 {
-                    throw new ValidationException("Sign validation error: "
-                            + status.getReasonsAsText());
+                    return new OctetStreamData(originalData, uri, null);
                 }
+
+                return defaultDereferencer.dereference(uriReference, context);
             }
+        });
 
-            return new SignatureValidationResult(true);
+        registerIds(signature, context);
+
+        XMLSignature xmlSignature = xmlSignatureFactory.unmarshalXMLSignature(context);
+
+        if (!xmlSignature.validate(context))
+        {
+            StringBuilder reasons = new StringBuilder();
+
+            for (String reason : getReasons(xmlSignature, context))
+            {
+                reasons.append(reason).append(". ");
+            }
+
+            throw new ValidationException("Sign validation error: " + reasons.toString().trim());
+        }
+    }
+
+    /**
+     * Validates every ds:Signature of the document on its own task and returns one result per
+     * signature, in document order, instead of failing on the first invalid one. DOM trees can
+     * not be read from several threads, so each task parses its own copy of the document and
+     * the references of different signatures are digested concurrently. The key of each
+     * signature is taken from the certificate in its KeyInfo, or is the one of the validator
+     * certificate if there is none. That certificate must be the validator one or be issued by
+     * one of its CAs, and its revocation is checked as in validate when enabled. The XAdES
+     * qualifying properties are checked on the same task as their signature, see
+     * checkQualifyingProperties. Identical references of different signatures are digested
+     * once per call, see ReferenceDigestCache.
+     */
+    public List<SignatureValidationResult> validateAll(
+            SignatureValidationOptions signatureValidationOptions) throws ValidationException
+    {
+        final byte[] data = StreamUtils.inputStreamToByteArray(signatureValidationOptions
+                .getSignedData());
+        Document document;
+
+        try
+        {
+            document = XMLFactories.getDocumentBuilder().parse(new ByteArrayInputStream(data));
         }
         catch (Exception e)
         {
             throw new ValidationException(e);
         }
+
+        final ReferenceDigestCache cache = new ReferenceDigestCache();
+
+        final SignatureValidationOptions options = signatureValidationOptions;
+        int signatures = document.getElementsByTagNameNS(XMLSignature.XMLNS, "Signature")
+                .getLength();
+
+        List<Future<SignatureValidationResult>> futures = new ArrayList<Future<SignatureValidationResult>>();
+
+        for (int i = 0; i < signatures; i++)
+        {
+            // The first task takes the document already parsed, it is not used here any more
+
+            final Document parsed = (i == 0) ? document : null;
+            final int index = i;
+
+            futures.add(getExecutor().submit(new Callable<SignatureValidationResult>()
+            {
+                public SignatureValidationResult call() throws Exception
+                {
+                    Document signed = (parsed != null) ? parsed : XMLFactories
+                            .getDocumentBuilder().parse(new ByteArrayInputStream(data));
+
+                    return validateSignature(signed, index, cache, options);
+                }
+            }));
+        }
+
+        List<SignatureValidationResult> results = new ArrayList<SignatureValidationResult>();
+
+        for (Future<SignatureValidationResult> future : futures)
+        {
+            try
+            {
+                results.add(future.get());
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new ValidationException(e);
+            }
+            catch (ExecutionException e)
+            {
+                SignatureValidationResult result = new SignatureValidationResult(false);
+                result.addError("Sign validation error: " + e.getCause().getMessage());
+                results.add(result);
+            }
+        }
+
+        return results;
+    }
+
+    private SignatureValidationResult validateSignature(Document document, int index,
+            ReferenceDigestCache cache, SignatureValidationOptions signatureValidationOptions)
+            throws Exception
+    {
+        Element signature = (Element) document.getElementsByTagNameNS(XMLSignature.XMLNS,
+                "Signature").item(index);
+
+        SignerKeySelector keySelector = new SignerKeySelector();
+        DOMValidateContext context = new DOMValidateContext(keySelector, signature);
+        registerIds(document.getDocumentElement(), context);
+
+        XMLSignature xmlSignature = XMLFactories.getXMLSignatureFactory().unmarshalXMLSignature(
+                context);
+
+        SignatureValidationResult result = new SignatureValidationResult(true);
+
+        if (!xmlSignature.getSignatureValue().validate(context))
+        {
+            result.setValid(false);
+            result.addError("Signature value does not match");
+        }
+
+        for (Object reference : xmlSignature.getSignedInfo().getReferences())
+        {
+            if (!validateReference((Reference) reference, context, cache))
+            {
+                result.setValid(false);
+                result.addError("Digest of reference " + ((Reference) reference).getURI()
+                        + " does not match");
+            }
+        }
+
+        X509Certificate signerCertificate = keySelector.getSignerCertificate();
+
+        for (String error : checkQualifyingProperties(signature, xmlSignature,
+                signerCertificate))
+        {
+            result.setValid(false);
+            result.addError(error);
+        }
+
+        if (!isTrusted(signerCertificate))
+        {
+            result.setValid(false);
+            result.addError("Signer certificate is not trusted: "
+                    + signerCertificate.getSubjectX500Principal().getName());
+
+            return result;
+        }
+
+        if (result.isValid() && signatureValidationOptions.isRevocationCheckEnabled())
+        {
+            return checkRevocation(signature, signerCertificate, signatureValidationOptions);
+        }
+
+        return result;
+    }
+
+    /**
+     * Checks the XAdES properties of the signature: its xades:QualifyingProperties must target
+     * it, their xades:SignedProperties must be covered by a reference of the signature and the
+     * xades:SigningCertificate must be the certificate the signature was validated with.
+     *
+     * @return the errors found, empty if there are none
+     */
+    private List<String> checkQualifyingProperties(Element signature, XMLSignature xmlSignature,
+            X509Certificate signerCertificate) throws Exception
+    {
+        List<String> errors = new ArrayList<String>();
+        Element qualifyingProperties = getQualifyingProperties(signature);
+
+        if (qualifyingProperties == null)
+        {
+            errors.add("No XAdES qualifying properties for the signature");
+            return errors;
+        }
+
+        Element signedProperties = getChild(qualifyingProperties, "SignedProperties");
+
+        if (signedProperties == null || !isReferenced(xmlSignature, signedProperties))
+        {
+            errors.add("XAdES signed properties are not signed");
+        }
+
+        NodeList certDigests = qualifyingProperties.getElementsByTagNameNS("*", "CertDigest");
+
+        if (certDigests.getLength() == 0)
+        {
+            errors.add("No XAdES signing certificate");
+            return errors;
+        }
+
+        Element certDigest = (Element) certDigests.item(0);
+        Element digestMethod = getChild(certDigest, "DigestMethod");
+        Element digestValue = getChild(certDigest, "DigestValue");
+
+        if (digestMethod == null || digestValue == null)
+        {
+            errors.add("No XAdES signing certificate");
+            return errors;
+        }
+
+        DigestAlgorithm digestAlgorithm = DigestAlgorithm.fromXMLSignatureURI(digestMethod
+                .getAttribute("Algorithm"));
+        byte[] digest = MessageDigest.getInstance(digestAlgorithm.getJCAName()).digest(
+                signerCertificate.getEncoded());
+
+        if (!MessageDigest.isEqual(digest, Base64.decode(digestValue.getTextContent().trim())))
+        {
+            errors.add("XAdES signing certificate digest does not match");
+        }
+
+        NodeList serialNumbers = ((Element) certDigest.getParentNode()).getElementsByTagNameNS(
+                "*", "X509SerialNumber");
+
+        if (serialNumbers.getLength() > 0
+                && !signerCertificate.getSerialNumber().equals(
+                        new BigInteger(serialNumbers.item(0).getTextContent().trim())))
+        {
+            errors.add("XAdES signing certificate serial number does not match");
+        }
+
+        return errors;
+    }
+
+    /**
+     * @return the xades:QualifyingProperties of the signature, whose Target is the signature
+     *         Id when both have one
+     */
+    private Element getQualifyingProperties(Element signature)
+    {
+        NodeList qualifyingProperties = signature.getElementsByTagNameNS("*",
+                "QualifyingProperties");
+        String id = signature.getAttribute("Id");
+
+        for (int i = 0; i < qualifyingProperties.getLength(); i++)
+        {
+            Element element = (Element) qualifyingProperties.item(i);
+            String target = element.getAttribute("Target");
+
+            if (id.length() == 0 || target.length() == 0 || target.equals("#" + id))
+            {
+                return element;
+            }
+        }
+
+        return null;
+    }
+
+    private boolean isReferenced(XMLSignature xmlSignature, Element element)
+    {
+        for (String name : ID_ATTRIBUTES)
+        {
+            String id = element.getAttribute(name);
+
+            if (id.length() == 0)
+            {
+                continue;
+            }
+
+            for (Object reference : xmlSignature.getSignedInfo().getReferences())
+            {
+                if (("#" + id).equals(((Reference) reference).getURI()))
+                {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private Element getChild(Element parent, String localName)
+    {
+        NodeList children = parent.getElementsByTagNameNS("*", localName);
+
+        return (children.getLength() > 0) ? (Element) children.item(0) : null;
+    }
+
+    /**
+     * @return if the certificate is the validator one or is signed by one of its CAs
+     */
+    private boolean isTrusted(X509Certificate signerCertificate)
+    {
+        if (signerCertificate.equals(certificate))
+        {
+            return true;
+        }
+
+        X509Certificate caCertificate = getIssuer(signerCertificate);
+
+        if (caCertificate == null)
+        {
+            return false;
+        }
+
+        try
+        {
+            signerCertificate.verify(caCertificate.getPublicKey());
+            return true;
+        }
+        catch (GeneralSecurityException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Compares the reference digest with the one calculated for an identical reference of
+     * another signature, calculating it only the first time
+     */
+    private boolean validateReference(final Reference reference,
+            final DOMValidateContext context, ReferenceDigestCache cache) throws Exception
+    {
+        String key = ReferenceKeys.getKey(reference);
+
+        if (key == null)
+        {
+            return reference.validate(context);
+        }
+
+        byte[] digest = cache.getDigest(key, new Callable<byte[]>()
+        {
+            public byte[] call() throws Exception
+            {
+                reference.validate(context);
+                return reference.getCalculatedDigestValue();
+            }
+        });
+
+        return MessageDigest.isEqual(digest, reference.getDigestValue());
+    }
+
+    private List<String> getReasons(XMLSignature xmlSignature, DOMValidateContext context)
+            throws XMLSignatureException
+    {
+        List<String> reasons = new ArrayList<String>();
+
+        if (!xmlSignature.getSignatureValue().validate(context))
+        {
+            reasons.add("Signature value does not match");
+        }
+
+        for (Object reference : xmlSignature.getSignedInfo().getReferences())
+        {
+            if (!((Reference) reference).validate(context))
+            {
+                reasons.add("Digest of reference " + ((Reference) reference).getURI()
+                        + " does not match");
+            }
+        }
+
+        return reasons;
+    }
+
+    /**
+     * Declares the Id, ID and id attributes under the element as identifiers, so same document
+     * references to them can be resolved
+     */
+    private void registerIds(Element element, DOMValidateContext context)
+    {
+        registerId(element, context);
+
+        NodeList descendants = element.getElementsByTagNameNS("*", "*");
+
+        for (int i = 0; i < descendants.getLength(); i++)
+        {
+            registerId((Element) descendants.item(i), context);
+        }
+    }
+
+    private void registerId(Element element, DOMValidateContext context)
+    {
+        for (String name : ID_ATTRIBUTES)
+        {
+            if (element.hasAttributeNS(null, name))
+            {
+                context.setIdAttributeNS(element, null, name);
+            }
+        }
+    }
+
+    /**
+     * Executor for validateAll, by default a pool shared by all validators with a thread per
+     * processor
+     */
+    public void setExecutor(ExecutorService executor)
+    {
+        this.executor = executor;
+    }
+
+    private ExecutorService getExecutor()
+    {
+        if (executor != null)
+        {
+            return executor;
+        }
+
+        synchronized (XAdESSignatureValidator.class)
+        {
+            if (defaultExecutor == null)
+            {
+                defaultExecutor = Executors.newFixedThreadPool(Runtime.getRuntime()
+                        .availableProcessors(), new ThreadFactory()
+                {
+                    public Thread newThread(Runnable runnable)
+                    {
+                        Thread thread = new Thread(runnable, "xades-validator-"
+                                + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+
+                        return thread;
+                    }
+                });
+            }
+
+            return defaultExecutor;
+        }
+    }
+
+    /**
+     * Key of the first certificate in the KeyInfo of the signature, or of the validator
+     * certificate. The selected certificate is kept to be checked once the signature is.
+     */
+    private class SignerKeySelector extends KeySelector
+    {
+        private X509Certificate signerCertificate = certificate;
+
+        public X509Certificate getSignerCertificate()
+        {
+            return signerCertificate;
+        }
+
+        @Override
+        public KeySelectorResult select(KeyInfo keyInfo, Purpose purpose, AlgorithmMethod method,
+                XMLCryptoContext context) throws KeySelectorException
+        {
+            if (keyInfo != null)
+            {
+                for (Object content : keyInfo.getContent())
+                {
+                    if (content instanceof X509Data)
+                    {
+                        for (Object data : ((X509Data) content).getContent())
+                        {
+                            if (data instanceof X509Certificate)
+                            {
+                                signerCertificate = (X509Certificate) data;
+                                return new SelectedKey(signerCertificate.getPublicKey());
+                            }
+                        }
+                    }
+                }
+            }
+
+            return new SelectedKey(signerCertificate.getPublicKey());
+        }
+    }
+
+    private static class SelectedKey implements KeySelectorResult
+    {
+        private final Key key;
+
+        public SelectedKey(Key key)
+        {
+            this.key = key;
+        }
+
+        public Key getKey()
+        {
+            return key;
+        }
+    }
+
+    /**
+     * Checks the signer certificate against the OCSP responses embedded in its signature. A
+     * response is only used if its thisUpdate is within the configured max age of the signing
+     * time of that signature. Without a usable response the responders are queried, unless online
+     * checks are disabled.
+     */
+    private SignatureValidationResult checkRevocation(Element signature,
+            X509Certificate signerCertificate,
+            SignatureValidationOptions signatureValidationOptions) throws Exception
+    {
+        SignatureValidationResult result = new SignatureValidationResult(false);
+        X509Certificate caCertificate = getIssuer(signerCertificate);
+
+        if (caCertificate == null)
+        {
+            result.addError("Can not find CA certificate for "
+                    + signerCertificate.getSubjectX500Principal().getName());
+            return result;
+        }
+
+        OCSPChecker ocspChecker = new OCSPChecker();
+        long referenceTime = getSigningTime(signature);
+        List<String> errors = new ArrayList<String>();
+
+        NodeList encapsulatedOCSPValues = signature.getElementsByTagNameNS("*",
+                "EncapsulatedOCSPValue");
+
+        for (int i = 0; i < encapsulatedOCSPValues.getLength(); i++)
+        {
+            byte[] responseData = Base64.decode(encapsulatedOCSPValues.item(i).getTextContent()
+                    .trim());
+            OCSPResponseDetails responseDetails = ocspChecker.getCertificateStatus(responseData,
+                    signerCertificate, caCertificate, null, provider);
+
+            if (responseDetails.isRevoked())
+            {
+                return invalid(result, responseDetails.getErrors());
+            }
+
+            if (!responseDetails.isValid())
+            {
+                errors.addAll(responseDetails.getErrors());
+                continue;
+            }
+
+            long thisUpdate = responseDetails.getThisUpdate().getTime();
+
+            if (Math.abs(thisUpdate - referenceTime) <= signatureValidationOptions
+                    .getEmbeddedOCSPMaxAge())
+            {
+                return new SignatureValidationResult(true);
+            }
+
+            errors.add("Embedded OCSP response is too far from signing time");
+        }
+
+        if (signatureValidationOptions.isOnlineRevocationCheckEnabled())
+        {
+            OCSPResponseDetails responseDetails = ocspChecker.getCertificateStatus(
+                    signerCertificate, caCertificate, null, provider);
+
+            if (responseDetails.isValid())
+            {
+                return new SignatureValidationResult(true);
+            }
+
+            return invalid(result, responseDetails.getErrors());
+        }
+
+        if (errors.isEmpty())
+        {
+            errors.add("No embedded OCSP response available");
+        }
+
+        return invalid(result, errors);
+    }
+
+    private SignatureValidationResult invalid(SignatureValidationResult result,
+            List<String> errors)
+    {
+        for (String error : errors)
+        {
+            result.addError(error);
+        }
+
+        return result;
+    }
+
+    private X509Certificate getIssuer(X509Certificate signerCertificate)
+    {
+        for (X509Certificate caCertificate : caCertificates)
+        {
+            if (caCertificate.getSubjectX500Principal().equals(
+                    signerCertificate.getIssuerX500Principal()))
+            {
+                return caCertificate;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the ds:Signature whose KeyInfo carries the validator certificate, the first
+     *         ds:Signature if none does, or the element itself if it has no signature
+     */
+    private Element getSignature(Element element) throws Exception
+    {
+        if (XMLSignature.XMLNS.equals(element.getNamespaceURI())
+                && "Signature".equals(element.getLocalName()))
+        {
+            return element;
+        }
+
+        NodeList signatures = element.getElementsByTagNameNS(XMLSignature.XMLNS, "Signature");
+        byte[] encodedCertificate = certificate.getEncoded();
+
+        for (int i = 0; i < signatures.getLength(); i++)
+        {
+            Element signature = (Element) signatures.item(i);
+            NodeList certificates = signature.getElementsByTagNameNS(XMLSignature.XMLNS,
+                    "X509Certificate");
+
+            for (int j = 0; j < certificates.getLength(); j++)
+            {
+                if (Arrays.equals(encodedCertificate, Base64.decode(certificates.item(j)
+                        .getTextContent().trim())))
+                {
+                    return signature;
+                }
+            }
+        }
+
+        return (signatures.getLength() > 0) ? (Element) signatures.item(0) : element;
+    }
+
+    private long getSigningTime(Element signature) throws Exception
+    {
+        NodeList signingTime = signature.getElementsByTagNameNS("*", "SigningTime");
+
+        if (signingTime.getLength() == 0)
+        {
+            return System.currentTimeMillis();
+        }
+
+        return DatatypeFactory.newInstance().newXMLGregorianCalendar(
+                signingTime.item(0).getTextContent().trim()).toGregorianCalendar()
+                .getTimeInMillis();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,97 @@
+package es.uji.apps.cryptoapplet.crypto.xades;
+
+import org.apache.log4j.Logger;
+import org.w3c.dom.Document;
+
+import javax.xml.XMLConstants;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * Parsers and signature factories reused by the XAdES classes. Looking them up is expensive and
+ * they are not thread safe, so every thread keeps its own. The parser factory is configured
+ * once, namespace aware and with secure processing and external entities disabled.
+ */
+public class XMLFactories
+{
+    private static Logger log = Logger.getLogger(XMLFactories.class);
+
+    private static final DocumentBuilderFactory documentBuilderFactory = createDocumentBuilderFactory();
+
+    private static final ThreadLocal<DocumentBuilder> documentBuilder = new ThreadLocal<DocumentBuilder>()
+    {
+        @Override
+        protected DocumentBuilder initialValue()
+        {
+            try
+            {
+                synchronized (documentBuilderFactory)
+                {
+                    return documentBuilderFactory.newDocumentBuilder();
+                }
+            }
+            catch (ParserConfigurationException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private static final ThreadLocal<XMLSignatureFactory> xmlSignatureFactory = new ThreadLocal<XMLSignatureFactory>()
+    {
+        @Override
+        protected XMLSignatureFactory initialValue()
+        {
+            return XMLSignatureFactory.getInstance("DOM");
+        }
+    };
+
+    /**
+     * @return the parser of the current thread, reset to its initial state
+     */
+    public static DocumentBuilder getDocumentBuilder()
+    {
+        DocumentBuilder builder = documentBuilder.get();
+        builder.reset();
+
+        return builder;
+    }
+
+    public static Document newDocument()
+    {
+        return getDocumentBuilder().newDocument();
+    }
+
+    public static XMLSignatureFactory getXMLSignatureFactory()
+    {
+        return xmlSignatureFactory.get();
+    }
+
+    private static DocumentBuilderFactory createDocumentBuilderFactory()
+    {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+
+        setFeature(factory, XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        setFeature(factory, "http://xml.org/sax/features/external-general-entities", false);
+        setFeature(factory, "http://xml.org/sax/features/external-parameter-entities", false);
+        setFeature(factory, "http://apache.org/xml/features/nonvalidating/load-external-dtd",
+                false);
+
+        return factory;
+    }
+
+    private static void setFeature(DocumentBuilderFactory factory, String feature, boolean value)
+    {
+        try
+        {
+            factory.setFeature(feature, value);
+        }
+        catch (ParserConfigurationException e)
+        {
+            log.warn("XML parser does not support feature " + feature);
+        }
+    }
+}
@@ -0,0 +1,458 @@
+package es.uji.apps.cryptoapplet.crypto.xades;
+
+import javax.xml.XMLConstants;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Comment;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.ProcessingInstruction;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Inclusive canonical XML 1.0 without comments of a whole document, computed from StAX events
+ * so the document is never held in memory. The output is what a same document reference ("")
+ * digests once a signature placed as last child of the document element is removed by the
+ * enveloped transform. With excludeSignatures the ds:Signature elements already in the document
+ * are left out too, as the XPath transform of co-signatures does. The same serialization is
+ * used to write the signed document, see append.
+ */
+public class XMLStreamCanonicalizer
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final boolean excludeSignatures;
+
+    private QName rootName;
+    private Map<String, String> rootNamespaces = new LinkedHashMap<String, String>();
+    private Map<String, String> rootXMLAttributes = new LinkedHashMap<String, String>();
+    private int signatures;
+
+    public XMLStreamCanonicalizer(boolean excludeSignatures)
+    {
+        this.excludeSignatures = excludeSignatures;
+    }
+
+    public static XMLInputFactory createInputFactory()
+    {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+
+        return factory;
+    }
+
+    public byte[] digest(InputStream in, String algorithm) throws XMLStreamException,
+            IOException, NoSuchAlgorithmException
+    {
+        MessageDigest messageDigest = MessageDigest.getInstance(algorithm);
+
+        canonicalize(in, new DigestOutputStream(new OutputStream()
+        {
+            @Override
+            public void write(int b)
+            {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len)
+            {
+            }
+        }, messageDigest));
+
+        return messageDigest.digest();
+    }
+
+    public void canonicalize(InputStream in, OutputStream out) throws XMLStreamException,
+            IOException
+    {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF8));
+        write(in, writer, false, null);
+        writer.flush();
+    }
+
+    /**
+     * Writes the document in canonical form, keeping comments, with the given XML fragment
+     * added as last child of the document element. Escaping is the canonical one, so values
+     * such as line breaks in attributes are kept, which a StAX writer does not do.
+     */
+    public void append(InputStream in, OutputStream out, byte[] fragment)
+            throws XMLStreamException, IOException
+    {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF8));
+        writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        write(in, writer, true, fragment);
+        writer.flush();
+    }
+
+    private void write(InputStream in, Writer writer, boolean comments, byte[] fragment)
+            throws XMLStreamException, IOException
+    {
+        XMLEventReader reader = createInputFactory().createXMLEventReader(in);
+
+        LinkedList<Map<String, String>> scopes = new LinkedList<Map<String, String>>();
+        int depth = 0;
+        int skipDepth = 0;
+        boolean afterRoot = false;
+
+        try
+        {
+            while (reader.hasNext())
+            {
+                XMLEvent event = reader.nextEvent();
+
+                switch (event.getEventType())
+                {
+                    case XMLStreamConstants.START_ELEMENT:
+                        StartElement start = event.asStartElement();
+                        boolean signature = isSignature(start.getName());
+
+                        if (signature)
+                        {
+                            signatures++;
+                        }
+
+                        if (skipDepth > 0 || (excludeSignatures && signature))
+                        {
+                            skipDepth++;
+                            break;
+                        }
+
+                        if (depth == 0)
+                        {
+                            recordRoot(start);
+                        }
+
+                        writeStartElement(writer, start, scopes);
+                        depth++;
+                        break;
+
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (skipDepth > 0)
+                        {
+                            skipDepth--;
+                            break;
+                        }
+
+                        if (depth == 1 && fragment != null)
+                        {
+                            new XMLStreamCanonicalizer(false).write(new ByteArrayInputStream(
+                                    fragment), writer, comments, null);
+                        }
+
+                        writer.write("</");
+                        writer.write(getQualifiedName(event.asEndElement().getName()));
+                        writer.write('>');
+
+                        scopes.removeFirst();
+
+                        if (--depth == 0)
+                        {
+                            afterRoot = true;
+                        }
+                        break;
+
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        if (skipDepth == 0 && depth > 0)
+                        {
+                            writeText(writer, event.asCharacters().getData());
+                        }
+                        break;
+
+                    case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    case XMLStreamConstants.COMMENT:
+                        if (skipDepth > 0
+                                || (event.getEventType() == XMLStreamConstants.COMMENT && !comments))
+                        {
+                            break;
+                        }
+
+                        if (depth == 0 && afterRoot)
+                        {
+                            writer.write('\n');
+                        }
+
+                        if (event.getEventType() == XMLStreamConstants.COMMENT)
+                        {
+                            writer.write("<!--");
+                            writer.write(((Comment) event).getText());
+                            writer.write("-->");
+                        }
+                        else
+                        {
+                            writeProcessingInstruction(writer, (ProcessingInstruction) event);
+                        }
+
+                        if (depth == 0 && !afterRoot)
+                        {
+                            writer.write('\n');
+                        }
+                        break;
+
+                    default:
+                        // DTD and document events are not part of the output
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return the name of the document element, available after canonicalizing
+     */
+    public QName getRootName()
+    {
+        return rootName;
+    }
+
+    /**
+     * @return the namespaces declared on the document element, by prefix
+     */
+    public Map<String, String> getRootNamespaces()
+    {
+        return rootNamespaces;
+    }
+
+    /**
+     * @return the xml:* attributes of the document element, by local name
+     */
+    public Map<String, String> getRootXMLAttributes()
+    {
+        return rootXMLAttributes;
+    }
+
+    /**
+     * @return number of ds:Signature elements found, excluded or not
+     */
+    public int getSignatures()
+    {
+        return signatures;
+    }
+
+    private boolean isSignature(QName name)
+    {
+        return XMLSignature.XMLNS.equals(name.getNamespaceURI())
+                && "Signature".equals(name.getLocalPart());
+    }
+
+    private void recordRoot(StartElement start)
+    {
+        rootName = start.getName();
+
+        for (Iterator<?> i = start.getNamespaces(); i.hasNext();)
+        {
+            Namespace namespace = (Namespace) i.next();
+            rootNamespaces.put(namespace.getPrefix(), getNamespaceURI(namespace));
+        }
+
+        for (Iterator<?> i = start.getAttributes(); i.hasNext();)
+        {
+            Attribute attribute = (Attribute) i.next();
+
+            if (XMLConstants.XML_NS_URI.equals(attribute.getName().getNamespaceURI()))
+            {
+                rootXMLAttributes.put(attribute.getName().getLocalPart(), attribute.getValue());
+            }
+        }
+    }
+
+    private void writeStartElement(Writer writer, StartElement start,
+            LinkedList<Map<String, String>> scopes) throws IOException
+    {
+        Map<String, String> parent = scopes.isEmpty() ? Collections.<String, String> emptyMap()
+                : scopes.getFirst();
+        Map<String, String> scope = parent;
+
+        // Only declarations that change the in scope value are rendered, default one first
+
+        Map<String, String> rendered = new TreeMap<String, String>();
+
+        for (Iterator<?> i = start.getNamespaces(); i.hasNext();)
+        {
+            Namespace namespace = (Namespace) i.next();
+            String prefix = namespace.getPrefix();
+            String uri = getNamespaceURI(namespace);
+            String inherited = parent.get(prefix);
+
+            if (inherited == null && prefix.length() == 0)
+            {
+                inherited = "";
+            }
+
+            if (uri.equals(inherited))
+            {
+                continue;
+            }
+
+            if (scope == parent)
+            {
+                scope = new HashMap<String, String>(parent);
+            }
+
+            scope.put(prefix, uri);
+            rendered.put(prefix, uri);
+        }
+
+        scopes.addFirst(scope);
+
+        writer.write('<');
+        writer.write(getQualifiedName(start.getName()));
+
+        for (Map.Entry<String, String> namespace : rendered.entrySet())
+        {
+            writer.write(namespace.getKey().length() == 0 ? " xmlns=\"" : " xmlns:"
+                    + namespace.getKey() + "=\"");
+            writeAttributeValue(writer, namespace.getValue());
+            writer.write('"');
+        }
+
+        List<Attribute> attributes = new ArrayList<Attribute>();
+
+        for (Iterator<?> i = start.getAttributes(); i.hasNext();)
+        {
+            attributes.add((Attribute) i.next());
+        }
+
+        Collections.sort(attributes, new Comparator<Attribute>()
+        {
+            public int compare(Attribute a, Attribute b)
+            {
+                int result = a.getName().getNamespaceURI().compareTo(
+                        b.getName().getNamespaceURI());
+
+                return (result != 0) ? result : a.getName().getLocalPart().compareTo(
+                        b.getName().getLocalPart());
+            }
+        });
+
+        for (Attribute attribute : attributes)
+        {
+            writer.write(' ');
+            writer.write(getQualifiedName(attribute.getName()));
+            writer.write("=\"");
+            writeAttributeValue(writer, attribute.getValue());
+            writer.write('"');
+        }
+
+        writer.write('>');
+    }
+
+    private void writeProcessingInstruction(Writer writer, ProcessingInstruction pi)
+            throws IOException
+    {
+        writer.write("<?");
+        writer.write(pi.getTarget());
+
+        if (pi.getData() != null && pi.getData().length() > 0)
+        {
+            writer.write(' ');
+            writer.write(pi.getData());
+        }
+
+        writer.write("?>");
+    }
+
+    private void writeText(Writer writer, String text) throws IOException
+    {
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+
+            switch (c)
+            {
+                case '&':
+                    writer.write("&amp;");
+                    break;
+                case '<':
+                    writer.write("&lt;");
+                    break;
+                case '>':
+                    writer.write("&gt;");
+                    break;
+                case '\r':
+                    writer.write("&#xD;");
+                    break;
+                default:
+                    writer.write(c);
+            }
+        }
+    }
+
+    private void writeAttributeValue(Writer writer, String value) throws IOException
+    {
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+
+            switch (c)
+            {
+                case '&':
+                    writer.write("&amp;");
+                    break;
+                case '<':
+                    writer.write("&lt;");
+                    break;
+                case '"':
+                    writer.write("&quot;");
+                    break;
+                case '\t':
+                    writer.write("&#x9;");
+                    break;
+                case '\n':
+                    writer.write("&#xA;");
+                    break;
+                case '\r':
+                    writer.write("&#xD;");
+                    break;
+                default:
+                    writer.write(c);
+            }
+        }
+    }
+
+    private String getNamespaceURI(Namespace namespace)
+    {
+        // An undeclared default namespace, xmlns="", may be reported as null
+
+        return (namespace.getNamespaceURI() != null) ? namespace.getNamespaceURI() : "";
+    }
+
+    static String getQualifiedName(QName name)
+    {
+        String prefix = name.getPrefix();
+        return (prefix == null || prefix.length() == 0) ? name.getLocalPart() : prefix + ":"
+                + name.getLocalPart();
+    }
+}
@@ -0,0 +1,280 @@
+package es.uji.apps.cryptoapplet.crypto.xades;
+
+import es.uji.apps.cryptoapplet.config.ConfigManager;
+import es.uji.apps.cryptoapplet.crypto.ocsp.OCSPChecker;
+import es.uji.apps.cryptoapplet.crypto.signature.format.SignatureOptions;
+import es.uji.apps.cryptoapplet.crypto.signature.validate.SignatureValidationOptions;
+import es.uji.apps.cryptoapplet.crypto.signature.validate.SignatureValidationResult;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.X509Extensions;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.ocsp.BasicOCSPRespGenerator;
+import org.bouncycastle.ocsp.CertificateID;
+import org.bouncycastle.ocsp.CertificateStatus;
+import org.bouncycastle.ocsp.OCSPRespGenerator;
+import org.bouncycastle.ocsp.RevokedStatus;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.security.auth.x500.X500Principal;
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class XAdESRevocationTest
+{
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    private static final byte[] DOCUMENT = "<?xml version=\"1.0\"?><root><d>a</d></root>"
+            .getBytes();
+    private static final AtomicLong serialNumber = new AtomicLong(System.currentTimeMillis());
+
+    private Provider provider;
+    private KeyPair caKeyPair;
+    private X509Certificate caCertificate;
+    private KeyPair signerKeyPair;
+    private X509Certificate signerCertificate;
+
+    @Before
+    public void init() throws Exception
+    {
+        provider = new BouncyCastleProvider();
+
+        if (Security.getProvider(provider.getName()) == null)
+        {
+            Security.addProvider(provider);
+        }
+
+        caKeyPair = generateKeyPair();
+        caCertificate = generateCertificate("CN=XAdES Revocation CA", caKeyPair.getPublic(),
+                "CN=XAdES Revocation CA", caKeyPair.getPrivate(), true);
+
+        signerKeyPair = generateKeyPair();
+        signerCertificate = generateCertificate("CN=XAdES Revocation Signer", signerKeyPair
+                .getPublic(), "CN=XAdES Revocation CA", caKeyPair.getPrivate(), false);
+    }
+
+    private KeyPair generateKeyPair() throws Exception
+    {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(1024);
+
+        return keyPairGenerator.generateKeyPair();
+    }
+
+    private X509Certificate generateCertificate(String subject, PublicKey publicKey,
+            String issuer, PrivateKey issuerKey, boolean ca) throws Exception
+    {
+        X509V3CertificateGenerator generator = new X509V3CertificateGenerator();
+        generator.setSerialNumber(BigInteger.valueOf(serialNumber.incrementAndGet()));
+        generator.setSubjectDN(new X500Principal(subject));
+        generator.setIssuerDN(new X500Principal(issuer));
+        generator.setNotBefore(new Date(System.currentTimeMillis() - DAY));
+        generator.setNotAfter(new Date(System.currentTimeMillis() + 365 * DAY));
+        generator.setPublicKey(publicKey);
+        generator.setSignatureAlgorithm("SHA1withRSA");
+
+        if (ca)
+        {
+            generator.addExtension(X509Extensions.BasicConstraints, true, new BasicConstraints(
+                    true));
+        }
+
+        return generator.generate(issuerKey, provider.getName());
+    }
+
+    private byte[] generateOCSPResponse(CertificateStatus status, Date thisUpdate,
+            KeyPair responderKeyPair) throws Exception
+    {
+        return generateOCSPResponse(signerCertificate, status, thisUpdate, responderKeyPair);
+    }
+
+    /**
+     * Encoded OCSP response for the given certificate signed by the given key
+     */
+    private byte[] generateOCSPResponse(X509Certificate certificate, CertificateStatus status,
+            Date thisUpdate, KeyPair responderKeyPair) throws Exception
+    {
+        BasicOCSPRespGenerator generator = new BasicOCSPRespGenerator(responderKeyPair
+                .getPublic());
+        Date nextUpdate = new Date(thisUpdate.getTime() + DAY);
+        generator.addResponse(new CertificateID(CertificateID.HASH_SHA1, caCertificate,
+                certificate.getSerialNumber()), status, thisUpdate, nextUpdate, null);
+
+        return new OCSPRespGenerator().generate(
+                OCSPRespGenerator.SUCCESSFUL,
+                generator.generate("SHA1withRSA", responderKeyPair.getPrivate(), null,
+                        new Date(), provider.getName())).getEncoded();
+    }
+
+    private byte[] sign(byte[] ocspResponse) throws Exception
+    {
+        return sign(DOCUMENT, signerCertificate, signerKeyPair, ocspResponse, false);
+    }
+
+    private byte[] sign(byte[] data, X509Certificate certificate, KeyPair keyPair,
+            byte[] ocspResponse, boolean coSign) throws Exception
+    {
+        SignatureOptions signatureOptions = new SignatureOptions(new ConfigManager()
+                .getConfiguration());
+        signatureOptions.setDataToSign(new ByteArrayInputStream(data));
+        signatureOptions.setCoSignEnabled(coSign);
+
+        if (ocspResponse != null)
+        {
+            signatureOptions.addOCSPResponse(ocspResponse);
+        }
+
+        return new XAdESSignatureFormatter(certificate, keyPair.getPrivate(), provider)
+                .format(signatureOptions);
+    }
+
+    private SignatureValidationOptions createValidationOptions(byte[] signedData,
+            boolean revocationCheck, long embeddedOCSPMaxAge)
+    {
+        SignatureValidationOptions signatureValidationOptions = new SignatureValidationOptions();
+        signatureValidationOptions.setSignedData(new ByteArrayInputStream(signedData));
+        signatureValidationOptions.setRevocationCheckEnabled(revocationCheck);
+        signatureValidationOptions.setOnlineRevocationCheckEnabled(false);
+        signatureValidationOptions.setEmbeddedOCSPMaxAge(embeddedOCSPMaxAge);
+
+        return signatureValidationOptions;
+    }
+
+    private XAdESSignatureValidator createValidator() throws Exception
+    {
+        return new XAdESSignatureValidator(signerCertificate,
+                new X509Certificate[] { caCertificate }, provider);
+    }
+
+    private SignatureValidationResult validate(byte[] signedData, long embeddedOCSPMaxAge)
+            throws Exception
+    {
+        return createValidator().validate(
+                createValidationOptions(signedData, true, embeddedOCSPMaxAge));
+    }
+
+    @Test
+    public void embeddedGoodResponseIsValidatedOffline() throws Exception
+    {
+        byte[] signedData = sign(generateOCSPResponse(CertificateStatus.GOOD, new Date(),
+                caKeyPair));
+
+        assertTrue(new String(signedData).contains("EncapsulatedOCSPValue"));
+        assertTrue(validate(signedData, DAY).isValid());
+
+        // Embedded responses are not stored in the shared response cache
+
+        assertNull(OCSPChecker.getResponseCache().get(
+                new CertificateID(CertificateID.HASH_SHA1, caCertificate, signerCertificate
+                        .getSerialNumber())));
+    }
+
+    @Test
+    public void embeddedRevokedResponseIsInvalid() throws Exception
+    {
+        byte[] signedData = sign(generateOCSPResponse(new RevokedStatus(new Date(),
+                CRLReason.keyCompromise), new Date(), caKeyPair));
+
+        SignatureValidationResult result = validate(signedData, DAY);
+
+        assertFalse(result.isValid());
+        assertEquals("Certificate has been revoked", result.getErrors().get(0));
+    }
+
+    @Test
+    public void embeddedResponseOlderThanMaxAgeIsNotUsed() throws Exception
+    {
+        Date thisUpdate = new Date(System.currentTimeMillis() - 2 * DAY);
+        byte[] signedData = sign(generateOCSPResponse(CertificateStatus.GOOD, thisUpdate,
+                caKeyPair));
+
+        SignatureValidationResult result = validate(signedData, DAY);
+
+        assertFalse(result.isValid());
+        assertEquals("Embedded OCSP response is too far from signing time", result.getErrors()
+                .get(0));
+    }
+
+    @Test
+    public void embeddedResponseOfAnotherResponderIsNotTrusted() throws Exception
+    {
+        byte[] signedData = sign(generateOCSPResponse(CertificateStatus.GOOD, new Date(),
+                generateKeyPair()));
+
+        SignatureValidationResult result = validate(signedData, DAY);
+
+        assertFalse(result.isValid());
+        assertEquals("OCSP Signature verification error", result.getErrors().get(0));
+    }
+
+    @Test
+    public void missingResponseIsInvalidOffline() throws Exception
+    {
+        SignatureValidationResult result = validate(sign(null), DAY);
+
+        assertFalse(result.isValid());
+        assertEquals("No embedded OCSP response available", result.getErrors().get(0));
+    }
+
+    @Test
+    public void untrustedCoSignerIsInvalid() throws Exception
+    {
+        // Same names as the trusted CA and signer, issued by another key
+
+        KeyPair intruderKeyPair = generateKeyPair();
+        X509Certificate intruderCertificate = generateCertificate("CN=XAdES Revocation Signer",
+                intruderKeyPair.getPublic(), "CN=XAdES Revocation CA", generateKeyPair()
+                        .getPrivate(), false);
+
+        byte[] signedData = sign(DOCUMENT, signerCertificate, signerKeyPair, null, false);
+        signedData = sign(signedData, intruderCertificate, intruderKeyPair, null, true);
+
+        List<SignatureValidationResult> results = createValidator().validateAll(
+                createValidationOptions(signedData, false, DAY));
+
+        assertEquals(2, results.size());
+        assertTrue(results.get(0).isValid());
+        assertFalse(results.get(1).isValid());
+        assertEquals("Signer certificate is not trusted: CN=XAdES Revocation Signer", results
+                .get(1).getErrors().get(0));
+    }
+
+    @Test
+    public void revocationOfEveryCoSignerIsChecked() throws Exception
+    {
+        KeyPair revokedKeyPair = generateKeyPair();
+        X509Certificate revokedCertificate = generateCertificate("CN=XAdES Revoked Signer",
+                revokedKeyPair.getPublic(), "CN=XAdES Revocation CA", caKeyPair.getPrivate(),
+                false);
+
+        byte[] signedData = sign(DOCUMENT, signerCertificate, signerKeyPair,
+                generateOCSPResponse(CertificateStatus.GOOD, new Date(), caKeyPair), false);
+        signedData = sign(signedData, revokedCertificate, revokedKeyPair, generateOCSPResponse(
+                revokedCertificate, new RevokedStatus(new Date(), CRLReason.keyCompromise),
+                new Date(), caKeyPair), true);
+
+        List<SignatureValidationResult> results = createValidator().validateAll(
+                createValidationOptions(signedData, true, DAY));
+
+        assertEquals(2, results.size());
+        assertTrue(results.get(0).isValid());
+        assertFalse(results.get(1).isValid());
+        assertEquals("Certificate has been revoked", results.get(1).getErrors().get(0));
+    }
+}
@@ -4,15 +4,24 @@ import es.uji.apps.cryptoapplet.config.model.Configuration;
 import es.uji.apps.cryptoapplet.crypto.junit.AbstractCryptoTest;
 import es.uji.apps.cryptoapplet.crypto.junit.KeyStoreAnfActivo;
 import es.uji.apps.cryptoapplet.crypto.junit.SignEnvironment;
+import es.uji.apps.cryptoapplet.crypto.signature.DigestAlgorithm;
+import es.uji.apps.cryptoapplet.crypto.signature.ReferenceDigestCache;
+import es.uji.apps.cryptoapplet.crypto.signature.SignatureAlgorithm;
+import es.uji.apps.cryptoapplet.crypto.signature.details.SignatureDetails;
 import es.uji.apps.cryptoapplet.crypto.signature.format.SignatureFormatter;
+import es.uji.apps.cryptoapplet.crypto.signature.format.SignatureOptions;
 import es.uji.apps.cryptoapplet.crypto.signature.validate.SignatureValidationOptions;
 import es.uji.apps.cryptoapplet.crypto.signature.validate.SignatureValidationResult;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -91,4 +100,197 @@ public class XAdESTest extends AbstractCryptoTest
 
         validator.validate(signatureValidationOptions);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void xadesDetachedByReference() throws Exception
+    {
+        environment.disableEnveloped();
+        environment.getSignatureOptions().setDetachedReferenceURI("http://example.org/data.xml");
+
+        byte[] signedData = sign(XAdESSignatureFormatter.class, environment);
+        System.out.println(new String(signedData));
+        assertNotNull(signedData);
+        assertTrue(new String(signedData).contains("http://example.org/data.xml"));
+
+        SignatureValidationResult validationResult = validate(XAdESSignatureValidator.class, environment, signedData);
+        assertTrue(validationResult.isValid());
+    }
+
+    @Test
+    public void xadesEnvelopedStreaming() throws Exception
+    {
+        environment.getSignatureOptions().setSwapToFile(true);
+
+        byte[] signedData = sign(XAdESSignatureFormatter.class, environment);
+        System.out.println(new String(signedData));
+        assertNotNull(signedData);
+        assertTrue(signedData.length > 0);
+
+        SignatureValidationResult validationResult = validate(XAdESSignatureValidator.class, environment, signedData);
+        assertTrue(validationResult.isValid());
+    }
+
+    @Test
+    public void xadesEnvelopedCosignValidateAll() throws Exception
+    {
+        environment.enableCosign();
+
+        byte[] data = "<?xml version=\"1.0\"?><root><d>a</d></root>".getBytes();
+
+        for (int i = 0; i < 3; i++)
+        {
+            environment.setData(data);
+            data = sign(XAdESSignatureFormatter.class, environment);
+        }
+
+        XAdESSignatureValidator validator = new XAdESSignatureValidator(environment.getCertificate(),
+                environment.getProvider());
+
+        SignatureValidationOptions signatureValidationOptions = new SignatureValidationOptions();
+        signatureValidationOptions.setSignedData(new ByteArrayInputStream(data));
+
+        List<SignatureValidationResult> results = validator.validateAll(signatureValidationOptions);
+        assertEquals(3, results.size());
+
+        for (SignatureValidationResult result : results)
+        {
+            assertTrue(result.isValid());
+        }
+    }
+
+    @Test
+    public void xadesSigningCertificateIsCheckedByValidateAll() throws Exception
+    {
+        byte[] data = sign(XAdESSignatureFormatter.class, environment);
+
+        // Another digest of the signing certificate, same length and alphabet
+
+        String signed = new String(data);
+        int digestStart = signed.indexOf("DigestValue>", signed.indexOf("CertDigest>")) + 12;
+        char first = signed.charAt(digestStart);
+        data = (signed.substring(0, digestStart) + ((first == 'A') ? 'B' : 'A') + signed
+                .substring(digestStart + 1)).getBytes();
+
+        XAdESSignatureValidator validator = new XAdESSignatureValidator(environment.getCertificate(),
+                environment.getProvider());
+
+        SignatureValidationOptions signatureValidationOptions = new SignatureValidationOptions();
+        signatureValidationOptions.setSignedData(new ByteArrayInputStream(data));
+
+        List<SignatureValidationResult> results = validator.validateAll(signatureValidationOptions);
+        assertEquals(1, results.size());
+        assertFalse(results.get(0).isValid());
+        assertTrue(results.get(0).getErrors().contains(
+                "XAdES signing certificate digest does not match"));
+    }
+
+    @Test
+    public void xadesEnvelopedCosignTamperedWithSharedCache() throws Exception
+    {
+        ReferenceDigestCache cache = new ReferenceDigestCache();
+
+        environment.enableCosign();
+        environment.getSignatureOptions().setReferenceDigestCache(cache);
+
+        byte[] data = "<?xml version=\"1.0\"?><root><d>a</d></root>".getBytes();
+
+        for (int i = 0; i < 2; i++)
+        {
+            environment.setData(data);
+            data = sign(XAdESSignatureFormatter.class, environment);
+        }
+
+        assertEquals(1, cache.getHits());
+
+        // The cached digest is bound to the untampered document, so it is not signed again
+
+        environment.setData(new String(data).replace("<d>a</d>", "<d>b</d>").getBytes());
+        data = sign(XAdESSignatureFormatter.class, environment);
+
+        assertEquals(1, cache.getHits());
+
+        XAdESSignatureValidator validator = new XAdESSignatureValidator(environment.getCertificate(),
+                environment.getProvider());
+
+        SignatureValidationOptions signatureValidationOptions = new SignatureValidationOptions();
+        signatureValidationOptions.setSignedData(new ByteArrayInputStream(data));
+
+        List<SignatureValidationResult> results = validator.validateAll(signatureValidationOptions);
+        assertEquals(3, results.size());
+        assertFalse(results.get(0).isValid());
+        assertFalse(results.get(1).isValid());
+        assertTrue(results.get(2).isValid());
+    }
+
+    @Test
+    public void xadesEnvelopedCosignDetails() throws Exception
+    {
+        environment.enableCosign();
+
+        byte[] data = "<?xml version=\"1.0\"?><root><d>a</d></root>".getBytes();
+
+        for (int i = 0; i < 2; i++)
+        {
+            environment.setData(data);
+            data = sign(XAdESSignatureFormatter.class, environment);
+        }
+
+        List<SignatureDetails> details = new XAdESSignatureDetails()
+                .getDetails(new ByteArrayInputStream(data));
+        assertEquals(2, details.size());
+
+        for (SignatureDetails signatureDetails : details)
+        {
+            assertNotNull(signatureDetails.getSignerCN());
+            assertNotNull(signatureDetails.getSignatureTime());
+        }
+
+        assertEquals(details.size(), new XAdESSignatureDetails().getDetails(data).size());
+    }
+
+    @Test
+    public void xadesEnvelopedBatch() throws Exception
+    {
+        List<SignatureOptions> batch = new ArrayList<SignatureOptions>();
+
+        for (int i = 0; i < 5; i++)
+        {
+            SignatureOptions signatureOptions = new SignatureOptions(environment.getConfiguration());
+            signatureOptions.setDataToSign(new ByteArrayInputStream(("<?xml version=\"1.0\"?><root><d>"
+                    + i + "</d></root>").getBytes()));
+            batch.add(signatureOptions);
+        }
+
+        XAdESSignatureFormatter formatter = new XAdESSignatureFormatter(environment.getCertificate(),
+                environment.getPrivateKey(), environment.getProvider());
+
+        List<byte[]> signedData = formatter.format(batch);
+        assertEquals(5, signedData.size());
+
+        for (int i = 0; i < signedData.size(); i++)
+        {
+            assertTrue(new String(signedData.get(i)).contains("<d>" + i + "</d>"));
+            assertFalse(new String(signedData.get(i)).contains(DigestAlgorithm.SHA256
+                    .getXMLSignatureURI()));
+
+            SignatureValidationResult validationResult = validate(XAdESSignatureValidator.class,
+                    environment, signedData.get(i));
+            assertTrue(validationResult.isValid());
+        }
+    }
+
+    @Test
+    public void xadesEnvelopedCosignSHA256() throws Exception
+    {
+        environment.enableCosign();
+        environment.getSignatureOptions().setSignatureAlgorithm(SignatureAlgorithm.RSA_SHA256);
+        environment.getSignatureOptions().setDigestAlgorithm(DigestAlgorithm.SHA256);
+
+        byte[] signedData = sign(XAdESSignatureFormatter.class, environment);
+        assertTrue(new String(signedData).contains(SignatureAlgorithm.RSA_SHA256.getXMLSignatureURI()));
+        assertTrue(new String(signedData).contains(DigestAlgorithm.SHA256.getXMLSignatureURI()));
+
+        SignatureValidationResult validationResult = validate(XAdESSignatureValidator.class, environment, signedData);
+        assertTrue(validationResult.isValid());
+    }
+}
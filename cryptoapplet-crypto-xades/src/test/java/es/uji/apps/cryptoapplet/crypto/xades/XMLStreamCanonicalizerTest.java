@@ -0,0 +1,130 @@
+package es.uji.apps.cryptoapplet.crypto.xades;
+
+import org.junit.Test;
+
+import javax.xml.crypto.OctetStreamData;
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.TransformService;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the streaming canonicalization with the inclusive canonicalizer of JSR 105
+ */
+public class XMLStreamCanonicalizerTest
+{
+    private static final String DS = "http://www.w3.org/2000/09/xmldsig#";
+
+    private static String expected(String xml) throws Exception
+    {
+        TransformService canonicalizer = TransformService.getInstance(
+                CanonicalizationMethod.INCLUSIVE, "DOM");
+        canonicalizer.init(null);
+
+        OctetStreamData result = (OctetStreamData) canonicalizer.transform(new OctetStreamData(
+                new ByteArrayInputStream(xml.getBytes("UTF-8"))), null);
+
+        return read(result.getOctetStream());
+    }
+
+    private static String canonicalize(String xml, boolean excludeSignatures) throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new XMLStreamCanonicalizer(excludeSignatures).canonicalize(new ByteArrayInputStream(xml
+                .getBytes("UTF-8")), out);
+
+        return out.toString("UTF-8");
+    }
+
+    private static String read(InputStream in) throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int length;
+
+        while ((length = in.read(buffer)) >= 0)
+        {
+            out.write(buffer, 0, length);
+        }
+
+        return out.toString("UTF-8");
+    }
+
+    private static void assertCanonical(String xml) throws Exception
+    {
+        assertEquals(expected(xml), canonicalize(xml, false));
+    }
+
+    @Test
+    public void redeclaredNamespacesAreOnlyRenderedWhenTheyChange() throws Exception
+    {
+        assertCanonical("<a xmlns:p=\"urn:one\" xmlns=\"urn:default\"><p:b xmlns:p=\"urn:one\">"
+                + "<p:c xmlns:p=\"urn:two\"><d xmlns=\"urn:default\"/><p:e xmlns:p=\"urn:one\"/>"
+                + "</p:c></p:b></a>");
+    }
+
+    @Test
+    public void undeclaredDefaultNamespaceIsRenderedOnlyWhenOneIsInScope() throws Exception
+    {
+        assertCanonical("<a xmlns=\"urn:default\"><b xmlns=\"\"><c xmlns=\"\"/></b></a>");
+        assertCanonical("<a><b xmlns=\"\"/></a>");
+    }
+
+    @Test
+    public void attributesAreSortedByNamespaceAndName() throws Exception
+    {
+        assertCanonical("<a xmlns:z=\"urn:a\" xmlns:a=\"urn:z\" b=\"1\" z:c=\"2\" a:a=\"3\""
+                + " a=\"4\" z:a=\"5\" xml:lang=\"es\"/>");
+    }
+
+    @Test
+    public void lineBreaksAndTabsInAttributesAreEscaped() throws Exception
+    {
+        assertCanonical("<a b=\"x&#13;y&#10;z&#9;w\" c=\"tab\there\r\nnewline\"/>");
+    }
+
+    @Test
+    public void carriageReturnsInTextAreEscaped() throws Exception
+    {
+        assertCanonical("<a>x&#13;y\r\nz\t&amp;&lt;&gt;\"'</a>");
+    }
+
+    @Test
+    public void cdataIsWrittenAsEscapedText() throws Exception
+    {
+        assertCanonical("<a>before<![CDATA[<b> & \"c\" ]]>after<![CDATA[]]></a>");
+    }
+
+    @Test
+    public void instructionsOutsideTheDocumentElementAreKeptAndCommentsRemoved()
+            throws Exception
+    {
+        assertCanonical("<?xml version=\"1.0\"?>\n<?before data?>\n<!-- before -->\n"
+                + "<a><?inside x?><!-- inside --></a>\n<!-- after -->\n<?after?>\n");
+    }
+
+    @Test
+    public void existingSignaturesAreExcludedWhenCosigning() throws Exception
+    {
+        String signature = "<ds:Signature xmlns:ds=\"" + DS + "\" Id=\"s1\"><ds:SignedInfo>"
+                + "<ds:Reference URI=\"\"/></ds:SignedInfo></ds:Signature>";
+
+        String signed = "<a xmlns:ds=\"" + DS + "\"><b>text</b>" + signature + "<c/>"
+                + signature + "</a>";
+        String unsigned = "<a xmlns:ds=\"" + DS + "\"><b>text</b><c/></a>";
+
+        XMLStreamCanonicalizer canonicalizer = new XMLStreamCanonicalizer(true);
+
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(
+                expected(unsigned).getBytes("UTF-8")), canonicalizer.digest(
+                new ByteArrayInputStream(signed.getBytes("UTF-8")), "SHA-256"));
+        assertEquals(2, canonicalizer.getSignatures());
+
+        assertEquals(expected(signed), canonicalize(signed, false));
+    }
+}